@@ -67,7 +67,7 @@ while(<$fh>) {
 close $fh;
 
 my $out;
-open $out, "> ../wiglewifiwardriving/src/main/assets/oui.properties";
+open $out, "> ../wiglewifiwardriving/etc/oui/oui.properties";
 binmode ($out, ":utf8");
 foreach my $key (sort keys %output) {
   my $val = $output{$key};
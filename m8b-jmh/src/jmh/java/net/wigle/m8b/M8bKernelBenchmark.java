@@ -0,0 +1,85 @@
+package net.wigle.m8b;
+
+import net.wigle.m8b.geodesy.mgrs;
+import net.wigle.m8b.geodesy.utm;
+import net.wigle.m8b.siphash.SipHash;
+import net.wigle.m8b.siphash.SipKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * per-row cost of the m8b kernels: object-based SipHash/UTM/MGRS as the exporter used them, against
+ * the primitive siphash24 and mgrs.pack1000 paths. Each op is one row.
+ */
+@State(Scope.Thread)
+public class M8bKernelBenchmark {
+    private static final int ROWS = 4096;
+    private static final int SLICE_MASK = (1 << 30) - 1;
+
+    private final SipKey sipKey = new SipKey(new byte[16]);
+    private final long k0 = sipKey.getLeftHalf();
+    private final long k1 = sipKey.getRightHalf();
+    private final byte[][] macBytes = new byte[ROWS][6];
+    private final long[] macs = new long[ROWS];
+    private final double[] lats = new double[ROWS];
+    private final double[] lons = new double[ROWS];
+    private final byte[] mstr = new byte[9];
+    private int row;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(8);
+        for (int i = 0; i < ROWS; i++) {
+            random.nextBytes(macBytes[i]);
+            long packed = 0L;
+            for (final byte b : macBytes[i]) {
+                packed = (packed << 8) | (b & 0xFF);
+            }
+            macs[i] = packed;
+            lats[i] = (float) (random.nextDouble() * 140 - 60);
+            lons[i] = (float) (random.nextDouble() * 360 - 180);
+        }
+    }
+
+    private int nextRow() {
+        row = (row + 1) & (ROWS - 1);
+        return row;
+    }
+
+    @Benchmark
+    public long sipHashDigest() {
+        return SipHash.digest(sipKey, macBytes[nextRow()]) & SLICE_MASK;
+    }
+
+    @Benchmark
+    public long sipHashPrimitive() {
+        return SipHash.siphash24(k0, k1, macs[nextRow()]) & SLICE_MASK;
+    }
+
+    @Benchmark
+    public void mgrsObjects(final Blackhole bh) {
+        final int i = nextRow();
+        try {
+            mgrs.fromUtm(utm.fromLatLon(lats[i], lons[i])).populateBytes(mstr);
+        } catch (final IndexOutOfBoundsException ex) {
+            // same rows the packed path rejects
+        }
+        bh.consume(mstr);
+    }
+
+    @Benchmark
+    public void mgrsPacked(final Blackhole bh) {
+        final int i = nextRow();
+        final long packed = mgrs.pack1000(lats[i], lons[i]);
+        if (packed != mgrs.NOT_MGRS) {
+            mgrs.populateBytes(packed, mstr, 0);
+        }
+        bh.consume(mstr);
+    }
+}
@@ -9,7 +9,7 @@ package net.wigle.m8b.geodesy;
 /* www.movable-type.co.uk/scripts/geodesy/docs/module-mgrs.html                                   */
 /* - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  */
 
-import android.annotation.SuppressLint;
+import java.util.Locale;
 
 /**
  * Convert between Universal Transverse Mercator (UTM) coordinates and Military Grid Reference
@@ -75,9 +75,62 @@ public final class mgrs {
 	
 	return m;
     }
-	@SuppressLint("DefaultLocale")
 	public String toString() {
-	return String.format("%02d%c%c%c%s%s",zone,band,e100k,n100k,String.format("%05d",(int)easting).substring(0,2),String.format("%05d",(int)northing).substring(0,2));
+	return String.format(Locale.US, "%02d%c%c%c%s%s",zone,band,e100k,n100k,String.format(Locale.US, "%05d",(int)easting).substring(0,2),String.format(Locale.US, "%05d",(int)northing).substring(0,2));
+    }
+
+    /** pack1000 for a point the object path can't represent */
+    public static final long NOT_MGRS = -1L;
+
+    /**
+     * the MGRS-1000 cell of a point as a long: zone, band, 100km column and row letters, then km
+     * easting and northing, a byte each from the top of the low 48 bits down, so packed cells sort
+     * the same as their populateBytes bytes. No objects allocated.
+     * @return the packed cell, or NOT_MGRS where utm.fromLatLon/fromUtm/populateBytes would throw
+     */
+    public static long pack1000(double lat, double lon) {
+	return utm.toMgrs1000(lat, lon);
+    }
+
+    static long pack1000(int zone, char band, double easting, double northing) {
+	if (zone < 1 || zone > 99) {
+	    return NOT_MGRS;
+	}
+	int col = (int)Math.floor( easting/ _100k );
+	String eLetters = e100kLetters[(zone-1)%3];
+	if (col < 1 || col > eLetters.length()) {
+	    return NOT_MGRS;
+	}
+	int row = (int)(Math.floor(northing / _100k) % 20);
+	String nLetters = n100kLetters[(zone-1)%2];
+	if (row < 0 || row >= nLetters.length()) {
+	    return NOT_MGRS;
+	}
+	int eint = canon(easting % _100k);
+	int nint = canon(northing % _100k);
+	if (eint < 0 || eint > 99 || nint < 0 || nint > 99) {
+	    return NOT_MGRS;
+	}
+	return ((long) zone << 40) | ((long) (band & 0xff) << 32) | ((long) eLetters.charAt(col-1) << 24)
+		| ((long) nLetters.charAt(row) << 16) | ((long) eint << 8) | nint;
+    }
+
+    /**
+     * the populateBytes form of a pack1000 cell, into b at off
+     */
+    public static void populateBytes(long packed, byte[] b, int off){
+	int zone = (int)(packed >>> 40) & 0xff;
+	b[off] = z1(zone);
+	b[off + 1] = z2(zone);
+	b[off + 2] = (byte)(packed >>> 32);
+	b[off + 3] = (byte)(packed >>> 24);
+	b[off + 4] = (byte)(packed >>> 16);
+	int eint = (int)(packed >>> 8) & 0xff;
+	b[off + 5] = z1(eint);
+	b[off + 6] = z2(eint);
+	int nint = (int)packed & 0xff;
+	b[off + 7] = z1(nint);
+	b[off + 8] = z2(nint);
     }
 
     /**
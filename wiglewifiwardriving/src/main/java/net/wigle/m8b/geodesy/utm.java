@@ -11,7 +11,7 @@ package net.wigle.m8b.geodesy;
 /* - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  */
 
 
-import android.annotation.SuppressLint;
+import java.util.Locale;
 
 /**
  * Convert between Universal Transverse Mercator coordinates and WGS 84 latitude/longitude points.
@@ -172,6 +172,57 @@ public class utm {
     }
 
 
+    /**
+     * fromLatLon + mgrs.fromUtm without the objects: same easting/northing arithmetic, step for step,
+     * minus the convergence and scale MGRS doesn't use.
+     * @return see mgrs.pack1000, or mgrs.NOT_MGRS where the object path would throw
+     */
+    static long toMgrs1000(double lat, double lon) {
+        if (Double.isNaN(lat) || Double.isNaN(lon)){ return mgrs.NOT_MGRS; }
+        if (!(-80<=lat && lat<=84)){ return mgrs.NOT_MGRS; }
+
+        int zone = (int)(Math.floor((lon+180)/6) + 1); // longitudinal zone
+        double λ0 = Math.toRadians((zone-1)*6 - 180 + 3); // longitude of central meridian
+
+	char latBand = mgrsLatBands.charAt((int)Math.floor((lat/8)+10));
+	if (zone==31 && latBand=='V' && lon>= 3) { zone++; λ0 += sixRadians; }
+	if (zone==32 && latBand=='X' && lon<  9) { zone--; λ0 -= sixRadians; }
+	if (zone==32 && latBand=='X' && lon>= 9) { zone++; λ0 += sixRadians; }
+	if (zone==34 && latBand=='X' && lon< 21) { zone--; λ0 -= sixRadians; }
+	if (zone==34 && latBand=='X' && lon>=21) { zone++; λ0 += sixRadians; }
+	if (zone==36 && latBand=='X' && lon< 33) { zone--; λ0 -= sixRadians; }
+	if (zone==36 && latBand=='X' && lon>=33) { zone++; λ0 += sixRadians; }
+
+	double φ = Math.toRadians(lat);
+	double λ = Math.toRadians(lon) - λ0;
+
+	double cosλ = Math.cos(λ);
+	double sinλ = Math.sin(λ);
+
+	double τ = Math.tan(φ);
+	double σ = Math.sinh(e*atanh(e*τ/Math.sqrt(1+τ*τ)));
+
+	double τʹ = τ*Math.sqrt(1+σ*σ) - σ*Math.sqrt(1+τ*τ);
+
+	double ξʹ = Math.atan2(τʹ, cosλ);
+	double ηʹ = asinh(sinλ / Math.sqrt(τʹ*τʹ + cosλ*cosλ));
+
+	double ξ = ξʹ;
+	for (int j=1; j<=6; j++){ ξ += α[j] * Math.sin(2*j*ξʹ) * Math.cosh(2*j*ηʹ);}
+
+	double η = ηʹ;
+	for (int j=1; j<=6; j++){ η += α[j] * Math.cos(2*j*ξʹ) * Math.sinh(2*j*ηʹ);}
+
+	double x = k0 * A * η;
+	double y = k0 * A * ξ;
+
+	x = x + falseEasting;
+	if (y < 0) {
+	    y = y + falseNorthing;
+	}
+	return mgrs.pack1000(zone, latBand, x, y);
+    }
+
     public static double atanh(double x){
 	return 0.5 * Math.log((1+x)/(1-x));
     }
@@ -181,9 +232,8 @@ public class utm {
     }
     
 
-	@SuppressLint("DefaultLocale")
 	public String toString() {
-	return String.format("%1$02d %2$s %3$.6f %4$.6f",zone,hemisphere,easting,northing);
+	return String.format(Locale.US, "%1$02d %2$s %3$.6f %4$.6f",zone,hemisphere,easting,northing);
     }
 
     public static void main(String[] argv) throws Exception {
@@ -21,6 +21,39 @@ public class SipHash {
         return s.digest();
     }
     
+    /**
+     * SipHash-2-4 of a 6-byte MAC, same result as digest() over its bytes, without allocating
+     * @param k0 the key's first 8 bytes, little-endian
+     * @param k1 the key's last 8 bytes, little-endian
+     * @param mac48 the MAC in the low 48 bits, first octet most significant
+     */
+    public static long siphash24(long k0, long k1, long mac48) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+
+        // six bytes is less than a block: only the length-tagged last block, bytes little-endian
+        final long m = (6L << 56) | Long.reverseBytes(mac48 << 16);
+        v3 ^= m;
+        for (int i = 0; i < 2; i++) {
+            v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+            v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+            v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+            v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= m;
+
+        v2 ^= 0xff;
+        for (int i = 0; i < 4; i++) {
+            v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+            v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+            v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+            v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
     private static long lastBlock(byte[] data, int iter) {
         long last = ((long) data.length) << 56;
         int off = iter * 8;
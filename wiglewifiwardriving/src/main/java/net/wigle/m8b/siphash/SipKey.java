@@ -13,11 +13,11 @@ public class SipKey {
         this.key = key;
     }
     
-    long getLeftHalf() {
+    public long getLeftHalf() {
        return UnsignedInt64.binToIntOffset(key, 0); 
     }
     
-    long getRightHalf() {
+    public long getRightHalf() {
         return UnsignedInt64.binToIntOffset(key, 8); 
     }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package net.wigle.wigleandroid;
 
 import static net.wigle.wigleandroid.db.DatabaseHelper.SEARCH_NETWORKS;
+import static net.wigle.wigleandroid.db.DatabaseHelper.boundsArgs;
+import static net.wigle.wigleandroid.db.DatabaseHelper.bssidLikeClause;
 import static net.wigle.wigleandroid.model.Network.RSN_CAP;
 import static net.wigle.wigleandroid.model.Network.SAE_CAP;
 import static net.wigle.wigleandroid.model.Network.SUITE_B_192_CAP;
@@ -15,6 +17,7 @@ import static net.wigle.wigleandroid.model.NetworkFilterType.WIFI;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -224,13 +227,11 @@ public class DBResultActivity extends ProgressThrobberActivity {
         }
 
         if ( ssid != null && ! "".equals(ssid) ) {
-            sql += " AND ssid like ?"; // + DatabaseUtils.sqlEscapeString(ssid);
-            params.add(ssid);
+            sql += " AND " + ListFragment.lameStatic.dbHelper.ssidLikeClause(ssid, params);
             limit = true;
         }
         if ( bssid != null && ! "".equals(bssid) ) {
-            sql += " AND bssid LIKE ?"; // + DatabaseUtils.sqlEscapeString(bssid);
-            params.add(bssid);
+            sql += " AND " + bssidLikeClause(bssid, params);
             limit = true;
         }
         if ( queryArgs.getType() != null && !NetworkFilterType.ALL.equals(queryArgs.getType())) {
@@ -280,11 +281,8 @@ public class DBResultActivity extends ProgressThrobberActivity {
             }
         }
         if (bounds  != null ) {
-            sql += " AND lastlat > ? AND lastlat < ? AND lastlon > ? AND lastlon < ?";
-            params.add((bounds.southwest.latitude)+"");
-            params.add((bounds.northeast.latitude)+"");
-            params.add((bounds.southwest.longitude)+"");
-            params.add((bounds.northeast.longitude)+"");
+            sql += " AND " + ListFragment.lameStatic.dbHelper.networkBoundsClause();
+            Collections.addAll(params, boundsArgs(bounds));
         }
         if ( limit ) {
             sql += " LIMIT ?"; // + LIMIT;
@@ -295,7 +293,8 @@ public class DBResultActivity extends ProgressThrobberActivity {
         final float[] results = new float[1];
         final long[] count = new long[1];
         final Handler handler = new Handler(Looper.getMainLooper());
-        final PooledQueryExecutor.Request request = new PooledQueryExecutor.Request( sql, params.toArray(new String[0]),
+        final PooledQueryExecutor.Request request = new PooledQueryExecutor.Request(
+                PooledQueryExecutor.RequestType.SEARCH, this, sql, params.toArray(new String[0]),
                 new PooledQueryExecutor.ResultHandler() {
             @Override
             public boolean handleRow( final Cursor cursor ) {
@@ -676,6 +675,7 @@ public class DBResultActivity extends ProgressThrobberActivity {
 
     @Override
     public void onDestroy() {
+        PooledQueryExecutor.cancelAll(this);
         if (mapView != null) {
             mapView.onDestroy();
         }
@@ -76,6 +76,7 @@ public final class DataFragment extends Fragment implements DialogListener {
     private static final int MAX_OUT_DIALOG = 127;
     private static final int DELETE_DIALOG = 128;
     private static final int EXPORT_M8B_DIALOG = 129;
+    private static final int KMZ_DB_DIALOG = 130;
 
     /** Called when the activity is first created. */
     @Override
@@ -287,6 +288,17 @@ public final class DataFragment extends Fragment implements DialogListener {
                 Logging.error("Null FragmentActivity setting up KML export button");
             }
         });
+
+        final Button kmzExportButton = view.findViewById( R.id.kmz_export_button );
+        kmzExportButton.setOnClickListener(buttonView -> {
+            final FragmentActivity fa = getActivity();
+            if (fa != null) {
+                WiGLEConfirmationDialog.createConfirmation( fa,
+                    DataFragment.this.getString(R.string.data_export_kmz_db), R.id.nav_data, KMZ_DB_DIALOG);
+            } else {
+                Logging.error("Null FragmentActivity setting up KMZ export button");
+            }
+        });
     }
 
     private void setupBackupDbButton( final View view ) {
@@ -516,6 +528,11 @@ public final class DataFragment extends Fragment implements DialogListener {
                 kmlWriter.start();
                 break;
             }
+            case KMZ_DB_DIALOG: {
+                KmlWriter kmlWriter = new KmlWriter( getActivity(), ListFragment.lameStatic.dbHelper, true );
+                kmlWriter.start();
+                break;
+            }
             case BACKUP_DIALOG: {
                 try {
                     BackupRunnable backupRunnable = new BackupRunnable(this.getActivity(), ListFragment.lameStatic.executorService, true);
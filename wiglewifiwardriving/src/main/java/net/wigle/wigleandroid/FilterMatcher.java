@@ -1,5 +1,8 @@
 package net.wigle.wigleandroid;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -15,6 +18,33 @@ import net.wigle.wigleandroid.util.PreferenceKeys;
  * filter matchers
  */
 public final class FilterMatcher {
+    private static final String[] FILTER_PREF_SUFFIXES = {
+            PreferenceKeys.PREF_MAPF_REGEX, PreferenceKeys.PREF_MAPF_INVERT, PreferenceKeys.PREF_MAPF_OPEN,
+            PreferenceKeys.PREF_MAPF_WEP, PreferenceKeys.PREF_MAPF_WPA, PreferenceKeys.PREF_MAPF_CELL,
+            PreferenceKeys.PREF_MAPF_BT, PreferenceKeys.PREF_MAPF_BTLE, PreferenceKeys.PREF_MAPF_ENABLED};
+
+    private static final Map<String, NetworkFilter> filters = new ConcurrentHashMap<>();
+    private static final AtomicInteger generation = new AtomicInteger();
+    private static volatile SharedPreferences listening;
+    // prefs only hold their listeners weakly
+    private static final SharedPreferences.OnSharedPreferenceChangeListener invalidator = (prefs, key) -> {
+        if (key == null || isFilterKey(key)) {
+            generation.incrementAndGet();
+        }
+    };
+
+    private static boolean isFilterKey(final String key) {
+        if (PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS.equals(key)) {
+            return true;
+        }
+        for (String suffix : FILTER_PREF_SUFFIXES) {
+            if (key.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static boolean isSsidFilterOn( final SharedPreferences prefs, final String prefix ) {
         return prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_ENABLED, true );
     }
@@ -27,94 +57,151 @@ public final class FilterMatcher {
         return false;
     }
 
-    public static Matcher getSsidFilterMatcher( final SharedPreferences prefs, final String prefix ) {
+    private static Pattern getSsidFilterPattern( final SharedPreferences prefs, final String prefix ) {
         final String regex = prefs.getString( prefix + PreferenceKeys.PREF_MAPF_REGEX, "" );
-        Matcher matcher = null;
+        Pattern pattern = null;
         if ( isSsidFilterOn( prefs, prefix ) && regex != null && ! "".equals(regex) ) {
             try {
-                Pattern pattern = Pattern.compile( regex, Pattern.CASE_INSENSITIVE );
-                matcher = pattern.matcher( "" );
+                pattern = Pattern.compile( regex, Pattern.CASE_INSENSITIVE );
             }
             catch ( PatternSyntaxException ex ) {
                 Logging.error("regex pattern exception: " + ex);
             }
         }
 
-        return matcher;
+        return pattern;
     }
 
+    /**
+     * The filter for prefix as the preferences stand, compiled on first use and kept until a filter
+     * preference changes.
+     * @param prefs the preferences holding the filter
+     * @param prefix the filter's key prefix, e.g. {@link PreferenceKeys#FILTER_PREF_PREFIX} for the list
+     * @return the filter
+     */
+    public static NetworkFilter getNetworkFilter( final SharedPreferences prefs, final String prefix ) {
+        if (listening != prefs) {
+            synchronized (FilterMatcher.class) {
+                if (listening != prefs) {
+                    prefs.registerOnSharedPreferenceChangeListener(invalidator);
+                    listening = prefs;
+                    generation.incrementAndGet();
+                }
+            }
+        }
+        // taken before reading the prefs: a change while compiling leaves the result already stale
+        final int current = generation.get();
+        final NetworkFilter cached = filters.get(prefix);
+        if (cached != null && cached.generation == current) {
+            return cached;
+        }
+        final NetworkFilter filter = new NetworkFilter(prefs, prefix, current);
+        filters.put(prefix, filter);
+        return filter;
+    }
 
-    public static boolean isOk(final Matcher ssidMatcher, final Matcher bssidMatcher,
-                               final SharedPreferences prefs, final String prefix, final Network network ) {
+    /**
+     * A filter's preferences read once: the network types and WiFi crypto it shows as bitmasks, and its SSID
+     * pattern. Immutable, and safe to share between threads.
+     */
+    public static final class NetworkFilter {
+        private final int generation;
+        private final boolean enabled;
+        private final Pattern ssidPattern;
+        private final ThreadLocal<Matcher> ssidMatchers;
+        private final boolean invert;
+        // bit per NetworkType ordinal
+        private final int typeMask;
+        // bit per Network.CRYPTO_*
+        private final int cryptoMask;
+        private final boolean bssidFilterOn;
 
-        /*
-         * ALIBI: shouldn't be necessary, but seeing null network reports.
-         */
-        if (network == null) {
-            return false;
-        }
+        NetworkFilter( final SharedPreferences prefs, final String prefix, final int generation ) {
+            this.generation = generation;
+            enabled = isSsidFilterOn( prefs, prefix );
+            ssidPattern = getSsidFilterPattern( prefs, prefix );
+            ssidMatchers = ssidPattern == null ? null : ThreadLocal.withInitial(() -> ssidPattern.matcher(""));
+            invert = prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_INVERT, false );
 
-        if ( isSsidFilterOn( prefs, prefix ) ) {
-            if (ssidMatcher != null) {
-                try {
-                    final String ssid = network.getSsid();
-                    ssidMatcher.reset(ssid);
-                    final boolean invert = prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_INVERT, false);
-                    final boolean matches = ssidMatcher.find();
-                    if (!matches && !invert) {
-                        return false;
-                    } else if (matches && invert) {
-                        return false;
-                    }
-                } catch (IllegalArgumentException iaex) {
-                    Logging.warn("Matcher: IllegalArgument: " + network.getSsid() + "pattern: " + ssidMatcher.pattern());
-                    final boolean invert = prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_INVERT, false);
-                    return !invert;
+            int types = 0;
+            for (NetworkType type : NetworkType.values()) {
+                final boolean show;
+                if (NetworkType.WIFI.equals(type)) {
+                    // by crypto, below
+                    show = true;
+                } else if (NetworkType.BT.equals(type)) {
+                    show = prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_BT, true );
+                } else if (NetworkType.BLE.equals(type)) {
+                    show = prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_BTLE, true );
+                } else {
+                    show = prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_CELL, true );
+                }
+                if (show) {
+                    types |= 1 << type.ordinal();
                 }
             }
+            typeMask = types;
 
-            if ( NetworkType.WIFI.equals( network.getType() ) ) {
-                switch (network.getCrypto()) {
-                    case Network.CRYPTO_NONE:
-                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_OPEN, true)) {
-                            return false;
-                        }
-                        break;
-                    case Network.CRYPTO_WEP:
-                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_WEP, true)) {
-                            return false;
-                        }
-                        break;
-                    case Network.CRYPTO_WPA:
-                    case Network.CRYPTO_WPA2:
-                    case Network.CRYPTO_WPA3:
-                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_WPA, true)) {
+            int crypto = 0;
+            if (prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_OPEN, true )) {
+                crypto |= 1 << Network.CRYPTO_NONE;
+            }
+            if (prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_WEP, true )) {
+                crypto |= 1 << Network.CRYPTO_WEP;
+            }
+            if (prefs.getBoolean( prefix + PreferenceKeys.PREF_MAPF_WPA, true )) {
+                crypto |= 1 << Network.CRYPTO_WPA | 1 << Network.CRYPTO_WPA2 | 1 << Network.CRYPTO_WPA3;
+            }
+            cryptoMask = crypto;
+            bssidFilterOn = isBssidFilterOn( prefs, PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS );
+        }
+
+        /**
+         * @param network the network to check
+         * @param bssidMatcher the display exclusion matcher, or null to skip address exclusion (as on the map)
+         * @return true if the filter shows the network
+         */
+        public boolean isOk( final Network network, final Matcher bssidMatcher ) {
+            /*
+             * ALIBI: shouldn't be necessary, but seeing null network reports.
+             */
+            if (network == null) {
+                return false;
+            }
+
+            if ( enabled ) {
+                if (ssidMatchers != null) {
+                    try {
+                        final Matcher ssidMatcher = ssidMatchers.get();
+                        ssidMatcher.reset(network.getSsid());
+                        if (ssidMatcher.find() == invert) {
                             return false;
                         }
-                        break;
-                    default:
-                        Logging.error("unhandled crypto: " + network);
+                    } catch (IllegalArgumentException iaex) {
+                        Logging.warn("Matcher: IllegalArgument: " + network.getSsid() + "pattern: " + ssidPattern);
+                        return !invert;
+                    }
                 }
-            } else if (NetworkType.BT.equals(network.getType())) {
-                if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_BT, true)) {
+
+                final NetworkType type = network.getType();
+                // untyped networks are filtered as cells
+                if ( (typeMask & (1 << (type == null ? NetworkType.GSM : type).ordinal())) == 0 ) {
                     return false;
                 }
-            } else if (NetworkType.BLE.equals(network.getType()) ) {
-                if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_BTLE, true)) {
-                    return false;
+                if ( NetworkType.WIFI.equals( type ) ) {
+                    final int crypto = network.getCrypto();
+                    if (crypto < Network.CRYPTO_NONE || crypto > Network.CRYPTO_WPA3) {
+                        Logging.error("unhandled crypto: " + network);
+                    } else if ((cryptoMask & (1 << crypto)) == 0) {
+                        return false;
+                    }
                 }
-            } else if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_CELL, true)) {
-                return false;
             }
-        }
 
-        if (isBssidFilterOn(prefs, PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS)) {
-            if (bssidMatcher != null) { //ALIBI: fallthrough on Map call, since we're not applying this there?
+            if ( bssidFilterOn && bssidMatcher != null ) { //ALIBI: fallthrough on Map call, since we're not applying this there?
                 try {
-                    final String bssid = network.getBssid();
-                    bssidMatcher.reset(bssid);
-                    final boolean matches = bssidMatcher.find();
-                    if (matches) {
+                    bssidMatcher.reset(network.getBssid());
+                    if (bssidMatcher.find()) {
                         return false;
                     }
                 } catch (IllegalArgumentException iaex) {
@@ -122,8 +209,7 @@ public final class FilterMatcher {
                     return true;
                 }
             }
+            return true;
         }
-        return true;
     }
-
 }
@@ -1,134 +1,119 @@
 package net.wigle.wigleandroid;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import net.wigle.wigleandroid.model.LiveFeatureSet;
+
+import org.maplibre.geojson.Feature;
+import org.maplibre.geojson.Point;
+
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
- * Simple helper to collect best-per-device detections and push GeoJSON updates to VectorMapActivity.
+ * Collects best-per-device detections and pushes them to VectorMapActivity's live sources.
+ * Detections only mark a layer dirty; a flush on the UI thread at most every FLUSH_INTERVAL_MS hands
+ * each dirty layer's already-built features to its source, so a burst of scan results costs one
+ * source update instead of a full GeoJSON rebuild and re-parse per device. Each layer holds a bounded
+ * number of devices and hands over only those near the map's viewport.
  */
 public class LiveMapUpdater {
-    private static final Map<String, Dev> wifiMap = new HashMap<>();
-    private static final Map<String, double[]> btMap = new HashMap<>();
-    private static final Map<String, double[]> cellMap = new HashMap<>();
+    static final long FLUSH_INTERVAL_MS = 250L;
+
+    private static final LiveFeatureSet<Feature> wifiFeatures = new LiveFeatureSet<>(
+            (id, lat, lon, signal, security) -> newFeature(id, "wifi", lat, lon, signal, security));
+    private static final LiveFeatureSet<Feature> btFeatures = new LiveFeatureSet<>(
+            (id, lat, lon, signal, security) -> newFeature(id, "bt", lat, lon, signal, null));
+    private static final LiveFeatureSet<Feature> cellFeatures = new LiveFeatureSet<>(
+            (id, lat, lon, signal, security) -> newFeature(id, "cell", lat, lon, signal, null));
+
+    private static final Runnable flushTask = LiveMapUpdater::flush;
 
-    private static WeakReference<VectorMapActivity> activityRef = new WeakReference<>(null);
+    private static volatile WeakReference<VectorMapActivity> activityRef = new WeakReference<>(null);
+    private static Handler handler;
+    private static boolean flushScheduled;
 
-    public static synchronized void setActiveActivity(VectorMapActivity activity) {
+    /**
+     * call on the UI thread
+     */
+    public static void setActiveActivity(VectorMapActivity activity) {
         activityRef = new WeakReference<>(activity);
         // push current state
-        pushAllToActivity();
+        activity.setLiveWifiFeatures(wifiFeatures.takeAll());
+        activity.setLiveBtFeatures(btFeatures.takeAll());
+        activity.setLiveCellFeatures(cellFeatures.takeAll());
     }
 
-    public static synchronized void clearActiveActivity() {
+    public static void clearActiveActivity() {
         activityRef = new WeakReference<>(null);
     }
 
-    private static class Dev {
-        double lat;
-        double lon;
-        int signal;
-        String security;
-        Dev(double lat, double lon, int signal, String security) {
-            this.lat = lat; this.lon = lon; this.signal = signal; this.security = security;
+    /**
+     * call when the camera settles, with the visible bounds
+     */
+    public static void setViewport(double south, double west, double north, double east) {
+        final boolean wifiChanged = wifiFeatures.setViewport(south, west, north, east);
+        final boolean btChanged = btFeatures.setViewport(south, west, north, east);
+        final boolean cellChanged = cellFeatures.setViewport(south, west, north, east);
+        if (wifiChanged || btChanged || cellChanged) {
+            scheduleFlush();
         }
     }
 
-    public static synchronized void addWifiDevice(String id, double lat, double lon, int signal, String security) {
-        addBest(wifiMap, id, lat, lon, signal, security);
-        pushWifi();
-    }
-
-    public static synchronized void addBtDevice(String id, double lat, double lon, int signal) {
-        addBest(btMap, id, lat, lon, signal);
-        pushBt();
-    }
-
-    public static synchronized void addCellDevice(String id, double lat, double lon, int signal) {
-        addBest(cellMap, id, lat, lon, signal);
-        pushCell();
-    }
-
-    private static void addBest(Map map, String id, double lat, double lon, int signal) {
-        // generic for bt/cell maps
-        double[] cur = (double[]) map.get(id);
-        if (cur == null || signal > (int)cur[2]) {
-            map.put(id, new double[]{lat, lon, signal});
+    public static void addWifiDevice(String id, double lat, double lon, int signal, String security) {
+        if (wifiFeatures.offer(id, lat, lon, signal, security)) {
+            scheduleFlush();
         }
     }
 
-    private static void addBest(Map<String,Dev> map, String id, double lat, double lon, int signal, String security) {
-        Dev cur = map.get(id);
-        if (cur == null || signal > cur.signal) {
-            map.put(id, new Dev(lat, lon, signal, security));
+    public static void addBtDevice(String id, double lat, double lon, int signal) {
+        if (btFeatures.offer(id, lat, lon, signal, null)) {
+            scheduleFlush();
         }
     }
 
-    private static void pushAllToActivity() {
-        pushWifi();
-        pushBt();
-        pushCell();
+    public static void addCellDevice(String id, double lat, double lon, int signal) {
+        if (cellFeatures.offer(id, lat, lon, signal, null)) {
+            scheduleFlush();
+        }
     }
 
-    private static void pushWifi() {
-        VectorMapActivity act = activityRef.get();
-        if (act == null) return;
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"type\":\"FeatureCollection\",\"features\":[");
-        boolean first = true;
-        for (Map.Entry<String, Dev> e : wifiMap.entrySet()) {
-            final String id = e.getKey();
-            final Dev d = e.getValue();
-            if (d == null) continue;
-            if (!first) sb.append(',');
-            first = false;
-            sb.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
-            sb.append(d.lon).append(',').append(d.lat).append(" ]},\"properties\":{\"id\":\"").append(id).append("\",\"type\":\"wifi\",\"signal\":\"").append(d.signal).append("\",\"security\":\"").append(d.security).append("\"}}");
+    private static Feature newFeature(final String id, final String type, final double lat, final double lon,
+                                      final int signal, final String security) {
+        final Feature feature = Feature.fromGeometry(Point.fromLngLat(lon, lat));
+        feature.addStringProperty("id", id);
+        feature.addStringProperty("type", type);
+        feature.addStringProperty("signal", Integer.toString(signal));
+        if (security != null) {
+            feature.addStringProperty("security", security);
         }
-        sb.append("]}");
-        final String json = sb.toString();
-        act.runOnUiThread(() -> act.setLiveWifiGeoJson(json));
+        return feature;
     }
 
-    private static void pushBt() {
-        VectorMapActivity act = activityRef.get();
-        if (act == null) return;
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"type\":\"FeatureCollection\",\"features\":[");
-        boolean first = true;
-        for (Map.Entry<String, double[]> e : btMap.entrySet()) {
-            final String id = e.getKey();
-            final double[] d = e.getValue();
-            if (d == null || d.length < 2) continue;
-            if (!first) sb.append(',');
-            first = false;
-            sb.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
-            sb.append(d[1]).append(',').append(d[0]).append(" ]},\"properties\":{\"id\":\"").append(id).append("\",\"type\":\"bt\",\"signal\":\"").append((int)d[2]).append("\"}}");
+    private static synchronized void scheduleFlush() {
+        // with no map showing, layers stay dirty until setActiveActivity pushes everything
+        if (flushScheduled || activityRef.get() == null) {
+            return;
+        }
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
         }
-        sb.append("]}");
-        final String json = sb.toString();
-        act.runOnUiThread(() -> act.setLiveBtGeoJson(json));
+        flushScheduled = true;
+        handler.postDelayed(flushTask, FLUSH_INTERVAL_MS);
     }
 
-    private static void pushCell() {
-        VectorMapActivity act = activityRef.get();
-        if (act == null) return;
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"type\":\"FeatureCollection\",\"features\":[");
-        boolean first = true;
-        for (Map.Entry<String, double[]> e : cellMap.entrySet()) {
-            final String id = e.getKey();
-            final double[] d = e.getValue();
-            if (d == null || d.length < 2) continue;
-            if (!first) sb.append(',');
-            first = false;
-            sb.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
-            sb.append(d[1]).append(',').append(d[0]).append(" ]},\"properties\":{\"id\":\"").append(id).append("\",\"type\":\"cell\",\"signal\":\"").append((int)d[2]).append("\"}}");
+    private static void flush() {
+        synchronized (LiveMapUpdater.class) {
+            flushScheduled = false;
         }
-        sb.append("]}");
-        final String json = sb.toString();
-        act.runOnUiThread(() -> act.setLiveCellGeoJson(json));
+        final VectorMapActivity act = activityRef.get();
+        if (act == null) return;
+        final List<Feature> wifi = wifiFeatures.takeIfDirty();
+        if (wifi != null) act.setLiveWifiFeatures(wifi);
+        final List<Feature> bt = btFeatures.takeIfDirty();
+        if (bt != null) act.setLiveBtFeatures(bt);
+        final List<Feature> cell = cellFeatures.takeIfDirty();
+        if (cell != null) act.setLiveCellFeatures(cell);
     }
 }
@@ -18,6 +18,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Color;
@@ -96,17 +97,15 @@ import net.wigle.wigleandroid.net.WiGLEApiManager;
 import net.wigle.wigleandroid.ui.SetNetworkListAdapter;
 import net.wigle.wigleandroid.ui.ThemeUtil;
 import net.wigle.wigleandroid.ui.WiGLEToast;
-import net.wigle.wigleandroid.util.BluetoothUtil;
 import net.wigle.wigleandroid.util.FileUtility;
 import net.wigle.wigleandroid.util.InstallUtility;
 import net.wigle.wigleandroid.util.Logging;
+import net.wigle.wigleandroid.util.LookupTable;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.reflect.Method;
@@ -120,7 +119,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -134,9 +132,6 @@ import java.util.regex.Pattern;
 
 import static android.location.LocationManager.GPS_PROVIDER;
 
-import org.yaml.snakeyaml.LoaderOptions;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.Constructor;
 
 /**
  * MainActivity for WiGLE Wireless logging and visualization client
@@ -183,11 +178,12 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
         AtomicBoolean uiRestart;
         AtomicBoolean ttsNag = new AtomicBoolean(true);
         public WiGLEApiManager apiManager;
-        Map<Integer, String> btVendors = Collections.emptyMap();
-        Map<Integer, String> btMfgrIds = Collections.emptyMap();
-        Map<Integer, String> btServiceUuids = Collections.emptyMap();
-        Map<Integer, String> btCharUuids = Collections.emptyMap();
-        Map<Integer, BluetoothUtil.AppearanceCategory> btAppearance = Collections.emptyMap();
+        // null until mapped
+        volatile LookupTable btVendors;
+        volatile LookupTable btMfgrIds;
+        volatile LookupTable btServiceUuids;
+        volatile LookupTable btCharUuids;
+        volatile LookupTable btAppearance;
         Thread bssidMatchHeartbeat;
         // ALIBI set to -80 if you want a test ping on startup, Integer.MIN_VALUE for quiet start.
         AtomicInteger lastHighestSignal = new AtomicInteger(-80);
@@ -1003,6 +999,13 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
     @Override
     public void onDestroy() {
         Logging.info("MAIN: destroy.");
+        if (null != ListFragment.lameStatic.networkCache) {
+            Logging.info("network cache: " + ListFragment.lameStatic.networkCache.getStats());
+        }
+        final String apiCacheStats = WiGLEApiManager.getCacheStats();
+        if (null != apiCacheStats) {
+            Logging.info("API cache: " + apiCacheStats);
+        }
         super.onDestroy();
         stopHeartbeat();
         if (!state.uiRestart.get()) {
@@ -1875,74 +1878,14 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
                     // dynamically detect BTLE feature - prevents occasional NPEs
                     boolean hasLeSupport = getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
                     if (hasLeSupport) {
-                        //initialize the two global maps for BT mfgr/service UUID lookups
+                        //map the precompiled BT mfgr/service UUID lookup tables
                         AsyncTask.execute(() -> {
-                            try (BufferedReader reader = new BufferedReader(
-                                    new InputStreamReader((getAssets().open("btmember.yaml"))))) {
-                                Constructor constructor = new Constructor(new LoaderOptions());
-                                Yaml yaml = new Yaml(constructor);
-                                final HashMap<String, Object> data = yaml.load(reader);
-                                final List<LinkedHashMap<String, Object>> entries = (List<LinkedHashMap<String, Object>>) data.get("uuids");
-                                state.btVendors = new HashMap<>();
-                                if (null != entries) {
-                                    for (LinkedHashMap<String, Object> entry : entries) {
-                                        state.btVendors.put((Integer) entry.get("uuid"), (String) entry.get("name"));
-                                    }
-                                    Logging.info("BLE members initialized: " + entries.size() + " entries");
-                                }
-                            } catch (IOException e) {
-                                Logging.error("Failed to load BLE member yaml:", e);
-                            }
-                            try (BufferedReader reader = new BufferedReader(
-                                    new InputStreamReader((getAssets().open("btco.yaml"))))) {
-                                Constructor constructor = new Constructor(new LoaderOptions());
-                                Yaml yaml = new Yaml(constructor);
-                                final HashMap<String, Object> data = yaml.load(reader);
-                                final List<LinkedHashMap<String, Object>> entries = (List<LinkedHashMap<String, Object>>) data.get("company_identifiers");
-                                state.btMfgrIds = new HashMap<>();
-                                if (null != entries) {
-                                    for (LinkedHashMap<String, Object> entry : entries) {
-                                        state.btMfgrIds.put((Integer) entry.get("value"), (String) entry.get("name"));
-                                    }
-                                    Logging.info("BLE mfgrs initialized: "+entries.size()+" entries");
-                                }
-                            } catch (IOException e) {
-                                Logging.error("Failed to load BLE mfgr yaml: ",e);
-                            }
-                            state.btServiceUuids = new HashMap<>();
-                            state.btCharUuids = new HashMap<>();
-                            setupBleUuids("ble_svc_uuids.yaml", state.btServiceUuids);
-                            setupBleUuids("ble_char_uuids.yaml", state.btCharUuids);
-                            try (BufferedReader reader = new BufferedReader(
-                                    new InputStreamReader((getAssets().open("appearance_values.yaml"))))) {
-                                Constructor constructor = new Constructor(new LoaderOptions());
-                                Yaml yaml = new Yaml(constructor);
-                                final HashMap<Integer, Object> data = yaml.load(reader);
-                                final List<LinkedHashMap<String, Object>> entries = (List<LinkedHashMap<String, Object>>) data.get("appearance_values");
-                                state.btAppearance = new HashMap<>();
-                                if (null != entries) {
-                                    for (LinkedHashMap<String, Object> entry : entries) {
-                                        final List<LinkedHashMap<String, Object>> subEntries = (List<LinkedHashMap<String, Object>>) entry.get("subcategory");
-                                        Map<Integer, String> subcategories = null;
-                                        if (null != subEntries) {
-                                            subcategories = new HashMap<>();
-                                            for (LinkedHashMap<String, Object> subEntry : subEntries) {
-                                                if (null != subEntry) {
-                                                    int value = (Integer) subEntry.get("value");
-                                                    String name = (String) subEntry.get("name");
-                                                    if (null != name) {
-                                                        subcategories.put(value, name);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                        state.btAppearance.put((Integer) entry.get("category"), new BluetoothUtil.AppearanceCategory( (String) entry.get("name"), subcategories));
-                                    }
-                                    Logging.info("BLE appearance initialized: " + entries.size() + " categories");
-                                }
-                            } catch (IOException e) {
-                                Logging.error("Failed to load BLE appearance yaml:", e);
-                            }
+                            final AssetManager assets = getAssets();
+                            state.btVendors = loadLookupTable(assets, "btmember.bin");
+                            state.btMfgrIds = loadLookupTable(assets, "btco.bin");
+                            state.btServiceUuids = loadLookupTable(assets, "ble_svc_uuids.bin");
+                            state.btCharUuids = loadLookupTable(assets, "ble_char_uuids.bin");
+                            state.btAppearance = loadLookupTable(assets, "appearance_values.bin");
                         });
                     }
 
@@ -2330,23 +2273,14 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
         }
     }
 
-    private void setupBleUuids (final String uuidFileName, Map<Integer, String> uuidDestination) {
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader((getAssets().open(uuidFileName))))) {
-            Constructor constructor = new Constructor(new LoaderOptions());
-            Yaml yaml = new Yaml(constructor);
-            final HashMap<String, Object> data = yaml.load(reader);
-            final List<LinkedHashMap<String, Object>> entries =
-                    (List<LinkedHashMap<String, Object>>) data.get("uuids");
-            if (null != entries) {
-                for (LinkedHashMap<String, Object> entry : entries) {
-                    uuidDestination.put(((Integer) entry.get("uuid")), (String) entry.get("id"));
-                }
-                Logging.info("BLE " + uuidFileName + " initialized: " +
-                        entries.size()+" entries");
-            }
+    private static LookupTable loadLookupTable(final AssetManager assets, final String tableName) {
+        try {
+            final LookupTable table = LookupTable.fromAsset(assets, tableName);
+            Logging.info("BLE " + tableName + " initialized: " + table.size() + " entries");
+            return table;
         } catch (IOException e) {
-            Logging.error("Failed to load BLE "+uuidFileName+": ",e);
+            Logging.error("Failed to load BLE " + tableName + ": ", e);
+            return null;
         }
     }
 
@@ -2529,6 +2463,9 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
                 state.GNSSListener.saveLocation();
             }
 
+            // no more scans to the db queue
+            if (state.wifiReceiver != null) state.wifiReceiver.shutdown();
+
             // close the db. not in destroy, because it'll still write after that.
             if (state.dbHelper != null) state.dbHelper.close();
             if (state.mxcDbHelper != null) state.mxcDbHelper.close();
@@ -2775,24 +2712,28 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
 
     public String getBleVendor(final int i) {
         final State s = state;
-        return s == null ? null : s.btVendors.get(i);
+        return s == null ? null : lookup(s.btVendors, i);
     }
 
     public String getBleMfgr(final int i) {
         final State s = state;
-        return s == null ? null : s.btMfgrIds.get(i);
+        return s == null ? null : lookup(s.btMfgrIds, i);
     }
 
     public String getBleService(final String uuid) {
         final State s = state;
         int key = Integer.parseInt(uuid, 16);
-        return s == null ? null : s.btServiceUuids.get(key);
+        return s == null ? null : lookup(s.btServiceUuids, key);
     }
 
     public String getBleCharacteristic(final String uuid) {
         final State s = state;
         int key = Integer.parseInt(uuid, 16);
-        return s == null ? null : s.btCharUuids.get(key);
+        return s == null ? null : lookup(s.btCharUuids, key);
+    }
+
+    private static String lookup(final LookupTable table, final long key) {
+        return table == null ? null : table.get(key);
     }
 
     /**
@@ -2815,12 +2756,15 @@ public final class MainActivity extends AppCompatActivity implements TextToSpeec
      */
     public String getBleAppearance(final Integer category, final Integer subcategory) {
         final State s = state;
-        if (s.btAppearance != null) {
-            final BluetoothUtil.AppearanceCategory cat = s.btAppearance.get(category);
-            if (null != cat && cat.getSubcategories() != null) {
-                return cat.getName() + ": "+cat.getSubcategories().get(subcategory);
-            } else if (null != cat ){
-                return cat.getName();
+        final LookupTable appearance = s == null ? null : s.btAppearance;
+        if (appearance != null && category != null) {
+            // see appearanceKey in build.gradle
+            final long categoryKey = ((long) category) << 16;
+            final String name = appearance.get(categoryKey | 0xFFFF);
+            if (null != name && appearance.containsRange(categoryKey, categoryKey | 0xFFFE)) {
+                return name + ": " + (subcategory == null ? null : appearance.get(categoryKey | (subcategory & 0xFFFF)));
+            } else if (null != name) {
+                return name;
             }
         }
         return null;
@@ -33,7 +33,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
+import java.util.function.Consumer;
 
 /**
  * Custom map rendering: clustering, label decisions, MapUtils functionality
@@ -46,7 +46,7 @@ public class MapRender {
     private final AtomicInteger networkCount = new AtomicInteger();
     private final SharedPreferences prefs;
     private final GoogleMap map;
-    private Matcher ssidMatcher;
+    private Consumer<LatLngBounds> viewportListener;
     private final Set<Network> labeledNetworks = Collections.newSetFromMap(
             new ConcurrentHashMap<>());
 
@@ -202,25 +202,30 @@ public class MapRender {
         private void setupRelabelingTask() {
             // setup camera change listener to fire the asynctask
             Handler handler = new Handler(Looper.getMainLooper());
-            final LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
-            map.setOnCameraIdleListener(() -> executor.execute(() -> {
-                final Collection<Network> nets = MainActivity.getNetworkCache().values();
-                final ArrayList<String> ssids = new ArrayList<>(nets.size());
-                for (final Network network : nets) {
-                    final Marker marker = NetworkRenderer.this.getMarker(network);
-                    if (marker != null && network.getLatLng() != null) {
-                        final boolean inBounds = bounds.contains(network.getLatLng());
-                        if (inBounds || MapRender.this.labeledNetworks.contains(network)) {
-                            // MainActivity.info("sendupdate: " + network.getBssid());
-                            ssids.add(network.getBssid());
+            map.setOnCameraIdleListener(() -> {
+                final LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+                if (viewportListener != null) {
+                    viewportListener.accept(bounds);
+                }
+                executor.execute(() -> {
+                    final Collection<Network> nets = MainActivity.getNetworkCache().values();
+                    final ArrayList<String> ssids = new ArrayList<>(nets.size());
+                    for (final Network network : nets) {
+                        final Marker marker = NetworkRenderer.this.getMarker(network);
+                        if (marker != null && network.getLatLng() != null) {
+                            final boolean inBounds = bounds.contains(network.getLatLng());
+                            if (inBounds || MapRender.this.labeledNetworks.contains(network)) {
+                                // MainActivity.info("sendupdate: " + network.getBssid());
+                                ssids.add(network.getBssid());
+                            }
                         }
                     }
-                }
-                if (!ssids.isEmpty()) {
-                    sendUpdateNetwork(ssids);
-                }
-                handler.post(mClusterManager::cluster);
-            }));
+                    if (!ssids.isEmpty()) {
+                        sendUpdateNetwork(ssids);
+                    }
+                    handler.post(mClusterManager::cluster);
+                });
+            });
         }
     }
 
@@ -228,7 +233,6 @@ public class MapRender {
         this.map = map;
         this.isDbResult = isDbResult;
         prefs = context.getSharedPreferences( PreferenceKeys.SHARED_PREFS, 0 );
-        ssidMatcher = FilterMatcher.getSsidFilterMatcher( prefs, MappingFragment.MAP_DIALOG_PREFIX );
         mClusterManager = new ClusterManager<>(context, map);
         networkRenderer = new NetworkRenderer(context, map, mClusterManager);
         mClusterManager.setRenderer(networkRenderer);
@@ -278,9 +282,8 @@ public class MapRender {
                 && ! isDbResult;
         if (network.getPosition() != null && !hideNets) {
             if (!showNewDBOnly || network.isNew()) {
-                return FilterMatcher.isOk(ssidMatcher,
-                        null /*ALIBI: we *can* use the filter from the list filter view here ...*/,
-                        prefs, MappingFragment.MAP_DIALOG_PREFIX, network);
+                return FilterMatcher.getNetworkFilter(prefs, MappingFragment.MAP_DIALOG_PREFIX).isOk(network,
+                        null /*ALIBI: we *can* use the filter from the list filter view here ...*/);
             }
         }
         return false;
@@ -300,6 +303,30 @@ public class MapRender {
         }
     }
 
+    /**
+     * several at once, clustering once at the end
+     */
+    public void addItems(final Collection<Network> networks) {
+        int added = 0;
+        for (final Network network : networks) {
+            if (okForMapTab(network)) {
+                mClusterManager.addItem(network);
+                added++;
+            }
+        }
+        if (added > 0) {
+            networkCount.getAndAdd(added);
+            mClusterManager.cluster();
+        }
+    }
+
+    /**
+     * @param listener called on the main thread with the visible region each time the camera settles
+     */
+    public void setViewportListener(final Consumer<LatLngBounds> listener) {
+        viewportListener = listener;
+    }
+
     public void clear() {
         Logging.info("MapRender: clear");
         labeledNetworks.clear();
@@ -317,7 +344,6 @@ public class MapRender {
     }
 
     public void onResume() {
-        ssidMatcher = FilterMatcher.getSsidFilterMatcher( prefs, MappingFragment.MAP_DIALOG_PREFIX );
         reCluster();
     }
 
@@ -3,14 +3,13 @@ package net.wigle.wigleandroid;
 import static android.view.View.GONE;
 import static com.google.android.gms.maps.GoogleMap.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
@@ -66,6 +65,7 @@ import com.google.android.gms.maps.MapView;
 import com.google.android.gms.maps.MapsInitializer;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 import com.google.android.gms.maps.model.Tile;
@@ -77,6 +77,7 @@ import net.wigle.wigleandroid.background.PooledQueryExecutor;
 import net.wigle.wigleandroid.db.DatabaseHelper;
 import net.wigle.wigleandroid.model.ConcurrentLinkedHashMap;
 import net.wigle.wigleandroid.model.Network;
+import net.wigle.wigleandroid.net.TileCache;
 import net.wigle.wigleandroid.net.WiGLEApiManager;
 import net.wigle.wigleandroid.ui.PrefsBackedCheckbox;
 import net.wigle.wigleandroid.ui.ThemeUtil;
@@ -105,12 +106,17 @@ public final class MappingFragment extends Fragment {
         private boolean locked = true;
         private boolean firstMove = true;
         private LatLng oldCenter = null;
+        // what the last viewport load covered, and whether it hit its limit before covering all of it
+        private LatLngBounds loadedBounds = null;
+        private boolean loadTruncated = false;
     }
 
     private final State state = new State();
 
     private MapView mapView;
     private MapRender mapRender;
+    // the latest viewport load, superseded by the next pan
+    private PooledQueryExecutor.Request viewportRequest;
 
     private final Handler timer = new Handler();
     private AtomicBoolean finishing;
@@ -153,6 +159,9 @@ public final class MappingFragment extends Fragment {
     private static final String HIGH_RES_TILE_TRAILER = "&sizeX=512&sizeY=512";
     private static final String ONLY_MINE_TILE_TRAILER = "&onlymine=1";
     private static final String NOT_MINE_TILE_TRAILER = "&notmine=1";
+    private static final String TILE_CACHE_DIR = "tiles";
+    // one per process: it owns the directory's byte budget
+    private static TileCache tileCache;
 
     // parameters for polyline simplification package: https://github.com/hgoebl/simplify-java
     // ALIBI: we could tighten these parameters significantly, but it results in wonky over-
@@ -201,7 +210,6 @@ public final class MappingFragment extends Fragment {
         if (prefs != null && BuildConfig.DEBUG && HeadingManager.DEBUG && prefs.getBoolean(PreferenceKeys.PREF_MAP_FOLLOW_BEARING, false)) {
             headingManager = new HeadingManager(a);
         }
-        setupQuery();
     }
 
     @Override
@@ -287,6 +295,7 @@ public final class MappingFragment extends Fragment {
             final Activity a1 = getActivity();
             if (null != a1) {
                 mapRender = new MapRender(a1, googleMap, false);
+                mapRender.setViewportListener(this::loadViewport);
             }
 
             // Seeing stack overflow crashes on multiple phones in specific locations, based on indoor svcs.
@@ -361,48 +370,73 @@ public final class MappingFragment extends Fragment {
                 final String authToken = ifAuthToken;
 
                 final String userAgent = WiGLEApiManager.USER_AGENT;
+                // mine/not mine tiles differ by account
+                final String account = prefs.getString(PreferenceKeys.PREF_AUTHNAME, "");
 
+                final TileCache.TileSource tileSource = new TileCache.TileSource() {
+                    @Override
+                    public String variant() {
+                        final Long since = prefs.getLong(PreferenceKeys.PREF_SHOW_DISCOVERED_SINCE, 2001);
+                        int thisYear = Calendar.getInstance().get(Calendar.YEAR);
+                        return since + "-" + (thisYear+1) + tileParams() + "/" + account;
+                    }
 
-                TileProvider tileProvider = new TileProvider() {
                     @SuppressLint("DefaultLocale")
                     @Override
-                    public Tile getTile(int x, int y, int zoom) {
-                        if (!checkTileExists(x, y, zoom)) {
-                            return NO_TILE;
-                        }
-
+                    public URL url(int zoom, int x, int y) throws MalformedURLException {
                         final Long since = prefs.getLong(PreferenceKeys.PREF_SHOW_DISCOVERED_SINCE, 2001);
                         int thisYear = Calendar.getInstance().get(Calendar.YEAR);
-                        String tileContents = prefs.getString(PreferenceKeys.PREF_SHOW_DISCOVERED,
-                                PreferenceKeys.PREF_MAP_NO_TILE);
-
                         String sinceString = String.format("%d0000-00000", since);
                         String toString = String.format("%d0000-00000", thisYear+1);
                         String s = String.format(MAP_TILE_URL_FORMAT,
                                 zoom, x, y, sinceString, toString);
+                        //DEBUG: MainActivity.info("map URL: " + s);
+                        return new URL(s + tileParams());
+                    }
 
-                        if (MainActivity.isHighDefinition()) {
-                                s += HIGH_RES_TILE_TRAILER;
+                    @Override
+                    public void prepare(HttpURLConnection connection) {
+                        if (null != authToken) {
+                            connection.setRequestProperty("Authorization", authToken);
                         }
+                        connection.setRequestProperty("User-Agent", userAgent);
+                    }
 
+                    /*
+                     * resolution and mine/not mine url trailers
+                     */
+                    private String tileParams() {
+                        String tileContents = prefs.getString(PreferenceKeys.PREF_SHOW_DISCOVERED,
+                                PreferenceKeys.PREF_MAP_NO_TILE);
+                        String s = "";
+                        if (MainActivity.isHighDefinition()) {
+                            s += HIGH_RES_TILE_TRAILER;
+                        }
                         // ALIBI: defaults to "ALL"
                         if (PreferenceKeys.PREF_MAP_ONLYMINE_TILE.equals(tileContents)) {
                             s += ONLY_MINE_TILE_TRAILER;
                         } else if (PreferenceKeys.PREF_MAP_NOTMINE_TILE.equals(tileContents)) {
                             s += NOT_MINE_TILE_TRAILER;
                         }
+                        return s;
+                    }
+                };
+                final TileCache cache = getTileCache(getContext());
 
-                        //DEBUG: MainActivity.info("map URL: " + s);
-
-                        try {
-                            final byte[] data = downloadData(new URL(s), userAgent, authToken);
-                            if (data.length > 0) {
-                                return new Tile(providerTileRes, providerTileRes, data);
-                            } else {
-                                return null;
-                            }
-                        } catch (MalformedURLException e) {
-                            throw new AssertionError(e);
+                TileProvider tileProvider = new TileProvider() {
+                    @Override
+                    public Tile getTile(int x, int y, int zoom) {
+                        if (!checkTileExists(x, y, zoom)) {
+                            return NO_TILE;
+                        }
+                        if (null == cache) {
+                            return null;
+                        }
+                        final byte[] data = cache.getTile(tileSource, zoom, x, y);
+                        if (data.length > 0) {
+                            return new Tile(providerTileRes, providerTileRes, data);
+                        } else {
+                            return null;
                         }
                     }
 
@@ -418,38 +452,6 @@ public final class MappingFragment extends Fragment {
                         }
                         return true;
                     }
-
-                    private byte[] downloadData(final URL url, final String userAgent, final String authToken) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        InputStream is = null;
-                        try {
-                            HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-                            if (null != authToken) {
-                                conn.setRequestProperty("Authorization", authToken);
-                            }
-                            conn.setRequestProperty("User-Agent", userAgent);
-                            is = conn.getInputStream();
-                            byte[] byteChunk = new byte[4096];
-                            int n;
-
-                            while ((n = is.read(byteChunk)) > 0) {
-                                baos.write(byteChunk, 0, n);
-                            }
-                        } catch (IOException e) {
-                            Logging.error("Failed while reading bytes from " +
-                                    url.toExternalForm() + ": "+ e.getMessage());
-                        } finally {
-                            if (is != null) {
-                                try {
-                                    is.close();
-                                } catch (IOException ioex) {
-                                    Logging.error("Failed while closing InputStream " +
-                                            url.toExternalForm() + ": "+ ioex.getMessage());
-                                }
-                            }
-                        }
-                        return baos.toByteArray();
-                    }
                 };
 
                 tileOverlay = googleMap.addTileOverlay(new TileOverlayOptions()
@@ -734,6 +736,12 @@ public final class MappingFragment extends Fragment {
     public void onDestroy() {
         Logging.info( "MAP: destroy mapping." );
         finishing.set(true);
+        PooledQueryExecutor.cancelAll(this);
+        synchronized (MappingFragment.class) {
+            if (null != tileCache) {
+                Logging.info("tile cache: " + tileCache.getStats());
+            }
+        }
 
         mapView.getMapAsync(googleMap -> {
             // save zoom
@@ -779,6 +787,13 @@ public final class MappingFragment extends Fragment {
         }
     }
 
+    private static synchronized TileCache getTileCache(final Context context) {
+        if (null == tileCache && null != context) {
+            tileCache = new TileCache(new File(context.getCacheDir(), TILE_CACHE_DIR));
+        }
+        return tileCache;
+    }
+
     @Override
     public void onResume() {
         Logging.info( "MAP: onResume" );
@@ -1119,53 +1134,64 @@ public final class MappingFragment extends Fragment {
         return dialog;
     }
 
-    private void setupQuery() {
-        if (ListFragment.lameStatic.dbHelper != null) {
-            final int cacheSize = MainActivity.getNetworkCache().size();
-            if (cacheSize > (ListFragment.lameStatic.networkCache.maxSize() / 4)) {
-                // don't load, there's already networks to show
-                Logging.info("cacheSize: " + cacheSize + ", skipping previous networks");
-                return;
+    /**
+     * Load the networks under the map from the db, the most recently seen first, up to half the network
+     * cache. Nothing to do if the last load already covered this view in full.
+     */
+    private void loadViewport(final LatLngBounds bounds) {
+        final DatabaseHelper dbHelper = ListFragment.lameStatic.dbHelper;
+        if (dbHelper == null) {
+            return;
+        }
+        final LatLngBounds loaded = state.loadedBounds;
+        if (loaded != null && !state.loadTruncated
+                && loaded.contains(bounds.southwest) && loaded.contains(bounds.northeast)) {
+            return;
+        }
+        final int limit = ListFragment.lameStatic.networkCache.maxSize() / 2;
+        final String[] args = Arrays.copyOf(DatabaseHelper.boundsArgs(bounds), 5);
+        args[4] = Integer.toString(limit);
+        final List<Network> read = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        if (viewportRequest != null) {
+            viewportRequest.cancel();
+        }
+        final PooledQueryExecutor.Request request = new PooledQueryExecutor.Request(
+            PooledQueryExecutor.RequestType.MAP_VIEWPORT, this, dbHelper.getNetworksInBoundsQuery(), args,
+            new PooledQueryExecutor.ResultHandler() {
+            @Override
+            public boolean handleRow(final Cursor cursor) {
+                read.add(DatabaseHelper.networkFromCursor(cursor));
+                return true;
             }
 
-            final String sql = "SELECT bssid FROM "
-                    + DatabaseHelper.LOCATION_TABLE + " ORDER BY _id DESC LIMIT ?";
-
-            final PooledQueryExecutor.Request request = new PooledQueryExecutor.Request( sql,
-                new String[]{(ListFragment.lameStatic.networkCache.maxSize() * 2)+""},
-                new PooledQueryExecutor.ResultHandler() {
-                @Override
-                public boolean handleRow( final Cursor cursor ) {
-                    final String bssid = cursor.getString(0);
+            @Override
+            public void complete() {
+                timer.post(() -> {
+                    // cache and map together, here: a cancelled load has touched neither
                     final ConcurrentLinkedHashMap<String,Network> networkCache = MainActivity.getNetworkCache();
-
-                    Network network = networkCache.get( bssid );
-                    // MainActivity.info("RAW bssid: " + bssid);
-                    if ( network == null ) {
-                        network = ListFragment.lameStatic.dbHelper.getNetwork( bssid );
-                        if ( network != null ) {
-                            networkCache.put( network.getBssid(), network );
-
-                            if (networkCache.isFull()) {
-                                Logging.info("Cache is full, breaking out of query result handling");
-                                return false;
-                            }
+                    final List<Network> added = new ArrayList<>();
+                    for (final Network network : read) {
+                        // anything already cached may be live, and newer than the db
+                        if (networkCache.get(network.getBssid()) == null) {
+                            networkCache.put(network.getBssid(), network);
+                            added.add(network);
                         }
                     }
-                    return true;
-                }
-
-                @Override
-                public void complete() {
-                    if ( mapView != null ) {
-                        // force a redraw
-                        mapView.postInvalidate();
+                    Logging.info("viewport load: " + read.size() + " networks, " + added.size() + " new, in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                    state.loadedBounds = bounds;
+                    state.loadTruncated = read.size() >= limit;
+                    if (mapRender != null && !added.isEmpty()) {
+                        mapRender.addItems(added);
                     }
-                }
-            }, ListFragment.lameStatic.dbHelper);
-            PooledQueryExecutor.enqueue(request);
-        }
+                });
+            }
+        }, dbHelper);
+        viewportRequest = request;
+        PooledQueryExecutor.enqueue(request);
     }
+
     private static final PointExtractor<LatLng> latLngPointExtractor = new PointExtractor<LatLng>() {
         @Override
         public double getX(LatLng point) {
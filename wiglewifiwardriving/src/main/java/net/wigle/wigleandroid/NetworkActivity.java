@@ -393,6 +393,7 @@ public class NetworkActivity extends ScreenChildActivity implements DialogListen
     public void onDestroy() {
         Logging.info("NET: onDestroy");
         networkActivity = null;
+        PooledQueryExecutor.cancelAll(this);
         if (mapView != null) {
             mapView.onDestroy();
         }
@@ -498,12 +499,10 @@ public class NetworkActivity extends ScreenChildActivity implements DialogListen
             }
         };
 
-        final String sql = "SELECT level,lat,lon FROM "
-                + DatabaseHelper.LOCATION_TABLE + " WHERE bssid = ?" +
-                " ORDER BY _id DESC limit ?" ;
+        final String sql = ListFragment.lameStatic.dbHelper.getNetworkLocationsQuery();
 
-        PooledQueryExecutor.enqueue( new PooledQueryExecutor.Request( sql,
-                new String[]{network.getBssid(), obsMap.maxSize()+""}, new PooledQueryExecutor.ResultHandler() {
+        PooledQueryExecutor.enqueue( new PooledQueryExecutor.Request( PooledQueryExecutor.RequestType.NETWORK_DETAIL,
+                this, sql, new String[]{network.getBssid(), obsMap.maxSize()+""}, new PooledQueryExecutor.ResultHandler() {
             @Override
             public boolean handleRow( final Cursor cursor ) {
                 observations++;
@@ -605,6 +605,8 @@ public final class SettingsFragment extends Fragment implements DialogListener {
             PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.enable_map_bearing, PreferenceKeys.PREF_MAP_FOLLOW_BEARING, false);
             PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.use_network_location, PreferenceKeys.PREF_USE_NETWORK_LOC, false);
             PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.disable_toast, PreferenceKeys.PREF_DISABLE_TOAST, false);
+            PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.db_write_ahead_log, PreferenceKeys.PREF_DB_WAL, true);
+            PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.chunked_upload, PreferenceKeys.PREF_CHUNKED_UPLOAD, false);
             PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.bluetooth_le_guess, PreferenceKeys.PREF_GUESS_BLE_ADDRESS_TYPE, false);
             PrefsBackedCheckbox.prefBackedCheckBox(thisActivity, view, R.id.boot_start, PreferenceKeys.PREF_START_AT_BOOT, false, value -> {
                 if (Build.VERSION.SDK_INT >= 29) {
@@ -16,6 +16,7 @@ import org.maplibre.android.MapLibre;
 import org.maplibre.android.camera.CameraPosition;
 import org.maplibre.android.camera.CameraUpdateFactory;
 import org.maplibre.android.geometry.LatLng;
+import org.maplibre.android.geometry.LatLngBounds;
 import org.maplibre.android.location.LocationComponent;
 import org.maplibre.android.location.LocationComponentActivationOptions;
 import org.maplibre.android.location.modes.CameraMode;
@@ -234,6 +235,14 @@ public class VectorMapActivity extends AppCompatActivity {
                                         PropertyFactory.circleOpacity(0.9f)
                                 );
                                 style.addLayer(cellLayer);
+                                // onResume's push came before these sources existed
+                                LiveMapUpdater.setActiveActivity(VectorMapActivity.this);
+                                // feed the live layers only what's near the view
+                                mapLibreMap.addOnCameraIdleListener(() -> {
+                                    final LatLngBounds bounds = mapLibreMap.getProjection().getVisibleRegion().latLngBounds;
+                                    LiveMapUpdater.setViewport(bounds.getLatSouth(), bounds.getLonWest(),
+                                            bounds.getLatNorth(), bounds.getLonEast());
+                                });
                             } catch (Exception ex) {
                                 // ignore layer creation failures
                             }
@@ -689,33 +698,26 @@ public class VectorMapActivity extends AppCompatActivity {
     }
 
     /**
-     * Update the wifi live source with a GeoJSON string (FeatureCollection JSON).
+     * Replace the wifi live source's features; LiveMapUpdater calls these on the UI thread.
      */
-    public void setLiveWifiGeoJson(String featureCollectionJson) {
-        if (wifiSource == null) return;
-        try {
-            FeatureCollection fc = FeatureCollection.fromJson(featureCollectionJson);
-            wifiSource.setGeoJson(fc);
-        } catch (Exception ex) {
-            // ignore
-        }
+    public void setLiveWifiFeatures(List<Feature> features) {
+        setLiveFeatures(wifiSource, features);
     }
 
-    public void setLiveBtGeoJson(String featureCollectionJson) {
-        if (btSource == null) return;
-        try {
-            FeatureCollection fc = FeatureCollection.fromJson(featureCollectionJson);
-            btSource.setGeoJson(fc);
-        } catch (Exception ex) {
-        }
+    public void setLiveBtFeatures(List<Feature> features) {
+        setLiveFeatures(btSource, features);
     }
 
-    public void setLiveCellGeoJson(String featureCollectionJson) {
-        if (cellSource == null) return;
+    public void setLiveCellFeatures(List<Feature> features) {
+        setLiveFeatures(cellSource, features);
+    }
+
+    private static void setLiveFeatures(GeoJsonSource source, List<Feature> features) {
+        if (source == null) return;
         try {
-            FeatureCollection fc = FeatureCollection.fromJson(featureCollectionJson);
-            cellSource.setGeoJson(fc);
+            source.setGeoJson(FeatureCollection.fromFeatures(features));
         } catch (Exception ex) {
+            // ignore
         }
     }
 
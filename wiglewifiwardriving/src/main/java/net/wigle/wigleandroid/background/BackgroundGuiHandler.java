@@ -29,6 +29,7 @@ import java.io.File;
 
 import static net.wigle.wigleandroid.util.FileUtility.CSV_GZ_EXT;
 import static net.wigle.wigleandroid.util.FileUtility.KML_EXT;
+import static net.wigle.wigleandroid.util.FileUtility.KMZ_EXT;
 
 public class BackgroundGuiHandler extends Handler {
     public static final int WRITING_PERCENT_START = 100000;
@@ -148,7 +149,8 @@ public class BackgroundGuiHandler extends Handler {
             } else if (Status.WRITE_SUCCESS.equals(status)) {
                 final String fileName = msg.peekData().getString(FILENAME);
                 if (null != fileName) {
-                    if (fileName.endsWith(KML_EXT)) {
+                    if (fileName.endsWith(KML_EXT) || fileName.endsWith(KMZ_EXT)) {
+                        final boolean kmz = fileName.endsWith(KMZ_EXT);
                         Intent intent = new Intent(Intent.ACTION_SEND);
                         intent.putExtra(Intent.EXTRA_SUBJECT, "WiGLE KML Export");
                         try {
@@ -156,7 +158,8 @@ public class BackgroundGuiHandler extends Handler {
                                 final String filePath = msg.peekData().getString(FILEPATH);
                                 //MainActivity.debug("File: "+filePath+" ("+fileName+")");
                                 if (null != filePath) {
-                                    File file = FileUtility.getKmlDownloadFile(this.context, removeFileExtension(fileName), filePath);
+                                    File file = FileUtility.getKmlDownloadFile(this.context, removeFileExtension(fileName), filePath,
+                                            kmz ? KMZ_EXT : KML_EXT);
                                     if (file == null || !file.exists()) {
                                         showError(fm, msg, status);
                                         Logging.error("UNABLE to export file - no access to " + filePath + " - " + fileName);
@@ -170,7 +173,7 @@ public class BackgroundGuiHandler extends Handler {
                                         intent.putExtra(Intent.EXTRA_STREAM, fileUri);
                                     }
                                     //DEBUG: MainActivity.info("send action called for file URI: " + fileUri.toString());
-                                    intent.setType("application/vnd.google-earth.kml+xml");
+                                    intent.setType(kmz ? "application/vnd.google-earth.kmz" : "application/vnd.google-earth.kml+xml");
                                     intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                                     intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                                     context.startActivity(Intent.createChooser(intent, context.getResources().getText(R.string.send_to)));
@@ -286,6 +289,10 @@ public class BackgroundGuiHandler extends Handler {
             if ( index > 0 ) {
                 filename = filename.substring( 0, index );
             }
+            index = filename.indexOf( KMZ_EXT );
+            if ( index > 0 ) {
+                filename = filename.substring( 0, index );
+            }
         }
         if ( filename == null ) {
             filename = "";
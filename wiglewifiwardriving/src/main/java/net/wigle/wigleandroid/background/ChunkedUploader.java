@@ -0,0 +1,216 @@
+package net.wigle.wigleandroid.background;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import net.wigle.wigleandroid.db.DBException;
+import net.wigle.wigleandroid.model.api.UploadReseponse;
+import net.wigle.wigleandroid.util.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Uploads the observations after the db marker as a series of bounded id ranges, one file per range,
+ * one at a time. The marker is handed back after every acknowledged chunk, so a dropped connection
+ * only costs the chunk in flight; the next upload picks up from the last acknowledged id.
+ * Each chunk is a complete WigleWifi file, so the server needs nothing new.
+ */
+public class ChunkedUploader {
+    public static final int DEFAULT_CHUNK_ROWS = 100000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 2000L;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Where the chunks come from
+     */
+    public interface ChunkSource {
+        /**
+         * @return the inclusive upper id of the chunk starting after fromId, or fromId when nothing is left
+         */
+        long chunkEnd(long fromId, int maxRows) throws DBException;
+
+        /**
+         * write the observations with fromId < _id <= toId to a file ready for upload; the uploader deletes
+         * it once the server acknowledges it
+         */
+        File writeChunk(long fromId, long toId) throws IOException, DBException, InterruptedException;
+    }
+
+    /**
+     * Told about each chunk as the server acknowledges it
+     */
+    public interface ChunkListener {
+        /**
+         * persist toId as the new marker
+         */
+        void onChunkUploaded(int chunk, long toId, UploadReseponse response);
+
+        void onRequestProgress(int chunk, long bytesWritten, long contentLength);
+    }
+
+    public static class Result {
+        public int chunks;
+        public long marker;
+        public final List<String> transIds = new ArrayList<>();
+        /** the http status of the chunk that stopped the upload, 0 if it completed */
+        public int failedHttpStatus;
+        /** the server answered, but without success */
+        public boolean rejected;
+
+        public boolean isComplete() {
+            return failedHttpStatus == 0 && !rejected;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    private final String fileParamName;
+    private final Map<String, String> params;
+    private final int chunkRows;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+
+    public ChunkedUploader(final OkHttpClient client, final String url, final String fileParamName,
+                           final Map<String, String> params) {
+        this(client, url, fileParamName, params, DEFAULT_CHUNK_ROWS, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    public ChunkedUploader(final OkHttpClient client, final String url, final String fileParamName,
+                           final Map<String, String> params, final int chunkRows, final int maxAttempts,
+                           final long retryDelayMillis) {
+        if (chunkRows < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("chunkRows: " + chunkRows + " maxAttempts: " + maxAttempts);
+        }
+        this.client = client;
+        this.url = url;
+        this.fileParamName = fileParamName;
+        this.params = params;
+        this.chunkRows = chunkRows;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * upload everything after fromId, a chunk at a time, stopping at the first chunk that can't be sent
+     * @param fromId the current marker
+     * @param source chunk boundaries and files
+     * @param listener told of each acknowledged chunk
+     * @return what was sent; result.marker is the last acknowledged id
+     * @throws IOException if a chunk still can't be sent after the retries; earlier chunks stay acknowledged
+     */
+    public Result upload(final long fromId, final ChunkSource source, final ChunkListener listener)
+            throws IOException, DBException, InterruptedException {
+        final Result result = new Result();
+        result.marker = fromId;
+        long toId;
+        while ((toId = source.chunkEnd(result.marker, chunkRows)) > result.marker) {
+            final int chunk = result.chunks + 1;
+            final File file = source.writeChunk(result.marker, toId);
+            Logging.info("uploading chunk " + chunk + ": (" + result.marker + ", " + toId + "] "
+                    + file.length() + " bytes");
+
+            final UploadReseponse response = uploadWithRetries(chunk, file, listener, result);
+            if (response == null) {
+                return result;
+            }
+            if (response.getSuccess() == null || !response.getSuccess()) {
+                Logging.error("chunk " + chunk + " not accepted: " + response.getWarning());
+                result.rejected = true;
+                return result;
+            }
+            result.chunks = chunk;
+            result.marker = toId;
+            if (response.getResults() != null && response.getResults().getTransids() != null) {
+                for (final UploadReseponse.UploadTransaction transaction : response.getResults().getTransids()) {
+                    result.transIds.add(transaction.getTransId());
+                }
+            }
+            listener.onChunkUploaded(chunk, toId, response);
+            // acknowledged: the rows are the server's now, and a resume starts after them
+            if (!file.delete()) {
+                Logging.warn("unable to delete uploaded chunk: " + file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the parsed response, or null (with result.failedHttpStatus set) for a status not worth retrying
+     */
+    private UploadReseponse uploadWithRetries(final int chunk, final File file, final ChunkListener listener,
+                                              final Result result) throws IOException, InterruptedException {
+        IOException lastException = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                Thread.sleep(retryDelayMillis * (1L << (attempt - 2)));
+            }
+            try (Response response = client.newCall(buildRequest(chunk, file, listener)).execute()) {
+                final int code = response.code();
+                if (response.isSuccessful()) {
+                    return parse(response);
+                }
+                Logging.error("chunk " + chunk + " attempt " + attempt + " failed: " + code + " " + response.message());
+                if (code < 500 || code == TOO_MANY_REQUESTS) {
+                    // the server has spoken; sending the same bytes again won't change its mind
+                    result.failedHttpStatus = code;
+                    return null;
+                }
+                lastException = new IOException("upload failed: " + code + " " + response.message());
+            } catch (final IOException ex) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("interrupted uploading chunk " + chunk);
+                }
+                Logging.error("chunk " + chunk + " attempt " + attempt + " failed: " + ex, ex);
+                lastException = ex;
+            }
+        }
+        throw lastException;
+    }
+
+    private Request buildRequest(final int chunk, final File file, final ChunkListener listener) {
+        final MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart(fileParamName, file.getName(),
+                        RequestBody.create(file, MediaType.parse("application/octet-stream")));
+        for (final Map.Entry<String, String> entry : params.entrySet()) {
+            builder.addFormDataPart(entry.getKey(), entry.getValue());
+        }
+        final CountingRequestBody countingBody = new CountingRequestBody(builder.build(),
+                (bytesWritten, contentLength) -> listener.onRequestProgress(chunk, bytesWritten, contentLength));
+        return new Request.Builder()
+                .url(url)
+                .post(countingBody)
+                .build();
+    }
+
+    private static UploadReseponse parse(final Response response) throws IOException {
+        final ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("empty upload response");
+        }
+        try {
+            final UploadReseponse parsed = new Gson().fromJson(body.string(), UploadReseponse.class);
+            if (parsed == null) {
+                throw new IOException("empty upload response");
+            }
+            return parsed;
+        } catch (final JsonSyntaxException ex) {
+            //ALIBI: a timeout mid-body can surface as a parse failure; treat it like any other failed send
+            throw new IOException("unparseable upload response: " + ex, ex);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package net.wigle.wigleandroid.background;
+
+import net.wigle.wigleandroid.model.NetworkType;
+import net.wigle.wigleandroid.util.ByteFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/**
+ * Purpose-built encoder for the KmlWriter export: the document header, folder breaks and one Placemark per
+ * network, written straight into a reusable byte buffer. Every fixed piece of markup (styles, labels, the
+ * per-type description tails) is encoded once, up front; only the network's own fields are formatted per row.
+ * Text goes out as ISO-8859-1, as the String.getBytes(MainActivity.ENCODING) path it replaces did.
+ * Not thread-safe; one per writer.
+ *
+ * Known differences from the string-concatenation path:
+ *  - coordinates are plain notation with shortest round-trip digits, so values under 1e-3 are "0.0001"
+ *    rather than Double.toString's "1.0E-4"
+ *  - SSIDs lose C1 controls 0x80-0x84 and 0x86-0x9F as intended; the signed-byte comparison only caught 0x7F
+ */
+public final class KmlPlacemarkEncoder {
+    static final String NO_SSID = "(no SSID)";
+    private static final byte SANITIZATION_REPLACEMENT_GLYPH = ' ';
+    private static final int MAX_FRACTION_DIGITS = 17;
+    // bytes for everything but the string fields: the fixed markup is under 400, with room to spare
+    private static final int FIXED_PLACEMARK_BYTES = 512 + (2 * ByteFormat.MAX_DOUBLE_BYTES)
+            + ByteFormat.MAX_ZONED_TIMESTAMP_BYTES + (4 * ByteFormat.MAX_LONG_BYTES);
+
+    static final byte[] HEADER = latin1("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>"
+            + "<Style id=\"red\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/red.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"yellow\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/yellow.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"green\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/green.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"blue\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/blue.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"pink\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/pink.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"ltblue\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/lightblue.png</href></Icon></IconStyle></Style>"
+            + "<Style id=\"zeroConfidence\"><IconStyle><Icon><href>https://maps.google.com/mapfiles/kml/pal2/icon18.png</href></Icon></IconStyle></Style>"
+            + "<Folder><name>Wifi Networks</name>\n");
+    static final byte[] CELL_FOLDER = latin1("</Folder>\n<Folder><name>Cellular Networks</name>\n");
+    static final byte[] BT_FOLDER = latin1("</Folder>\n<Folder><name>Bluetooth Networks</name>\n");
+    static final byte[] FOOTER = latin1("</Folder>\n</Document></kml>");
+
+    private static final byte[] PLACEMARK_START = latin1("<Placemark>\n<name><![CDATA[");
+    private static final byte[] NETWORK_ID = latin1("]]></name>\n<description><![CDATA[Network ID: ");
+    private static final byte[] CAPABILITIES = latin1("\nCapabilities: ");
+    private static final byte[] FREQUENCY = latin1("\nFrequency: ");
+    private static final byte[] TIMESTAMP = latin1("\nTimestamp: ");
+    private static final byte[] TIME = latin1("\nTime: ");
+    private static final byte[] SIGNAL = latin1("\nSignal: ");
+    private static final byte[] ROAMING_COIS = latin1("\nRoamingCOIs: ");
+    private static final byte[] MANUFACTURER_ID = latin1("\nManufacturerId: ");
+    private static final byte[] SERVICE = latin1("\nService: ");
+    private static final byte[] COORDINATES_END = latin1("</coordinates></Point>\n</Placemark>\n");
+    private static final byte[] NO_SSID_BYTES = latin1(NO_SSID);
+
+    private enum Style {
+        RED("red"), YELLOW("yellow"), GREEN("green"), BLUE("blue"), PINK("pink"), LTBLUE("ltblue"),
+        ZERO_CONFIDENCE("zeroConfidence");
+
+        /** closes the description, then the style and the opening of the point */
+        final byte[] tail;
+
+        Style(final String id) {
+            tail = latin1("</description><styleUrl>#" + id + "</styleUrl>\n<Point>\n<coordinates>");
+        }
+    }
+
+    /** "\nType: NAME", then whatever the type's description ends with, by NetworkType ordinal */
+    private static final byte[][] TYPE_TAILS = new byte[NetworkType.values().length][];
+    /** WiFi's: "\nType: WIFI\nEncryption: ...\n]]>", by encryption */
+    private static final byte[][] WIFI_TAILS = new byte[Encryption.values().length][];
+
+    private enum Encryption {
+        WPA3, WPA2, WPA, WEP, Unknown;
+
+        static Encryption forCapabilities(final String capabilities) {
+            if (capabilities.contains("WPA3")) {
+                return WPA3;
+            } else if (capabilities.contains("WPA2")) {
+                return WPA2;
+            } else if (capabilities.contains("WPA")) {
+                return WPA;
+            } else if (capabilities.contains("WEP")) {
+                return WEP;
+            }
+            return Unknown;
+        }
+    }
+
+    static {
+        for (final NetworkType type : NetworkType.values()) {
+            TYPE_TAILS[type.ordinal()] = latin1("\nType: " + type.name() + "]]>");
+        }
+        for (final Encryption encryption : Encryption.values()) {
+            WIFI_TAILS[encryption.ordinal()] = latin1("\nType: " + NetworkType.WIFI.name()
+                    + "\nEncryption: " + encryption.name() + "\n]]>");
+        }
+    }
+
+    private final TimeZone timeZone;
+    private byte[] buffer;
+    private int length;
+
+    public KmlPlacemarkEncoder(final int initialCapacity) {
+        this(initialCapacity, TimeZone.getDefault());
+    }
+
+    /**
+     * @param timeZone for the "Time: " line
+     */
+    public KmlPlacemarkEncoder(final int initialCapacity, final TimeZone timeZone) {
+        this.timeZone = timeZone;
+        buffer = new byte[Math.max(initialCapacity, HEADER.length)];
+    }
+
+    private void append(final byte[] markup) {
+        ensureCapacity(markup.length);
+        System.arraycopy(markup, 0, buffer, length, markup.length);
+        length += markup.length;
+    }
+
+    public void appendHeader() {
+        append(HEADER);
+    }
+
+    public void appendCellFolder() {
+        append(CELL_FOLDER);
+    }
+
+    public void appendBtFolder() {
+        append(BT_FOLDER);
+    }
+
+    public void appendFooter() {
+        append(FOOTER);
+    }
+
+    /**
+     * append one network's Placemark. fields are as read from DatabaseHelper.networkIterator
+     * @param type the network's type; null or one with no placemark layout (NFC) writes nothing
+     * @return true if a placemark was written
+     */
+    public boolean appendPlacemark(final String bssid, final String ssid, final int frequency,
+                                   final String capabilities, final long lasttime, final double lastlat,
+                                   final double lastlon, final int bestlevel, final NetworkType type,
+                                   final String rcois, final int mfgrid, final String service) {
+        final boolean wifi = NetworkType.WIFI.equals(type);
+        final boolean bt = NetworkType.isBtType(type);
+        if (!wifi && !bt && !NetworkType.isCellType(type)) {
+            return false;
+        }
+        final Style style = styleFor(type, capabilities, lasttime);
+        ensureCapacity(FIXED_PLACEMARK_BYTES + maxFieldBytes(ssid) + maxFieldBytes(bssid)
+                + maxFieldBytes(capabilities) + maxFieldBytes(rcois) + maxFieldBytes(service));
+        final byte[] out = buffer;
+        int pos = length;
+
+        pos = copy(out, pos, PLACEMARK_START);
+        pos = writeSsid(out, pos, ssid);
+        pos = copy(out, pos, NETWORK_ID);
+        pos = writeLatin1(out, pos, bssid);
+        pos = copy(out, pos, CAPABILITIES);
+        pos = writeLatin1(out, pos, capabilities);
+        pos = copy(out, pos, FREQUENCY);
+        pos = ByteFormat.writeLong(out, pos, frequency);
+        pos = copy(out, pos, TIMESTAMP);
+        pos = ByteFormat.writeLong(out, pos, lasttime);
+        pos = copy(out, pos, TIME);
+        pos = ByteFormat.writeZonedTimestamp(out, pos, lasttime, timeZone.getOffset(lasttime));
+        pos = copy(out, pos, SIGNAL);
+        pos = ByteFormat.writeLong(out, pos, bestlevel);
+        if (wifi) {
+            pos = copy(out, pos, ROAMING_COIS);
+            pos = writeLatin1(out, pos, rcois);
+            pos = copy(out, pos, WIFI_TAILS[Encryption.forCapabilities(capabilities).ordinal()]);
+        } else {
+            if (bt) {
+                pos = copy(out, pos, MANUFACTURER_ID);
+                pos = ByteFormat.writeLong(out, pos, mfgrid);
+                pos = copy(out, pos, SERVICE);
+                pos = writeLatin1(out, pos, service);
+            }
+            pos = copy(out, pos, TYPE_TAILS[type.ordinal()]);
+        }
+        pos = copy(out, pos, style.tail);
+        pos = writeCoordinate(out, pos, lastlon);
+        out[pos++] = ',';
+        pos = writeCoordinate(out, pos, lastlat);
+        pos = copy(out, pos, COORDINATES_END);
+
+        length = pos;
+        return true;
+    }
+
+    /**
+     * @return the number of buffered bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * write out and clear the buffered markup
+     * @param out the destination
+     * @throws IOException on write failure
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (length > 0) {
+            out.write(buffer, 0, length);
+        }
+        length = 0;
+    }
+
+    private static Style styleFor(final NetworkType type, final String capabilities, final long lasttime) {
+        //Regardless of reported quality, this freaks out
+        if (lasttime == 0L) {
+            return Style.ZERO_CONFIDENCE;
+        }
+        if (NetworkType.WIFI.equals(type)) {
+            if (capabilities.contains("WPA")) {
+                return Style.RED;
+            }
+            if (capabilities.contains("WEP")) {
+                return Style.YELLOW;
+            }
+            return Style.GREEN;
+        } else if (NetworkType.BLE.equals(type)) {
+            return Style.LTBLUE;
+        } else if (NetworkType.BT.equals(type)) {
+            return Style.BLUE;
+        }
+        return Style.PINK;
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int needed = length + extra;
+        if (needed > buffer.length) {
+            final byte[] grown = new byte[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private static int maxFieldBytes(final String value) {
+        // one byte per char, "null" for null
+        return value == null ? 4 : value.length();
+    }
+
+    private static int copy(final byte[] out, final int pos, final byte[] markup) {
+        System.arraycopy(markup, 0, out, pos, markup.length);
+        return pos + markup.length;
+    }
+
+    /**
+     * Double.toString layout for the coordinate range: always a fraction, so 180 is "180.0"
+     */
+    private static int writeCoordinate(final byte[] out, final int pos, final double value) {
+        final int end = ByteFormat.writeDouble(out, pos, value, MAX_FRACTION_DIGITS);
+        for (int i = pos; i < end; i++) {
+            if (out[i] == '.' || out[i] == 'N' || out[i] < 0) {
+                return end;
+            }
+        }
+        out[end] = '.';
+        out[end + 1] = '0';
+        return end + 2;
+    }
+
+    /**
+     * ISO-8859-1, '?' for anything outside it (one per code point); null is "null", as concatenation wrote it
+     */
+    private static int writeLatin1(final byte[] out, int pos, final String value) {
+        if (value == null) {
+            out[pos++] = 'n';
+            out[pos++] = 'u';
+            out[pos++] = 'l';
+            out[pos++] = 'l';
+            return pos;
+        }
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c <= 0xFF) {
+                out[pos++] = (byte) c;
+            } else {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+                out[pos++] = '?';
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Latin1, with control characters and '<', '>' (XML injection) replaced by spaces; NO_SSID if empty.
+     * Targeted ranges: (0x00, 0x08), (0x0B, 0x1F), (0x7F, 0x84), (0x86, 0x9F)
+     */
+    private static int writeSsid(final byte[] out, final int pos, final String ssid) {
+        if (ssid == null || ssid.isEmpty()) {
+            return copy(out, pos, NO_SSID_BYTES);
+        }
+        final int end = writeLatin1(out, pos, ssid);
+        for (int i = pos; i < end; i++) {
+            final int glyph = out[i] & 0xFF;
+            if (glyph <= 0x08 || (glyph >= 0x0B && glyph <= 0x1F) || (glyph >= 0x7F && glyph <= 0x84)
+                    || (glyph >= 0x86 && glyph <= 0x9F) || glyph == '<' || glyph == '>') {
+                out[i] = SANITIZATION_REPLACEMENT_GLYPH;
+            }
+        }
+        return end;
+    }
+
+    private static byte[] latin1(final String markup) {
+        return markup.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,20 +1,24 @@
 package net.wigle.wigleandroid.background;
 
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import net.wigle.wigleandroid.db.DBException;
 import net.wigle.wigleandroid.db.DatabaseHelper;
 import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.model.NetworkType;
-import net.wigle.wigleandroid.util.FileAccess;
 import net.wigle.wigleandroid.util.FileUtility;
 import net.wigle.wigleandroid.util.Logging;
 
@@ -23,50 +27,69 @@ import android.os.Bundle;
 import androidx.fragment.app.FragmentActivity;
 
 import static net.wigle.wigleandroid.util.FileUtility.KML_EXT;
+import static net.wigle.wigleandroid.util.FileUtility.KMZ_EXT;
 import static net.wigle.wigleandroid.util.FileUtility.WIWI_PREFIX;
 
 public class KmlWriter extends AbstractBackgroundTask {
+    // placemarks are ~400 bytes: write in big chunks, not a syscall per fragment
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int FLUSH_BYTES = BUFFER_BYTES - (8 * 1024);
+    // the document a KMZ's readers look for
+    private static final String KMZ_DOC_ENTRY = "doc.kml";
+
     private final Set<String> networks;
     private final Set<String> btNetworks;
-
-    private static final String NO_SSID = "(no SSID)";
-    private static final byte SANITIZATION_REPLACEMENT_GLYPH = ' ';
-
-    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.UK);
+    private final boolean kmz;
 
     public KmlWriter( final FragmentActivity context, final DatabaseHelper dbHelper ) {
-        this( context, dbHelper, null, null);
+        this( context, dbHelper, null, null, false);
+    }
+
+    public KmlWriter( final FragmentActivity context, final DatabaseHelper dbHelper, final boolean kmz ) {
+        this( context, dbHelper, null, null, kmz);
     }
 
     public KmlWriter( final FragmentActivity context, final DatabaseHelper dbHelper, final Set<String> networks, final Set<String> btNetworks) {
+        this( context, dbHelper, networks, btNetworks, false);
+    }
+
+    /**
+     * @param kmz write a zipped KMZ rather than a plain KML
+     */
+    public KmlWriter( final FragmentActivity context, final DatabaseHelper dbHelper, final Set<String> networks,
+                      final Set<String> btNetworks, final boolean kmz) {
         super(context, dbHelper, "KmlWriter", true);
 
         // make a safe local copy
         this.networks = (networks == null) ? null : new HashSet<>(networks);
         this.btNetworks = (btNetworks == null) ? null : new HashSet<>(btNetworks);
+        this.kmz = kmz;
     }
 
     @Override
     protected void subRun() throws IOException {
         final Bundle bundle = new Bundle();
 
-
-        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
         final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
-        final String filename = WIWI_PREFIX + fileDateFormat.format(new Date()) + KML_EXT;
+        final String filename = WIWI_PREFIX + fileDateFormat.format(new Date()) + (kmz ? KMZ_EXT : KML_EXT);
 
         final FileOutputStream fos = FileUtility.createFile(context, filename, false);
+        final OutputStream out;
+        ZipOutputStream zip = null;
+        if ( kmz ) {
+            // the deflater hands over 512 bytes at a time
+            zip = new ZipOutputStream( new BufferedOutputStream( fos, 64 * 1024 ) );
+            // placemarks are repetitive: the fastest level still gets ~5:1, in half the time of the default
+            zip.setLevel( Deflater.BEST_SPEED );
+            zip.putNextEntry( new ZipEntry( KMZ_DOC_ENTRY ) );
+            out = zip;
+        }
+        else {
+            out = fos;
+        }
+        final KmlPlacemarkEncoder encoder = new KmlPlacemarkEncoder( BUFFER_BYTES );
         // header
-        FileAccess.writeFos( fos, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>"
-                + "<Style id=\"red\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/red.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"yellow\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/yellow.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"green\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/green.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"blue\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/blue.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"pink\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/pink.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"ltblue\"><IconStyle><Icon><href>http://maps.google.com/mapfiles/ms/icons/lightblue.png</href></Icon></IconStyle></Style>"
-                + "<Style id=\"zeroConfidence\"><IconStyle><Icon><href>https://maps.google.com/mapfiles/kml/pal2/icon18.png</href></Icon></IconStyle></Style>"
-                + "<Folder><name>Wifi Networks</name>\n" );
+        encoder.appendHeader();
 
         // confidence styles from online generator; not applicable here because we don't have qos?
         /*+ "<Style id=\"highConfidence\"><IconStyle id=\"highConfidenceStyle\"> <scale>1.0</scale><heading>0.0</heading><Icon><href>http://maps.google.com/mapfiles/kml/pushpin/grn-pushpin.png</href><refreshInterval>0.0</refreshInterval><viewRefreshTime>0.0</viewRefreshTime><viewBoundScale>0.0</viewBoundScale></Icon></IconStyle></Style>"
@@ -78,75 +101,46 @@ public class KmlWriter extends AbstractBackgroundTask {
         // body
         Cursor cursor = null;
         Status status = null;
+        final long start = System.currentTimeMillis();
         try {
             if ( this.networks == null ) {
                 cursor = dbHelper.networkIterator(DatabaseHelper.NetworkFilter.WIFI);
-                long wifiCount = writeKmlFromCursor( fos, cursor, dateFormat, 0, dbHelper.getNetworkCount(), bundle);
+                long wifiCount = writeKmlFromCursor( encoder, out, cursor, 0, dbHelper.getNetworkCount(), bundle, null);
                 cursor.close();
                 cursor = dbHelper.networkIterator(DatabaseHelper.NetworkFilter.CELL);
-                FileAccess.writeFos( fos, "</Folder>\n<Folder><name>Cellular Networks</name>\n" );
-                long cellCount = writeKmlFromCursor( fos, cursor, dateFormat, wifiCount, dbHelper.getNetworkCount(), bundle);
+                encoder.appendCellFolder();
+                long cellCount = writeKmlFromCursor( encoder, out, cursor, wifiCount, dbHelper.getNetworkCount(), bundle, null);
                 cursor.close();
                 cursor = dbHelper.networkIterator(DatabaseHelper.NetworkFilter.BT);
-                FileAccess.writeFos( fos, "</Folder>\n<Folder><name>Bluetooth Networks</name>\n" );
-                long btCount = writeKmlFromCursor( fos, cursor, dateFormat, wifiCount+cellCount, dbHelper.getNetworkCount(), bundle);
+                encoder.appendBtFolder();
+                long btCount = writeKmlFromCursor( encoder, out, cursor, wifiCount+cellCount, dbHelper.getNetworkCount(), bundle, null);
                 cursor.close();
                 Logging.info("Full KML Export: "+dbHelper.getNetworkCount()+" per db, wrote "+(btCount+cellCount+wifiCount)+" total.");
             } else {
-                long count = 0;
-                long btFailCount = 0L;
-                long wifiFailCount = 0L;
-                Set<String> cellSet = new HashSet<>();
-
                 final int totalNets = networks.size() + (btNetworks==null?0:btNetworks.size());
-                for (String network : networks) {
-                    // DEBUG: MainActivity.info( "network: " + network );
-                    cursor = dbHelper.getSingleNetwork(network, DatabaseHelper.NetworkFilter.WIFI);
-                    final long found = writeKmlFromCursor(fos, cursor, dateFormat, count, totalNets, bundle);
-                    // ALIBI: assume this was a cell net, if it didn't match for WiFi - avoid full second iteration
-                    if (0L == found) {
-                        //DEBUG: MainActivity.info("Didn't find network "+network+"; adding to cells.");
-                        cellSet.add(network);
-                        wifiFailCount++;
-                    }
-                    cursor.close();
-                    cursor = null;
-                    if (found > 0) {
-                        count++;
-                    }
-                }
-                FileAccess.writeFos( fos, "</Folder>\n<Folder><name>Cellular Networks</name>\n" );
+                // ALIBI: assume it was a cell net, if it didn't match for WiFi - avoid full second iteration
                 //ALIBI: cell networks are still mixed into the lamestatic list of WiFi for now. this can get more efficient when we partition them.
-                for ( String network : cellSet ) {
-                    // MainActivity.info( "network: " + network );
-                    cursor = dbHelper.getSingleNetwork( network, DatabaseHelper.NetworkFilter.CELL);
-
-                    final long found = writeKmlFromCursor(fos, cursor, dateFormat, count, totalNets, bundle);
-                    cursor.close();
-                    cursor = null;
-                    if (found > 0) {
-                        count++;
-                    } else {
-                        Logging.warn("unfound cell: ["+network+"]");
-                    }
+                final List<String> cells = new ArrayList<>();
+                long count = writeKmlForNetworks(encoder, out, new ArrayList<>(networks),
+                        DatabaseHelper.NetworkFilter.WIFI, 0, totalNets, bundle, cells);
+                final long wifiFailCount = cells.size();
+                encoder.appendCellFolder();
+                final List<String> unfound = new ArrayList<>();
+                count += writeKmlForNetworks(encoder, out, cells, DatabaseHelper.NetworkFilter.CELL, count, totalNets,
+                        bundle, unfound);
+                for (final String network : unfound) {
+                    Logging.warn("unfound cell: ["+network+"]");
                 }
-                FileAccess.writeFos( fos, "</Folder>\n<Folder><name>Bluetooth Networks</name>\n" );
+                encoder.appendBtFolder();
+                unfound.clear();
                 if (btNetworks != null) {
-                    for (String network : btNetworks) {
-                        // MainActivity.info( "network: " + network );
-                        cursor = dbHelper.getSingleNetwork(network, DatabaseHelper.NetworkFilter.BT);
-
-                        final long found = writeKmlFromCursor(fos, cursor, dateFormat, count, totalNets, bundle);
-                        if (0L == found) {
-                            btFailCount++;
-                            Logging.error("unfound BT network: [" + network + "]");
-                        }
-                        cursor.close();
-                        cursor = null;
-                        count++;
+                    writeKmlForNetworks(encoder, out, new ArrayList<>(btNetworks), DatabaseHelper.NetworkFilter.BT,
+                            count, totalNets, bundle, unfound);
+                    for (final String network : unfound) {
+                        Logging.error("unfound BT network: [" + network + "]");
                     }
                 }
-                Logging.info("Completed; WiFi Fail: "+wifiFailCount+ " BT Fail: "+btFailCount
+                Logging.info("Completed; WiFi Fail: "+wifiFailCount+ " BT Fail: "+unfound.size()
                         + " from total count: "+totalNets+" (non-bt-networks: "+ networks.size()
                         + " btnets:" + (btNetworks != null?btNetworks.size():"null")+")");
             }
@@ -172,14 +166,18 @@ public class KmlWriter extends AbstractBackgroundTask {
             }
         }
         // footer
-        FileAccess.writeFos( fos, "</Folder>\n</Document></kml>" );
+        encoder.appendFooter();
+        encoder.writeTo( out );
 
-        fos.close();
+        if ( zip != null ) {
+            zip.closeEntry();
+        }
+        out.close();
 
         //WARNING: ignored if no SD, so this is ok, but misleading...
         bundle.putString( BackgroundGuiHandler.FILEPATH, FileUtility.getSDPath() + filename );
         bundle.putString( BackgroundGuiHandler.FILENAME, filename );
-        Logging.info( "done with kml export" );
+        Logging.info( "done with " + (kmz ? "kmz" : "kml") + " export in " + (System.currentTimeMillis() - start) + " ms" );
 
         // status is null on interrupted
         if ( status != null ) {
@@ -188,8 +186,38 @@ public class KmlWriter extends AbstractBackgroundTask {
         }
     }
 
-    private long writeKmlFromCursor( final OutputStream fos, final Cursor cursor, final SimpleDateFormat dateFormat,
-                                        long startCount, long totalCount, final Bundle bundle) throws IOException, InterruptedException {
+    /**
+     * look the networks up MAX_NETWORK_BATCH at a time, rather than a query apiece
+     * @param unfound gets the bssids with no match for the filter
+     * @return the number of networks written
+     */
+    private long writeKmlForNetworks( final KmlPlacemarkEncoder encoder, final OutputStream out,
+                                      final List<String> bssids, final DatabaseHelper.NetworkFilter filter,
+                                      final long startCount, final long totalCount, final Bundle bundle,
+                                      final List<String> unfound ) throws DBException, IOException, InterruptedException {
+        long written = 0;
+        final Set<String> found = new HashSet<>();
+        for ( int from = 0; from < bssids.size(); from += DatabaseHelper.MAX_NETWORK_BATCH ) {
+            final List<String> batch = bssids.subList( from, Math.min( bssids.size(), from + DatabaseHelper.MAX_NETWORK_BATCH ) );
+            found.clear();
+            try ( Cursor cursor = dbHelper.getNetworks( batch, filter ) ) {
+                written += writeKmlFromCursor( encoder, out, cursor, startCount + written, totalCount, bundle, found );
+            }
+            for ( final String bssid : batch ) {
+                if ( ! found.contains( bssid ) ) {
+                    unfound.add( bssid );
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param found if non-null, gets the bssid of every row
+     */
+    private long writeKmlFromCursor( final KmlPlacemarkEncoder encoder, final OutputStream out, final Cursor cursor,
+                                     long startCount, long totalCount, final Bundle bundle, final Set<String> found)
+            throws IOException, InterruptedException {
 
         long lineCount = 0;
 
@@ -200,115 +228,23 @@ public class KmlWriter extends AbstractBackgroundTask {
 
             // bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,bestlevel,typecode,rcois,mfgrid,service
             final String bssid = cursor.getString(0);
-            final String ssid = cursor.getString(1);
-            final int frequency = cursor.getInt(2);
-            final String capabilities = cursor.getString(3);
-            final long lasttime = cursor.getLong(4);
-            final double lastlat = cursor.getDouble(5);
-            final double lastlon = cursor.getDouble(6);
-            final int bestlevel = cursor.getInt(7);
             final String typecode = cursor.getString( 8);
-            final String rcois = cursor.getString(9);
-            final int mfgrid = cursor.getInt(10);
-            final String service = cursor.getString(11);
-
-            final String date = sdf.format(new Date(lasttime));
-
             final NetworkType type = NetworkType.typeForCode(typecode);
 
-            String style = "green";
-
-            if (type == null) {
-                style = "zeroConfidence";
-            } else if (NetworkType.WIFI.equals(type)) {
-                if (capabilities.contains("WEP")) {
-                    style = "yellow";
-                }
-                if (capabilities.contains("WPA")) {
-                    style = "red";
+            if ( ! encoder.appendPlacemark( bssid, cursor.getString(1), cursor.getInt(2), cursor.getString(3),
+                    cursor.getLong(4), cursor.getDouble(5), cursor.getDouble(6), cursor.getInt(7), type,
+                    cursor.getString(9), cursor.getInt(10), cursor.getString(11) ) ) {
+                if (type == null) {
+                    Logging.warn("uninitialized network type for network: "+bssid);
+                } else {
+                    Logging.warn("unknown network type "+type+"for network: "+bssid);
                 }
-            } else if (NetworkType.BLE.equals(type)) {
-                style = "ltblue";
-            } else if (NetworkType.BT.equals(type)) {
-                style = "blue";
-
-            } else if (NetworkType.isCellType(type)) {
-                style = "pink";
-            } else {
-                style = "zeroConfidence";
             }
-
-            //Regardless of reported quality, this freaks out
-            if (lasttime == 0L) {
-                style = "zeroConfidence";
-            }
-
-            byte[] sanitizedSsid = sanitizeKmlString(ssid);
-            if (sanitizedSsid.length == 0) {
-                sanitizedSsid = NO_SSID.getBytes(MainActivity.ENCODING);
+            if ( encoder.length() >= FLUSH_BYTES ) {
+                encoder.writeTo( out );
             }
-
-            if (type == null) {
-                Logging.warn("uninitialized network type for network: "+bssid);
-            } else if (type.equals(NetworkType.WIFI)) {
-
-                final String encStatus = "Encryption: " + encryptionStringForCapabilities(capabilities) + "\n";
-
-                FileAccess.writeFos(fos, "<Placemark>\n<name><![CDATA[");
-                fos.write(sanitizedSsid);
-                FileAccess.writeFos(fos, "]]></name>\n");
-                FileAccess.writeFos(fos, "<description><![CDATA[Network ID: " + bssid + "\n"
-                        + "Capabilities: " + capabilities + "\n" // ALIBI: not available on server
-                        + "Frequency: " + frequency + "\n"       // ALIBI: not in server-side
-                        + "Timestamp: " + lasttime + "\n"        // ALIBI: not in server-side
-                        + "Time: " + date + "\n"                 // NOTE: server side contains server timezone
-                        + "Signal: " + bestlevel + "\n"
-                        + "RoamingCOIs: " + rcois + "\n"
-                        + "Type: " + type.name() + "\n"
-                        + encStatus
-                        + "]]>"
-                        + "</description><styleUrl>#" + style + "</styleUrl>\n");
-                FileAccess.writeFos(fos, "<Point>\n");
-                FileAccess.writeFos(fos, "<coordinates>" + lastlon + "," + lastlat + "</coordinates>");
-                FileAccess.writeFos(fos, "</Point>\n</Placemark>\n");
-
-            } else if (NetworkType.isCellType(type)) {
-                FileAccess.writeFos(fos, "<Placemark>\n<name><![CDATA[");
-                fos.write(sanitizedSsid);
-                FileAccess.writeFos(fos, "]]></name>\n");
-                FileAccess.writeFos(fos, "<description><![CDATA[Network ID: " + bssid + "\n"
-                        + "Capabilities: " + capabilities + "\n" // ALIBI: not available on server
-                        + "Frequency: " + frequency + "\n"       // ALIBI: not in server-side
-                        + "Timestamp: " + lasttime + "\n"        // ALIBI: not in server-side
-                        + "Time: " + date + "\n"                 // NOTE: server side contains server timezone
-                        + "Signal: " + bestlevel + "\n"
-                        + "Type: " + type.name()
-                        + "]]>"
-                        + "</description><styleUrl>#" + style + "</styleUrl>\n");
-                FileAccess.writeFos(fos, "<Point>\n");
-                FileAccess.writeFos(fos, "<coordinates>" + lastlon + "," + lastlat + "</coordinates>");
-                FileAccess.writeFos(fos, "</Point>\n</Placemark>\n");
-
-            } else if (NetworkType.isBtType(type)) {
-                FileAccess.writeFos(fos, "<Placemark>\n<name><![CDATA[");
-                fos.write(sanitizedSsid);
-                FileAccess.writeFos(fos, "]]></name>\n");
-                FileAccess.writeFos(fos, "<description><![CDATA[Network ID: " + bssid + "\n"
-                        + "Capabilities: " + capabilities + "\n" // ALIBI: not available on server
-                        + "Frequency: " + frequency + "\n"       // ALIBI: not in server-side
-                        + "Timestamp: " + lasttime + "\n"        // ALIBI: not in server-side
-                        + "Time: " + date + "\n"                 // NOTE: server side contains server timezone
-                        + "Signal: " + bestlevel + "\n"
-                        + "ManufacturerId: " + mfgrid + "\n"
-                        + "Service: " + service + "\n"
-                        + "Type: " + type.name()
-                        + "]]>"
-                        + "</description><styleUrl>#" + style + "</styleUrl>\n");
-                FileAccess.writeFos(fos, "<Point>\n");
-                FileAccess.writeFos(fos, "<coordinates>" + lastlon + "," + lastlat + "</coordinates>");
-                FileAccess.writeFos(fos, "</Point>\n</Placemark>\n");
-            } else {
-                Logging.warn("unknown network type "+type+"for network: "+bssid);
+            if ( found != null ) {
+                found.add( bssid );
             }
 
             lineCount++;
@@ -326,46 +262,4 @@ public class KmlWriter extends AbstractBackgroundTask {
 
         return lineCount;
     }
-
-    private static String encryptionStringForCapabilities(final String capabilities) {
-        if (capabilities.contains("WPA3")) {
-            return "WPA3";
-        } else if (capabilities.contains("WPA2")) {
-            return "WPA2";
-        } else if (capabilities.contains("WPA")) {
-            return "WPA";
-        } else if (capabilities.contains("WEP")) {
-            return "WEP";
-        } else {
-            return "Unknown";
-        }
-    }
-
-    // Sanitize string by escaping reserved XML tokens and replace invalid charset ranges
-    private byte[] sanitizeKmlString(String value) throws UnsupportedEncodingException {
-        // Using the the Latin1 encoding ~"not unicode. ha ha for them!"
-        final byte[] escapedValueBytes = value.getBytes( MainActivity.ENCODING );
-
-        // Filtering the illegal symbols from the given charset. The symbols will be replaced with a space character.
-        // Targeted ranges: (0x00, 0x08), (0x0B, 0x1F), (0x7F, 0x84), (0x86, 0x9F)
-        // Targeted symbols: 0x3C, 0x3E (Prevent KML/XML injection XXE attacks)
-        for (int i = 0; i < escapedValueBytes.length; i++) {
-            byte currentGlyph = escapedValueBytes[i];
-
-            if (isBetween(currentGlyph, 0x00, 0x08)) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-            if (isBetween(currentGlyph, 0x0B, 0x1F)) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-            if (isBetween(currentGlyph, 0x7F, 0x84)) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-            if (isBetween(currentGlyph, 0x86, 0x9F)) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-
-            if (currentGlyph == 0x3C) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-            if (currentGlyph == 0x3E) escapedValueBytes[i] = SANITIZATION_REPLACEMENT_GLYPH;
-        }
-
-        return escapedValueBytes;
-    }
-
-    // Check if the given values is between two given values (inclusive)
-    private boolean isBetween(byte value, int min, int max) {
-        return value >= min && value <= max;
-    }
 }
@@ -13,8 +13,6 @@ import androidx.annotation.NonNull;
 import androidx.core.content.FileProvider;
 import androidx.fragment.app.FragmentActivity;
 
-import net.wigle.m8b.geodesy.mgrs;
-import net.wigle.m8b.geodesy.utm;
 import net.wigle.m8b.siphash.SipKey;
 import net.wigle.wigleandroid.ListFragment;
 import net.wigle.wigleandroid.MainActivity;
@@ -23,30 +21,22 @@ import net.wigle.wigleandroid.db.DBException;
 import net.wigle.wigleandroid.db.DatabaseHelper;
 import net.wigle.wigleandroid.util.FileUtility;
 import net.wigle.wigleandroid.util.Logging;
-import net.wigle.wigleandroid.util.MagicEightUtil;
+import net.wigle.wigleandroid.util.M8bProjector;
+import net.wigle.wigleandroid.util.M8bRecordSorter;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 /**
- * M8b export - writes files and launches share intent. Checks available memory and limits database query accordingly, but can still be the victim of OOM
+ * M8b export - writes files and launches share intent. Records are external-sorted through M8bRecordSorter, so memory use doesn't grow with the database
  */
 public class MagicEightBallRunnable extends ProgressPanelRunnable implements Runnable, AlertSettable {
     private final long totalCount;
     private static final int SLICE_BITS = 30;
-    private static final long M8B_MEM_RECORD_SiZE = 280L; //ALIBI: profiling-based constant to avoid OOM in mjg size
 
     File m8bOutputFile;
 
@@ -64,135 +54,69 @@ public class MagicEightBallRunnable extends ProgressPanelRunnable implements Run
         } catch (DBException dbe) {
             // just rely on the total number of records.
         }
-        long available = Runtime.getRuntime().maxMemory();
-        long used = Runtime.getRuntime().totalMemory();
-
-        Logging.info("Started with "+(available-used)/1000+"kb free - "+used/1000+"/"+available/1000);
-        final long maxRecords = (available-used)/M8B_MEM_RECORD_SiZE; //ALIBI: profiling-based constant to avoid OOM
-        if (maxRecords < totalCount) {
-            Logging.info("Bounding query at  " + maxRecords + " (was " + dbCount+")");
-            dbCount = maxRecords;
-            //TODO: should we warn user here?
-        }
 
         // replace our placeholder if we get a proper number
         long thousandDbRecords = dbCount == 0 ? totalCount: dbCount/1000;
 
         //DEBUG: MainActivity.info("matching values: " + thousandDbRecords);
         final SipKey sipkey = new SipKey(new byte[16]);
-        final byte[] macBytes = new byte[6];
-        final Map<Long, Set<mgrs>> mjg = new TreeMap<>();
+        // fixed-size run buffers, spilled to disk as they fill: every located network goes out, whatever the db size
+        final M8bRecordSorter sorter = new M8bRecordSorter(activity.getCacheDir());
+        // hashing and MGRS projection run on a worker pool; records come back in row order
+        final M8bProjector projector = new M8bProjector(sipkey, SLICE_BITS, sorter::add);
 
         final long genStart = System.currentTimeMillis();
         setProgressStatus(R.string.calculating_m8b);
         final PooledQueryExecutor.Request request = new PooledQueryExecutor.Request(
-                DatabaseHelper.LOCATED_WIFI_NETS_QUERY+" ORDER BY lasttime DESC LIMIT "+maxRecords, null, new PooledQueryExecutor.ResultHandler() {
+                PooledQueryExecutor.RequestType.M8B_EXPORT, this, DatabaseHelper.LOCATED_WIFI_NETS_QUERY, null,
+                new PooledQueryExecutor.ResultHandler() {
 
-            int non_utm = 0;
             int rows = 0;
-            int records = 0;
+            boolean failed = false;
             @Override
             public boolean handleRow(final Cursor cursor) {
                 try {
-                    final String bssid = cursor.getString(0);
-                    final float lat = cursor.getFloat(1);
-                    final float lon = cursor.getFloat(2);
-                    if (!(-80 <= lat && lat <= 84)) {
-                        non_utm++;
-                    } else {
-                        mgrs m = mgrs.fromUtm(utm.fromLatLon(lat, lon));
-
-                        Long kslice2 = MagicEightUtil.extractKeyFrom(bssid, macBytes, sipkey, SLICE_BITS);
-
-                        if (null != kslice2) {
-                            Set<mgrs> locs = mjg.get(kslice2);
-                            if (locs == null) {
-                                locs = new HashSet<>();
-                                mjg.put((long) kslice2, locs);
-                            }
-                            if (locs.add(m)) {
-                                records++;
-                            }
-                        }
-                    }
-                } catch (IndexOutOfBoundsException ioobe) {
-                    //ALIBI: seeing ArrayIndexOutOfBoundsException: length=3; index=-2 from geodesy.mgrs.fromUtm(mgrs.java:64)
-                    Logging.error("Bad UTM ", ioobe);
+                    projector.add(cursor.getString(0), cursor.getFloat(1), cursor.getFloat(2));
+                } catch (IOException ioe) {
+                    Logging.error("STOPPING: unable to spill m8b records at "+rows+" rows: ", ioe);
+                    failed = true;
+                    return false;
                 }
 
                 rows++;
                 if (rows % 1000 == 0) {
-                    if (checkMemoryHeadroom()) {
-                        //DEBUG:  Logging.info("\tprogress: rows: " + (rows/(double)1000) + " / " + thousandDbRecords + " = " + (int) ((rows / (double) 1000 / (double) thousandDbRecords)*100));
-                        onProgressUpdate((int) ((rows / (double) 1000 / (double) thousandDbRecords)*100));
-                    } else {
-                        Logging.error("STOPPING: ran out of memory at "+rows+" rows.");
-                        return false;
-                    }
+                    //DEBUG:  Logging.info("\tprogress: rows: " + (rows/(double)1000) + " / " + thousandDbRecords + " = " + (int) ((rows / (double) 1000 / (double) thousandDbRecords)*100));
+                    onProgressUpdate((int) ((rows / (double) 1000 / (double) thousandDbRecords)*100));
                 }
                 return true;
             }
 
             /**
-             * once the intermediate file's written, run the generate pipeline, setup and enqueue the intent to share
+             * once the records are spilled, merge them into the m8b file, setup and enqueue the intent to share
              */
             @Override
             public void complete() {
-                Logging.info("m8b source export complete...");
+                if (!failed) {
+                    try {
+                        projector.finish();
+                    } catch (IOException ioe) {
+                        Logging.error("unable to finish m8b projection: ", ioe);
+                        failed = true;
+                    }
+                }
+                Logging.info("m8b source export complete: " + rows + " rows, " + projector.getRecordCount()
+                        + " records, " + projector.getNonUtmCount() + " outside UTM, " + projector.getBadCount()
+                        + " bad, " + sorter.getSpillCount() + " spill runs");
                 reactivateProgressBar(R.string.exporting_m8b_final);
 
                 try (M8bFileRecord output = getM8bOutputFile()) {
-                    if (output != null && output.getFileChannel() != null && output.getFileOutputPath() != null) {
-                        FileChannel out = output.getFileChannel();
+                    if (failed) {
+                        Logging.error("m8b generation failed, not writing output");
+                    } else if (output != null && output.getFileChannel() != null && output.getFileOutputPath() != null) {
+                        final long records = sorter.writeTo(output.getFileChannel(), SLICE_BITS,
+                                MagicEightBallRunnable.this::onProgressUpdate);
                         m8bOutputFile = output.getFileOutputPath();
-                        Charset utf8 = StandardCharsets.UTF_8;
-                        ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-
-                        // write header
-                        bb.put("MJG\n".getBytes(utf8)); // magic number
-                        bb.put("2\n".getBytes(utf8)); // version
-                        bb.put("SIP-2-4\n".getBytes(utf8)); // hash
-                        bb.put(String.format("%x\n", SLICE_BITS).getBytes(utf8)); // slice bits (hex)
-                        bb.put("MGRS-1000\n".getBytes(utf8)); // coords
-                        bb.put("4\n".getBytes(utf8)); // id size in bytes (hex)
-                        bb.put("9\n".getBytes(utf8)); // coords size in bytes (hex)
-                        bb.put(String.format("%x\n", records).getBytes(utf8)); // record count (hex)
-
-                        int recordsize = 4 + 9;
-                        bb.flip();
-                        while (bb.hasRemaining()) {
-                            out.write(bb);
-                        }
-
-                        // back to fill mode
-                        bb.clear();
-                        byte[] mstr = new byte[9];
-                        int outElements = 0;
-                        for (Map.Entry<Long, Set<mgrs>> me : mjg.entrySet()) {
-                            long key = me.getKey();
-                            for (mgrs m : me.getValue()) {
-                                if (bb.remaining() < recordsize) {
-                                    bb.flip();
-                                    while (bb.hasRemaining()) {
-                                        out.write(bb);
-                                    }
-                                    bb.clear();
-                                }
-                                m.populateBytes(mstr);
-                                //ALIBI: relying on narrowing primitive conversion to get the low int bytes - https://docs.oracle.com/javase/specs/jls/se10/html/jls-5.html#jls-5.1.3
-                                bb.putInt((int) key).put(mstr);
-                            }
-                            outElements++;
-                            if (outElements % 100 == 0) {
-                                onProgressUpdate((int) (outElements / (double) mjg.size() * 100));
-                            }
-                        }
-
-                        bb.flip();
-                        while (bb.hasRemaining()) {
-                            out.write(bb);
-                        }
-                        bb.clear();
+                        Logging.info("wrote " + records + " m8b records");
                     } else {
                         if (output != null) {
                             Logging.error("Failed to open file/channel: " + output.toString());
@@ -201,7 +125,10 @@ public class MagicEightBallRunnable extends ProgressPanelRunnable implements Run
                 } catch (FileNotFoundException e) {
                     Logging.error("Failed create file for m8b writer", e);
                 } catch (IOException e) {
-                    Logging.error("Failed to close m8b writer", e);
+                    Logging.error("Failed to write m8b file", e);
+                } finally {
+                    projector.close();
+                    sorter.close();
                 }
 
                 final long duration = System.currentTimeMillis() - genStart;
@@ -211,6 +138,9 @@ public class MagicEightBallRunnable extends ProgressPanelRunnable implements Run
             }
         }, ListFragment.lameStatic.dbHelper);
         request.run(); //ALIBI: we're in a background thread, we don't need to use the external executor/thread
+        // complete() isn't called if the query blows up
+        projector.close();
+        sorter.close();
     }
 
     @Override
@@ -243,6 +173,10 @@ public class MagicEightBallRunnable extends ProgressPanelRunnable implements Run
 
                 if (null != result) { //launch task will exist with bg thread enqueued with null return
                     clearProgressDialog();
+                    if (null == m8bOutputFile) {
+                        Logging.error("No m8b file written, nothing to share");
+                        return;
+                    }
                     // fire share intent?
                     Intent intent = new Intent(Intent.ACTION_SEND);
                     intent.putExtra(Intent.EXTRA_SUBJECT, "WiGLE.m8b");
@@ -333,15 +267,4 @@ public class MagicEightBallRunnable extends ProgressPanelRunnable implements Run
             return String.format("%s : %s", outputChannel.toString(), fileOutputPath.toString());
         }
     }
-
-    private boolean checkMemoryHeadroom() {
-        long available = Runtime.getRuntime().maxMemory();
-        long used = Runtime.getRuntime().totalMemory();
-        float percentAvailable = 100f * (1f - ((float) used / available ));
-        if( percentAvailable <= 5.0f ) {
-            Logging.error("LOW MEMORY WARNING");
-            return false;
-        }
-        return true;
-    }
 }
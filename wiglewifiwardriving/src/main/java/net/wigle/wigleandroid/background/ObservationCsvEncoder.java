@@ -0,0 +1,201 @@
+package net.wigle.wigleandroid.background;
+
+import net.wigle.wigleandroid.model.Network;
+import net.wigle.wigleandroid.util.ByteFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Purpose-built encoder for WigleWifi-1.6 observation lines (the ObservationUploader.CSV_COLUMN_HEADERS
+ * layout). Writes UTF-8 straight into a reusable byte buffer, with the same quoting as the RFC4180-ish
+ * CSVPrinter format it replaces, and the same number/date text as the Locale.US NumberFormat and UTC
+ * SimpleDateFormat. Allocates nothing per line once the buffer has grown to fit.
+ * Not thread-safe; one per writer.
+ *
+ * Known differences from the CSVPrinter/CharsetEncoder path:
+ *  - unpaired UTF-16 surrogates are written as '?', rather than truncating the rest of the line
+ *  - doubles use shortest round-trip digits, so values the JVM's FloatingDecimal prints non-minimally
+ *    (e.g. 1.0E23) can differ in the last digits
+ *  - 17-significant-digit values cut to 16 fraction digits round the shortest digits half-even, as
+ *    Android's ICU-backed DecimalFormat does; the desktop JDK rounds those ties from the binary value
+ */
+public final class ObservationCsvEncoder {
+    private static final byte COMMA = ',';
+    private static final byte QUOTE = '"';
+    private static final byte NEWLINE = '\n';
+    private static final int MAX_FRACTION_DIGITS = 16;
+    // bytes for everything but the string fields, with room to spare
+    private static final int FIXED_LINE_BYTES = 16 + ByteFormat.MAX_TIMESTAMP_BYTES
+            + (4 * ByteFormat.MAX_LONG_BYTES) + (4 * ByteFormat.MAX_DOUBLE_BYTES);
+
+    private byte[] buffer;
+    private int length;
+
+    public ObservationCsvEncoder(final int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, FIXED_LINE_BYTES * 2)];
+    }
+
+    /**
+     * append one observation line, newline included
+     * @param bssid MAC
+     * @param ssid SSID, can be unicode
+     * @param capabilities AuthMode
+     * @param timeMillis FirstSeen, epoch millis
+     * @param channel channel, or Network.NO_CHANNEL for a blank column
+     * @param frequency frequency; 0 leaves the column blank
+     * @param level RSSI
+     * @param lat CurrentLatitude
+     * @param lon CurrentLongitude
+     * @param altitude AltitudeMeters
+     * @param accuracy AccuracyMeters
+     * @param rcois RCOIs
+     * @param mfgrId MfgrId; 0 leaves the column blank
+     * @param type the NetworkType name
+     */
+    public void appendObservation(final String bssid, final String ssid, final String capabilities,
+                                  final long timeMillis, final int channel, final int frequency, final int level,
+                                  final double lat, final double lon, final double altitude, final double accuracy,
+                                  final String rcois, final int mfgrId, final String type) {
+        ensureCapacity(FIXED_LINE_BYTES + maxFieldBytes(bssid) + maxFieldBytes(ssid)
+                + maxFieldBytes(capabilities) + maxFieldBytes(rcois) + maxFieldBytes(type));
+        final byte[] out = buffer;
+        int pos = length;
+
+        pos = writeField(out, pos, bssid, true);
+        out[pos++] = COMMA;
+        pos = writeField(out, pos, ssid, false);
+        out[pos++] = COMMA;
+        pos = writeField(out, pos, capabilities, false);
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeUtcTimestamp(out, pos, timeMillis);
+        out[pos++] = COMMA;
+        if (channel != Network.NO_CHANNEL) {
+            pos = ByteFormat.writeLong(out, pos, channel);
+        }
+        out[pos++] = COMMA;
+        if (frequency != 0) {
+            pos = ByteFormat.writeLong(out, pos, frequency);
+        }
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeLong(out, pos, level);
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeDouble(out, pos, lat, MAX_FRACTION_DIGITS);
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeDouble(out, pos, lon, MAX_FRACTION_DIGITS);
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeDouble(out, pos, altitude, MAX_FRACTION_DIGITS);
+        out[pos++] = COMMA;
+        pos = ByteFormat.writeDouble(out, pos, accuracy, MAX_FRACTION_DIGITS);
+        out[pos++] = COMMA;
+        pos = writeField(out, pos, rcois, false);
+        out[pos++] = COMMA;
+        if (mfgrId != 0) {
+            pos = ByteFormat.writeLong(out, pos, mfgrId);
+        }
+        out[pos++] = COMMA;
+        pos = writeField(out, pos, type, false);
+        out[pos++] = NEWLINE;
+
+        length = pos;
+    }
+
+    /**
+     * @return the number of buffered bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * write out and clear the buffered lines
+     * @param out the destination
+     * @throws IOException on write failure
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (length > 0) {
+            out.write(buffer, 0, length);
+        }
+        length = 0;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int needed = length + extra;
+        if (needed > buffer.length) {
+            final byte[] grown = new byte[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private static int maxFieldBytes(final String value) {
+        // 3 bytes per UTF-16 char worst case (quotes double to 2), plus the enclosing quotes
+        return value == null ? 0 : (value.length() * 3) + 2;
+    }
+
+    /**
+     * CSVFormat MINIMAL quoting: quote if the value starts with anything up to '#', contains a
+     * delimiter, quote or line break, or ends with whitespace/control; an empty first field is quoted
+     * so the line isn't blank. null is written as empty.
+     */
+    private static int writeField(final byte[] out, int pos, final String value, final boolean firstOnLine) {
+        if (value == null) {
+            return pos;
+        }
+        final int len = value.length();
+        boolean quote = false;
+        if (len == 0) {
+            quote = firstOnLine;
+        } else if (value.charAt(0) <= '#') {
+            quote = true;
+        } else {
+            for (int i = 0; i < len; i++) {
+                final char c = value.charAt(i);
+                if (c == '\n' || c == '\r' || c == '"' || c == ',') {
+                    quote = true;
+                    break;
+                }
+            }
+            if (!quote && value.charAt(len - 1) <= ' ') {
+                quote = true;
+            }
+        }
+
+        if (quote) {
+            out[pos++] = QUOTE;
+        }
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                if (quote && c == '"') {
+                    out[pos++] = QUOTE;
+                }
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        if (quote) {
+            out[pos++] = QUOTE;
+        }
+        return pos;
+    }
+}
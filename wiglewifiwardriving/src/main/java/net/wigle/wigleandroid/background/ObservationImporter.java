@@ -1,6 +1,5 @@
 package net.wigle.wigleandroid.background;
 
-import android.location.Location;
 import android.os.Bundle;
 import androidx.fragment.app.FragmentActivity;
 
@@ -12,7 +11,6 @@ import com.fasterxml.jackson.databind.MappingJsonFactory;
 import net.wigle.wigleandroid.db.DatabaseHelper;
 import net.wigle.wigleandroid.ListFragment;
 import net.wigle.wigleandroid.WiGLEAuthException;
-import net.wigle.wigleandroid.model.Network;
 import net.wigle.wigleandroid.model.NetworkType;
 import net.wigle.wigleandroid.util.Logging;
 import net.wigle.wigleandroid.util.UrlConfig;
@@ -96,31 +94,31 @@ public class ObservationImporter extends AbstractProgressApiRequest {
                         break;
                     case "results":
                         if (current == JsonToken.START_ARRAY) {
-                            // For each of the records in the array
+                            // For each of the records in the array: straight into the db in big batches,
+                            // alongside the live write queue rather than through it
                             int i = 0;
-                            while (jp.nextToken() != JsonToken.END_ARRAY) {
-                                String netId = jp.getValueAsString();
-                                //DEBUG: MainActivity.info(netId);
-                                final String ssid = "";
-                                final int frequency = 0;
-                                final String capabilities = "";
-                                final int level = 0;
-                                final Network network = new Network(netId, ssid, frequency,
-                                        capabilities, level, NetworkType.WIFI);
-                                final Location location = new Location("wigle");
-                                final boolean newForRun = true;
-                                ListFragment.lameStatic.dbHelper.blockingAddExternalObservation(
-                                        network, location, newForRun);
+                            try (DatabaseHelper.BulkNetworkImport bulkImport =
+                                         ListFragment.lameStatic.dbHelper.beginBulkNetworkImport()) {
+                                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                                    if (wasInterrupted()) {
+                                        throw new InterruptedException("we were interrupted");
+                                    }
+                                    String netId = jp.getValueAsString();
+                                    //DEBUG: MainActivity.info(netId);
+                                    bulkImport.add(netId, NetworkType.WIFI);
 
-                                if ((i % 1000) == 0) {
-                                    Logging.info("lineCount: " + i + " of " + total);
+                                    if ((i % 10000) == 0) {
+                                        Logging.info("lineCount: " + i + " of " + total + " at "
+                                                + bulkImport.getRowsPerSecond() + " rows/s, "
+                                                + bulkImport.getInsertedCount() + " new");
+                                    }
+                                    if (total == 0) {
+                                        total = 1;
+                                    }
+                                    final int percentDone = (int) (((long) i * 1000) / total);
+                                    sendPercentTimesTen(percentDone, bundle);
+                                    i++;
                                 }
-                                if (total == 0) {
-                                    total = 1;
-                                }
-                                final int percentDone = (i * 1000) / total;
-                                sendPercentTimesTen(percentDone, bundle);
-                                i++;
                             }
                         } else {
                             System.out.println("Error: records should be an array: skipping.");
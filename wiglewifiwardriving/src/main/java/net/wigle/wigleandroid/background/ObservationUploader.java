@@ -1,5 +1,6 @@
 package net.wigle.wigleandroid.background;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static net.wigle.wigleandroid.WigleService.UPLOAD_COMPLETE_INTENT;
 import static net.wigle.wigleandroid.WigleService.UPLOAD_FAILED_INTENT;
 
@@ -23,12 +24,14 @@ import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.R;
 import net.wigle.wigleandroid.WiGLEAuthException;
 import net.wigle.wigleandroid.model.Network;
+import net.wigle.wigleandroid.model.NetworkType;
 import net.wigle.wigleandroid.model.api.UploadReseponse;
 import net.wigle.wigleandroid.net.RequestCompletedListener;
 import net.wigle.wigleandroid.net.WiGLEApiManager;
 import net.wigle.wigleandroid.util.FileAccess;
 import net.wigle.wigleandroid.util.FileUtility;
 import net.wigle.wigleandroid.util.Logging;
+import net.wigle.wigleandroid.util.ParallelGzipOutputStream;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 import net.wigle.wigleandroid.util.UrlConfig;
 
@@ -45,25 +48,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
-import java.text.DecimalFormat;
-import java.text.FieldPosition;
-import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLException;
 
@@ -74,10 +63,11 @@ import javax.net.ssl.SSLException;
 
 public class ObservationUploader extends AbstractProgressApiRequest {
 
-    private static final String COMMA = ",";
     private static final String NEWLINE = "\n";
 
     private static final String ENCODING = "UTF-8";
+    // buffered CSV bytes to collect before handing them to the output stream
+    private static final int WRITE_CHUNK_BYTES = 64 * 1024;
 
     private static final CSVFormat CSV_FORMAT;
 
@@ -236,6 +226,10 @@ public class ObservationUploader extends AbstractProgressApiRequest {
     private void doUpload(final Bundle bundle )
             throws InterruptedException {
 
+        if ( doChunkedUpload( bundle ) ) {
+            return;
+        }
+
         final Object[] fileFilename = new Object[2];
         try (final OutputStream fos = FileAccess.getOutputStream( context, bundle, fileFilename )) {
             final File file = (File) fileFilename[0];
@@ -375,6 +369,120 @@ public class ObservationUploader extends AbstractProgressApiRequest {
         }
     }
 
+    /**
+     * upload the observations after the db marker a bounded id range at a time, advancing the marker as
+     * each chunk is acknowledged, so a dropped connection doesn't cost the whole upload.
+     * Only for the normal marker-to-end upload; whole-db and single-run uploads go as one file.
+     * @return false if this upload isn't a candidate and should go as a single file
+     */
+    private boolean doChunkedUpload( final Bundle bundle ) throws InterruptedException {
+        final SharedPreferences prefs = context.getSharedPreferences( PreferenceKeys.SHARED_PREFS, 0 );
+        final MainActivity.State s = MainActivity.getStaticState();
+        if ( writeEntireDb || writeRun || null == s
+                || ! prefs.getBoolean( PreferenceKeys.PREF_CHUNKED_UPLOAD, false ) ) {
+            return false;
+        }
+        final long fromId = prefs.getLong( PreferenceKeys.PREF_DB_MARKER, 0L );
+        try {
+            if ( dbHelper.getLocationChunkEnd( fromId, 1 ) <= fromId ) {
+                // nothing to send: let the single-file path report the empty file
+                return false;
+            }
+            final boolean beAnonymous = prefs.getBoolean(PreferenceKeys.PREF_BE_ANONYMOUS, false);
+            final String authName = prefs.getString(PreferenceKeys.PREF_AUTHNAME, null);
+            if (!beAnonymous && null == authName) {
+                status = Status.BAD_LOGIN;
+                sendBundledMessage(status.ordinal(), bundle);
+                return true;
+            }
+            final Map<String,String> params = new HashMap<>();
+            if ( prefs.getBoolean(PreferenceKeys.PREF_DONATE, false) ) {
+                params.put("donate","on");
+            }
+
+            final ChunkedUploader uploader = new ChunkedUploader( s.apiManager.getUploadClient(),
+                    url, "file", params );
+            final ChunkedUploader.Result result = uploader.upload( fromId, new ChunkedUploader.ChunkSource() {
+                @Override
+                public long chunkEnd( final long from, final int maxRows ) throws DBException {
+                    return dbHelper.getLocationChunkEnd( from, maxRows );
+                }
+
+                @Override
+                public File writeChunk( final long from, final long toId )
+                        throws IOException, DBException, InterruptedException {
+                    final Object[] fileFilename = new Object[2];
+                    try (final OutputStream fos = FileAccess.getOutputStream( context, bundle, fileFilename )) {
+                        final String filename = (String) fileFilename[1];
+                        writeFile( fos, bundle, new CountStats(), filename, from, toId );
+                        final File file = (File) fileFilename[0];
+                        sendBundledMessage( Status.UPLOADING.ordinal(), bundle );
+                        return null != file ? file : context.getFileStreamPath( filename );
+                    } catch ( final PackageManager.NameNotFoundException ex ) {
+                        throw new IOException( "no package info: " + ex, ex );
+                    }
+                }
+            }, new ChunkedUploader.ChunkListener() {
+                @Override
+                public void onChunkUploaded( final int chunk, final long toId, final UploadReseponse response ) {
+                    Logging.info( "chunk " + chunk + " acknowledged, db marker: " + toId );
+                    prefs.edit().putLong( PreferenceKeys.PREF_DB_MARKER, toId ).apply();
+                }
+
+                @Override
+                public void onRequestProgress( final int chunk, final long bytesWritten, final long contentLength ) {
+                    if ( contentLength > 0 ) {
+                        sendPercentTimesTen( (int) ((bytesWritten * 1000) / contentLength), bundle );
+                    }
+                }
+            });
+
+            final Intent intent = new Intent();
+            if ( result.isComplete() ) {
+                status = Status.SUCCESS;
+                final SharedPreferences.Editor editor = prefs.edit();
+                editor.putLong( PreferenceKeys.PREF_MAX_DB, result.marker );
+                editor.putLong( PreferenceKeys.PREF_NETS_UPLOADED, dbHelper.getNetworkCount() );
+                editor.apply();
+                if ( ! result.transIds.isEmpty() ) {
+                    final String transIdListStr = result.transIds.toString();
+                    intent.putExtra("transIds", transIdListStr);
+                    intent.setAction(UPLOAD_COMPLETE_INTENT);
+                    bundle.putString(BackgroundGuiHandler.TRANSIDS, transIdListStr);
+                }
+                s.apiManager.clearDatabaseIfConfigured();
+            } else {
+                intent.setAction(UPLOAD_FAILED_INTENT);
+                status = Status.FAIL;
+                if ( result.failedHttpStatus == 429 ) {
+                    bundle.putString( BackgroundGuiHandler.ERROR,
+                            context.getString(R.string.tab_uploads) + ": " + context.getString(R.string.status_too_many) );
+                }
+            }
+            Logging.info( "chunked upload: " + result.chunks + " chunks, db marker: " + result.marker
+                    + " complete: " + result.isComplete() );
+            sendBundledMessage( status.ordinal(), bundle );
+            context.sendBroadcast( intent );
+        } catch ( final InterruptedException ex ) {
+            Logging.info("ObservationUploader interrupted");
+            throw ex;
+        } catch ( final IOException ex ) {
+            // acknowledged chunks have already moved the marker; the next upload resumes from there
+            Logging.error( "Chunked upload io problem: " + ex, ex );
+            status = Status.EXCEPTION;
+            bundle.putString( BackgroundGuiHandler.ERROR, context.getString(R.string.no_wigle_conn)
+                    + " (data: " + WiGLEApiManager.hasDataConnection(context) + ")" );
+            sendBundledMessage( status.ordinal(), bundle );
+        } catch ( final Exception ex ) {
+            Logging.error( "Chunked upload problem: " + ex, ex );
+            MainActivity.writeError( this, ex, context, "Has data connection: " + WiGLEApiManager.hasDataConnection(context) );
+            status = Status.EXCEPTION;
+            bundle.putString( BackgroundGuiHandler.ERROR, "ex problem: " + ex );
+            sendBundledMessage( status.ordinal(), bundle );
+        }
+        return true;
+    }
+
     /**
      * Given a stream of observations, write a file.
      * (directly lifted from FileUploaderTask)
@@ -446,13 +554,28 @@ public class ObservationUploader extends AbstractProgressApiRequest {
             // max id at startup
             maxId = prefs.getLong( PreferenceKeys.PREF_MAX_DB, 0L );
         }
-        Logging.info( "Writing file starting with observation id: " + maxId);
-        final Cursor cursor = dbHelper.locationIterator( maxId );
+        return writeFile( fos, bundle, countStats, filename, maxId, Long.MAX_VALUE );
+    }
+
+    /**
+     * write the observations with fromId < _id <= toId
+     */
+    private long writeFile( final OutputStream fos, final Bundle bundle,
+                            final ObservationUploader.CountStats countStats, final String filename,
+                            final long fromId, final long toId ) throws IOException,
+            PackageManager.NameNotFoundException, InterruptedException, DBException {
+
+        final SharedPreferences prefs = context.getSharedPreferences( PreferenceKeys.SHARED_PREFS, 0);
+        Logging.info( "Writing file starting with observation id: " + fromId);
+        final Cursor cursor = dbHelper.locationNetworkIterator( fromId, toId );
 
         //noinspection
         try {
             if (filename != null && filename.toLowerCase().endsWith(".gz")) {
-                try (GZIPOutputStream gzos = new GZIPOutputStream(fos)) {
+                // full-db exports are big enough to be worth deflating on every core we can get
+                final int threads = writeEntireDb ? ParallelGzipOutputStream.DEFAULT_THREADS : 1;
+                try (ParallelGzipOutputStream gzos = new ParallelGzipOutputStream(fos,
+                        ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, threads)) {
                     return writeFileWithCursor(context, gzos, bundle, countStats, cursor, prefs);
                 }
             } else {
@@ -475,12 +598,13 @@ public class ObservationUploader extends AbstractProgressApiRequest {
         long maxId = prefs.getLong( PreferenceKeys.PREF_DB_MARKER, 0L );
 
         final long start = System.currentTimeMillis();
-        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
         countStats.lineCount = 0;
+        // the join runs as the cursor window fills, so time the count and every cursor step as join time
+        long stepStart = System.nanoTime();
         final int total = cursor.getCount();
-        long fileWriteMillis = 0;
-        long netMillis = 0;
+        long joinNanos = System.nanoTime() - stepStart;
+        long encodeNanos = 0;
+        long fileWriteNanos = 0;
 
         sendBundledMessage( Status.WRITING.ordinal(), bundle );
 
@@ -511,151 +635,72 @@ public class ObservationUploader extends AbstractProgressApiRequest {
 
         // print body
         if ( total > 0 ) {
-            ByteBuffer byteBuffer = ByteBuffer.allocate( 1024 ); // this ensures hasArray() is true
-            CharBuffer charBuffer = CharBuffer.allocate( 1024 );
-            //noinspection resource
-            final CSVPrinter printer = new CSVPrinter(charBuffer, CSV_FORMAT);
-
-            final CharsetEncoder encoder = Charset.forName( ENCODING ).newEncoder();
-            // don't stop when a goofy character is found
-            encoder.onUnmappableCharacter( CodingErrorAction.REPLACE );
-            final NumberFormat numberFormat = NumberFormat.getNumberInstance( Locale.US );
-            // no commas in the comma-separated file
-            numberFormat.setGroupingUsed( false );
-            if ( numberFormat instanceof DecimalFormat) {
-                final DecimalFormat dc = (DecimalFormat) numberFormat;
-                dc.setMaximumFractionDigits( 16 );
-            }
-            final StringBuffer stringBuffer = new StringBuffer();
-            final FieldPosition fp = new FieldPosition(NumberFormat.INTEGER_FIELD);
-            final Date date = new Date();
+            final ObservationCsvEncoder encoder = new ObservationCsvEncoder( WRITE_CHUNK_BYTES + 4096 );
 
             // loop!
-            for ( cursor.moveToFirst(); ! cursor.isAfterLast(); cursor.moveToNext() ) {
+            stepStart = System.nanoTime();
+            for ( cursor.moveToFirst(); ! cursor.isAfterLast(); stepStart = System.nanoTime(), cursor.moveToNext() ) {
+                final long rowStart = System.nanoTime();
+                joinNanos += rowStart - stepStart;
                 if ( wasInterrupted() ) {
                     throw new InterruptedException( "we were interrupted" );
                 }
-                // _id,bssid,level,lat,lon,time
+                // _id,bssid,level,lat,lon,altitude,accuracy,time,mfgrid,ssid,frequency,capabilities,type,rcois
                 final long id = cursor.getLong(0);
                 if ( id > maxId ) {
                     maxId = id;
                 }
-                final String bssid = cursor.getString(1);
-                final long netStart = System.currentTimeMillis();
-                final Network network = dbHelper.getNetwork( bssid );
-                netMillis += System.currentTimeMillis() - netStart;
-                if ( network == null ) {
+                final NetworkType type = NetworkType.typeForCode( cursor.getString(12) );
+                if ( type == null ) {
                     // weird condition, skipping
-                    Logging.error("network not in database: " + bssid );
+                    Logging.error("unknown network type for: " + cursor.getString(1) );
                     continue;
                 }
-
+                final int frequency = cursor.getInt(10);
+
+                final int before = encoder.length();
+                encoder.appendObservation(
+                        cursor.getString(1),   // MAC
+                        cursor.getString(9),   // SSID, can be unicode
+                        cursor.getString(11),  // AuthMode
+                        cursor.getLong(7),     // FirstSeen
+                        Network.channelForTypeAndFrequency( type, frequency ), // Channel
+                        frequency,             // Frequency
+                        cursor.getInt(2),      // RSSI
+                        cursor.getDouble(3),   // CurrentLatitude
+                        cursor.getDouble(4),   // CurrentLongitude
+                        cursor.getDouble(5),   // AltitudeMeters
+                        cursor.getDouble(6),   // AccuracyMeters
+                        cursor.getString(13),  // RCOIs
+                        cursor.getInt(8),      // MfgrId
+                        type.name() );         // Type
                 countStats.lineCount++;
-                // ListActivity.debug("writing network: " + ssid );
-
-                // reset the buffers
-                charBuffer.clear();
-                byteBuffer.clear();
-                // fill in the line
-                try {
-                    // MAC
-                    printer.print( network.getBssid() );
-                    // SSID, can be unicode
-                    printer.print( network.getSsid() );
-                    // AuthMode
-                    printer.print( network.getCapabilities() );
-                    // FirstSeen
-                    charBuffer.append( COMMA ); // prepend COMMA before any non-printer.prints
-                    date.setTime( cursor.getLong(7) );
-                    FileAccess.singleCopyDateFormat( dateFormat, stringBuffer, charBuffer, fp, date );
-                    // Channel
-                    charBuffer.append( COMMA );
-                    final Integer channel = network.getChannel();
-                    if ( channel != null ) {
-                        FileAccess.singleCopyNumberFormat(numberFormat, stringBuffer, charBuffer, fp, channel);
-                    }
-                    // Frequency
-                    charBuffer.append( COMMA );
-                    final int frequency = network.getFrequency();
-                    if ( frequency != 0 ) {
-                        FileAccess.singleCopyNumberFormat(numberFormat, stringBuffer, charBuffer, fp, frequency);
-                    }
-                    // RSSI
-                    charBuffer.append( COMMA );
-                    FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getInt(2) );
-                    // CurrentLatitude
-                    charBuffer.append( COMMA );
-                    FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(3) );
-                    // CurrentLongitude
-                    charBuffer.append( COMMA );
-                    FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(4) );
-                    // AltitudeMeters
-                    charBuffer.append( COMMA );
-                    FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(5) );
-                    // AccuracyMeters
-                    charBuffer.append( COMMA );
-                    FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(6) );
-                    // RCOIs
-                    printer.print(network.getRcoisOrBlank());
-                    // MfgrId
-                    charBuffer.append( COMMA );
-                    final int mfgrid = cursor.getInt(8);
-                    if (mfgrid != 0) {
-                        FileAccess.singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, mfgrid );
-                    }
-                    // Type
-                    printer.print( network.getType().name() );
-                    // newline
-                    printer.println();
-                }
-                catch ( BufferOverflowException ex ) {
-                    Logging.info("buffer overflow: " + ex, ex );
-                    // double the buffer
-                    charBuffer = CharBuffer.allocate( charBuffer.capacity() * 2 );
-                    byteBuffer = ByteBuffer.allocate( byteBuffer.capacity() * 2 );
-                    // try again
-                    cursor.moveToPrevious();
-                    continue;
+                countStats.byteCount += encoder.length() - before;
+
+                // write in chunks, rather than a write call per line
+                final long writeStart = System.nanoTime();
+                encodeNanos += writeStart - rowStart;
+                if ( encoder.length() >= WRITE_CHUNK_BYTES ) {
+                    encoder.writeTo( fos );
+                    fileWriteNanos += System.nanoTime() - writeStart;
                 }
 
-                // tell the encoder to stop here and to start at the beginning
-                charBuffer.flip();
-
-                // do the encoding
-                encoder.reset();
-                encoder.encode( charBuffer, byteBuffer, true );
-                try {
-                    encoder.flush( byteBuffer );
-                }
-                catch ( IllegalStateException ex ) {
-                    Logging.error("exception flushing: " + ex, ex);
-                    continue;
-                }
-
-                // figure out where in the byteBuffer to stop
-                final int end = byteBuffer.position();
-                final int offset = byteBuffer.arrayOffset();
-                // do the write
-                final long writeStart = System.currentTimeMillis();
-                fos.write(byteBuffer.array(), offset, end+offset );
-                fileWriteMillis += System.currentTimeMillis() - writeStart;
-
-                countStats.byteCount += end;
-
-                // debug logging
-                // byte[] dst = new byte[end];
-                // System.arraycopy(byteBuffer.array(), offset, dst, 0, end);
-                // final String out = new String(dst, ENCODING);
-                // Logging.debug("bytes! " + out);
-
                 // update UI
                 final int percentDone = (countStats.lineCount * 1000) / total;
                 sendPercentTimesTen( percentDone, bundle );
             }
+            final long writeStart = System.nanoTime();
+            encoder.writeTo( fos );
+            fileWriteNanos += System.nanoTime() - writeStart;
         }
 
-        Logging.info("wrote file in: " + (System.currentTimeMillis() - start) +
-                "ms. fileWriteMillis: " + fileWriteMillis + " netmillis: " + netMillis );
+        final long elapsedMillis = System.currentTimeMillis() - start;
+        final long rowsPerSecond = elapsedMillis > 0 ? (countStats.lineCount * 1000L) / elapsedMillis : countStats.lineCount;
+        Logging.info("wrote file in: " + elapsedMillis + "ms. rows: " + countStats.lineCount
+                + " rows/s: " + rowsPerSecond
+                + " joinMillis: " + NANOSECONDS.toMillis(joinNanos)
+                + " encodeMillis: " + NANOSECONDS.toMillis(encodeNanos)
+                + " fileWriteMillis: " + NANOSECONDS.toMillis(fileWriteNanos));
 
         return maxId;
     }
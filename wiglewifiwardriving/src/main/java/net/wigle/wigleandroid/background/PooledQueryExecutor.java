@@ -2,43 +2,136 @@ package net.wigle.wigleandroid.background;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
 
 import net.wigle.wigleandroid.db.DBException;
 import net.wigle.wigleandroid.db.DatabaseHelper;
+import net.wigle.wigleandroid.util.Histogram;
 import net.wigle.wigleandroid.util.Logging;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Execute raw parameterized DB queries off the main thread.
  * Replacement for the old QueryThread system we used pre Android SDK 31 cutover.
  * Maintains matching abstractions for ease of porting but uses an Executor instead of keeping a
  * thread hot in the DatabaseHelper (and leaking).
+ * Requests run in one of two lanes, so a long export can't hold up a screen waiting on its data:
+ * interactive (a couple of threads) and bulk (one, at background priority). With the db in WAL mode
+ * (the default) each thread reads on a read-only connection of its own from the database's pool,
+ * alongside the writer; with a rollback journal they take turns on the one connection, as before.
+ * Requests can be cancelled singly or by the screen that made them, and queue wait and run time are
+ * kept per RequestType.
  * @author arkasha
  */
 public class PooledQueryExecutor {
-    //ALIBI: unclear whether we need more than one thread a time for anything -
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // WAL pools default to four connections, one of them the writer's
+    private static final int INTERACTIVE_THREADS = 2;
+    private static final long STATS_LOG_MILLIS = 5 * 60 * 1000L;
+
+    public enum Lane {
+        INTERACTIVE, BULK
+    }
+
+    /**
+     * what a query is for: picks its lane, and its timings are kept under it
+     */
+    public enum RequestType {
+        NETWORK_DETAIL(Lane.INTERACTIVE),
+        MAP_VIEWPORT(Lane.INTERACTIVE),
+        SEARCH(Lane.INTERACTIVE),
+        M8B_EXPORT(Lane.BULK);
+
+        private final Lane lane;
+        private final Histogram queueWait = new Histogram(name().toLowerCase(Locale.ROOT) + " queue wait", "ms");
+        private final Histogram execution = new Histogram(name().toLowerCase(Locale.ROOT) + " run", "ms");
+        private final AtomicLong cancelled = new AtomicLong();
+
+        RequestType(final Lane lane) {
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        /**
+         * @return milliseconds from enqueue to start, for requests that ran
+         */
+        public Histogram getQueueWaitHistogram() {
+            return queueWait;
+        }
+
+        /**
+         * @return milliseconds from start to complete, for requests that ran to the end
+         */
+        public Histogram getExecutionHistogram() {
+            return execution;
+        }
+
+        public long getCancelledCount() {
+            return cancelled.get();
+        }
+    }
+
+    private static final ThreadPoolExecutor interactive = lane("query-interactive-", INTERACTIVE_THREADS,
+            Process.THREAD_PRIORITY_DEFAULT);
+    private static final ThreadPoolExecutor bulk = lane("query-bulk-", 1, Process.THREAD_PRIORITY_BACKGROUND);
+    private static final Set<Request> pending = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong prevStatsLogTime = new AtomicLong(System.currentTimeMillis());
+
+    private static ThreadPoolExecutor lane(final String name, final int threads, final int priority) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(priority);
+            runnable.run();
+        }, name + count.incrementAndGet());
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
 
     public interface ResultHandler {
         boolean handleRow( Cursor cursor );
         void complete();
     }
     public static class Request implements Runnable{
+        private final RequestType type;
+        private final Object owner;
         private final String sql;
         private final String[] args;
         private final PooledQueryExecutor.ResultHandler handler;
         private final DatabaseHelper dbHelper;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final CancellationSignal cancellationSignal = new CancellationSignal();
+        private long enqueueTime;
 
-        public Request( final String sql, final String[] args,
+        /**
+         * @param owner the screen making the request, for cancelAll when it goes away
+         */
+        public Request( final RequestType type, final Object owner, final String sql, final String[] args,
                         final PooledQueryExecutor.ResultHandler handler, final DatabaseHelper dbHelper) {
+            if ( type == null ) {
+                throw new IllegalArgumentException( "type is null" );
+            }
             if ( sql == null ) {
                 throw new IllegalArgumentException( "sql is null" );
             }
             if ( handler == null ) {
                 throw new IllegalArgumentException( "handler is null" );
             }
+            this.type = type;
+            this.owner = owner;
             this.sql = sql;
             this.args = args;
             this.handler = handler;
@@ -47,18 +140,28 @@ public class PooledQueryExecutor {
 
         @Override
         public void run() {
+            if ( cancelled.get() ) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            type.queueWait.record( start - enqueueTime );
             Cursor cursor = null;
             try {
                 final SQLiteDatabase db = dbHelper.getDB();
                 if ( db != null ) {
-                    cursor = db.rawQuery( sql, args );
+                    cursor = db.rawQuery( sql, args, cancellationSignal );
                     while ( cursor.moveToNext() ) {
-                        if (!handler.handleRow( cursor )) {
+                        if ( cancelled.get() || !handler.handleRow( cursor ) ) {
                             break;
                         }
                     }
-                    handler.complete();
+                    if ( ! cancelled.get() ) {
+                        handler.complete();
+                        type.execution.record( System.currentTimeMillis() - start );
+                    }
                 }
+            } catch ( OperationCanceledException ex ) {
+                // cancelled mid-query; counted in cancel()
             } catch ( IllegalStateException ex ) {
                 Logging.info( sql + " illegal state ex: " + ex);
             }
@@ -68,26 +171,84 @@ public class PooledQueryExecutor {
                 if (cursor != null) {
                     cursor.close();
                 }
+                pending.remove( this );
+                logStats();
             }
         }
 
+        /**
+         * Drop the request if it hasn't started, or stop it where it is if it has: an sqlite step in progress
+         * is interrupted, and no more rows are handed over. complete() isn't called for a cancelled request.
+         */
+        public void cancel() {
+            if ( cancelled.compareAndSet( false, true ) ) {
+                type.cancelled.incrementAndGet();
+                cancellationSignal.cancel();
+                executorFor( type ).remove( this );
+                pending.remove( this );
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public RequestType getType() {
+            return type;
+        }
+
+        public Object getOwner() {
+            return owner;
+        }
+
         public String getSql() {
             return sql;
         }
     }
 
+    private static ThreadPoolExecutor executorFor( final RequestType type ) {
+        return type.lane == Lane.BULK ? bulk : interactive;
+    }
+
     /**
-     * Add a job to the threadppol
+     * Add a job to its lane's threadpool
      * @param request the Request instance to execute
      */
     public static void enqueue( final Request request ) {
-        executor.execute(request);
+        request.enqueueTime = System.currentTimeMillis();
+        pending.add( request );
+        executorFor( request.type ).execute( request );
+    }
+
+    /**
+     * cancel every queued or running request made by owner
+     */
+    public static void cancelAll( final Object owner ) {
+        for ( final Request request : pending ) {
+            if ( request.owner == owner ) {
+                request.cancel();
+            }
+        }
+    }
+
+    private static void logStats() {
+        final long now = System.currentTimeMillis();
+        final long prev = prevStatsLogTime.get();
+        if ( now - prev > STATS_LOG_MILLIS && prevStatsLogTime.compareAndSet( prev, now ) ) {
+            for ( final RequestType type : RequestType.values() ) {
+                if ( type.queueWait.getCount() > 0 || type.cancelled.get() > 0 ) {
+                    Logging.info( type.queueWait + "; " + type.execution + "; cancelled: " + type.cancelled.get() );
+                }
+            }
+        }
     }
 
     public static void shutdownNow() {
-        if (executor != null) {
-            executor.shutdownNow();
+        for ( final Request request : pending ) {
+            request.cancel();
         }
+        interactive.shutdownNow();
+        bulk.shutdownNow();
     }
 
 }
@@ -12,6 +12,7 @@ import static net.wigle.wigleandroid.listener.GNSSListener.MIN_ROUTE_LOCATION_PR
 import static net.wigle.wigleandroid.util.FileUtility.SQL_EXT;
 import static net.wigle.wigleandroid.util.FileUtility.hasSD;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -23,10 +24,11 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -34,11 +36,14 @@ import net.wigle.wigleandroid.ErrorReportActivity;
 import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.background.BackupRunnable;
 import net.wigle.wigleandroid.model.ConcurrentLinkedHashMap;
+import net.wigle.wigleandroid.model.LongObjectHashMap;
 import net.wigle.wigleandroid.model.Network;
 import net.wigle.wigleandroid.model.NetworkType;
 import net.wigle.wigleandroid.model.Pair;
 import net.wigle.wigleandroid.util.FileUtility;
+import net.wigle.wigleandroid.util.Histogram;
 import net.wigle.wigleandroid.util.Logging;
+import net.wigle.wigleandroid.util.MacAddress;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 
 import android.content.Context;
@@ -49,6 +54,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
@@ -58,6 +64,7 @@ import android.os.Message;
 import android.os.Process;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 
 /**
  * our database helper, makes a great data meal.
@@ -73,13 +80,22 @@ public final class DatabaseHelper extends Thread {
     private static final String DATABASE_NAME = "wiglewifi"+SQL_EXT;
     private static final String EXTERNAL_DATABASE_PATH = FileUtility.getSDPath();
     private static final int DB_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
+    /**
+     * held around every write transaction: the writer thread's, the bulk importer's and the online index
+     * builder's. The last two have their own connections, and SQLite only lets one of them write at a time.
+     */
     private static final Object TRANS_LOCK = new Object();
 
     private static final long QUEUE_CULL_TIMEOUT = 10000L;
-    private long prevQueueCullTime = 0L;
+    // claimed by compare-and-set, so a full queue never waits on this object's monitor (checkDB can hold it
+    // through a reopen)
+    private final AtomicLong prevQueueCullTime = new AtomicLong( 0L );
     private long prevPendingQueueCullTime = 0L;
 
+    /** writer thread only: the last route point committed, and the one pending in the open transaction */
     private Location lastLoggedLocation;
+    private Location batchRouteLocation;
+    private int batchRoutePoints;
 
     private SQLiteStatement insertNetwork;
     private SQLiteStatement insertLocationExternal;
@@ -144,8 +160,11 @@ public final class DatabaseHelper extends Thread {
     private static final String LOCATED_NETS_QUERY_STEM = " FROM " + DatabaseHelper.NETWORK_TABLE
         + " WHERE bestlat != 0.0 AND bestlon != 0.0 AND instr(bssid, '_') <= 0";
 
-    public static final String SEARCH_NETWORKS = "SELECT bssid,lastlat,lastlon FROM " + NETWORK_TABLE + " WHERE 1=1 ";
-    //TODO: should search use best[lat|lon] instead of last?
+    public static final String SEARCH_NETWORKS = "SELECT bssid,bestlat,bestlon FROM " + NETWORK_TABLE + " WHERE 1=1 ";
+
+    /** what getNetwork and networkFromCursor read */
+    private static final String NETWORK_DETAIL_COLUMNS
+            = "bssid,ssid,frequency,capabilities,type,lastlat,lastlon,bestlat,bestlon,rcois,mfgrid,service,bestlevel,lasttime";
 
     private static final String LOCATED_WIFI_QUERY_STEM = " FROM " + DatabaseHelper.NETWORK_TABLE
             + " WHERE bestlat != 0.0 AND bestlon != 0.0 AND " + NetworkFilter.WIFI.getFilter()
@@ -156,14 +175,31 @@ public final class DatabaseHelper extends Thread {
 
     private static final String LOCATED_WIFI_COUNT_QUERY = "SELECT count(*)" +LOCATED_WIFI_QUERY_STEM;
 
-    private static final String ROUTE_COUNT_QUERY = "SELECT count(*) FROM "+ROUTE_TABLE+" WHERE run_id = ?";
-
     private static final String CLEAR_DEFAULT_ROUTE = "DELETE FROM "+ROUTE_TABLE+" WHERE run_id = 0";
 
     private SQLiteDatabase db;
 
+    /** bound variables per getNetworks query, well under SQLITE_MAX_VARIABLE_NUMBER's 999 */
+    public static final int MAX_NETWORK_BATCH = 500;
     private static final int MAX_QUEUE = 512;
     private static final int MAX_DRAIN = 512; // seems to work fine slurping the whole darn thing
+    // group commit defaults, WAL mode: commit after this many observations or this long, whichever first
+    private static final int DEFAULT_COMMIT_ROWS = 2048;
+    private static final long DEFAULT_COMMIT_MILLIS = 1000L;
+    private static final String DEFAULT_WAL_SYNCHRONOUS = "NORMAL";
+    private static final long COMMIT_STATS_LOG_MILLIS = 5L * 60L * 1000L;
+    // a dense scan alone can be a few hundred networks; primitive keys make a bigger cache cheap
+    private static final int PREVIOUS_WRITTEN_CACHE_SIZE = 1024;
+    // bulk import: rows per import transaction, and the pause after each so the live writer gets the lock
+    private static final int BULK_IMPORT_BATCH_ROWS = 5000;
+    private static final long BULK_IMPORT_YIELD_MILLIS = 5L;
+    // side connections (bulk import, index build): tries at a busy write lock, and the first backoff, doubled per try
+    private static final int BUSY_ATTEMPTS = 6;
+    private static final long BUSY_BACKOFF_MILLIS = 50L;
+    // online index builds: the pause after each backfill transaction, and how often to log progress
+    private static final long INDEX_BUILD_YIELD_MILLIS = 20L;
+    private static final int INDEX_BUILD_LOG_CHUNKS = 200;
+    private static final long INDEX_BUILD_JOIN_MILLIS = 3000L;
     private static final String ERROR = "error";
     private static final String EXCEPTION = "exception";
     private final Context context;
@@ -172,11 +208,22 @@ public final class DatabaseHelper extends Thread {
     private final AtomicBoolean done = new AtomicBoolean(false);
     private final AtomicLong networkCount = new AtomicLong();
     private final AtomicLong currentRoutePointCount = new AtomicLong();
+    private final AtomicLong droppedRoutePointCount = new AtomicLong();
     private final AtomicLong locationCount = new AtomicLong();
     private final AtomicLong newNetworkCount = new AtomicLong();
     private final AtomicLong newWifiCount = new AtomicLong();
     private final AtomicLong newCellCount = new AtomicLong();
     private final AtomicLong newBtCount = new AtomicLong();
+    /** OnlineIndex names whose backfill is done, so queries can use them */
+    private final Set<String> readyIndexes = ConcurrentHashMap.newKeySet();
+    private Thread indexBuilder;
+
+    private volatile boolean writeAheadLogging = false;
+    private int commitRows = MAX_DRAIN;
+    private long commitMillis = 0L;
+    private final Histogram commitLatency = new Histogram( "db commit latency", "ms" );
+    private final Histogram commitBatchSize = new Histogram( "db commit batch", "" );
+    private long prevCommitStatsLogTime = 0L;
 
     private Location lastLoc = null;
     private long lastLocWhen = 0L;
@@ -200,9 +247,14 @@ public final class DatabaseHelper extends Thread {
     }
 
 
-    /** used in private addObservation */
-    private final ConcurrentLinkedHashMap<String,CachedLocation> previousWrittenLocationsCache =
-            new ConcurrentLinkedHashMap<>(64);
+    /** used in private addObservation, writer thread only. WiFi/BT keyed by packed MAC */
+    private final LongObjectHashMap<CachedLocation> previousWrittenLocationsCache =
+            new LongObjectHashMap<>(PREVIOUS_WRITTEN_CACHE_SIZE);
+    /** same, for the ids that aren't MACs (cells) */
+    private final ConcurrentLinkedHashMap<String,CachedLocation> previousWrittenOtherLocationsCache =
+            new ConcurrentLinkedHashMap<>(PREVIOUS_WRITTEN_CACHE_SIZE);
+    /** writer thread only, rebound per observation */
+    private final String[] bssidArgs = new String[1];
 
     private final static class CachedLocation {
         public Location location;
@@ -212,6 +264,23 @@ public final class DatabaseHelper extends Thread {
         public int mfgrid;
     }
 
+    /** a point on the current route, written by the db thread alongside observations */
+    final static class DBRoute {
+        public final Location location;
+        public final int wifiVisible;
+        public final int cellVisible;
+        public final int btVisible;
+        public final long runId;
+
+        public DBRoute( final Location location, final int wifiVisible, final int cellVisible, final int btVisible, final long runId ) {
+            this.location = location;
+            this.wifiVisible = wifiVisible;
+            this.cellVisible = cellVisible;
+            this.btVisible = btVisible;
+            this.runId = runId;
+        }
+    }
+
     /** class for queueing updates to the database */
     final static class DBUpdate {
         public final Network network;
@@ -221,6 +290,8 @@ public final class DatabaseHelper extends Thread {
         public final boolean frequencyChanged;
         public final boolean typeMorphed;
         public final int external;
+        /** non-null for route points, which have no network */
+        public final DBRoute route;
 
         public DBUpdate( final Network network, final int level, final Location location, final boolean newForRun, final boolean frequencyChanged, final boolean typeMorphed ) {
             this(network, level, location, newForRun, false, false, 0);
@@ -234,6 +305,18 @@ public final class DatabaseHelper extends Thread {
             this.frequencyChanged = frequencyChanged;
             this.typeMorphed = typeMorphed;
             this.external = external;
+            this.route = null;
+        }
+
+        public DBUpdate( final DBRoute route ) {
+            this.network = null;
+            this.level = 0;
+            this.location = route.location;
+            this.newForRun = false;
+            this.frequencyChanged = false;
+            this.typeMorphed = false;
+            this.external = 0;
+            this.route = route;
         }
     }
 
@@ -329,6 +412,7 @@ public final class DatabaseHelper extends Thread {
             catch ( DBException ex ) {
                 deathDialog( "getting counts from DB", ex );
             }
+            startIndexBuild();
 
             final List<DBUpdate> drain = new ArrayList<>();
             while ( ! done.get() ) {
@@ -342,8 +426,14 @@ public final class DatabaseHelper extends Thread {
                     Thread.yield();
 
                     // now that we've taken care of the one, see if there's more we can do in this transaction
-                    // try to drain some more
-                    queue.drainTo( drain, MAX_DRAIN - 1 );
+                    if ( commitMillis > 0L ) {
+                        // group commit: wait a little for company, fewer commits means fewer fsyncs
+                        fillCommitGroup( drain, startTime );
+                    }
+                    else {
+                        // try to drain some more
+                        queue.drainTo( drain, MAX_DRAIN - 1 );
+                    }
                     final int drainSize = drain.size();
 
                     int countdown = 10;
@@ -352,12 +442,32 @@ public final class DatabaseHelper extends Thread {
                         synchronized(TRANS_LOCK) {
                             try {
                                 // do a transaction for everything
-                                db.beginTransaction();
+                                final long commitStart = System.currentTimeMillis();
+                                if ( writeAheadLogging ) {
+                                    // readers have their own connections; don't lock them out
+                                    db.beginTransactionNonExclusive();
+                                }
+                                else {
+                                    db.beginTransaction();
+                                }
+                                // a retried batch starts its route over from what was committed
+                                batchRouteLocation = lastLoggedLocation;
+                                batchRoutePoints = 0;
                                 for ( int i = 0; i < drainSize; i++ ) {
-                                    addObservation( drain.get( i ), drainSize );
+                                    final DBUpdate update = drain.get( i );
+                                    if ( update.route != null ) {
+                                        addRoutePoint( update.route );
+                                    }
+                                    else {
+                                        addObservation( update, drainSize );
+                                    }
                                 }
                                 db.setTransactionSuccessful();
                                 db.endTransaction();
+                                lastLoggedLocation = batchRouteLocation;
+                                currentRoutePointCount.addAndGet( batchRoutePoints );
+                                commitLatency.record( System.currentTimeMillis() - commitStart );
+                                commitBatchSize.record( drainSize );
                                 countdown = 0;
                             }
                             catch ( SQLiteConstraintException ex ) {
@@ -376,10 +486,15 @@ public final class DatabaseHelper extends Thread {
                         }
                     }
 
-                    final long delay = System.currentTimeMillis() - startTime;
-                    if ( delay > 1000L ) {
+                    final long now = System.currentTimeMillis();
+                    final long delay = now - startTime;
+                    if ( delay > 1000L + commitMillis ) {
                         Logging.info( "db run loop took: " + delay + " ms. drainSize: " + drainSize );
                     }
+                    if ( now - prevCommitStatsLogTime > COMMIT_STATS_LOG_MILLIS ) {
+                        prevCommitStatsLogTime = now;
+                        logCommitStats();
+                    }
                 }
                 catch ( final InterruptedException ex ) {
                     // no worries
@@ -414,6 +529,61 @@ public final class DatabaseHelper extends Thread {
         Logging.info("db worker thread shutting down");
     }
 
+    /**
+     * gather the group for one commit: up to commitRows updates, waiting no longer than commitMillis
+     * after the first arrived.
+     */
+    private void fillCommitGroup( final List<DBUpdate> drain, final long startTime ) {
+        final long deadline = startTime + commitMillis;
+        queue.drainTo( drain, commitRows - drain.size() );
+        try {
+            while ( drain.size() < commitRows && ! done.get() ) {
+                final long wait = deadline - System.currentTimeMillis();
+                if ( wait <= 0L ) {
+                    break;
+                }
+                final DBUpdate update = queue.poll( wait, MILLISECONDS );
+                if ( update == null ) {
+                    break;
+                }
+                drain.add( update );
+                queue.drainTo( drain, commitRows - drain.size() );
+            }
+        }
+        catch ( final InterruptedException ex ) {
+            // closing, commit what we have
+            Logging.info( "db commit group interrupted, committing: " + drain.size() );
+        }
+    }
+
+    /**
+     * @return milliseconds from begin to end of each writer transaction
+     */
+    public Histogram getCommitLatencyHistogram() {
+        return commitLatency;
+    }
+
+    /**
+     * @return observations and route points per writer transaction
+     */
+    public Histogram getCommitBatchSizeHistogram() {
+        return commitBatchSize;
+    }
+
+    public boolean isWriteAheadLogging() {
+        return writeAheadLogging;
+    }
+
+    private void logCommitStats() {
+        if ( commitLatency.getCount() > 0 ) {
+            Logging.info( (writeAheadLogging ? "[WAL] " : "") + commitLatency + "; " + commitBatchSize );
+        }
+        if ( currentRoutePointCount.get() > 0 || droppedRoutePointCount.get() > 0 ) {
+            Logging.info( "route points written: " + currentRoutePointCount.get()
+                    + " dropped: " + droppedRoutePointCount.get() );
+        }
+    }
+
     public void deathDialog( String message, Exception ex ) {
         // send message to the handler that will get this dialog on the activity thread
         Logging.error( "db exception. " + message + ": " + ex, ex );
@@ -540,8 +710,7 @@ public final class DatabaseHelper extends Thread {
         db.execSQL( "PRAGMA count_changes = false" );
         // keep transactions in memory until committed
         db.execSQL( "PRAGMA temp_store = MEMORY" );
-        // keep around the journal file, don't create and delete a ton of times
-        db.rawQuery( "PRAGMA journal_mode = PERSIST", null).close();
+        configureJournal();
 
         Logging.info( "database version: " + db.getVersion() );
         if ( db.getVersion() == 0 ) {
@@ -601,6 +770,19 @@ public final class DatabaseHelper extends Thread {
         // drop index, was never publicly released
         db.execSQL("DROP INDEX IF EXISTS type");
 
+        db.execSQL( OnlineIndex.PROGRESS_CREATE );
+        if ( doCreateNetwork ) {
+            dropOnlineIndex( OnlineIndex.NETWORK_GEO );
+            dropOnlineIndex( OnlineIndex.NETWORK_SSID );
+        }
+        if ( doCreateLocation ) {
+            dropOnlineIndex( OnlineIndex.LOCATION_BY_BSSID );
+        }
+        if ( doCreateRoute ) {
+            dropOnlineIndex( OnlineIndex.ROUTE_BY_RUN );
+        }
+        readIndexProgress();
+
         // compile statements
         insertNetwork = db.compileStatement( "INSERT INTO "+NETWORK_TABLE
                 + " (bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type,bestlevel,bestlat,bestlon,rcois,mfgrid,service) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)" );
@@ -621,6 +803,40 @@ public final class DatabaseHelper extends Thread {
                 + " (run_id,wifi_visible,cell_visible,bt_visible,lat,lon,altitude,accuracy,time) VALUES (?,?,?,?,?,?,?,?,?)" );
     }
 
+    /**
+     * Either WAL with group commit (the default), so the list/map/search readers get their own connections
+     * from the database's pool and run alongside the writer, or the original persistent rollback journal with
+     * a commit per drain: the opt-out in settings, and the fallback for a database that can't do WAL.
+     */
+    private void configureJournal() {
+        if ( prefs.getBoolean( PreferenceKeys.PREF_DB_WAL, true ) ) {
+            writeAheadLogging = db.enableWriteAheadLogging();
+            if ( writeAheadLogging ) {
+                String synchronous = prefs.getString( PreferenceKeys.PREF_DB_SYNCHRONOUS, DEFAULT_WAL_SYNCHRONOUS );
+                if ( ! "OFF".equals( synchronous ) && ! "NORMAL".equals( synchronous ) && ! "FULL".equals( synchronous ) ) {
+                    Logging.warn( "unknown db synchronous level: " + synchronous );
+                    synchronous = DEFAULT_WAL_SYNCHRONOUS;
+                }
+                db.execSQL( "PRAGMA synchronous = " + synchronous );
+                commitRows = Math.max( 1, prefs.getInt( PreferenceKeys.PREF_DB_COMMIT_ROWS, DEFAULT_COMMIT_ROWS ) );
+                commitMillis = Math.max( 0L, prefs.getLong( PreferenceKeys.PREF_DB_COMMIT_MILLIS, DEFAULT_COMMIT_MILLIS ) );
+                Logging.info( "db write-ahead logging, synchronous: " + synchronous
+                        + " commitRows: " + commitRows + " commitMillis: " + commitMillis );
+                return;
+            }
+            Logging.warn( "could not enable db write-ahead logging, using journal" );
+        }
+        else {
+            // a no-op unless we're coming back from WAL
+            db.disableWriteAheadLogging();
+        }
+        writeAheadLogging = false;
+        commitRows = MAX_DRAIN;
+        commitMillis = 0L;
+        // keep around the journal file, don't create and delete a ton of times
+        db.rawQuery( "PRAGMA journal_mode = PERSIST", null).close();
+    }
+
     /**
      * close db, shut down thread
      */
@@ -637,7 +853,9 @@ public final class DatabaseHelper extends Thread {
             countdown--;
             this.interrupt();
         }
+        stopIndexBuild();
 
+        logCommitStats();
         countdown = 50;
         while ( db != null && db.isOpen() && countdown > 0 ) {
             try {
@@ -692,6 +910,366 @@ public final class DatabaseHelper extends Thread {
         queue.put(update);
     }
 
+    /**
+     * Start a bulk import of networks known only by id, as from the user's observed list. Rows go in with
+     * INSERT OR IGNORE, in transactions of BULK_IMPORT_BATCH_ROWS on a connection of their own, and each
+     * batch takes turns with the db thread's transactions, so live observations keep being written.
+     * @return the import, which must be closed to write the last batch
+     */
+    public BulkNetworkImport beginBulkNetworkImport() throws DBException {
+        checkDB();
+        try {
+            return new BulkNetworkImport( SQLiteDatabase.openDatabase( db.getPath(), null, SQLiteDatabase.OPEN_READWRITE ) );
+        }
+        catch ( SQLiteException ex ) {
+            throw new DBException( "beginBulkNetworkImport", ex );
+        }
+    }
+
+    /**
+     * a bulk network import in progress. not thread-safe; one thread feeds it
+     */
+    public final class BulkNetworkImport implements Closeable {
+        private final SQLiteDatabase importDb;
+        private final SQLiteStatement insert;
+        private final String[] bssids = new String[BULK_IMPORT_BATCH_ROWS];
+        private final String[] types = new String[BULK_IMPORT_BATCH_ROWS];
+        private final long startTime = System.currentTimeMillis();
+        private int batchSize = 0;
+        private long added = 0L;
+        private long inserted = 0L;
+        private long batchInserted = 0L;
+        private long transactionMillis = 0L;
+
+        private BulkNetworkImport( final SQLiteDatabase importDb ) {
+            this.importDb = importDb;
+            importDb.execSQL( "PRAGMA temp_store = MEMORY" );
+            if ( ! writeAheadLogging ) {
+                importDb.rawQuery( "PRAGMA journal_mode = PERSIST", null ).close();
+            }
+            // the same blank row addObservation wrote for an external observation with no location
+            insert = importDb.compileStatement( "INSERT OR IGNORE INTO " + NETWORK_TABLE
+                    + " (bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type,bestlevel,bestlat,bestlon,rcois,mfgrid,service)"
+                    + " VALUES (?,'',0,'',0,0,0,?,0,0,0,'',0,'')" );
+        }
+
+        /**
+         * queue a network for insert, if it isn't in the db yet. writes a batch when one fills
+         */
+        public void add( final String bssid, final NetworkType type ) throws InterruptedException {
+            bssids[batchSize] = ( bssid == null ) ? "" : bssid.toLowerCase( Locale.US );
+            types[batchSize] = type.getCode();
+            batchSize++;
+            added++;
+            if ( batchSize == BULK_IMPORT_BATCH_ROWS ) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if ( batchSize == 0 ) {
+                return;
+            }
+            batchInserted = 0L;
+            transactionMillis += writeSideTransaction( importDb, () -> {
+                for ( int i = 0; i < batchSize; i++ ) {
+                    insert.bindString( 1, bssids[i] );
+                    insert.bindString( 2, types[i] );
+                    if ( insert.executeInsert() != -1L ) {
+                        batchInserted++;
+                    }
+                }
+            } );
+            inserted += batchInserted;
+            networkCount.addAndGet( batchInserted );
+            batchSize = 0;
+            // let a waiting db thread have its turn
+            Thread.sleep( BULK_IMPORT_YIELD_MILLIS );
+        }
+
+        /**
+         * @return networks offered so far
+         */
+        public long getAddedCount() {
+            return added;
+        }
+
+        /**
+         * @return networks that weren't in the db, as of the last batch written
+         */
+        public long getInsertedCount() {
+            return inserted;
+        }
+
+        /**
+         * @return networks offered per second since the import began
+         */
+        public long getRowsPerSecond() {
+            final long elapsed = System.currentTimeMillis() - startTime;
+            return elapsed <= 0L ? added : ( added * 1000L ) / elapsed;
+        }
+
+        /**
+         * write the last batch and close the import connection
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            }
+            catch ( final InterruptedException ex ) {
+                Logging.info( "bulk import interrupted, last batch written" );
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                insert.close();
+                importDb.close();
+            }
+            Logging.info( "bulk import: " + added + " networks, " + inserted + " new, " + getRowsPerSecond()
+                    + " rows/s, " + transactionMillis + " ms in transactions" );
+        }
+    }
+
+    /**
+     * the writes of one side-connection transaction
+     */
+    private interface SideWrite {
+        void write();
+    }
+
+    /**
+     * Run writes in a transaction on a side connection (bulk import, index build), taking turns with the db
+     * thread through TRANS_LOCK. A reader on another connection can still hold the file lock, so the begin
+     * may fail busy; beginWrite takes the write lock up front, so that's before anything is written, and
+     * the begin is retried with backoff, outside TRANS_LOCK so the db thread isn't held up meanwhile.
+     * @return milliseconds in the transaction
+     * @throws SQLiteDatabaseLockedException if the database stays busy through every attempt
+     */
+    private long writeSideTransaction( final SQLiteDatabase connection, final SideWrite writes )
+            throws InterruptedException {
+        long backoff = BUSY_BACKOFF_MILLIS;
+        for ( int attempt = 1; ; attempt++ ) {
+            synchronized ( TRANS_LOCK ) {
+                final long start = System.currentTimeMillis();
+                boolean begun = false;
+                try {
+                    beginWrite( connection );
+                    begun = true;
+                }
+                catch ( final SQLiteDatabaseLockedException ex ) {
+                    if ( attempt >= BUSY_ATTEMPTS ) {
+                        throw ex;
+                    }
+                    Logging.warn( "db busy, side write attempt " + attempt + " of " + BUSY_ATTEMPTS
+                            + ", retrying in " + backoff + " ms: " + ex );
+                }
+                if ( begun ) {
+                    try {
+                        writes.write();
+                        connection.setTransactionSuccessful();
+                    }
+                    finally {
+                        connection.endTransaction();
+                    }
+                    return System.currentTimeMillis() - start;
+                }
+            }
+            Thread.sleep( backoff );
+            backoff *= 2;
+        }
+    }
+
+    private void beginWrite( final SQLiteDatabase connection ) {
+        if ( writeAheadLogging ) {
+            connection.beginTransactionNonExclusive();
+        }
+        else {
+            connection.beginTransaction();
+        }
+    }
+
+    /**
+     * Build any OnlineIndex that isn't done yet, resuming from its index_progress row, on a low priority
+     * thread and a connection of its own. Each backfill chunk is a short transaction that takes turns with
+     * the db thread's, the same way a bulk import does, so observations keep being written throughout.
+     */
+    private synchronized void startIndexBuild() {
+        if ( done.get() || ( indexBuilder != null && indexBuilder.isAlive() ) ) {
+            return;
+        }
+        for ( final OnlineIndex index : OnlineIndex.ALL ) {
+            if ( ! readyIndexes.contains( index.name ) ) {
+                indexBuilder = new Thread( this::buildIndexes, "dbindex-" + getName() );
+                indexBuilder.start();
+                return;
+            }
+        }
+    }
+
+    /**
+     * stop the index builder, if running, and wait for it to let go of its connection. A chunk in
+     * flight commits first; the rest resumes on the next start
+     */
+    private void stopIndexBuild() {
+        final Thread builder;
+        synchronized ( this ) {
+            builder = indexBuilder;
+            indexBuilder = null;
+        }
+        if ( builder == null ) {
+            return;
+        }
+        builder.interrupt();
+        try {
+            builder.join( INDEX_BUILD_JOIN_MILLIS );
+        }
+        catch ( final InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+        if ( builder.isAlive() ) {
+            Logging.warn( "index builder still running after " + INDEX_BUILD_JOIN_MILLIS + " ms" );
+        }
+    }
+
+    private void buildIndexes() {
+        Process.setThreadPriority( Process.THREAD_PRIORITY_LOWEST );
+        SQLiteDatabase indexDb = null;
+        try {
+            checkDB();
+            indexDb = SQLiteDatabase.openDatabase( db.getPath(), null, SQLiteDatabase.OPEN_READWRITE );
+            if ( ! writeAheadLogging ) {
+                indexDb.rawQuery( "PRAGMA journal_mode = PERSIST", null ).close();
+            }
+            for ( final OnlineIndex index : OnlineIndex.ALL ) {
+                if ( ! readyIndexes.contains( index.name ) ) {
+                    buildIndex( indexDb, index );
+                }
+            }
+        }
+        catch ( DBException | SQLiteException ex ) {
+            // progress is committed per chunk, the next start carries on from there
+            Logging.warn( "index build stopped: " + ex, ex );
+        }
+        catch ( InterruptedException ex ) {
+            Logging.info( "index build interrupted" );
+        }
+        finally {
+            if ( indexDb != null ) {
+                indexDb.close();
+            }
+        }
+    }
+
+    private void buildIndex( final SQLiteDatabase indexDb, final OnlineIndex index ) throws InterruptedException {
+        final String[] nameArgs = new String[]{ index.name };
+        try {
+            // triggers first, in the same transaction that fixes the backfill target
+            writeSideTransaction( indexDb, () -> {
+                for ( final String sql : index.setupSql() ) {
+                    indexDb.execSQL( sql );
+                }
+                indexDb.execSQL( index.startProgressSql(), nameArgs );
+            } );
+        }
+        catch ( final SQLiteDatabaseLockedException ex ) {
+            throw ex;
+        }
+        catch ( final SQLiteException ex ) {
+            // e.g. a platform sqlite built without the rtree module: queries keep to the plain tables
+            Logging.warn( "cannot create index " + index.name + ": " + ex );
+            return;
+        }
+        long builtTo;
+        final long target;
+        try ( Cursor cursor = indexDb.rawQuery( "SELECT built_to,target FROM " + OnlineIndex.PROGRESS_TABLE
+                + " WHERE name = ?", nameArgs ) ) {
+            cursor.moveToFirst();
+            builtTo = cursor.getLong( 0 );
+            target = cursor.getLong( 1 );
+        }
+        Logging.info( "building index " + index.name + " from id " + builtTo + " to " + target );
+
+        final long startTime = System.currentTimeMillis();
+        final long startedFrom = builtTo;
+        long transactionMillis = 0L;
+        long longestMillis = 0L;
+        int chunks = 0;
+        final SQLiteStatement backfill = indexDb.compileStatement( index.backfillSql() );
+        final SQLiteStatement progress = indexDb.compileStatement( "UPDATE " + OnlineIndex.PROGRESS_TABLE
+                + " SET built_to = ? WHERE name = ?" );
+        try {
+            while ( builtTo < target ) {
+                if ( done.get() ) {
+                    Logging.info( "index " + index.name + " paused at id " + builtTo + " of " + target );
+                    return;
+                }
+                final long chunkFrom = builtTo;
+                final long chunkTo = Math.min( builtTo + index.chunkRows, target );
+                final long millis = writeSideTransaction( indexDb, () -> {
+                    backfill.bindLong( 1, chunkFrom );
+                    backfill.bindLong( 2, chunkTo );
+                    backfill.execute();
+                    progress.bindLong( 1, chunkTo );
+                    progress.bindString( 2, index.name );
+                    progress.execute();
+                } );
+                transactionMillis += millis;
+                longestMillis = Math.max( longestMillis, millis );
+                builtTo = chunkTo;
+                if ( ++chunks % INDEX_BUILD_LOG_CHUNKS == 0 ) {
+                    Logging.info( "index " + index.name + ": " + ( builtTo * 100L / target ) + "%" );
+                }
+                // let a waiting db thread have its turn
+                Thread.sleep( INDEX_BUILD_YIELD_MILLIS );
+            }
+        }
+        finally {
+            backfill.close();
+            progress.close();
+        }
+        readyIndexes.add( index.name );
+        Logging.info( "index " + index.name + " built, ids " + startedFrom + " to " + target + " in "
+                + ( System.currentTimeMillis() - startTime ) + " ms, " + transactionMillis
+                + " ms in transactions, longest " + longestMillis + " ms" );
+    }
+
+    private void readIndexProgress() {
+        readyIndexes.clear();
+        try ( Cursor cursor = db.rawQuery( "SELECT name FROM " + OnlineIndex.PROGRESS_TABLE
+                + " WHERE built_to >= target", null ) ) {
+            while ( cursor.moveToNext() ) {
+                readyIndexes.add( cursor.getString( 0 ) );
+            }
+        }
+        Logging.info( "online indexes ready: " + readyIndexes );
+    }
+
+    private void dropOnlineIndex( final OnlineIndex index ) {
+        readyIndexes.remove( index.name );
+        for ( final String sql : index.dropSql() ) {
+            db.execSQL( sql );
+        }
+    }
+
+    /**
+     * the route table, or its covering index once that's built: it has all the columns the route queries use
+     */
+    private String routeSource() {
+        return readyIndexes.contains( OnlineIndex.ROUTE_BY_RUN.name ) ? OnlineIndex.ROUTE_BY_RUN.name : ROUTE_TABLE;
+    }
+
+    /**
+     * level, lat, lon of a network's newest observations; bind the bssid and a row limit
+     */
+    public String getNetworkLocationsQuery() {
+        if ( readyIndexes.contains( OnlineIndex.LOCATION_BY_BSSID.name ) ) {
+            // CROSS JOIN keeps the index as the outer loop, then it's a rowid seek per observation
+            return "SELECT l.level,l.lat,l.lon FROM " + OnlineIndex.LOCATION_BY_BSSID.name + " AS i CROSS JOIN "
+                    + LOCATION_TABLE + " AS l ON l._id = i._id WHERE i.bssid = ? ORDER BY i._id DESC LIMIT ?";
+        }
+        return "SELECT level,lat,lon FROM " + LOCATION_TABLE + " WHERE bssid = ? ORDER BY _id DESC LIMIT ?";
+    }
+
     public boolean addObservation( final Network network, final Location location, final boolean newForRun ) {
         try {
             return addObservation(network, network.getLevel(), location, newForRun, false, false);
@@ -702,6 +1280,21 @@ public final class DatabaseHelper extends Thread {
         return false;
     }
 
+    /**
+     * for callers off the main thread: the network may be on the list, so its level is set there, not here
+     * @param level the level this observation saw
+     */
+    public boolean addObservation( final Network network, final int level, final Location location,
+                                   final boolean newForRun ) {
+        try {
+            return addObservation(network, level, location, newForRun, false, false);
+        }
+        catch (final IllegalMonitorStateException ex) {
+            Logging.error("exception adding network: " + ex, ex);
+        }
+        return false;
+    }
+
     public boolean addObservation( final Network network, final Location location, final boolean newForRun,
                                    final boolean frequencyChanged, final boolean typeMorphed  ) {
         try {
@@ -722,28 +1315,41 @@ public final class DatabaseHelper extends Thread {
         boolean added = queue.offer( update );
         if ( ! added ) {
             Logging.info( "queue full, not adding: " + network.getBssid() + " ssid: " + network.getSsid() );
-            if ( System.currentTimeMillis() - prevQueueCullTime > QUEUE_CULL_TIMEOUT ) {
-                Logging.info("culling queue. size: " + queue.size() );
-                // go thru the queue, cull out anything not newForRun
-                for ( Iterator<DBUpdate> it = queue.iterator(); it.hasNext(); ) {
-                    final DBUpdate val = it.next();
-
-                    if ( ! val.newForRun && !val.typeMorphed && !val.frequencyChanged) {
-                        it.remove();
-                    }
-                }
-                Logging.info("culled queue. size now: " + queue.size() );
+            if ( cullQueue() ) {
                 added = queue.offer( update );
                 if ( ! added ) {
                     Logging.info( "queue still full, couldn't add: " + network.getBssid() );
                 }
-                prevQueueCullTime = System.currentTimeMillis();
             }
 
         }
         return added;
     }
 
+    /**
+     * make room in a full queue, at most once per QUEUE_CULL_TIMEOUT
+     * @return true if the queue was culled
+     */
+    private boolean cullQueue() {
+        final long now = System.currentTimeMillis();
+        final long prev = prevQueueCullTime.get();
+        // one caller per timeout culls; the rest carry on as if it had just happened
+        if ( now - prev <= QUEUE_CULL_TIMEOUT || ! prevQueueCullTime.compareAndSet( prev, now ) ) {
+            return false;
+        }
+        Logging.info("culling queue. size: " + queue.size() );
+        // go thru the queue, cull out anything not newForRun. route points stay
+        for ( Iterator<DBUpdate> it = queue.iterator(); it.hasNext(); ) {
+            final DBUpdate val = it.next();
+
+            if ( val.route == null && ! val.newForRun && !val.typeMorphed && !val.frequencyChanged) {
+                it.remove();
+            }
+        }
+        Logging.info("culled queue. size now: " + queue.size() );
+        return true;
+    }
+
     @SuppressWarnings("deprecation")
     private void addObservation( final DBUpdate update, final int drainSize ) throws DBException {
         checkDB();
@@ -756,7 +1362,8 @@ public final class DatabaseHelper extends Thread {
         final Network network = update.network;
         final Location location = update.location;
         final String bssid = network.getBssid();
-        final String[] bssidArgs = new String[]{ bssid };
+        final long bssidKey = network.getBssidKey();
+        bssidArgs[0] = bssid;
 
         long lasttime = 0;
         double lastlat = 0;
@@ -769,7 +1376,8 @@ public final class DatabaseHelper extends Thread {
 
         // STEP 1: verify location
         // first try cache
-        final CachedLocation prevWrittenLocation = previousWrittenLocationsCache.get( bssid );
+        final CachedLocation prevWrittenLocation = MacAddress.isMac( bssidKey )
+                ? previousWrittenLocationsCache.get( bssidKey ) : previousWrittenOtherLocationsCache.get( bssid );
         if ( prevWrittenLocation != null ) {
             // cache hit!
             lasttime = prevWrittenLocation.location.getTime();
@@ -925,7 +1533,12 @@ public final class DatabaseHelper extends Thread {
             cached.bestlat = location.getLatitude();
             cached.bestlon = location.getLongitude();
             cached.mfgrid = network.getBleMfgrIdAsInt();
-            previousWrittenLocationsCache.put( bssid, cached );
+            if ( MacAddress.isMac( bssidKey ) ) {
+                previousWrittenLocationsCache.put( bssidKey, cached );
+            }
+            else {
+                previousWrittenOtherLocationsCache.put( bssid, cached );
+            }
 
             if ( ! isNew ) {
                 // update the network with the lasttime,lastlat,lastlon
@@ -1059,9 +1672,18 @@ public final class DatabaseHelper extends Thread {
      * @return was the pending observation enqueued
      */
     public boolean pendingObservation( final Network network, final boolean newForRun, final boolean frequencyChanged, final boolean typeMorphed) {
+        return pendingObservation( network, network.getLevel(), newForRun, frequencyChanged, typeMorphed );
+    }
+
+    /**
+     * enqueue a pending observation at level, leaving the network's own level alone.
+     * @see #pendingObservation(Network, boolean, boolean, boolean)
+     */
+    public boolean pendingObservation( final Network network, final int level, final boolean newForRun,
+                                       final boolean frequencyChanged, final boolean typeMorphed) {
         if ( lastLoc != null ) {
             // modify this to check age at some point on failure. or offer a flush method. or.. something
-            DBPending update = new DBPending( network, network.getLevel(), newForRun, frequencyChanged, typeMorphed);
+            DBPending update = new DBPending( network, level, newForRun, frequencyChanged, typeMorphed);
             boolean added = pending.offer( update );
             if ( ! added ) {
                 if ( System.currentTimeMillis() - prevPendingQueueCullTime > QUEUE_CULL_TIMEOUT ) {
@@ -1190,41 +1812,64 @@ public final class DatabaseHelper extends Thread {
             Logging.error("Null location in logRouteLocation");
             return;
         }
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            if (!done.get()) {
-                final double accuracy = location.getAccuracy();
-                if (insertRoute != null && location.getTime() != 0L &&
-                        accuracy < MIN_ROUTE_LOCATION_PRECISION_METERS &&
-                        accuracy > 0.0d && //ALIBI: should never happen?
-                        (lastLoggedLocation == null ||
-                                ((lastLoggedLocation.distanceTo(location) > MIN_ROUTE_LOCATION_DIFF_METERS &&
-                                        (location.getTime() - lastLoggedLocation.getTime() > MIN_ROUTE_LOCATION_DIFF_TIME)
-                                )) )) {
-                    insertRoute.bindLong(1, runId);
-                    insertRoute.bindLong(2, wifiVisible);
-                    insertRoute.bindLong(3, cellVisible);
-                    insertRoute.bindLong(4, btVisible);
-                    insertRoute.bindDouble(5, location.getLatitude());
-                    insertRoute.bindDouble(6, location.getLongitude());
-                    insertRoute.bindDouble(7, location.getAltitude());
-                    insertRoute.bindDouble(8, location.getAccuracy());
-                    insertRoute.bindLong(9, location.getTime());
-                    long start = System.currentTimeMillis();
+        if (done.get()) {
+            Logging.error("unable to log route point due to closing DB");
+            droppedRoutePointCount.incrementAndGet();
+            return;
+        }
+        final double accuracy = location.getAccuracy();
+        if (location.getTime() == 0L || accuracy >= MIN_ROUTE_LOCATION_PRECISION_METERS ||
+                accuracy <= 0.0d) { //ALIBI: should never happen?
+            return;
+        }
+        // same queue as observations, so points are written in the writer's transactions, in order.
+        // called from the location callback: never wait, make room or drop and count it
+        final DBUpdate update = new DBUpdate(new DBRoute(location, wifiVisible, cellVisible, btVisible, runId));
+        boolean added = queue.offer(update);
+        if (!added && cullQueue()) {
+            added = queue.offer(update);
+        }
+        if (!added) {
+            final long dropped = droppedRoutePointCount.incrementAndGet();
+            Logging.info("queue full, dropped route point. total dropped: " + dropped);
+        }
+    }
 
-                    try {
-                        insertRoute.execute();
-                        lastLoggedLocation = location;
-                        currentRoutePointCount.incrementAndGet();
-                        logTime(start, "db route point added");
-                    } catch (IllegalStateException | SQLException ex) {
-                        logTime(start, "db route point add failed: " + ex);
-                    }
-                }
-            } else {
-                Logging.error("unable to log route point due to closing DB");
-            }
-        });
+    /**
+     * db thread only, inside the batch transaction. spacing is checked here, against the last point written
+     */
+    private void addRoutePoint( final DBRoute route ) {
+        final Location location = route.location;
+        if (insertRoute == null) {
+            Logging.warn("route statement is null, not adding route point");
+            droppedRoutePointCount.incrementAndGet();
+            return;
+        }
+        if (batchRouteLocation != null &&
+                (batchRouteLocation.distanceTo(location) <= MIN_ROUTE_LOCATION_DIFF_METERS ||
+                        location.getTime() - batchRouteLocation.getTime() <= MIN_ROUTE_LOCATION_DIFF_TIME)) {
+            return;
+        }
+        insertRoute.bindLong(1, route.runId);
+        insertRoute.bindLong(2, route.wifiVisible);
+        insertRoute.bindLong(3, route.cellVisible);
+        insertRoute.bindLong(4, route.btVisible);
+        insertRoute.bindDouble(5, location.getLatitude());
+        insertRoute.bindDouble(6, location.getLongitude());
+        insertRoute.bindDouble(7, location.getAltitude());
+        insertRoute.bindDouble(8, location.getAccuracy());
+        insertRoute.bindLong(9, location.getTime());
+        long start = System.currentTimeMillis();
+
+        try {
+            insertRoute.execute();
+            batchRouteLocation = location;
+            batchRoutePoints++;
+            logTime(start, "db route point added");
+        } catch (IllegalStateException | SQLException ex) {
+            droppedRoutePointCount.incrementAndGet();
+            logTime(start, "db route point add failed: " + ex);
+        }
     }
 
     public boolean isFastMode() {
@@ -1259,10 +1904,16 @@ public final class DatabaseHelper extends Thread {
 
     public long getCurrentRoutePointCount() { return currentRoutePointCount.get(); }
 
+    /**
+     * @return route points not written this session: queue full, db closing or insert failed
+     */
+    public long getDroppedRoutePointCount() { return droppedRoutePointCount.get(); }
+
     public long getRoutePointCount(long routeId) {
         try {
             checkDB();
-            try (Cursor cursor = db.rawQuery(ROUTE_COUNT_QUERY, new String[]{String.valueOf(routeId)})) {
+            try (Cursor cursor = db.rawQuery("SELECT count(*) FROM " + routeSource() + " WHERE run_id = ?",
+                    new String[]{String.valueOf(routeId)})) {
                 cursor.moveToFirst();
                 return cursor.getLong(0);
             }
@@ -1350,41 +2001,11 @@ public final class DatabaseHelper extends Thread {
             try {
                 checkDB();
                 final String[] args = new String[]{ bssid };
-                cursor = db.rawQuery("select ssid,frequency,capabilities,type,lastlat,lastlon,bestlat,bestlon,rcois,mfgrid,service,bestlevel,lasttime FROM "
-                        + NETWORK_TABLE
+                cursor = db.rawQuery("SELECT " + NETWORK_DETAIL_COLUMNS + " FROM " + NETWORK_TABLE
                         + " WHERE bssid = ?", args);
                 if ( cursor.getCount() > 0 ) {
                     cursor.moveToFirst();
-                    final String ssid = cursor.getString(0);
-                    final int frequency = cursor.getInt(1);
-                    final String capabilities = cursor.getString(2);
-                    final float lastlat = cursor.getFloat(4);
-                    final float lastlon = cursor.getFloat(5);
-                    final float bestlat = cursor.getFloat(6);
-                    final float bestlon = cursor.getFloat(7);
-                    final String rcois = cursor.getString(8);
-                    final int mfgridInt = cursor.getInt(9);
-                    final String service = cursor.getString(10);
-                    final int level = cursor.getInt(11);
-                    final long lastTime = cursor.getLong(12);
-
-                    Integer mfgrid = null;
-                    if (mfgridInt != 0) mfgrid = mfgridInt;
-                    List<String> serviceUUIDs = service.isEmpty() ? null :
-                            new ArrayList<>(Arrays.asList(service.split(" ")));
-
-                    final NetworkType type = NetworkType.typeForCode( cursor.getString(3) );
-                    retval = new Network( bssid, ssid, frequency, capabilities, level, type, serviceUUIDs, mfgrid, lastTime, null /*TODO: BLE address type*/ );
-                    if (bestlat != 0 && bestlon != 0) {
-                        retval.setLatLng( new LatLng(bestlat, bestlon) );
-                    } else {
-                        retval.setLatLng( new LatLng(lastlat, lastlon) );
-                    }
-                    if (!rcois.isEmpty()) {
-                        retval.setRcois(rcois);
-                    }
-
-
+                    retval = networkFromCursor( cursor );
                     MainActivity.getNetworkCache().put( bssid, retval );
                 }
             } catch (DBException ex ) {
@@ -1398,6 +2019,103 @@ public final class DatabaseHelper extends Thread {
         return retval;
     }
 
+    /**
+     * @param cursor positioned on a row of NETWORK_DETAIL_COLUMNS, as from getNetworksInBoundsQuery
+     */
+    public static Network networkFromCursor( final Cursor cursor ) {
+        final String bssid = cursor.getString(0);
+        final String ssid = cursor.getString(1);
+        final int frequency = cursor.getInt(2);
+        final String capabilities = cursor.getString(3);
+        final float lastlat = cursor.getFloat(5);
+        final float lastlon = cursor.getFloat(6);
+        final float bestlat = cursor.getFloat(7);
+        final float bestlon = cursor.getFloat(8);
+        final String rcois = cursor.getString(9);
+        final int mfgridInt = cursor.getInt(10);
+        final String service = cursor.getString(11);
+        final int level = cursor.getInt(12);
+        final long lastTime = cursor.getLong(13);
+
+        Integer mfgrid = null;
+        if (mfgridInt != 0) mfgrid = mfgridInt;
+        List<String> serviceUUIDs = service.isEmpty() ? null :
+                new ArrayList<>(Arrays.asList(service.split(" ")));
+
+        final NetworkType type = NetworkType.typeForCode( cursor.getString(4) );
+        final Network network = new Network( bssid, ssid, frequency, capabilities, level, type, serviceUUIDs, mfgrid, lastTime, null /*TODO: BLE address type*/ );
+        if (bestlat != 0 && bestlon != 0) {
+            network.setLatLng( new LatLng(bestlat, bestlon) );
+        } else {
+            network.setLatLng( new LatLng(lastlat, lastlon) );
+        }
+        if (!rcois.isEmpty()) {
+            network.setRcois(rcois);
+        }
+        return network;
+    }
+
+    /**
+     * A WHERE clause term for networks whose best location is inside a box, through the network_geo R*Tree
+     * once that's built and a scan of the network table until then. Bind boundsArgs in its place.
+     */
+    public String networkBoundsClause() {
+        if ( readyIndexes.contains( OnlineIndex.NETWORK_GEO.name ) ) {
+            return "rowid IN (SELECT id FROM " + OnlineIndex.NETWORK_GEO.name
+                    + " WHERE maxlat >= ? AND minlat <= ? AND maxlon >= ? AND minlon <= ?)";
+        }
+        return "bestlat >= ? AND bestlat <= ? AND bestlon >= ? AND bestlon <= ?";
+    }
+
+    /**
+     * south, north, west, east; for networkBoundsClause
+     */
+    public static String[] boundsArgs( final LatLngBounds bounds ) {
+        return new String[]{ Double.toString( bounds.southwest.latitude ), Double.toString( bounds.northeast.latitude ),
+                Double.toString( bounds.southwest.longitude ), Double.toString( bounds.northeast.longitude ) };
+    }
+
+    /**
+     * A WHERE clause term for "ssid LIKE pattern", narrowed through the network_ssid full-text index when
+     * that's built and the pattern holds whole words or word starts. Appends its bind args to params.
+     */
+    public String ssidLikeClause( final String pattern, final List<String> params ) {
+        final String match = readyIndexes.contains( OnlineIndex.NETWORK_SSID.name ) ? LikeQuery.ftsMatch( pattern ) : null;
+        if ( match != null ) {
+            params.add( match );
+            params.add( pattern );
+            return "rowid IN (SELECT docid FROM " + OnlineIndex.NETWORK_SSID.name + " WHERE "
+                    + OnlineIndex.NETWORK_SSID.name + " MATCH ?) AND ssid LIKE ?";
+        }
+        params.add( pattern );
+        return "ssid LIKE ?";
+    }
+
+    /**
+     * A WHERE clause term for "bssid LIKE pattern". Both write paths store bssids lowercase, so anything
+     * ahead of the first wildcard becomes a range on the primary key. Appends its bind args to params.
+     */
+    public static String bssidLikeClause( final String pattern, final List<String> params ) {
+        final String[] range = LikeQuery.prefixRange( pattern );
+        if ( range != null ) {
+            params.add( range[0] );
+            params.add( range[1] );
+            params.add( pattern );
+            return "bssid >= ? AND bssid < ? AND bssid LIKE ?";
+        }
+        params.add( pattern );
+        return "bssid LIKE ?";
+    }
+
+    /**
+     * The most recently seen located networks in a box, NETWORK_DETAIL_COLUMNS for networkFromCursor.
+     * Bind boundsArgs, then a row limit.
+     */
+    public String getNetworksInBoundsQuery() {
+        return "SELECT " + NETWORK_DETAIL_COLUMNS + " FROM " + NETWORK_TABLE + " WHERE " + networkBoundsClause()
+                + " AND bestlat != 0.0 AND bestlon != 0.0 ORDER BY lasttime DESC LIMIT ?";
+    }
+
     public Cursor locationIterator( final long fromId ) throws DBException {
         checkDB();
         Logging.info( "locationIterator fromId: " + fromId );
@@ -1405,6 +2123,47 @@ public final class DatabaseHelper extends Thread {
         return db.rawQuery( "SELECT _id,bssid,level,lat,lon,altitude,accuracy,time,mfgrid FROM location WHERE _id > ? AND external = 0", args );
     }
 
+    /**
+     * location rows joined with their network metadata, for streaming export without a per-row network lookup.
+     * columns 0-8 match locationIterator; 9-13 are ssid,frequency,capabilities,type,rcois from the network table.
+     * locations whose network row is missing are dropped by the join, same as the old per-row skip.
+     * @param fromId exclusive lower bound on location _id
+     * @return the joined cursor
+     * @throws DBException if the db can't be opened
+     */
+    public Cursor locationNetworkIterator( final long fromId ) throws DBException {
+        return locationNetworkIterator( fromId, Long.MAX_VALUE );
+    }
+
+    /**
+     * observations joined to their network, for fromId < _id <= toId
+     */
+    public Cursor locationNetworkIterator( final long fromId, final long toId ) throws DBException {
+        checkDB();
+        Logging.info( "locationNetworkIterator fromId: " + fromId + " toId: " + toId );
+        final String[] args = new String[]{ Long.toString( fromId ), Long.toString( toId ) };
+        return db.rawQuery( "SELECT l._id,l.bssid,l.level,l.lat,l.lon,l.altitude,l.accuracy,l.time,l.mfgrid,"
+                + "n.ssid,n.frequency,n.capabilities,n.type,n.rcois FROM " + LOCATION_TABLE + " AS l INNER JOIN "
+                + NETWORK_TABLE + " AS n ON n.bssid = l.bssid WHERE l._id > ? AND l._id <= ? AND l.external = 0", args );
+    }
+
+    /**
+     * find the end of the next upload chunk: the id of the maxRows'th local observation after fromId,
+     * or of the last one if there are fewer.
+     * @return the chunk's inclusive upper id, or fromId if there's nothing after it
+     */
+    public long getLocationChunkEnd( final long fromId, final int maxRows ) throws DBException {
+        checkDB();
+        final String[] args = new String[]{ Long.toString( fromId ), Integer.toString( maxRows ) };
+        try (Cursor cursor = db.rawQuery( "SELECT MAX(_id) FROM (SELECT _id FROM " + LOCATION_TABLE
+                + " WHERE _id > ? AND external = 0 ORDER BY _id LIMIT ?)", args )) {
+            if ( ! cursor.moveToFirst() || cursor.isNull(0) ) {
+                return fromId;
+            }
+            return cursor.getLong(0);
+        }
+    }
+
     public Cursor networkIterator(final NetworkFilter filter) throws DBException {
         checkDB();
         Logging.info( "networkIterator (filtered)" );
@@ -1416,7 +2175,7 @@ public final class DatabaseHelper extends Thread {
         checkDB();
         Logging.info( "routeIterator" );
         final String[] args = new String[]{String.valueOf(routeId)};
-        return db.rawQuery( "SELECT lat,lon,altitude,time FROM route WHERE run_id = ?", args );
+        return db.rawQuery( "SELECT lat,lon,altitude,time FROM " + routeSource() + " WHERE run_id = ?", args );
     }
 
     public Cursor routeMetaIterator() throws DBException {
@@ -1424,14 +2183,17 @@ public final class DatabaseHelper extends Thread {
         Logging.info( "routeMetaIterator" );
         final String[] args = new String[]{};
         //ALIBI: we'd love to parameterize min observations here, but SQLite rawQuery doesn't seem to respect ? parameterization in HAVING statements.
-        return db.rawQuery( "SELECT _id, run_id, MIN(time) AS starttime, MAX(time) AS endtime, count(_id) AS obs FROM route GROUP BY run_id HAVING obs >= 20 ORDER BY time DESC", args);
+        return db.rawQuery( "SELECT _id, run_id, MIN(time) AS starttime, MAX(time) AS endtime, count(_id) AS obs FROM "
+                + routeSource() + " GROUP BY run_id HAVING obs >= 20 ORDER BY time DESC", args);
     }
 
     public Cursor currentRouteIterator() throws DBException {
         checkDB();
         Logging.info( "routeIterator" );
         final String[] args = new String[]{};
-        return db.rawQuery( "SELECT lat,lon,altitude,time FROM route WHERE run_id = (SELECT MAX(run_id) FROM route)", args );
+        final String source = routeSource();
+        return db.rawQuery( "SELECT lat,lon,altitude,time FROM " + source + " WHERE run_id = (SELECT MAX(run_id) FROM "
+                + source + ")", args );
     }
 
     public void clearDefaultRoute() throws DBException {
@@ -1450,7 +2212,7 @@ public final class DatabaseHelper extends Thread {
             boolean logRoutes = prefs.getBoolean(PreferenceKeys.PREF_LOG_ROUTES, false);
             final long visibleRouteId = logRoutes ? prefs.getLong(PreferenceKeys.PREF_ROUTE_DB_RUN, 0L) : 0L;
             final String[] args = new String[]{String.valueOf(visibleRouteId)};
-            return db.rawQuery("SELECT lat,lon FROM route WHERE run_id = ?", args);
+            return db.rawQuery("SELECT lat,lon FROM " + routeSource() + " WHERE run_id = ?", args);
     }
 
     public Cursor getSingleNetwork( final String bssid, final NetworkFilter filter ) throws DBException {
@@ -1460,6 +2222,24 @@ public final class DatabaseHelper extends Thread {
                 "SELECT bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,bestlevel,type,rcois,mfgrid,service FROM network WHERE bssid = ? AND "+ filter.getFilter(), args );
     }
 
+    /**
+     * the getSingleNetwork columns for several networks in one query, in no particular order
+     * @param bssids at most MAX_NETWORK_BATCH of them
+     */
+    public Cursor getNetworks( final List<String> bssids, final NetworkFilter filter ) throws DBException {
+        if ( bssids.size() > MAX_NETWORK_BATCH ) {
+            throw new IllegalArgumentException( "too many bssids: " + bssids.size() );
+        }
+        checkDB();
+        final StringBuilder sql = new StringBuilder(
+                "SELECT bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,bestlevel,type,rcois,mfgrid,service FROM network WHERE bssid IN (" );
+        for ( int i = 0; i < bssids.size(); i++ ) {
+            sql.append( i == 0 ? "?" : ",?" );
+        }
+        sql.append( ") AND " ).append( filter.getFilter() );
+        return db.rawQuery( sql.toString(), bssids.toArray( new String[0] ) );
+    }
+
 
     public Pair<Boolean,String> copyDatabase(final BackupRunnable task) {
         File file = context.getDatabasePath(DATABASE_NAME);
@@ -1468,6 +2248,14 @@ public final class DatabaseHelper extends Thread {
         if (hasSD()) {
             file = new File(EXTERNAL_DATABASE_PATH, DATABASE_NAME);
         }
+        if (writeAheadLogging) {
+            // the copy only takes the main file: fold the log into it first
+            try (Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+                cursor.moveToFirst();
+            } catch (final SQLiteException ex) {
+                Logging.warn("wal checkpoint before backup failed: " + ex, ex);
+            }
+        }
         Pair<Boolean,String> result;
         try (InputStream input = new FileInputStream(file)){
             FileOutputStream output = FileUtility.createFile(context, outputFilename, false);
@@ -1505,6 +2293,10 @@ public final class DatabaseHelper extends Thread {
             Logging.info( "deleting route table" );
             db.execSQL(ROUTE_DELETE);
 
+            for ( final OnlineIndex index : OnlineIndex.ALL ) {
+                dropOnlineIndex( index );
+            }
+
             Logging.info( "creating network table" );
             db.execSQL(NETWORK_CREATE);
             if ( db.getVersion() == 0 ) {
@@ -1526,6 +2318,8 @@ public final class DatabaseHelper extends Thread {
         } finally {
             db.endTransaction();
         }
+        // nothing to backfill, but it puts the triggers back
+        startIndexBuild();
         return 1;
     }
 }
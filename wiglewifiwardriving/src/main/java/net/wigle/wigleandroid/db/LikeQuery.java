@@ -0,0 +1,87 @@
+package net.wigle.wigleandroid.db;
+
+import java.util.Locale;
+
+/**
+ * Turns the LIKE patterns local search takes (% and _ wildcards, no escape) into something an index can
+ * answer. Each form selects a superset of what the LIKE does, so callers keep the LIKE alongside to get
+ * exactly the old results.
+ */
+final class LikeQuery {
+    private LikeQuery() {
+    }
+
+    /**
+     * An FTS MATCH expression for the whole words and word prefixes the pattern pins down, as the FTS
+     * "simple" tokenizer sees them: runs of ASCII letters and digits or anything non-ASCII, ASCII case folded.
+     * A run only counts from a known word start (the start of the pattern or after a separator) and is a
+     * prefix unless a known word end follows it too, since a wildcard either side could be more of the word.
+     * @return the expression, or null if the pattern pins down no words and only a scan will do
+     */
+    static String ftsMatch(final String pattern) {
+        if (pattern == null) {
+            return null;
+        }
+        final StringBuilder match = new StringBuilder();
+        final int length = pattern.length();
+        int i = 0;
+        while (i < length) {
+            if (!isTokenChar(pattern.charAt(i))) {
+                i++;
+                continue;
+            }
+            final int start = i;
+            while (i < length && isTokenChar(pattern.charAt(i))) {
+                i++;
+            }
+            // a wildcard before the run could be more of the word; a separator or the pattern start can't
+            if (start > 0 && isWildcard(pattern.charAt(start - 1))) {
+                continue;
+            }
+            final boolean wholeWord = i == length || !isWildcard(pattern.charAt(i));
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"');
+            for (int c = start; c < i; c++) {
+                // fold as the tokenizer does, ASCII only
+                final char ch = pattern.charAt(c);
+                match.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+            }
+            match.append(wholeWord ? "\"" : "*\"");
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * The key range holding every lowercase value the pattern can match: everything up to its first
+     * wildcard is a literal prefix.
+     * @return {from, to} for "column >= from AND column < to", or null if the pattern starts with a wildcard
+     */
+    static String[] prefixRange(final String pattern) {
+        if (pattern == null) {
+            return null;
+        }
+        int end = 0;
+        while (end < pattern.length() && !isWildcard(pattern.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            return null;
+        }
+        final String from = pattern.substring(0, end).toLowerCase(Locale.ROOT);
+        final char last = from.charAt(from.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            return null;
+        }
+        return new String[]{from, from.substring(0, from.length() - 1) + (char) (last + 1)};
+    }
+
+    private static boolean isWildcard(final char c) {
+        return c == '%' || c == '_';
+    }
+
+    private static boolean isTokenChar(final char c) {
+        return c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
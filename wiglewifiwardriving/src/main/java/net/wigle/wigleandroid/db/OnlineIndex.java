@@ -0,0 +1,305 @@
+package net.wigle.wigleandroid.db;
+
+/**
+ * A secondary index on one of the big tables, kept as a WITHOUT ROWID table of its own instead of a
+ * CREATE INDEX. SQLite builds a native index in one statement holding the write lock throughout, which
+ * on tens of millions of observations is minutes of a stalled db thread. One of these is backfilled a
+ * slice of source ids at a time between the db thread's transactions (see DatabaseHelper.buildIndexes),
+ * while triggers keep rows inserted or deleted since the build began in step. Build progress is a row
+ * in index_progress, so an interrupted build picks up where it stopped.
+ */
+class OnlineIndex {
+    static final String PROGRESS_TABLE = "index_progress";
+    static final String PROGRESS_CREATE = "CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE + " ("
+            + "name text primary key not null,"
+            + "built_to integer not null,"
+            + "target integer not null"
+            + ")";
+
+    /** a network's observations, newest first by rowid, for the network detail screen */
+    static final OnlineIndex LOCATION_BY_BSSID = new OnlineIndex( "location_bssid_index",
+            DatabaseHelper.LOCATION_TABLE, new String[]{ "bssid text not null", "_id integer not null" }, 2 );
+
+    /** covers every route query: points by run, in time order, and the per-run summaries */
+    static final OnlineIndex ROUTE_BY_RUN = new OnlineIndex( "route_run_index",
+            DatabaseHelper.ROUTE_TABLE, new String[]{ "run_id integer not null", "time long not null",
+            "_id integer not null", "lat double not null", "lon double not null", "altitude double not null" }, 3 );
+
+    /**
+     * networks by best location, for viewport and bounding-box queries. Keyed on the network table's
+     * implicit rowid, which stays put as long as nobody VACUUMs it.
+     */
+    static final OnlineIndex NETWORK_GEO = new PointIndex( "network_geo", DatabaseHelper.NETWORK_TABLE,
+            "bestlat", "bestlon" );
+
+    /** words in network names, wifi SSIDs and bluetooth names alike, for name search */
+    static final OnlineIndex NETWORK_SSID = new TextIndex( "network_ssid", DatabaseHelper.NETWORK_TABLE, "ssid" );
+
+    static final OnlineIndex[] ALL = { LOCATION_BY_BSSID, ROUTE_BY_RUN, NETWORK_GEO, NETWORK_SSID };
+
+    /** source rows per backfill transaction */
+    private static final int CHUNK_ROWS = 5000;
+
+    final String name;
+    final String sourceTable;
+    /** the source's ascending row key that the backfill walks */
+    final String idColumn;
+    final int chunkRows;
+    private final String[] columnDefs;
+    private final String[] columns;
+    private final int keyColumns;
+
+    /**
+     * @param columnDefs columns copied from the source table, with their types
+     * @param keyColumns how many leading columns make up the primary key; must end in _id so it's unique
+     */
+    private OnlineIndex( final String name, final String sourceTable, final String[] columnDefs, final int keyColumns ) {
+        this( name, sourceTable, "_id", CHUNK_ROWS, columnDefs, keyColumns );
+    }
+
+    private OnlineIndex( final String name, final String sourceTable, final String idColumn, final int chunkRows,
+            final String[] columnDefs, final int keyColumns ) {
+        this.name = name;
+        this.sourceTable = sourceTable;
+        this.idColumn = idColumn;
+        this.chunkRows = chunkRows;
+        this.columnDefs = columnDefs;
+        this.columns = new String[columnDefs.length];
+        for ( int i = 0; i < columnDefs.length; i++ ) {
+            columns[i] = columnDefs[i].substring( 0, columnDefs[i].indexOf( ' ' ) );
+        }
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * the index and the triggers that keep it current, in the order they're created
+     */
+    String[] setupSql() {
+        return new String[]{ createSql(), insertTriggerSql(), deleteTriggerSql() };
+    }
+
+    String createSql() {
+        final StringBuilder sql = new StringBuilder( "CREATE TABLE IF NOT EXISTS " ).append( name ).append( " (" );
+        for ( String def : columnDefs ) {
+            sql.append( def ).append( ',' );
+        }
+        sql.append( "primary key (" );
+        appendColumns( sql, keyColumns, "" );
+        return sql.append( ")) WITHOUT ROWID" ).toString();
+    }
+
+    String insertTriggerSql() {
+        final StringBuilder sql = new StringBuilder( "CREATE TRIGGER IF NOT EXISTS " ).append( name )
+                .append( "_insert AFTER INSERT ON " ).append( sourceTable ).append( " BEGIN INSERT OR IGNORE INTO " )
+                .append( name ).append( " (" );
+        appendColumns( sql, columns.length, "" );
+        sql.append( ") VALUES (" );
+        appendColumns( sql, columns.length, "NEW." );
+        return sql.append( "); END" ).toString();
+    }
+
+    /**
+     * matches on the whole key, so it's a seek rather than a scan of the index
+     */
+    String deleteTriggerSql() {
+        final StringBuilder sql = new StringBuilder( "CREATE TRIGGER IF NOT EXISTS " ).append( name )
+                .append( "_delete AFTER DELETE ON " ).append( sourceTable ).append( " BEGIN DELETE FROM " )
+                .append( name ).append( " WHERE " );
+        for ( int i = 0; i < keyColumns; i++ ) {
+            if ( i > 0 ) {
+                sql.append( " AND " );
+            }
+            sql.append( columns[i] ).append( " = OLD." ).append( columns[i] );
+        }
+        return sql.append( "; END" ).toString();
+    }
+
+    /**
+     * record the build, if it's new: everything up to the current last id gets backfilled, the triggers
+     * take care of the rest. bind the index name
+     */
+    String startProgressSql() {
+        return "INSERT OR IGNORE INTO " + PROGRESS_TABLE + " (name,built_to,target) SELECT ?,0,IFNULL(MAX("
+                + idColumn + "),0) FROM " + sourceTable;
+    }
+
+    /**
+     * copy source rows with from < id <= to; bind from, to. rows the insert trigger got to first are skipped
+     */
+    String backfillSql() {
+        final StringBuilder sql = new StringBuilder( "INSERT OR IGNORE INTO " ).append( name ).append( " (" );
+        appendColumns( sql, columns.length, "" );
+        sql.append( ") SELECT " );
+        appendColumns( sql, columns.length, "" );
+        return sql.append( " FROM " ).append( sourceTable ).append( " WHERE " ).append( idColumn ).append( " > ? AND " )
+                .append( idColumn ).append( " <= ?" ).toString();
+    }
+
+    /**
+     * everything, for when the source table is dropped and recreated
+     */
+    String[] dropSql() {
+        return new String[]{ "DROP TRIGGER IF EXISTS " + name + "_insert", "DROP TRIGGER IF EXISTS " + name + "_update",
+                "DROP TRIGGER IF EXISTS " + name + "_reindex", "DROP TRIGGER IF EXISTS " + name + "_delete",
+                "DROP TABLE IF EXISTS " + name, "DELETE FROM " + PROGRESS_TABLE + " WHERE name = '" + name + "'" };
+    }
+
+    private void appendColumns( final StringBuilder sql, final int count, final String prefix ) {
+        for ( int i = 0; i < count; i++ ) {
+            if ( i > 0 ) {
+                sql.append( ',' );
+            }
+            sql.append( prefix ).append( columns[i] );
+        }
+    }
+
+    /**
+     * An R*Tree of source rows' lat/lon, as zero-size boxes. Rows still at 0,0 (never located) are left out.
+     * The R*Tree stores 32 bit floats rounded outward, so a box query can take in a row just over its edge
+     * but never misses one.
+     */
+    private static final class PointIndex extends OnlineIndex {
+        /** R*Tree inserts cost several times a b-tree's */
+        private static final int CHUNK_ROWS = 1000;
+
+        private final String lat;
+        private final String lon;
+
+        PointIndex( final String name, final String sourceTable, final String lat, final String lon ) {
+            super( name, sourceTable, "rowid", CHUNK_ROWS, new String[0], 0 );
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        String[] setupSql() {
+            return new String[]{ createSql(), insertTriggerSql(), updateTriggerSql(), deleteTriggerSql() };
+        }
+
+        @Override
+        String createSql() {
+            return "CREATE VIRTUAL TABLE IF NOT EXISTS " + name + " USING rtree(id,minlat,maxlat,minlon,maxlon)";
+        }
+
+        @Override
+        String insertTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_insert AFTER INSERT ON " + sourceTable
+                    + " WHEN " + located( "NEW." ) + " BEGIN " + insertSql( "NEW." ) + "; END";
+        }
+
+        /**
+         * only when the location actually moves; most updates rewrite it unchanged
+         */
+        String updateTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_update AFTER UPDATE OF " + lat + "," + lon + " ON "
+                    + sourceTable + " WHEN NEW." + lat + " != OLD." + lat + " OR NEW." + lon + " != OLD." + lon
+                    + " BEGIN DELETE FROM " + name + " WHERE id = OLD.rowid; " + insertSql( "NEW." )
+                    + " WHERE " + located( "NEW." ) + "; END";
+        }
+
+        @Override
+        String deleteTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_delete AFTER DELETE ON " + sourceTable
+                    + " BEGIN DELETE FROM " + name + " WHERE id = OLD.rowid; END";
+        }
+
+        /**
+         * the backfill reads the row as it is now, so it's free to overwrite what a trigger put there
+         */
+        @Override
+        String backfillSql() {
+            return "INSERT OR REPLACE INTO " + name + " (id,minlat,maxlat,minlon,maxlon) SELECT rowid," + lat + ","
+                    + lat + "," + lon + "," + lon + " FROM " + sourceTable + " WHERE rowid > ? AND rowid <= ? AND "
+                    + located( "" );
+        }
+
+        private String insertSql( final String prefix ) {
+            return "INSERT OR REPLACE INTO " + name + " (id,minlat,maxlat,minlon,maxlon) SELECT " + prefix + "rowid,"
+                    + prefix + lat + "," + prefix + lat + "," + prefix + lon + "," + prefix + lon;
+        }
+
+        private String located( final String prefix ) {
+            return prefix + lat + " != 0.0 AND " + prefix + lon + " != 0.0";
+        }
+    }
+
+    /**
+     * An FTS4 index over one text column, external content so the text isn't stored twice. Unlike the other
+     * kinds, adding or removing a row here isn't idempotent: an FTS delete takes out whatever terms the
+     * source row holds, indexed or not. So the triggers only touch rows already in the index, those the
+     * backfill has passed or that arrived after it started, and leave the rest for the backfill to read as
+     * they are when it gets there.
+     */
+    private static final class TextIndex extends OnlineIndex {
+        /** every row is tokenized and merged into the term segments */
+        private static final int CHUNK_ROWS = 2500;
+
+        private final String column;
+
+        TextIndex( final String name, final String sourceTable, final String column ) {
+            super( name, sourceTable, "rowid", CHUNK_ROWS, new String[0], 0 );
+            this.column = column;
+        }
+
+        @Override
+        String[] setupSql() {
+            return new String[]{ createSql(), insertTriggerSql(), updateTriggerSql(), reindexTriggerSql(),
+                    deleteTriggerSql() };
+        }
+
+        @Override
+        String createSql() {
+            return "CREATE VIRTUAL TABLE IF NOT EXISTS " + name + " USING fts4(content=\"" + sourceTable + "\","
+                    + column + ")";
+        }
+
+        @Override
+        String insertTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_insert AFTER INSERT ON " + sourceTable + " WHEN "
+                    + indexed( "NEW" ) + " BEGIN " + insertSql() + "; END";
+        }
+
+        /**
+         * external content: the old terms have to come out before the source row changes
+         */
+        String updateTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_update BEFORE UPDATE OF " + column + " ON " + sourceTable
+                    + " WHEN NEW." + column + " != OLD." + column + " AND " + indexed( "OLD" ) + " BEGIN " + deleteSql()
+                    + "; END";
+        }
+
+        String reindexTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_reindex AFTER UPDATE OF " + column + " ON " + sourceTable
+                    + " WHEN NEW." + column + " != OLD." + column + " AND " + indexed( "NEW" ) + " BEGIN " + insertSql()
+                    + "; END";
+        }
+
+        @Override
+        String deleteTriggerSql() {
+            return "CREATE TRIGGER IF NOT EXISTS " + name + "_delete BEFORE DELETE ON " + sourceTable + " WHEN "
+                    + indexed( "OLD" ) + " BEGIN " + deleteSql() + "; END";
+        }
+
+        @Override
+        String backfillSql() {
+            return "INSERT INTO " + name + " (docid," + column + ") SELECT rowid," + column + " FROM " + sourceTable
+                    + " WHERE rowid > ? AND rowid <= ?";
+        }
+
+        private String insertSql() {
+            return "INSERT INTO " + name + " (docid," + column + ") VALUES (NEW.rowid,NEW." + column + ")";
+        }
+
+        private String deleteSql() {
+            return "DELETE FROM " + name + " WHERE docid = OLD.rowid";
+        }
+
+        /**
+         * null, so false, once the progress row is gone
+         */
+        private String indexed( final String row ) {
+            return "(SELECT " + row + ".rowid <= built_to OR " + row + ".rowid > target FROM " + PROGRESS_TABLE
+                    + " WHERE name = '" + name + "')";
+        }
+    }
+}
@@ -811,7 +811,7 @@ public final class BluetoothReceiver extends BroadcastReceiver implements LeScan
         }
 
         final MainActivity m = MainActivity.getMainActivity();
-        final Matcher ssidMatcher = FilterMatcher.getSsidFilterMatcher( prefs, PreferenceKeys.FILTER_PREF_PREFIX );
+        final FilterMatcher.NetworkFilter filter = FilterMatcher.getNetworkFilter( prefs, PreferenceKeys.FILTER_PREF_PREFIX );
         if (null != m) {
             final Matcher bssidMatcher = m.getBssidFilterMatcher(PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS);
             final Matcher bssidDbMatcher = m.getBssidFilterMatcher(PreferenceKeys.PREF_EXCLUDE_LOG_ADDRS);
@@ -824,7 +824,7 @@ public final class BluetoothReceiver extends BroadcastReceiver implements LeScan
                     listAdapter.get().morphBluetoothToLe(network);
                 }
                 if (showCurrent || newForRun) {
-                    if (FilterMatcher.isOk(ssidMatcher, bssidMatcher, prefs, PreferenceKeys.FILTER_PREF_PREFIX, network)) {
+                    if (filter.isOk(network, bssidMatcher)) {
                         if (batch) {
                             if (NetworkType.BT.equals(network.getType())) {
                                 listAdapter.get().enqueueBluetooth(network);
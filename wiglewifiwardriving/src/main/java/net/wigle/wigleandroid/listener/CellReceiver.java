@@ -188,10 +188,10 @@ public class CellReceiver {
                 ListFragment.lameStatic.currNets = ListFragment.lameStatic.currWifi + ListFragment.lameStatic.currCells;
                 final boolean showCurrent = prefs.getBoolean(PreferenceKeys.PREF_SHOW_CURRENT, true);
                 if (showCurrent && listAdapter != null) {
-                    final java.util.regex.Matcher ssidMatcher = FilterMatcher.getSsidFilterMatcher(prefs, PreferenceKeys.FILTER_PREF_PREFIX);
+                    final FilterMatcher.NetworkFilter filter = FilterMatcher.getNetworkFilter(prefs, PreferenceKeys.FILTER_PREF_PREFIX);
                     final java.util.regex.Matcher bssidMatcher = mainActivity.getBssidFilterMatcher(PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS);
                     for (Network cellNetwork : cellNetworks.values()) {
-                        if (cellNetwork != null && FilterMatcher.isOk(ssidMatcher, bssidMatcher, prefs, PreferenceKeys.FILTER_PREF_PREFIX, cellNetwork)) {
+                        if (cellNetwork != null && filter.isOk(cellNetwork, bssidMatcher)) {
                             listAdapter.addCell(cellNetwork);
                         }
                     }
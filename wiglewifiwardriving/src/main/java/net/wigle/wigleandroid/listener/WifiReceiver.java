@@ -5,28 +5,40 @@ import java.nio.ByteOrder;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.lang.String;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.wigle.wigleandroid.model.ConcurrentLinkedHashMap;
 import net.wigle.wigleandroid.db.DatabaseHelper;
 import net.wigle.wigleandroid.ListFragment;
 import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.model.Network;
+import net.wigle.wigleandroid.ui.NetworkListSorter;
 import net.wigle.wigleandroid.ui.NetworkListUtil;
 import net.wigle.wigleandroid.ui.SetNetworkListAdapter;
 import net.wigle.wigleandroid.FilterMatcher;
 import net.wigle.wigleandroid.R;
 import net.wigle.wigleandroid.ui.UINumberFormat;
 import net.wigle.wigleandroid.ui.WiGLEToast;
+import net.wigle.wigleandroid.util.Histogram;
 import net.wigle.wigleandroid.util.Logging;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 import net.wigle.wigleandroid.util.ScanUtil;
@@ -66,19 +78,135 @@ public class WifiReceiver extends BroadcastReceiver {
     private long lastHaveLocationTime = 0;
     private final long constructionTime = System.currentTimeMillis();
     private long previousTalkTime = System.currentTimeMillis();
-    private final Set<String> runNetworks = new HashSet<>();
+    private final Set<String> runNetworks = Collections.synchronizedSet(new HashSet<>());
     private long prevNewNetCount;
     private long prevScanPeriod;
     private boolean scanInFlight = false;
 
     private Set<String> safeWatchSsids = Collections.synchronizedSet(new HashSet<>());
 
-    private WiFiScanUpdater updateOnSeen = null;
+    private volatile WiFiScanUpdater updateOnSeen = null;
 
     /** Executor for running WifiManager.startScan() off the main thread to avoid ANR from Binder blocking. */
     private final ExecutorService wifiScanExecutor = Executors.newSingleThreadExecutor();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
+    private static final long SCAN_STATS_LOG_MILLIS = 5 * 60 * 1000L;
+    private final AtomicLong coalescedScans = new AtomicLong();
+    /**
+     * Scan processing: one worker, and room for one scan to wait for it. Results are read off the WifiManager
+     * when processing starts, so a waiting scan replaced by a newer one loses nothing but its location fix.
+     */
+    private final ThreadPoolExecutor scanProcessor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> new Thread(runnable, "wifi-scan"),
+            new ThreadPoolExecutor.DiscardOldestPolicy() {
+                @Override
+                public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+                    if (!executor.isShutdown()) {
+                        coalescedScans.incrementAndGet();
+                    }
+                    super.rejectedExecution(runnable, executor);
+                }
+            });
+    private final Histogram scanFetch = new Histogram("wifi scan fetch", "ms");
+    private final Histogram scanProcess = new Histogram("wifi scan process", "ms");
+    private final Histogram scanSort = new Histogram("wifi scan sort", "ms");
+    private final Histogram scanHandOff = new Histogram("wifi scan hand-off", "ms");
+    private final Histogram scanPublish = new Histogram("wifi scan publish", "ms");
+    private final Histogram scanLatency = new Histogram("wifi scan receive to shown", "ms");
+    private long prevScanStatsLogTime = System.currentTimeMillis();
+
+    /**
+     * what the worker needs from the main thread to process a scan
+     */
+    private static class ScanInput {
+        final long receiveTime;
+        final long scanRequestTime;
+        final WifiManager wifiManager;
+        final Location location;
+        final SharedPreferences prefs;
+        final FilterMatcher.NetworkFilter filter;
+        final Matcher bssidMatcher;
+        final Matcher bssidDbMatcher;
+        final Matcher bssidAlertMatcher;
+        final Comparator<Network> sort;
+
+        ScanInput(final long receiveTime, final long scanRequestTime, final WifiManager wifiManager,
+                  final Location location, final SharedPreferences prefs, final FilterMatcher.NetworkFilter filter,
+                  final Matcher bssidMatcher, final Matcher bssidDbMatcher, final Matcher bssidAlertMatcher,
+                  final Comparator<Network> sort) {
+            this.receiveTime = receiveTime;
+            this.scanRequestTime = scanRequestTime;
+            this.wifiManager = wifiManager;
+            this.location = location;
+            this.prefs = prefs;
+            this.filter = filter;
+            this.bssidMatcher = bssidMatcher;
+            this.bssidDbMatcher = bssidDbMatcher;
+            this.bssidAlertMatcher = bssidAlertMatcher;
+            this.sort = sort;
+        }
+    }
+
+    /**
+     * one scan result as the worker read it. The network may already be on the list or the map, so the worker
+     * leaves it alone; publishScan applies the level, and the location if it's newly placed.
+     */
+    private static class SeenNetwork {
+        final Network network;
+        final int level;
+        final boolean added;
+
+        SeenNetwork(final Network network, final int level, final boolean added) {
+            this.network = network;
+            this.level = level;
+            this.added = added;
+        }
+    }
+
+    /**
+     * A processed scan, handed to the main thread in one piece. listed is what the list should show; in
+     * show-current mode it's already in the list's order, by this scan's levels. In cumulative mode it's only
+     * the networks new to the run, and levels has the rest.
+     */
+    private static class ScanSnapshot {
+        final ScanInput scan;
+        final boolean showCurrent;
+        final List<SeenNetwork> seen;
+        final List<Network> listed;
+        final Map<String, Integer> levels;
+        final List<String> newSsids;
+        final Map<String, Integer> watched;
+        final int resultSize;
+        final boolean somethingAdded;
+        final long newNetDiff;
+        final long newNetCount;
+        final long newWifiCount;
+        final int preQueueSize;
+        final long processedTime;
+
+        ScanSnapshot(final ScanInput scan, final boolean showCurrent, final List<SeenNetwork> seen,
+                     final List<Network> listed, final Map<String, Integer> levels, final List<String> newSsids,
+                     final Map<String, Integer> watched, final int resultSize, final boolean somethingAdded,
+                     final long newNetDiff, final long newNetCount, final long newWifiCount,
+                     final int preQueueSize, final long processedTime) {
+            this.scan = scan;
+            this.showCurrent = showCurrent;
+            this.seen = seen;
+            this.listed = listed;
+            this.levels = levels;
+            this.newSsids = newSsids;
+            this.watched = watched;
+            this.resultSize = resultSize;
+            this.somethingAdded = somethingAdded;
+            this.newNetDiff = newNetDiff;
+            this.newNetCount = newNetCount;
+            this.newWifiCount = newWifiCount;
+            this.preQueueSize = preQueueSize;
+            this.processedTime = processedTime;
+        }
+    }
+
     public WifiReceiver( final MainActivity mainActivity, final DatabaseHelper dbHelper) {
         this.mainActivity = mainActivity;
         this.dbHelper = dbHelper;
@@ -115,7 +243,8 @@ public class WifiReceiver extends BroadcastReceiver {
     }
 
     /**
-     * the massive core receive handler for WiFi scan callback
+     * the WiFi scan callback. Runs on the main thread, so it only does the bookkeeping that needs it
+     * (location and scan scheduling), and hands the scan to the worker; see processScan and publishScan.
      * @param context context of the onreceive
      * @param intent the intent for the receive
      */
@@ -125,20 +254,7 @@ public class WifiReceiver extends BroadcastReceiver {
         scanInFlight = false;
         final long now = System.currentTimeMillis();
         lastScanResponseTime = now;
-        // final long start = now;
         final WifiManager wifiManager = (WifiManager) mainActivity.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        List<ScanResult> results = null;
-        try {
-            results = wifiManager.getScanResults(); // return can be null!
-        }
-        catch (final SecurityException ex) {
-            Logging.info("security exception getting scan results: " + ex, ex);
-        }
-        catch (final Exception ex) {
-            // ignore, happens on some vm's
-            Logging.info("exception getting scan results: " + ex, ex);
-        }
-        Logging.debug("wifi receive, results: " + (results == null ? null : results.size()));
 
         long nonstopScanRequestTime = Long.MIN_VALUE;
         final SharedPreferences prefs = mainActivity.getSharedPreferences( PreferenceKeys.SHARED_PREFS, 0 );
@@ -184,26 +300,66 @@ public class WifiReceiver extends BroadcastReceiver {
             lastHaveLocationTime = now;
         }
 
-        final boolean showCurrent = prefs.getBoolean( PreferenceKeys.PREF_SHOW_CURRENT, true );
-        if ( showCurrent && listAdapter != null ) {
-            listAdapter.clearWifiAndCell();
+        final long effectiveScanRequestTime = scanRequestTime <= 0 ? now : scanRequestTime;
+        scanRequestTime = nonstopScanRequestTime;
+
+        // the worker gets matchers of its own; the shared ones are used by the list on this thread
+        final ScanInput scan = new ScanInput(now, effectiveScanRequestTime, wifiManager, location, prefs,
+                FilterMatcher.getNetworkFilter( prefs, PreferenceKeys.FILTER_PREF_PREFIX ),
+                copyOf( mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS ) ),
+                copyOf( mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_EXCLUDE_LOG_ADDRS ) ),
+                copyOf( mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_ALERT_ADDRS ) ),
+                NetworkListSorter.getSort( prefs ));
+        try {
+            scanProcessor.execute(() -> processScan(scan));
+        } catch (final RejectedExecutionException ex) {
+            Logging.info("scan processor shut down, dropping scan");
+        }
+    }
+
+    private static Matcher copyOf( final Matcher matcher ) {
+        return matcher == null ? null : matcher.pattern().matcher( "" );
+    }
+
+    /**
+     * the per-result work for one scan, on the worker: fetch the results, build networks not seen before, filter, sort,
+     * and queue the db writes. Networks already in the cache are shared with the list and map, so the worker
+     * only reads them; their new levels and locations go to the main thread in the snapshot.
+     */
+    private void processScan( final ScanInput scan ) {
+        final long start = System.currentTimeMillis();
+        List<ScanResult> results = null;
+        try {
+            results = scan.wifiManager.getScanResults(); // return can be null!
+        }
+        catch (final SecurityException ex) {
+            Logging.info("security exception getting scan results: " + ex, ex);
+        }
+        catch (final Exception ex) {
+            // ignore, happens on some vm's
+            Logging.info("exception getting scan results: " + ex, ex);
         }
+        Logging.debug("wifi receive, results: " + (results == null ? null : results.size()));
+        final long fetched = System.currentTimeMillis();
 
+        final SharedPreferences prefs = scan.prefs;
+        final Location location = scan.location;
+        final boolean showCurrent = prefs.getBoolean( PreferenceKeys.PREF_SHOW_CURRENT, true );
+        final boolean ssidSpeak = prefs.getBoolean( PreferenceKeys.PREF_SPEAK_SSID, false );
         final int preQueueSize = dbHelper.getQueueSize();
         final boolean fastMode = dbHelper.isFastMode();
         final ConcurrentLinkedHashMap<String,Network> networkCache = MainActivity.getNetworkCache();
+        final Matcher bssidDbMatcher = scan.bssidDbMatcher;
+        final Matcher bssidAlertMatcher = scan.bssidAlertMatcher;
+
+        final List<SeenNetwork> seen = new ArrayList<>();
+        final Map<String, SeenNetwork> listed = new LinkedHashMap<>();
+        final Map<String, Integer> levels = new HashMap<>();
+        final List<String> newSsids = new ArrayList<>();
+        final Map<String, Integer> watched = new LinkedHashMap<>();
         boolean somethingAdded = false;
         int resultSize = 0;
 
-        final boolean ssidSpeak = prefs.getBoolean( PreferenceKeys.PREF_SPEAK_SSID, false )
-                && ! mainActivity.isMuted();
-
-        //TODO: should we memoize the ssidMatcher in the MainActivity state as well?
-        final Matcher ssidMatcher = FilterMatcher.getSsidFilterMatcher( prefs, PreferenceKeys.FILTER_PREF_PREFIX );
-        final Matcher bssidMatcher = mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS );
-        final Matcher bssidDbMatcher = mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_EXCLUDE_LOG_ADDRS );
-        final Matcher bssidAlertMatcher = mainActivity.getBssidFilterMatcher( PreferenceKeys.PREF_ALERT_ADDRS );
-
         // can be null on shutdown
         if ( results != null ) {
             resultSize = results.size();
@@ -212,6 +368,7 @@ public class WifiReceiver extends BroadcastReceiver {
 
                 Network network = networkCache.get( result.BSSID );
                 if ( network == null ) {
+                    // nobody else has this one until it's in the cache
                     network = new Network( result );
 
                     // Roaming Consortium Organizational Identifiers
@@ -227,64 +384,23 @@ public class WifiReceiver extends BroadcastReceiver {
 
                     networkCache.put( network.getBssid(), network );
                 }
-                else {
-                    // cache hit, just set the level
-                    network.setLevel( result.level );
-                }
 
                 final boolean added = runNetworks.add( result.BSSID );
-                if ( added ) {
-                    if ( ssidSpeak ) {
-                        ssidSpeaker.add( network.getSsid() );
-                    }
+                if ( added && ssidSpeak ) {
+                    newSsids.add( network.getSsid() );
                 }
                 somethingAdded |= added;
-
-                if ( location != null && (added || network.getLatLng() == null) ) {
-                    // set the LatLng for mapping
-                    final LatLng LatLng = new LatLng( location.getLatitude(), location.getLongitude() );
-                    network.setLatLng( LatLng );
-                    MainActivity.addNetworkToMap(network);
-                    try {
-                        String sec = "secure";
-                        int crypto = network.getCrypto();
-                        if (crypto == net.wigle.wigleandroid.model.Network.CRYPTO_NONE) sec = "open";
-                        else if (crypto == net.wigle.wigleandroid.model.Network.CRYPTO_WEP) sec = "wep";
-                        LiveMapUpdater.addWifiDevice(network.getBssid(), location.getLatitude(), location.getLongitude(), network.getLevel(), sec);
-                    } catch (Exception ex) {
-                        // ignore live map update failures
-                    }
-                }
+                final SeenNetwork seenNetwork = new SeenNetwork( network, result.level, added );
+                seen.add( seenNetwork );
 
                 // if we're showing current, or this was just added, put on the list
                 if ( showCurrent || added ) {
-                    if ( FilterMatcher.isOk( ssidMatcher, bssidMatcher, prefs, PreferenceKeys.FILTER_PREF_PREFIX, network ) ) {
-                        if (listAdapter != null) {
-                            listAdapter.addWiFi( network );
-                        }
-                    }
-                    // load test
-                    // for ( int i = 0; i< 10; i++) {
-                    //  listAdapter.addWifi( network );
-                    // }
-
-                } else if (listAdapter != null) {
-                    // not showing current, and not a new thing, go find the network and update the level
-                    // this is O(n), ohwell, that's why showCurrent is the default config.
-                    for ( int index = 0; index < listAdapter.getCount(); index++ ) {
-                        try {
-                            final Network testNet = listAdapter.getItem(index);
-                            if (null != testNet) {
-                                if ( testNet.getBssid().equals( network.getBssid() ) ) {
-                                    testNet.setLevel( result.level );
-                                }
-                            }
-                        }
-                        catch (final IndexOutOfBoundsException ex) {
-                            // yes, this happened to someone
-                            Logging.info("WifiReceiver: index out of bounds: " + index + " ex: " + ex);
-                        }
+                    if ( scan.filter.isOk( network, scan.bssidMatcher ) ) {
+                        listed.put( network.getBssid(), seenNetwork );
                     }
+                } else {
+                    // not showing current, and not a new thing: the list finds the network and updates the level
+                    levels.put( network.getBssid(), result.level );
                 }
 
                 if ( location != null  ) {
@@ -300,7 +416,7 @@ public class WifiReceiver extends BroadcastReceiver {
                             matches = bssidDbMatcher.find();
                         }
                         if (!matches) {
-                            dbHelper.addObservation(network, location, added);
+                            dbHelper.addObservation(network, result.level, location, added);
                         }
                         // }
                     }
@@ -312,40 +428,148 @@ public class WifiReceiver extends BroadcastReceiver {
                         matches = bssidDbMatcher.find();
                     }
                     if (!matches) {
-                        dbHelper.pendingObservation( network, added, false, false );
+                        dbHelper.pendingObservation( network, result.level, added, false, false );
                     }
                 }
 
                 if (bssidAlertMatcher != null) {
                     bssidAlertMatcher.reset(network.getBssid());
                     if (bssidAlertMatcher.find()) {
-                        if (null != mainActivity) {
-                            mainActivity.updateLastHighSignal(network.getLevel());
+                        final MainActivity ma = mainActivity;
+                        if (null != ma) {
+                            ma.updateLastHighSignal(result.level);
                         }
                     }
                 }
 
-                if (null != updateOnSeen && null != safeWatchSsids && null != location) {
-                    if (safeWatchSsids.contains(network.getBssid())) {
-                        updateOnSeen.handleWiFiSeen(network.getBssid(), result.level, location);
-                    }
+                if (null != updateOnSeen && null != location && safeWatchSsids.contains(network.getBssid())) {
+                    watched.put(network.getBssid(), result.level);
                 }
             }
         }
+        final long processed = System.currentTimeMillis();
+
+        // sorted here by the levels publishScan is about to set, so the main thread only merges. The other sort
+        // keys don't change once a WiFi network is built. Cumulative mode sorts the whole list there.
+        final List<SeenNetwork> ordered = new ArrayList<>( listed.values() );
+        if ( showCurrent ) {
+            Collections.sort( ordered, scan.sort == NetworkListSorter.signalCompare
+                    ? (a, b) -> b.level - a.level
+                    : (a, b) -> scan.sort.compare( a.network, b.network ) );
+        }
+        final List<Network> wifi = new ArrayList<>( ordered.size() );
+        for ( final SeenNetwork seenNetwork : ordered ) {
+            wifi.add( seenNetwork.network );
+        }
+        final long sorted = System.currentTimeMillis();
 
         // check if there are more "New" nets
-        final long newNetCount = dbHelper.getNewNetworkCount();
         final long newWifiCount = dbHelper.getNewWifiCount();
         final long newNetDiff = newWifiCount - prevNewNetCount;
         prevNewNetCount = newWifiCount;
 
+        final ScanSnapshot snapshot = new ScanSnapshot(scan, showCurrent, Collections.unmodifiableList(seen),
+                Collections.unmodifiableList(wifi), Collections.unmodifiableMap(levels),
+                Collections.unmodifiableList(newSsids), Collections.unmodifiableMap(watched), resultSize,
+                somethingAdded, newNetDiff, dbHelper.getNewNetworkCount(), newWifiCount, preQueueSize, sorted);
+
+        scanFetch.record( fetched - start );
+        scanProcess.record( processed - fetched );
+        if ( showCurrent ) {
+            scanSort.record( sorted - processed );
+        }
+        Logging.debug("wifi scan " + resultSize + " results. fetch: " + (fetched - start) + "ms process: "
+                + (processed - fetched) + "ms sort: " + (sorted - processed) + "ms");
+        mainHandler.post(() -> publishScan(snapshot));
+    }
+
+    /**
+     * Show a processed scan: the scan's levels and locations onto its networks, one list update, the counters,
+     * sounds and speech. Main thread.
+     */
+    private void publishScan( final ScanSnapshot snapshot ) {
+        if (mainActivity == null || mainActivity.isFinishing()) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final ScanInput scan = snapshot.scan;
+        final SharedPreferences prefs = scan.prefs;
+        final Location location = scan.location;
+        final long now = scan.receiveTime;
+
+        // first: the merge compares by them, and the map reads the locations
+        for ( final SeenNetwork seen : snapshot.seen ) {
+            final Network network = seen.network;
+            network.setLevel( seen.level );
+            if ( location != null && (seen.added || network.getLatLng() == null) ) {
+                // set the LatLng for mapping
+                network.setLatLng( new LatLng( location.getLatitude(), location.getLongitude() ) );
+                MainActivity.addNetworkToMap( network );
+                try {
+                    String sec = "secure";
+                    int crypto = network.getCrypto();
+                    if (crypto == net.wigle.wigleandroid.model.Network.CRYPTO_NONE) sec = "open";
+                    else if (crypto == net.wigle.wigleandroid.model.Network.CRYPTO_WEP) sec = "wep";
+                    LiveMapUpdater.addWifiDevice(network.getBssid(), location.getLatitude(), location.getLongitude(), seen.level, sec);
+                } catch (Exception ex) {
+                    // ignore live map update failures
+                }
+            }
+        }
+
+        final SetNetworkListAdapter listAdapter = this.listAdapter;
+        if (listAdapter != null) {
+            if ( snapshot.showCurrent ) {
+                listAdapter.mergeCurrentWifi( snapshot.listed, scan.sort );
+            } else {
+                for ( final Network network : snapshot.listed ) {
+                    listAdapter.addWiFi( network );
+                }
+                // this is O(n), ohwell, that's why showCurrent is the default config.
+                if ( ! snapshot.levels.isEmpty() ) {
+                    for ( int index = 0; index < listAdapter.getCount(); index++ ) {
+                        try {
+                            final Network testNet = listAdapter.getItem(index);
+                            if (null != testNet) {
+                                final Integer level = snapshot.levels.get( testNet.getBssid() );
+                                if ( level != null ) {
+                                    testNet.setLevel( level );
+                                }
+                            }
+                        }
+                        catch (final IndexOutOfBoundsException ex) {
+                            // yes, this happened to someone
+                            Logging.info("WifiReceiver: index out of bounds: " + index + " ex: " + ex);
+                        }
+                    }
+                }
+                final long sortStart = System.currentTimeMillis();
+                NetworkListUtil.sort(prefs, listAdapter);
+                scanSort.record( System.currentTimeMillis() - sortStart );
+            }
+        }
+
+        final boolean ssidSpeak = ! snapshot.newSsids.isEmpty() && ! mainActivity.isMuted();
+        if ( ssidSpeak ) {
+            for ( final String ssid : snapshot.newSsids ) {
+                ssidSpeaker.add( ssid );
+            }
+        }
+
+        final WiFiScanUpdater updater = updateOnSeen;
+        if ( updater != null ) {
+            for ( final Map.Entry<String, Integer> watched : snapshot.watched.entrySet() ) {
+                updater.handleWiFiSeen( watched.getKey(), watched.getValue(), location );
+            }
+        }
+
         if ( ! mainActivity.isMuted() ) {
             final boolean playRun = prefs.getBoolean( PreferenceKeys.PREF_FOUND_SOUND, true );
             final boolean playNew = prefs.getBoolean( PreferenceKeys.PREF_FOUND_NEW_SOUND, true );
-            if ( newNetDiff > 0 && playNew ) {
+            if ( snapshot.newNetDiff > 0 && playNew ) {
                 mainActivity.playNewNetSound();
             }
-            else if ( somethingAdded && playRun ) {
+            else if ( snapshot.somethingAdded && playRun ) {
                 mainActivity.playRunNetSound();
             }
         }
@@ -355,37 +579,50 @@ public class WifiReceiver extends BroadcastReceiver {
             mainActivity.interruptSpeak();
         }
 
-        final long effectiveScanRequestTime = scanRequestTime <= 0 ? now : scanRequestTime;
         // setting statics for shared access
-        ListFragment.lameStatic.currWifi = resultSize;
-        ListFragment.lameStatic.currNets = resultSize + ListFragment.lameStatic.currCells; //TODO: outdated? (1/2)
+        ListFragment.lameStatic.currWifi = snapshot.resultSize;
+        ListFragment.lameStatic.currNets = snapshot.resultSize + ListFragment.lameStatic.currCells; //TODO: outdated? (1/2)
         ListFragment.lameStatic.runNets = runNetworks.size();
-        ListFragment.lameStatic.newNets = newNetCount;
-        ListFragment.lameStatic.newWifi = newWifiCount;
-        ListFragment.lameStatic.currWifiScanDurMs = (now - effectiveScanRequestTime);
-        ListFragment.lameStatic.preQueueSize = preQueueSize;
+        ListFragment.lameStatic.newNets = snapshot.newNetCount;
+        ListFragment.lameStatic.newWifi = snapshot.newWifiCount;
+        ListFragment.lameStatic.currWifiScanDurMs = (now - scan.scanRequestTime);
+        ListFragment.lameStatic.preQueueSize = snapshot.preQueueSize;
         ListFragment.lameStatic.dbNets = dbHelper.getNetworkCount();
         ListFragment.lameStatic.dbLocs = dbHelper.getLocationCount();
 
-        NetworkListUtil.sort(prefs, listAdapter);
         mainActivity.setNetCountUI();
-
-        if (scanRequestTime <= 0) {
-            scanRequestTime = now;
-        }
-
         mainActivity.setScanStatusUI(ListFragment.lameStatic.currNets, ListFragment.lameStatic.currWifiScanDurMs);
-        mainActivity.setDBQueue(preQueueSize);
-        scanRequestTime = nonstopScanRequestTime;
+        mainActivity.setDBQueue(snapshot.preQueueSize);
 
-        if (somethingAdded && ssidSpeak) {
+        if (snapshot.somethingAdded && ssidSpeak) {
             ssidSpeaker.speak();
         }
 
         final long speechPeriod = prefs.getLong(PreferenceKeys.PREF_SPEECH_PERIOD, MainActivity.DEFAULT_SPEECH_PERIOD);
         if (speechPeriod != 0 && now - previousTalkTime > speechPeriod * 1000L) {
-            doAnnouncement(preQueueSize, newWifiCount, ListFragment.lameStatic.newCells, ListFragment.lameStatic.newBt, now);
+            doAnnouncement(snapshot.preQueueSize, snapshot.newWifiCount, ListFragment.lameStatic.newCells, ListFragment.lameStatic.newBt, now);
         }
+
+        final long end = System.currentTimeMillis();
+        scanPublish.record( end - start );
+        scanHandOff.record( start - snapshot.processedTime );
+        scanLatency.record( end - now );
+        logScanStats( end );
+    }
+
+    private void logScanStats( final long now ) {
+        if ( now - prevScanStatsLogTime > SCAN_STATS_LOG_MILLIS ) {
+            prevScanStatsLogTime = now;
+            Logging.info( scanFetch + "; " + scanProcess + "; " + scanSort + "; " + scanHandOff + "; "
+                    + scanPublish + "; " + scanLatency + "; coalesced: " + coalescedScans.get() );
+        }
+    }
+
+    /**
+     * stop the scan worker; scans in flight are dropped
+     */
+    public void shutdown() {
+        scanProcessor.shutdownNow();
     }
 
     public static final int NIBBLE_MASK = 0x0f;
@@ -2,117 +2,274 @@ package net.wigle.wigleandroid.model;
 
 import androidx.annotation.NonNull;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * try to be all things to all people. a remove-eldest feature, concurrent except during put,
- * which is usually single-threaded in this app anyway.
+ * try to be all things to all people: a bounded, least-recently-used map that's safe to hit from the
+ * scan receivers, the db thread and the map renderer at once.
+ * Keys are spread over lock-striped segments, each an access-ordered LinkedHashMap that evicts its own
+ * least-recently-used entry, so a BSSID seen every scan stays put while one-off sightings age out.
+ * Segment capacities add up to exactly maxSize. Null keys and values aren't allowed.
+ * keySet/entrySet/values are read-only snapshots; iterate freely, but changes don't write through.
  * @param <K> key
  * @param <V> value
  */
 public final class ConcurrentLinkedHashMap<K,V> implements Map<K,V> {
-    private final ConcurrentHashMap<K,V> map;
-    private final LinkedBlockingQueue<K> queue;
-    private int count = 0;
+    private static final int MAX_SEGMENTS = 16;
+    // small caches stay in one or two segments, so they stay close to a true LRU
+    private static final int MIN_SEGMENT_SIZE = 32;
 
+    private final Segment<K,V>[] segments;
+    private final int segmentShift;
+    private final AtomicInteger count = new AtomicInteger();
     private final int maxSize;
-    private final Object WRITE_LOCK = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
     public ConcurrentLinkedHashMap() {
         this( Integer.MAX_VALUE );
     }
 
+    @SuppressWarnings("unchecked")
     public ConcurrentLinkedHashMap( final int maxSize ) {
-        map = new ConcurrentHashMap<>();
-        queue = new LinkedBlockingQueue<>();
+        if ( maxSize < 1 ) {
+            throw new IllegalArgumentException( "maxSize must be positive: " + maxSize );
+        }
         this.maxSize = maxSize;
+        int segmentCount = 1;
+        while ( segmentCount < MAX_SEGMENTS && (long) maxSize / (segmentCount * 2) >= MIN_SEGMENT_SIZE ) {
+            segmentCount *= 2;
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros( segmentCount );
+        segments = new Segment[segmentCount];
+        final int base = maxSize / segmentCount;
+        final int remainder = maxSize % segmentCount;
+        for ( int i = 0; i < segmentCount; i++ ) {
+            segments[i] = new Segment<>( base + (i < remainder ? 1 : 0), this );
+        }
     }
 
+    /**
+     * one stripe: guarded by its own monitor
+     */
+    private static final class Segment<K,V> extends LinkedHashMap<K,V> {
+        private static final long serialVersionUID = 2024010100L;
+        private final int capacity;
+        private final transient ConcurrentLinkedHashMap<K,V> owner;
+
+        Segment( final int capacity, final ConcurrentLinkedHashMap<K,V> owner ) {
+            super( Math.min( capacity, 64 ), 0.75f, true );
+            this.capacity = capacity;
+            this.owner = owner;
+        }
+
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry<K,V> eldest ) {
+            if ( size() > capacity ) {
+                owner.evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private Segment<K,V> segmentFor( final Object key ) {
+        if ( segments.length == 1 ) {
+            return segments[0];
+        }
+        // top bits of a mixed hash, the segment's own table uses the low ones
+        final int h = key.hashCode() * 0x9E3779B9;
+        return segments[(h ^ (h << 13)) >>> segmentShift];
+    }
+
+    @Override
     public V put( final K key, final V value ) {
-        V previous;
-        synchronized( WRITE_LOCK ) {
-            previous = map.put(key, value);
-            if ( previous == null ) {
-                // new key! add to queue
-                queue.add( key );
-                // check if this puts us over
-                if ( count + 1 > maxSize ) {
-                    // remove eldest
-                    K eldest = queue.remove();
-                    map.remove( eldest );
-                }
-                else {
-                    // this doesn't put us over, just add to the count
-                    count++;
-                }
+        if ( key == null || value == null ) {
+            throw new NullPointerException();
+        }
+        final Segment<K,V> segment = segmentFor( key );
+        synchronized( segment ) {
+            // apply the net change once, so size() never overshoots while an eviction is pending
+            final int before = segment.size();
+            final V previous = segment.put( key, value );
+            final int delta = segment.size() - before;
+            if ( delta != 0 ) {
+                count.addAndGet( delta );
             }
+            return previous;
         }
-        return previous;
     }
 
-    public void putAll(Map<? extends K,? extends V> map) {
+    @Override
+    public void putAll( @NonNull final Map<? extends K,? extends V> map ) {
+        for ( final Map.Entry<? extends K,? extends V> entry : map.entrySet() ) {
+            put( entry.getKey(), entry.getValue() );
+        }
     }
 
-    public V remove( Object key ) {
-        synchronized( WRITE_LOCK ) {
-            return map.remove(key);
+    @Override
+    public V remove( final Object key ) {
+        if ( key == null ) {
+            return null;
+        }
+        final Segment<K,V> segment = segmentFor( key );
+        synchronized( segment ) {
+            final V previous = segment.remove( key );
+            if ( previous != null ) {
+                count.decrementAndGet();
+            }
+            return previous;
         }
     }
 
-    public V get( Object key ) {
-        return map.get( key );
+    /**
+     * a hit counts as a use: moves the entry to the back of the eviction line
+     */
+    @Override
+    public V get( final Object key ) {
+        if ( key == null ) {
+            return null;
+        }
+        final Segment<K,V> segment = segmentFor( key );
+        final V value;
+        synchronized( segment ) {
+            value = segment.get( key );
+        }
+        if ( value == null ) {
+            misses.increment();
+        }
+        else {
+            hits.increment();
+        }
+        return value;
     }
 
+    @Override
     public void clear() {
-        map.clear();
+        for ( final Segment<K,V> segment : segments ) {
+            synchronized( segment ) {
+                count.addAndGet( -segment.size() );
+                segment.clear();
+            }
+        }
     }
 
     @NonNull
     @Override
     public Set<K> keySet() {
-        return null;
+        final Set<K> keys = new HashSet<>();
+        for ( final Segment<K,V> segment : segments ) {
+            synchronized( segment ) {
+                keys.addAll( segment.keySet() );
+            }
+        }
+        return keys;
     }
 
-    /**
-     * make sure this is only used for reading (we only use it for reading currently.) the map is concurrent safe, but it will bugger
-     * our internal accounting for size() if the set is mutated
-     */
+    @NonNull
+    @Override
     public Set<Map.Entry<K,V>> entrySet() {
-        return map.entrySet();
+        final Set<Map.Entry<K,V>> entries = new HashSet<>();
+        for ( final Segment<K,V> segment : segments ) {
+            synchronized( segment ) {
+                for ( final Map.Entry<K,V> entry : segment.entrySet() ) {
+                    entries.add( new AbstractMap.SimpleImmutableEntry<>( entry ) );
+                }
+            }
+        }
+        return entries;
     }
 
+    @NonNull
+    @Override
     public Collection<V> values() {
-        return map.values();
+        final List<V> values = new ArrayList<>( Math.max( 0, count.get() ) );
+        for ( final Segment<K,V> segment : segments ) {
+            synchronized( segment ) {
+                values.addAll( segment.values() );
+            }
+        }
+        return values;
     }
 
+    @Override
     public boolean isEmpty() {
-        return map.isEmpty();
+        return count.get() == 0;
     }
 
+    /**
+     * doesn't count as a use
+     */
     @Override
-    public boolean containsKey(final Object key) {
-      return map.containsKey(key);
+    public boolean containsKey( final Object key ) {
+        if ( key == null ) {
+            return false;
+        }
+        final Segment<K,V> segment = segmentFor( key );
+        synchronized( segment ) {
+            return segment.containsKey( key );
+        }
     }
 
     @Override
-    public boolean containsValue(final Object value) {
-        return map.containsValue(value);
+    public boolean containsValue( final Object value ) {
+        for ( final Segment<K,V> segment : segments ) {
+            synchronized( segment ) {
+                if ( segment.containsValue( value ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
+    @Override
     public int size() {
-        return count;
+        return count.get();
     }
 
     public boolean isFull() {
-        return count >= maxSize;
+        return count.get() >= maxSize;
     }
 
     public int maxSize() {
         return maxSize;
     }
 
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 before any gets
+     */
+    public double getHitRate() {
+        final long hit = hits.sum();
+        final long total = hit + misses.sum();
+        return total == 0 ? 0D : hit / (double) total;
+    }
+
+    public String getStats() {
+        return "size: " + size() + "/" + maxSize + " hits: " + getHitCount() + " misses: " + getMissCount()
+                + " evictions: " + getEvictionCount();
+    }
 }
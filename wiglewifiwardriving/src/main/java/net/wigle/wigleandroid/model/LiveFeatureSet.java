@@ -0,0 +1,382 @@
+package net.wigle.wigleandroid.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Best-signal-per-device map features for one live layer, in a fixed number of slots. Device state
+ * lives in primitive arrays, each device keeps its built feature, and only a stronger detection
+ * rebuilds it. A coarse lat/lon grid indexes the slots, so a take hands over only the devices in the
+ * current viewport plus a margin. When the slots run out, a sweep frees an eighth of them: devices
+ * outside the viewport first, least recently seen first, so memory stays flat however long the drive.
+ * Changes are coalesced: offer reports the first visible change since the last take, so the caller
+ * schedules one flush per frame however many detections land in between.
+ * Thread safe; the lock is per set and never held while a map source is updated.
+ * @param <F> the map's feature type
+ */
+public final class LiveFeatureSet<F> {
+    public static final int DEFAULT_CAPACITY = 20_000;
+    public static final int MAX_CAPACITY = 1 << 20;
+    /** grid cell size, about 1km north-south */
+    static final double CELL_DEGREES = 0.01;
+
+    private static final int NONE = -1;
+    private static final int SLOT_BITS = 20;
+
+    public interface FeatureFactory<F> {
+        /**
+         * @param security null for layers that don't carry it
+         */
+        F build(String id, double lat, double lon, int signal, String security);
+    }
+
+    private final FeatureFactory<F> factory;
+    private final int capacity;
+
+    // per slot
+    private final String[] ids;
+    private final double[] lats;
+    private final double[] lons;
+    private final int[] signals;
+    private final long[] lastSeen;
+    private final Object[] features;
+    private final long[] cells;
+    private final int[] cellNext;
+    private final int[] cellPrev;
+
+    // id -> slot + 1, linear probing, 0 is empty
+    private final int[] idTable;
+    private final int idMask;
+    // grid cell -> first slot in it, as a one-element array
+    private final LongObjectHashMap<int[]> cellHeads = new LongObjectHashMap<>();
+    private final int[] free;
+    private int freeCount;
+
+    private boolean hasViewport;
+    private double south;
+    private double west;
+    private double north;
+    private double east;
+
+    private long clock;
+    private boolean dirty;
+    private long updates;
+    private long takes;
+    private long evictions;
+
+    public LiveFeatureSet(final FeatureFactory<F> factory) {
+        this(factory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity devices kept; a sweep frees an eighth of them when full
+     */
+    public LiveFeatureSet(final FeatureFactory<F> factory, final int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        this.factory = factory;
+        this.capacity = capacity;
+        ids = new String[capacity];
+        lats = new double[capacity];
+        lons = new double[capacity];
+        signals = new int[capacity];
+        lastSeen = new long[capacity];
+        features = new Object[capacity];
+        cells = new long[capacity];
+        cellNext = new int[capacity];
+        cellPrev = new int[capacity];
+        final int tableSize = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+        idTable = new int[tableSize];
+        idMask = tableSize - 1;
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * keep the detection if it's the device's strongest so far
+     * @return true if this is the first visible change since the last take, i.e. a flush should be scheduled
+     */
+    public synchronized boolean offer(final String id, final double lat, final double lon, final int signal,
+                                      final String security) {
+        clock++;
+        int slot = find(id);
+        if (slot == NONE) {
+            if (freeCount == 0) {
+                sweep();
+            }
+            slot = free[--freeCount];
+            ids[slot] = id;
+            insertId(slot);
+        } else if (signal > signals[slot]) {
+            unlinkCell(slot);
+        } else {
+            // still around, just not stronger
+            lastSeen[slot] = clock;
+            return false;
+        }
+        lats[slot] = lat;
+        lons[slot] = lon;
+        signals[slot] = signal;
+        lastSeen[slot] = clock;
+        features[slot] = factory.build(id, lat, lon, signal, security);
+        linkCell(slot, cellOf(lat, lon));
+        updates++;
+        return markDirty(isVisible(slot));
+    }
+
+    /**
+     * limit takes to this box plus half its size again on each side; the antimeridian isn't split
+     * @return true if a flush should be scheduled
+     */
+    public synchronized boolean setViewport(final double south, final double west, final double north,
+                                            final double east) {
+        final double latMargin = (north - south) / 2;
+        final double lonMargin = (east - west) / 2;
+        this.south = south - latMargin;
+        this.north = north + latMargin;
+        if (west <= east) {
+            this.west = west - lonMargin;
+            this.east = east + lonMargin;
+        } else {
+            this.west = -180;
+            this.east = 180;
+        }
+        hasViewport = true;
+        return markDirty(true);
+    }
+
+    public synchronized void clearViewport() {
+        hasViewport = false;
+        dirty = true;
+    }
+
+    /**
+     * @return the features in view if anything visible changed since the last take, otherwise null
+     */
+    public synchronized List<F> takeIfDirty() {
+        if (!dirty) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * @return the features in view, marking the set clean; for a newly attached map
+     */
+    public synchronized List<F> takeAll() {
+        return take();
+    }
+
+    public synchronized int size() {
+        return capacity - freeCount;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * @return detections that added or replaced a feature
+     */
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * @return snapshots handed out; updates / takes is how much coalescing saved
+     */
+    public synchronized long getTakeCount() {
+        return takes;
+    }
+
+    /**
+     * @return devices dropped to make room
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(ids, null);
+        Arrays.fill(features, null);
+        Arrays.fill(idTable, 0);
+        cellHeads.clear();
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+        dirty = true;
+    }
+
+    private boolean markDirty(final boolean visible) {
+        if (!visible || dirty) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    private List<F> take() {
+        dirty = false;
+        takes++;
+        // a copy: the map source reads it on the UI thread while detections keep coming
+        final List<F> out = new ArrayList<>();
+        final long cellRows = (long) Math.floor(north / CELL_DEGREES) - (long) Math.floor(south / CELL_DEGREES) + 1;
+        final long cellCols = (long) Math.floor(east / CELL_DEGREES) - (long) Math.floor(west / CELL_DEGREES) + 1;
+        if (!hasViewport || cellRows * cellCols > size()) {
+            // zoomed out past the grid paying off
+            for (int slot = 0; slot < capacity; slot++) {
+                if (ids[slot] != null && isVisible(slot)) {
+                    out.add(feature(slot));
+                }
+            }
+            return out;
+        }
+        final long firstRow = (long) Math.floor(south / CELL_DEGREES);
+        final long firstCol = (long) Math.floor(west / CELL_DEGREES);
+        for (long row = firstRow; row < firstRow + cellRows; row++) {
+            for (long col = firstCol; col < firstCol + cellCols; col++) {
+                final int[] head = cellHeads.get(cellKey(row, col));
+                if (head == null) {
+                    continue;
+                }
+                for (int slot = head[0]; slot != NONE; slot = cellNext[slot]) {
+                    if (isVisible(slot)) {
+                        out.add(feature(slot));
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private F feature(final int slot) {
+        return (F) features[slot];
+    }
+
+    private boolean isVisible(final int slot) {
+        if (!hasViewport) {
+            return true;
+        }
+        final double lat = lats[slot];
+        final double lon = lons[slot];
+        return lat >= south && lat <= north && lon >= west && lon <= east;
+    }
+
+    /**
+     * free an eighth of the slots: out of view before in view, then least recently seen
+     */
+    private void sweep() {
+        final long[] order = new long[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            order[slot] = (isVisible(slot) ? 1L << 62 : 0L) | (lastSeen[slot] << SLOT_BITS) | slot;
+        }
+        Arrays.sort(order);
+        final int count = Math.max(1, capacity / 8);
+        boolean visibleRemoved = false;
+        for (int i = 0; i < count; i++) {
+            final int slot = (int) (order[i] & ((1 << SLOT_BITS) - 1));
+            visibleRemoved |= isVisible(slot);
+            removeSlot(slot);
+        }
+        evictions += count;
+        if (visibleRemoved) {
+            dirty = true;
+        }
+    }
+
+    private void removeSlot(final int slot) {
+        removeId(slot);
+        unlinkCell(slot);
+        ids[slot] = null;
+        features[slot] = null;
+        free[freeCount++] = slot;
+    }
+
+    private static long cellOf(final double lat, final double lon) {
+        return cellKey((long) Math.floor(lat / CELL_DEGREES), (long) Math.floor(lon / CELL_DEGREES));
+    }
+
+    private static long cellKey(final long row, final long col) {
+        return (row << 32) ^ (col & 0xFFFFFFFFL);
+    }
+
+    private void linkCell(final int slot, final long cell) {
+        cells[slot] = cell;
+        cellPrev[slot] = NONE;
+        final int[] head = cellHeads.get(cell);
+        if (head == null) {
+            cellNext[slot] = NONE;
+            cellHeads.put(cell, new int[]{slot});
+        } else {
+            cellNext[slot] = head[0];
+            cellPrev[head[0]] = slot;
+            head[0] = slot;
+        }
+    }
+
+    private void unlinkCell(final int slot) {
+        final int prev = cellPrev[slot];
+        final int next = cellNext[slot];
+        if (next != NONE) {
+            cellPrev[next] = prev;
+        }
+        if (prev != NONE) {
+            cellNext[prev] = next;
+        } else if (next == NONE) {
+            cellHeads.remove(cells[slot]);
+        } else {
+            cellHeads.get(cells[slot])[0] = next;
+        }
+    }
+
+    private int ideal(final String id) {
+        final int h = id.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & idMask;
+    }
+
+    private int find(final String id) {
+        for (int i = ideal(id); idTable[i] != 0; i = (i + 1) & idMask) {
+            final int slot = idTable[i] - 1;
+            if (ids[slot].equals(id)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private void insertId(final int slot) {
+        int i = ideal(ids[slot]);
+        while (idTable[i] != 0) {
+            i = (i + 1) & idMask;
+        }
+        idTable[i] = slot + 1;
+    }
+
+    private void removeId(final int slot) {
+        int hole = ideal(ids[slot]);
+        while (idTable[hole] != slot + 1) {
+            hole = (hole + 1) & idMask;
+        }
+        idTable[hole] = 0;
+        // shift back later entries of the probe run, as in LongObjectHashMap
+        for (int i = (hole + 1) & idMask; idTable[i] != 0; i = (i + 1) & idMask) {
+            final int home = ideal(ids[idTable[i] - 1]);
+            if (((i - home) & idMask) >= ((i - hole) & idMask)) {
+                idTable[hole] = idTable[i];
+                idTable[i] = 0;
+                hole = i;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package net.wigle.wigleandroid.model;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing long-to-object map, optionally bounded with least-recently-used eviction.
+ * Keys sit in a long[] (no boxing, no per-entry node objects), probing is linear, and deletes shift
+ * the probe run back instead of leaving tombstones, so a full cache churning entries stays fast.
+ * Recency is an intrusive doubly-linked list over slot indexes.
+ * Not thread safe: meant for state owned by one thread, like the db writer's caches.
+ * Null values aren't allowed.
+ * @param <V> value
+ */
+public final class LongObjectHashMap<V> {
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final int maxSize;
+    private long[] keys;
+    private Object[] values;
+    private int[] before;
+    private int[] after;
+    private int mask;
+    private int shift;
+    private int resizeAt;
+    private int size;
+    private int eldest = NONE;
+    private int newest = NONE;
+
+    /**
+     * unbounded
+     */
+    public LongObjectHashMap() {
+        this( Integer.MAX_VALUE );
+    }
+
+    /**
+     * @param maxSize once full, each new key evicts the least recently used one
+     */
+    public LongObjectHashMap( final int maxSize ) {
+        if ( maxSize < 1 ) {
+            throw new IllegalArgumentException( "maxSize must be positive: " + maxSize );
+        }
+        this.maxSize = maxSize;
+        // bounded maps are sized once, at most half full
+        allocate( maxSize == Integer.MAX_VALUE ? MIN_CAPACITY : tableSizeFor( maxSize ) );
+    }
+
+    public V get( final long key ) {
+        final int slot = find( key );
+        if ( slot == NONE ) {
+            return null;
+        }
+        touch( slot );
+        return value( slot );
+    }
+
+    /**
+     * doesn't count as a use
+     */
+    public boolean containsKey( final long key ) {
+        return find( key ) != NONE;
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    public V put( final long key, final V value ) {
+        if ( value == null ) {
+            throw new NullPointerException();
+        }
+        int slot = ideal( key );
+        while ( values[slot] != null ) {
+            if ( keys[slot] == key ) {
+                final V previous = value( slot );
+                values[slot] = value;
+                touch( slot );
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        link( slot );
+        size++;
+        if ( size > maxSize ) {
+            removeSlot( eldest );
+        }
+        else if ( size > resizeAt ) {
+            allocate( keys.length * 2 );
+        }
+        return null;
+    }
+
+    public V remove( final long key ) {
+        final int slot = find( key );
+        if ( slot == NONE ) {
+            return null;
+        }
+        final V previous = value( slot );
+        removeSlot( slot );
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill( values, null );
+        size = 0;
+        eldest = NONE;
+        newest = NONE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    private int find( final long key ) {
+        int slot = ideal( key );
+        while ( values[slot] != null ) {
+            if ( keys[slot] == key ) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int ideal( final long key ) {
+        // fibonacci hashing: top bits of the product, MACs from one vendor differ only in their low bytes
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value( final int slot ) {
+        return (V) values[slot];
+    }
+
+    private void link( final int slot ) {
+        before[slot] = newest;
+        after[slot] = NONE;
+        if ( newest == NONE ) {
+            eldest = slot;
+        }
+        else {
+            after[newest] = slot;
+        }
+        newest = slot;
+    }
+
+    private void unlink( final int slot ) {
+        final int prev = before[slot];
+        final int next = after[slot];
+        if ( prev == NONE ) {
+            eldest = next;
+        }
+        else {
+            after[prev] = next;
+        }
+        if ( next == NONE ) {
+            newest = prev;
+        }
+        else {
+            before[next] = prev;
+        }
+    }
+
+    private void touch( final int slot ) {
+        if ( slot != newest ) {
+            unlink( slot );
+            link( slot );
+        }
+    }
+
+    private void removeSlot( int hole ) {
+        unlink( hole );
+        values[hole] = null;
+        size--;
+        // pull back any later entry in this probe run that's allowed to sit in the hole
+        int slot = hole;
+        while ( true ) {
+            slot = (slot + 1) & mask;
+            if ( values[slot] == null ) {
+                return;
+            }
+            final int home = ideal( keys[slot] );
+            if ( ((slot - home) & mask) >= ((slot - hole) & mask) ) {
+                move( slot, hole );
+                hole = slot;
+            }
+        }
+    }
+
+    private void move( final int from, final int to ) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        values[from] = null;
+        final int prev = before[from];
+        final int next = after[from];
+        before[to] = prev;
+        after[to] = next;
+        if ( prev == NONE ) {
+            eldest = to;
+        }
+        else {
+            after[prev] = to;
+        }
+        if ( next == NONE ) {
+            newest = to;
+        }
+        else {
+            before[next] = to;
+        }
+    }
+
+    private void allocate( final int capacity ) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final int[] oldAfter = after;
+        final int oldEldest = eldest;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+        before = new int[capacity];
+        after = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros( capacity );
+        resizeAt = capacity / 2;
+        size = 0;
+        eldest = NONE;
+        newest = NONE;
+
+        // re-insert oldest first, so recency order survives the resize
+        if ( oldKeys != null ) {
+            for ( int slot = oldEldest; slot != NONE; slot = oldAfter[slot] ) {
+                int to = ideal( oldKeys[slot] );
+                while ( values[to] != null ) {
+                    to = (to + 1) & mask;
+                }
+                keys[to] = oldKeys[slot];
+                values[to] = oldValues[slot];
+                link( to );
+                size++;
+            }
+        }
+    }
+
+    private static int tableSizeFor( final int entries ) {
+        final long wanted = Math.max( MIN_CAPACITY, (long) entries * 2 );
+        if ( wanted >= (1 << 30) ) {
+            return 1 << 30;
+        }
+        return Integer.highestOneBit( (int) wanted - 1 ) << 1;
+    }
+}
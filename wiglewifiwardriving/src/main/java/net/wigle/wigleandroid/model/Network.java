@@ -15,6 +15,7 @@ import com.google.maps.android.clustering.ClusterItem;
 
 import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.util.Logging;
+import net.wigle.wigleandroid.util.MacAddress;
 
 /**
  * network data. not thread-safe.
@@ -40,6 +41,7 @@ public final class Network implements ClusterItem {
 
 
     private final String bssid;
+    private final long bssidKey;
     private String ssid;
     private String capabilities;
     private final String showCapabilities;
@@ -82,6 +84,9 @@ public final class Network implements ClusterItem {
     public static final int CRYPTO_WPA2 = 3;
     public static final int CRYPTO_WPA3 = 4;
 
+    /** "no channel" for the unboxed channel lookups */
+    public static final int NO_CHANNEL = Integer.MIN_VALUE;
+
     public enum CryptoType {
         None(CRYPTO_NONE), WEP(CRYPTO_WEP), WPA(CRYPTO_WPA), WPA2(CRYPTO_WPA2), WPA3(CRYPTO_WPA3);
         private final int value;
@@ -149,6 +154,7 @@ public final class Network implements ClusterItem {
                     final int level, final NetworkType type, final List<String> bleServiceUuid16s, Integer bleMfgrId,
                     final LatLng latLng, final Long lastTime, final Integer bleAddressType, final Boolean passpoint ) {
         this.bssid = ( bssid == null ) ? "" : bssid.toLowerCase(Locale.US);
+        this.bssidKey = MacAddress.pack( this.bssid );
         this.ssid = ( ssid == null ) ? "" : ssid;
         this.frequency = frequency;
         this.capabilities = ( capabilities == null ) ? "" : capabilities;
@@ -235,6 +241,13 @@ public final class Network implements ClusterItem {
         return bssid;
     }
 
+    /**
+     * @return the bssid packed by MacAddress, or MacAddress.NOT_A_MAC for cells
+     */
+    public long getBssidKey() {
+        return bssidKey;
+    }
+
     public String getSsid() {
         return ssid;
     }
@@ -428,11 +441,8 @@ public final class Network implements ClusterItem {
                 return bleMfgr;
             }
         }
-        final String lookup = getBssid().replace(":", "").toUpperCase(Locale.ROOT);
-        if (oui != null && lookup.length() >= 9) {
-            retval = oui.getOui(lookup.substring(0, 9));
-            if (retval == null) retval = oui.getOui(lookup.substring(0, 7));
-            if (retval == null) retval = oui.getOui(lookup.substring(0, 6));
+        if (oui != null) {
+            retval = oui.resolve(getBssid());
         }
         return retval == null ? "" : retval;
     }
@@ -545,12 +555,39 @@ public final class Network implements ClusterItem {
         }
     }
 
+    /**
+     * the channel a Network of this type and frequency would report, without constructing one
+     * @param type the network type
+     * @param frequency the frequency in MHz (or *FCN for cell types)
+     * @return the channel value, or NO_CHANNEL if there is none
+     */
+    public static int channelForTypeAndFrequency(final NetworkType type, final int frequency) {
+        if (NetworkType.WIFI.equals(type)) {
+            return wiFiChannelForFrequencyMhz(frequency);
+        } else if (NetworkType.BLE.equals(type) || NetworkType.BT.equals(type)) {
+            return NO_CHANNEL;
+        } else if (frequency != 0 && frequency != Integer.MAX_VALUE) {
+            return frequency;
+        }
+        return NO_CHANNEL;
+    }
+
     /**
      * credit to int ieee80211_freq_khz_to_channel(u32 freq) - https://github.com/torvalds/linux/blob/ba31f97d43be41ca99ab72a6131d7c226306865f/net/wireless/util.c#L141
      * @param frequencyMHz the frequency in MHz for which to determine the channel
      * @return the channel value for the frequency
      */
     public static Integer channelForWiFiFrequencyMhz(final int frequencyMHz) {
+        final int channel = wiFiChannelForFrequencyMhz(frequencyMHz);
+        return channel == NO_CHANNEL ? null : channel;
+    }
+
+    /**
+     * unboxed channelForWiFiFrequencyMhz
+     * @param frequencyMHz the frequency in MHz for which to determine the channel
+     * @return the channel value for the frequency, or NO_CHANNEL
+     */
+    public static int wiFiChannelForFrequencyMhz(final int frequencyMHz) {
         //NOTE: we're not storing band information here, we probably should be
 
         if (frequencyMHz == 2484) {
@@ -572,7 +609,7 @@ public final class Network implements ClusterItem {
         } else if (frequencyMHz >= 58320 && frequencyMHz <= 70200) {
             return (frequencyMHz - 56160) / 2160;
         } else {
-            return null;
+            return NO_CHANNEL;
         }
     }
 }
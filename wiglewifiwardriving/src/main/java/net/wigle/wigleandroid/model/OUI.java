@@ -3,25 +3,222 @@ package net.wigle.wigleandroid.model;
 import android.content.res.AssetManager;
 
 import net.wigle.wigleandroid.util.Logging;
+import net.wigle.wigleandroid.util.LookupTable;
+import net.wigle.wigleandroid.util.MacAddress;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * IEEE registry names by MAC prefix, from the oui.bin table that build.gradle compiles out of
+ * etc/oui/oui.properties.
+ * Nothing is loaded until the first lookup (or prefetch), which maps the table on a background
+ * thread; lookups come back null at once until it's done, and whenLoaded callbacks let a list
+ * redraw the rows drawn in the meantime.
+ * Full addresses resolve longest-prefix first across the MA-S (36 bit), MA-M (28 bit) and MA-L
+ * (24 bit) blocks, with a small LRU of recent answers in front for the list adapters redrawing
+ * the same rows every scan.
+ */
 public final class OUI {
-    private final Properties properties = new Properties();
+    public static final String TABLE_ASSET = "oui.bin";
+    /** hex digits in a full MAC */
+    private static final int MAC_DIGITS = 12;
+    /** MA-S, MA-M, MA-L: longest first */
+    private static final int[] BLOCK_DIGITS = {9, 7, 6};
+    private static final int CACHE_SIZE = 512;
+    /** cached "no match", since the cache can't hold nulls */
+    private static final String NO_MATCH = "";
+
+    private static final Executor LOADER = command -> {
+        final Thread t = new Thread(command, "oui-loader");
+        t.setDaemon(true);
+        t.start();
+    };
+
+    private final FutureTask<LookupTable> load;
+    private final Executor executor;
+    private final AtomicBoolean loadStarted = new AtomicBoolean();
+    private final LongObjectHashMap<String> recent = new LongObjectHashMap<>(CACHE_SIZE);
+    /** run once the load finishes; null after that */
+    private List<Runnable> loadListeners = new ArrayList<>();
+    private volatile LookupTable table;
+    private volatile boolean loadFailed;
+    private long hitCount;
+    private long missCount;
+
     public OUI(final AssetManager assetManager) {
-        try (InputStreamReader isr = new InputStreamReader(assetManager.open("oui.properties"), StandardCharsets.UTF_8)) {
-            properties.load(isr);
-            Logging.info("oui load complete");
+        this(() -> {
+            final long start = System.currentTimeMillis();
+            final LookupTable loaded = LookupTable.fromAsset(assetManager, TABLE_ASSET);
+            Logging.info("oui load complete: " + loaded.size() + " prefixes in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return loaded;
+        }, LOADER);
+    }
+
+    OUI(final Callable<LookupTable> loader, final Executor executor) {
+        this.load = new FutureTask<LookupTable>(loader) {
+            @Override
+            protected void done() {
+                loaded(this);
+            }
+        };
+        this.executor = executor;
+    }
+
+    private void loaded(final FutureTask<LookupTable> task) {
+        try {
+            table = task.get();
+        } catch (ExecutionException ex) {
+            loadFailed = true;
+            Logging.error("exception loading oui: " + ex.getCause(), ex.getCause());
+        } catch (CancellationException | InterruptedException ex) {
+            loadFailed = true;
+        }
+        final List<Runnable> listeners;
+        synchronized (this) {
+            listeners = loadListeners;
+            loadListeners = null;
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
         }
-        catch (final IOException ex) {
-            Logging.error("exception loading oui: " + ex, ex);
+    }
+
+    /**
+     * start mapping the table in the background if that hasn't happened yet
+     */
+    public void prefetch() {
+        if (loadStarted.compareAndSet(false, true)) {
+            executor.execute(load);
         }
     }
 
+    public boolean isLoaded() {
+        return table != null;
+    }
+
+    /**
+     * run listener when the table finishes loading, on the loading thread. Not at all if it already
+     * has: lookups answer from then on.
+     */
+    public void whenLoaded(final Runnable listener) {
+        synchronized (this) {
+            if (loadListeners != null) {
+                loadListeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * @param address a MAC in either case, colon- or dash-separated
+     * @return the registered name for the longest assigned prefix of address, or null
+     */
+    public String resolve(final CharSequence address) {
+        return resolve(MacAddress.parse(address));
+    }
+
+    /**
+     * @param mac a MacAddress-packed address
+     * @return the registered name for the longest assigned prefix of mac, or null
+     */
+    public String resolve(final long mac) {
+        if (!MacAddress.isMac(mac)) {
+            return null;
+        }
+        final LookupTable loaded = table();
+        if (loaded == null) {
+            return null;
+        }
+        // nothing is assigned below 36 bits, so that's all the answer depends on
+        final long cacheKey = mac >>> (4 * (MAC_DIGITS - BLOCK_DIGITS[0]));
+        synchronized (recent) {
+            final String cached = recent.get(cacheKey);
+            if (cached != null) {
+                hitCount++;
+                return cached == NO_MATCH ? null : cached;
+            }
+            missCount++;
+        }
+        String name = null;
+        for (int digits : BLOCK_DIGITS) {
+            name = loaded.get(prefixKey(mac, digits));
+            if (name != null) {
+                break;
+            }
+        }
+        synchronized (recent) {
+            recent.put(cacheKey, name == null ? NO_MATCH : name);
+        }
+        return name;
+    }
+
+    /**
+     * exact match on one prefix, for callers that only care about a particular block size
+     */
     public String getOui(final String partial) {
-        return properties.getProperty(partial);
+        final long key = prefixKey(partial);
+        if (key < 0) {
+            return null;
+        }
+        final LookupTable loaded = table();
+        return loaded == null ? null : loaded.get(key);
+    }
+
+    public long getCacheHitCount() {
+        synchronized (recent) {
+            return hitCount;
+        }
+    }
+
+    public long getCacheMissCount() {
+        synchronized (recent) {
+            return missCount;
+        }
+    }
+
+    private LookupTable table() {
+        final LookupTable loaded = table;
+        if (loaded != null || loadFailed) {
+            return loaded;
+        }
+        prefetch();
+        // set already if the executor ran the load inline; otherwise null until whenLoaded fires
+        return table;
+    }
+
+    /**
+     * Pack a hex MAC prefix into a table key: the prefix bits left-aligned in 48, then 4 bits of
+     * digit count, so prefixes of different lengths never collide. Keep in step with ouiKey in
+     * build.gradle.
+     * @return the key, or -1 if partial isn't 1-12 hex digits
+     */
+    public static long prefixKey(final String partial) {
+        if (partial == null || partial.isEmpty() || partial.length() > MAC_DIGITS) {
+            return -1L;
+        }
+        long bits = 0L;
+        for (int i = 0; i < partial.length(); i++) {
+            final int digit = Character.digit(partial.charAt(i), 16);
+            if (digit < 0) {
+                return -1L;
+            }
+            bits = (bits << 4) | digit;
+        }
+        return (bits << (4 * (MAC_DIGITS - partial.length()) + 4)) | partial.length();
+    }
+
+    /**
+     * the prefixKey of the first digits hex digits of a packed MAC
+     */
+    public static long prefixKey(final long mac, final int digits) {
+        final long mask = ~((1L << (4 * (MAC_DIGITS - digits))) - 1) & 0xFFFFFFFFFFFFL;
+        return ((mac & mask) << 4) | digits;
     }
-}
\ No newline at end of file
+}
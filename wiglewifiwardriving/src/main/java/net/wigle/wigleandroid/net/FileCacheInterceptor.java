@@ -2,21 +2,389 @@ package net.wigle.wigleandroid.net;
 
 import androidx.annotation.NonNull;
 
+import net.wigle.wigleandroid.util.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
 import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
+/**
+ * On-disk cache for WiGLE API GETs, shared by the authed and unauthed clients. Only urls with a
+ * policy are cached; the longest matching url prefix picks the policy.
+ * Within a policy's max age, responses come straight off disk. Past it, but within the
+ * stale-while-revalidate window, the cached copy is returned at once and a background call refreshes
+ * it. Older than that, the request goes out with If-None-Match/If-Modified-Since, and a 304 is
+ * answered from disk. If the network fails, any cached copy is returned however old.
+ * Entries are keyed by url and Authorization, so one account never sees another's stats.
+ * Add it after the auth interceptor, so the key sees the credentials.
+ */
 public class FileCacheInterceptor implements Interceptor {
+    public static final String CACHE_STATUS_HEADER = "X-WiGLE-Cache";
+    public static final String HIT = "hit";
+    public static final String STALE = "stale";
+    public static final String REVALIDATED = "revalidated";
+    public static final String OFFLINE = "offline";
+
+    /** bigger bodies pass through uncached */
+    static final long MAX_ENTRY_BYTES = 2L * 1024 * 1024;
+    /** entries unused for this long are pruned */
+    static final long MAX_ENTRY_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    /** a hit bumps its file's modified time, the use prune goes by, if it's older than this */
+    private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final int MAGIC = 0x57414331; // "WAC1"
+    private static final String SUFFIX = ".json";
+    private static final String[] KEPT_HEADERS = {"Content-Type", "ETag", "Last-Modified", "Date"};
+    private static final AtomicInteger TMP_COUNT = new AtomicInteger();
+
+    private static final class Policy {
+        final long maxAgeMillis;
+        final long staleWhileRevalidateMillis;
+
+        Policy(final long maxAgeMillis, final long staleWhileRevalidateMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+        }
+    }
+
+    private static final class Entry {
+        final long stored;
+        final int code;
+        final String message;
+        final Headers headers;
+        final byte[] body;
+
+        Entry(final long stored, final int code, final String message, final Headers headers, final byte[] body) {
+            this.stored = stored;
+            this.code = code;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final File directory;
+    // longest prefix first
+    private final TreeMap<String, Policy> policies = new TreeMap<>(Collections.reverseOrder());
+    private final Set<Call> revalidations = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean pruned;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong offline = new AtomicLong();
 
+    public FileCacheInterceptor(final File directory) {
+        this.directory = directory;
+    }
 
+    /**
+     * cache GETs under urlPrefix
+     * @param maxAgeMillis served from disk without asking the server
+     * @param staleWhileRevalidateMillis after max age, served from disk while refreshed in the background
+     * @return this
+     */
+    public FileCacheInterceptor policy(final String urlPrefix, final long maxAgeMillis,
+                                       final long staleWhileRevalidateMillis) {
+        synchronized (policies) {
+            policies.put(urlPrefix, new Policy(maxAgeMillis, staleWhileRevalidateMillis));
+        }
+        return this;
+    }
 
     @NonNull
     @Override
     public Response intercept(@NonNull Chain chain) throws IOException {
         final Request request = chain.request();
+        final Policy policy = "GET".equals(request.method()) ? policyFor(request.url().toString()) : null;
+        if (policy == null) {
+            return chain.proceed(request);
+        }
+        prune();
+        final String key = key(request);
+        final File file = new File(directory, key);
+        final Entry cached = read(file);
+        final boolean backgroundRefresh = revalidations.remove(chain.call());
+        if (cached != null && !backgroundRefresh && !request.cacheControl().noCache()) {
+            final long age = System.currentTimeMillis() - cached.stored;
+            if (age < policy.maxAgeMillis) {
+                hits.incrementAndGet();
+                touch(file);
+                return fromCache(request, cached, HIT);
+            }
+            if (age < policy.maxAgeMillis + policy.staleWhileRevalidateMillis) {
+                staleHits.incrementAndGet();
+                touch(file);
+                refreshInBackground(chain.call(), key);
+                return fromCache(request, cached, STALE);
+            }
+        }
+        try {
+            return fromNetwork(chain, request, file, cached);
+        } catch (IOException ex) {
+            if (cached == null || backgroundRefresh) {
+                throw ex;
+            }
+            Logging.warn("API cache: request failed, returning cached value: " + ex.getMessage());
+            offline.incrementAndGet();
+            touch(file);
+            return fromCache(request, cached, OFFLINE);
+        } finally {
+            if (backgroundRefresh) {
+                revalidating.remove(key);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    public long getRevalidatedCount() {
+        return revalidated.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
 
+    public long getOfflineCount() {
+        return offline.get();
+    }
+
+    public String getStats() {
+        return "hits: " + hits.get() + " stale: " + staleHits.get() + " revalidated: " + revalidated.get()
+                + " misses: " + misses.get() + " offline: " + offline.get();
+    }
+
+    private Policy policyFor(final String url) {
+        synchronized (policies) {
+            for (final Map.Entry<String, Policy> entry : policies.entrySet()) {
+                if (url.startsWith(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
         return null;
     }
+
+    private Response fromNetwork(final Chain chain, final Request request, final File file, final Entry cached)
+            throws IOException {
+        Request outgoing = request;
+        if (cached != null) {
+            final Request.Builder conditional = request.newBuilder();
+            final String etag = cached.headers.get("ETag");
+            final String lastModified = cached.headers.get("Last-Modified");
+            if (etag != null) {
+                conditional.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conditional.header("If-Modified-Since", lastModified);
+            }
+            outgoing = conditional.build();
+        }
+        final Response response = chain.proceed(outgoing);
+        if (response.code() == 304 && cached != null) {
+            response.close();
+            revalidated.incrementAndGet();
+            final Entry refreshed = new Entry(System.currentTimeMillis(), cached.code, cached.message,
+                    cached.headers, cached.body);
+            write(file, refreshed);
+            return fromCache(request, refreshed, REVALIDATED);
+        }
+        final ResponseBody body = response.body();
+        if (response.code() != 200 || body == null || body.contentLength() > MAX_ENTRY_BYTES
+                || body.source().request(MAX_ENTRY_BYTES + 1)) {
+            // request() buffered what it read, so the body is still whole for the caller
+            misses.incrementAndGet();
+            return response;
+        }
+        final byte[] bytes = body.bytes();
+        final Headers.Builder kept = new Headers.Builder();
+        for (final String name : KEPT_HEADERS) {
+            final String value = response.header(name);
+            if (value != null) {
+                kept.add(name, value);
+            }
+        }
+        write(file, new Entry(System.currentTimeMillis(), response.code(), response.message(), kept.build(), bytes));
+        misses.incrementAndGet();
+        return response.newBuilder()
+                .request(request)
+                .body(ResponseBody.create(bytes, body.contentType()))
+                .build();
+    }
+
+    private void refreshInBackground(final Call call, final String key) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        // the clone comes back through here; being in revalidations sends it to the network
+        final Call refresh = call.clone();
+        revalidations.add(refresh);
+        refresh.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call c, @NonNull IOException e) {
+                revalidations.remove(c);
+                revalidating.remove(key);
+                Logging.info("API cache: background refresh failed: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(@NonNull Call c, @NonNull Response response) {
+                response.close();
+            }
+        });
+    }
+
+    private static Response fromCache(final Request request, final Entry entry, final String status) {
+        final String contentType = entry.headers.get("Content-Type");
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(entry.code)
+                .message(entry.message)
+                .headers(entry.headers)
+                .header(CACHE_STATUS_HEADER, status)
+                .body(ResponseBody.create(entry.body, contentType == null ? null : MediaType.parse(contentType)))
+                .build();
+    }
+
+    static String key(final Request request) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(request.url().toString().getBytes(StandardCharsets.UTF_8));
+            final String auth = request.header("Authorization");
+            if (auth != null) {
+                sha1.update((byte) 0);
+                sha1.update(auth.getBytes(StandardCharsets.UTF_8));
+            }
+            final byte[] digest = sha1.digest();
+            final StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (final byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("no SHA-1", ex);
+        }
+    }
+
+    private static Entry read(final File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            final long stored = in.readLong();
+            final int code = in.readInt();
+            final String message = in.readUTF();
+            final Headers.Builder headers = new Headers.Builder();
+            for (int i = in.readInt(); i > 0; i--) {
+                headers.add(in.readUTF(), in.readUTF());
+            }
+            final byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(stored, code, message, headers.build(), body);
+        } catch (IOException ex) {
+            Logging.warn("API cache: dropping unreadable " + file.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * mark an entry used: prune goes by modified time, and reads don't change it
+     */
+    private static void touch(final File file) {
+        final long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL_MILLIS && !file.setLastModified(now)) {
+            Logging.warn("API cache: unable to touch " + file.getName());
+        }
+    }
+
+    private void write(final File file, final Entry entry) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logging.warn("API cache: unable to create " + directory);
+            return;
+        }
+        // write aside and rename over, so a reader never sees half an entry
+        final File tmp = new File(directory, file.getName() + "." + TMP_COUNT.incrementAndGet() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(entry.stored);
+                out.writeInt(entry.code);
+                out.writeUTF(entry.message);
+                out.writeInt(entry.headers.size());
+                for (int i = 0; i < entry.headers.size(); i++) {
+                    out.writeUTF(entry.headers.name(i));
+                    out.writeUTF(entry.headers.value(i));
+                }
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException ex) {
+            Logging.warn("API cache: unable to write " + file.getName() + ": " + ex.getMessage());
+            if (tmp.exists() && !tmp.delete()) {
+                Logging.warn("API cache: unable to delete " + tmp);
+            }
+        }
+    }
+
+    /**
+     * once per process, on a network thread: drop long-unused entries and any temp files left with them
+     */
+    private void prune() {
+        if (pruned) {
+            return;
+        }
+        pruned = true;
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - MAX_ENTRY_AGE_MILLIS;
+        for (final File file : files) {
+            if (file.lastModified() < cutoff && !file.delete()) {
+                Logging.warn("API cache: unable to prune " + file);
+            }
+        }
+    }
 }
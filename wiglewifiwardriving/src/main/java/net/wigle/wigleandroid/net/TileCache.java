@@ -0,0 +1,485 @@
+package net.wigle.wigleandroid.net;
+
+import net.wigle.wigleandroid.util.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache for map overlay tiles. Each tile is a file named by the SHA-1 of its zoom/x/y and
+ * everything else that changes the image (date range, mine/not mine, resolution, account), holding
+ * the validators and fetch time ahead of the image bytes.
+ * Fresh tiles come straight off disk; stale ones are revalidated with If-None-Match/If-Modified-Since,
+ * and when the network is gone any cached copy is served, however old. Concurrent requests for one
+ * tile share one download, each download queues its eight neighbours for a background prefetch, and
+ * the least recently used files go once the directory passes its byte budget.
+ * Thread safe: the map calls getTile from several tile threads at once.
+ */
+public final class TileCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_FRESH_MILLIS = TimeUnit.HOURS.toMillis(6);
+    /** overlay tiles are a few KB; anything past this isn't cached, and a stored length past it is corrupt */
+    static final int MAX_TILE_BYTES = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x57544331; // "WTC1"
+    private static final String SUFFIX = ".tile";
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 64;
+    private static final AtomicInteger TMP_COUNT = new AtomicInteger();
+
+    /**
+     * one overlay configuration: builds tile urls and says what makes its images distinct
+     */
+    public interface TileSource {
+        /**
+         * everything besides zoom/x/y that changes the image; part of the cache key
+         */
+        String variant();
+
+        URL url(int zoom, int x, int y) throws IOException;
+
+        /**
+         * add auth, user agent, etc.
+         */
+        void prepare(HttpURLConnection connection);
+    }
+
+    interface Fetcher {
+        /**
+         * @param etag null if none cached
+         * @param lastModified null if none cached
+         */
+        Fetched fetch(TileSource source, URL url, String etag, String lastModified) throws IOException;
+    }
+
+    static final class Fetched {
+        final int code;
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        Fetched(final int code, final byte[] body, final String etag, final String lastModified) {
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static final class Entry {
+        final long fetched;
+        final String etag;
+        final String lastModified;
+        final byte[] data;
+
+        Entry(final long fetched, final String etag, final String lastModified, final byte[] data) {
+            this.fetched = fetched;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final long freshMillis;
+    private final Fetcher fetcher;
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> prefetchQueued = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // file name -> size, least recently used first
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private boolean indexLoaded;
+    private ThreadPoolExecutor prefetcher;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong offline = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+
+    public TileCache(final File directory) {
+        this(directory, DEFAULT_MAX_BYTES, DEFAULT_FRESH_MILLIS, TileCache::httpFetch);
+    }
+
+    TileCache(final File directory, final long maxBytes, final long freshMillis, final Fetcher fetcher) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.freshMillis = freshMillis;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * @return the image, or an empty array if there isn't one and none is cached
+     */
+    public byte[] getTile(final TileSource source, final int zoom, final int x, final int y) {
+        final byte[] data = load(source, zoom, x, y);
+        prefetchNeighbors(source, zoom, x, y);
+        return data;
+    }
+
+    /**
+     * hit/revalidated/download/offline/prefetch counts
+     */
+    public String getStats() {
+        return "hits: " + hits.get() + " revalidated: " + revalidated.get() + " downloads: " + downloads.get()
+                + " offline: " + offline.get() + " prefetches: " + prefetches.get()
+                + " bytes: " + getTotalBytes() + "/" + maxBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getRevalidatedCount() {
+        return revalidated.get();
+    }
+
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    public long getOfflineCount() {
+        return offline.get();
+    }
+
+    public synchronized long getTotalBytes() {
+        loadIndex();
+        return totalBytes;
+    }
+
+    public void shutdown() {
+        final ThreadPoolExecutor pool;
+        synchronized (this) {
+            pool = prefetcher;
+            prefetcher = null;
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    static String fileName(final String variant, final int zoom, final int x, final int y) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = sha1.digest((zoom + "/" + x + "/" + y + "/" + variant)
+                    .getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (final byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("no SHA-1", ex);
+        }
+    }
+
+    private byte[] load(final TileSource source, final int zoom, final int x, final int y) {
+        final String name = fileName(source.variant(), zoom, x, y);
+        FutureTask<byte[]> task = new FutureTask<>(() -> fetchOrRead(source, name, zoom, x, y));
+        final FutureTask<byte[]> running = inFlight.putIfAbsent(name, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(name, task);
+            }
+        } else {
+            // someone else is already on it, e.g. a prefetch
+            task = running;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new byte[0];
+        } catch (ExecutionException ex) {
+            Logging.error("tile cache: failed loading " + zoom + "/" + x + "/" + y, ex.getCause());
+            return new byte[0];
+        }
+    }
+
+    private byte[] fetchOrRead(final TileSource source, final String name, final int zoom, final int x,
+                               final int y) throws IOException {
+        final File file = new File(directory, name);
+        final Entry cached = read(file);
+        final long now = System.currentTimeMillis();
+        if (cached != null && now - cached.fetched < freshMillis) {
+            hits.incrementAndGet();
+            touch(name);
+            return cached.data;
+        }
+        final Fetched fetched;
+        try {
+            fetched = fetcher.fetch(source, source.url(zoom, x, y),
+                    cached == null ? null : cached.etag, cached == null ? null : cached.lastModified);
+        } catch (IOException ex) {
+            if (cached != null) {
+                offline.incrementAndGet();
+                touch(name);
+                return cached.data;
+            }
+            Logging.warn("tile cache: unable to fetch " + zoom + "/" + x + "/" + y + ": " + ex.getMessage());
+            return new byte[0];
+        }
+        if (fetched.code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            revalidated.incrementAndGet();
+            write(file, name, new Entry(now, fetched.etag != null ? fetched.etag : cached.etag,
+                    fetched.lastModified != null ? fetched.lastModified : cached.lastModified, cached.data));
+            return cached.data;
+        }
+        if (fetched.code != HttpURLConnection.HTTP_OK) {
+            // server trouble: an old tile beats a hole in the overlay
+            if (cached != null) {
+                offline.incrementAndGet();
+                return cached.data;
+            }
+            return new byte[0];
+        }
+        downloads.incrementAndGet();
+        write(file, name, new Entry(now, fetched.etag, fetched.lastModified, fetched.body));
+        return fetched.body;
+    }
+
+    private void prefetchNeighbors(final TileSource source, final int zoom, final int x, final int y) {
+        final ThreadPoolExecutor pool = prefetchPool();
+        if (pool == null) {
+            return;
+        }
+        final int tiles = 1 << zoom;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                final int ny = y + dy;
+                if ((dx == 0 && dy == 0) || ny < 0 || ny >= tiles) {
+                    continue;
+                }
+                // x wraps around the antimeridian
+                final int nx = ((x + dx) % tiles + tiles) % tiles;
+                final String name = fileName(source.variant(), zoom, nx, ny);
+                if (inFlight.containsKey(name) || isIndexed(name)) {
+                    continue;
+                }
+                if (pool.getQueue().remainingCapacity() == 0) {
+                    // panned on already; the map will ask for what it needs
+                    return;
+                }
+                if (!prefetchQueued.add(name)) {
+                    continue;
+                }
+                prefetches.incrementAndGet();
+                pool.execute(() -> {
+                    try {
+                        load(source, zoom, nx, ny);
+                    } finally {
+                        prefetchQueued.remove(name);
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor prefetchPool() {
+        if (prefetcher == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                        final Thread t = new Thread(r, "tile-prefetch-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+            prefetcher.allowCoreThreadTimeOut(true);
+        }
+        return prefetcher;
+    }
+
+    private static Entry read(final File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            final long fetched = in.readLong();
+            final String etag = in.readUTF();
+            final String lastModified = in.readUTF();
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_TILE_BYTES || length > file.length()) {
+                throw new IOException("bad tile length " + length);
+            }
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            return new Entry(fetched, etag.isEmpty() ? null : etag,
+                    lastModified.isEmpty() ? null : lastModified, data);
+        } catch (IOException ex) {
+            Logging.warn("tile cache: dropping unreadable " + file.getName() + ": " + ex.getMessage());
+        }
+        // a miss; the fetch writes a good copy over it, or it's gone
+        if (!file.delete()) {
+            Logging.warn("tile cache: unable to delete " + file);
+        }
+        return null;
+    }
+
+    private void write(final File file, final String name, final Entry entry) {
+        if (entry.data.length > MAX_TILE_BYTES) {
+            Logging.warn("tile cache: not caching " + entry.data.length + " byte tile " + name);
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logging.warn("tile cache: unable to create " + directory);
+            return;
+        }
+        // write aside and rename over, so a reader never sees half a tile
+        final File tmp = new File(directory, name + "." + TMP_COUNT.incrementAndGet() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(entry.fetched);
+                out.writeUTF(entry.etag == null ? "" : entry.etag);
+                out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException ex) {
+            Logging.warn("tile cache: unable to write " + name + ": " + ex.getMessage());
+            if (tmp.exists() && !tmp.delete()) {
+                Logging.warn("tile cache: unable to delete " + tmp);
+            }
+            return;
+        }
+        added(name, file.length());
+    }
+
+    private synchronized boolean isIndexed(final String name) {
+        loadIndex();
+        // containsKey doesn't count as a use in an access-ordered map
+        return index.containsKey(name);
+    }
+
+    private synchronized void touch(final String name) {
+        loadIndex();
+        index.get(name);
+    }
+
+    private synchronized void added(final String name, final long size) {
+        loadIndex();
+        final Long previous = index.put(name, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        final Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(name)) {
+                continue;
+            }
+            final File file = new File(directory, entry.getKey());
+            if (file.exists() && !file.delete()) {
+                Logging.warn("tile cache: unable to evict " + file);
+                continue;
+            }
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * pick up what earlier runs left, oldest first; recency within a run isn't persisted
+     */
+    private void loadIndex() {
+        if (indexLoaded) {
+            return;
+        }
+        indexLoaded = true;
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final List<File> tiles = new ArrayList<>(files.length);
+        for (final File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                tiles.add(file);
+            } else if (file.getName().endsWith(".tmp") && !file.delete()) {
+                Logging.warn("tile cache: unable to delete " + file);
+            }
+        }
+        final File[] sorted = tiles.toArray(new File[0]);
+        final long[] modified = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            modified[i] = sorted[i].lastModified();
+        }
+        final Integer[] order = new Integer[sorted.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+        for (final Integer i : order) {
+            final long size = sorted[i].length();
+            index.put(sorted[i].getName(), size);
+            totalBytes += size;
+        }
+    }
+
+    private static Fetched httpFetch(final TileSource source, final URL url, final String etag,
+                                     final String lastModified) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            source.prepare(conn);
+            conn.setUseCaches(false);
+            if (etag != null) {
+                conn.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            final int code = conn.getResponseCode();
+            byte[] body = new byte[0];
+            if (code == HttpURLConnection.HTTP_OK) {
+                try (InputStream is = conn.getInputStream()) {
+                    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    final byte[] byteChunk = new byte[4096];
+                    int n;
+                    while ((n = is.read(byteChunk)) > 0) {
+                        baos.write(byteChunk, 0, n);
+                    }
+                    body = baos.toByteArray();
+                }
+            }
+            return new Fetched(code, body, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -35,8 +35,6 @@ import net.wigle.wigleandroid.model.api.UploadsResponse;
 import net.wigle.wigleandroid.model.api.UserStats;
 import net.wigle.wigleandroid.model.api.WiFiSearchResponse;
 import net.wigle.wigleandroid.model.api.WiGLENews;
-import net.wigle.wigleandroid.util.FileAccess;
-import net.wigle.wigleandroid.util.FileUtility;
 import net.wigle.wigleandroid.util.Logging;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 import net.wigle.wigleandroid.util.UrlConfig;
@@ -45,10 +43,7 @@ import org.jetbrains.annotations.NotNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -76,9 +71,7 @@ public class WiGLEApiManager {
     private static final int READ_TIMEOUT_S = 230;
 
     private static final int LOCAL_FAILURE_CODE = 999;
-    private static final String NEWS_CACHE = "news-cache.json";
-    private static final String SITE_STATS_CACHE = "site-stats-cache.json";
-    private static final String USER_STATS_CACHE = "user-stats-cache.json";
+    private static final String API_CACHE_DIR = "api-cache";
 
     public static final String USER_AGENT;
     static {
@@ -103,6 +96,9 @@ public class WiGLEApiManager {
     private final OkHttpClient unauthedClient;
     private final Context context;
 
+    // one per process, shared by every client: a new manager is built on each login
+    private static FileCacheInterceptor cacheInterceptor;
+
     private static final CTInterceptorBuilder ctIB = new CTInterceptorBuilder();
 
     private static final CTLogger ctLogger = new CTLogger() {
@@ -124,6 +120,7 @@ public class WiGLEApiManager {
     public WiGLEApiManager(final SharedPreferences prefs, Context context) {
         super();
         this.context = context;
+        final FileCacheInterceptor cache = getCacheInterceptor(context);
         //authed connection to WiGLE
         this.authedClient = hasAuthed(prefs) ? new OkHttpClient.Builder()
                 .addNetworkInterceptor(certTransparencyInterceptor)
@@ -139,6 +136,7 @@ public class WiGLEApiManager {
                         return chain.proceed(requestWithUserAgent);
                     }
                 })
+                .addInterceptor(cache)
                 .connectTimeout(CONN_TIMEOUT_S, TimeUnit.SECONDS)
                 .writeTimeout(WRITE_TIMEOUT_S, TimeUnit.SECONDS)
                 .readTimeout(READ_TIMEOUT_S, TimeUnit.SECONDS).build():null;
@@ -156,6 +154,7 @@ public class WiGLEApiManager {
                         return chain.proceed(requestWithUserAgent);
                     }
                 })
+                .addInterceptor(cache)
                 .connectTimeout(CONN_TIMEOUT_S, TimeUnit.SECONDS)
                 .writeTimeout(WRITE_TIMEOUT_S, TimeUnit.SECONDS)
                 .readTimeout(READ_TIMEOUT_S, TimeUnit.SECONDS).build();
@@ -178,14 +177,6 @@ public class WiGLEApiManager {
             final Handler mainHandler = new Handler(Looper.getMainLooper());
 
             @Override public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                final UserStats s = readCached(USER_STATS_CACHE, context,
-                        UserStats.class);
-                if (null != s) {
-                    Logging.warn("Network request for user stats failed, returning cached value");
-                    completedListener.onTaskSucceeded(s);
-                    mainHandler.post(completedListener::onTaskCompleted);
-                    return;
-                }
                 onCallFailure("Unsuccessful WiGLE user stats request: ", e,
                         completedListener, mainHandler, null);
             }
@@ -200,7 +191,6 @@ public class WiGLEApiManager {
                     } else {
                         if (null != responseBody) {
                             final String responseBodyString = responseBody.string();
-                            cacheResult(responseBodyString, USER_STATS_CACHE, context);
                             completedListener.onTaskSucceeded(new Gson().fromJson(responseBodyString,
                                     UserStats.class));
                         } else {
@@ -227,14 +217,6 @@ public class WiGLEApiManager {
             final Handler mainHandler = new Handler(Looper.getMainLooper());
 
             @Override public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                final WiGLENews s = readCached(NEWS_CACHE, context,
-                        WiGLENews.class);
-                if (null != s) {
-                    Logging.warn("Network request for news failed, returning cached value");
-                    completedListener.onTaskSucceeded(s);
-                    mainHandler.post(completedListener::onTaskCompleted);
-                    return;
-                }
                 onCallFailure("Unsuccessful WiGLE News request: ", e,
                         completedListener, mainHandler, null);
             }
@@ -246,7 +228,6 @@ public class WiGLEApiManager {
                     } else {
                         if (null != responseBody) {
                             final String responseBodyString = responseBody.string();
-                            cacheResult(responseBodyString, NEWS_CACHE, context);
                             completedListener.onTaskSucceeded(new Gson().fromJson(responseBodyString,
                                     WiGLENews.class));
                         } else {
@@ -272,14 +253,6 @@ public class WiGLEApiManager {
             final Handler mainHandler = new Handler(Looper.getMainLooper());
 
             @Override public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                final Map<String,Long> s = readCached(SITE_STATS_CACHE, context,
-                        Map.class);
-                if (null != s) {
-                    Logging.warn("Network request for site stats failed, returning cached value");
-                    completedListener.onTaskSucceeded(s);
-                    mainHandler.post(completedListener::onTaskCompleted);
-                    return;
-                }
                 onCallFailure("Unsuccessful WiGLE News request: ", e,
                         completedListener, mainHandler, null);
             }
@@ -291,7 +264,6 @@ public class WiGLEApiManager {
                     } else {
                         if (null != responseBody) {
                             final String responseBodyString = responseBody.string();
-                            cacheResult(responseBodyString, SITE_STATS_CACHE, context);
                             completedListener.onTaskSucceeded(new Gson().fromJson(responseBodyString,
                                     Map.class));
                         } else {
@@ -618,6 +590,40 @@ public class WiGLEApiManager {
         });
     }
 
+    /**
+     * @return the client uploads go out on: authed if we have credentials
+     */
+    public OkHttpClient getUploadClient() {
+        return authedClient != null ? authedClient : unauthedClient;
+    }
+
+    /**
+     * if configured, clear local DB after successful WifiDB upload
+     */
+    public void clearDatabaseIfConfigured() {
+        try {
+            final SharedPreferences prefs = context.getSharedPreferences(net.wigle.wigleandroid.util.PreferenceKeys.SHARED_PREFS, 0);
+            boolean clearAfter = prefs.getBoolean(net.wigle.wigleandroid.util.PreferenceKeys.PREF_WIFIDB_CLEAR_AFTER_UPLOAD, false);
+            if (clearAfter) {
+                if (ListFragment.lameStatic != null && ListFragment.lameStatic.dbHelper != null) {
+                    ListFragment.lameStatic.dbHelper.clearDatabase();
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(net.wigle.wigleandroid.util.PreferenceKeys.PREF_DB_MARKER, 0L);
+                    editor.apply();
+                    try {
+                        ListFragment.lameStatic.dbHelper.getNetworkCountFromDB();
+                    } catch (Exception dbe) {
+                        Logging.warn("Failed to update network count on DB clear: ", dbe);
+                    }
+                } else {
+                    Logging.warn("Unable to clear DB after upload: ListFragment.lameStatic or dbHelper null");
+                }
+            }
+        } catch (Exception ex) {
+            Logging.error("Error while clearing DB after upload: ", ex);
+        }
+    }
+
     /**
      * Upload a (CSV) file
      * @param filename the file name on-device to upload
@@ -675,28 +681,7 @@ public class WiGLEApiManager {
                                 UploadReseponse r =  new Gson().fromJson(responseBodyString,
                                         UploadReseponse.class);
                             completedListener.onTaskSucceeded(r);
-                            // if configured, clear local DB after successful WifiDB upload
-                            try {
-                                final SharedPreferences prefs = context.getSharedPreferences(net.wigle.wigleandroid.util.PreferenceKeys.SHARED_PREFS, 0);
-                                boolean clearAfter = prefs.getBoolean(net.wigle.wigleandroid.util.PreferenceKeys.PREF_WIFIDB_CLEAR_AFTER_UPLOAD, false);
-                                if (clearAfter) {
-                                    if (ListFragment.lameStatic != null && ListFragment.lameStatic.dbHelper != null) {
-                                        ListFragment.lameStatic.dbHelper.clearDatabase();
-                                        SharedPreferences.Editor editor = prefs.edit();
-                                        editor.putLong(net.wigle.wigleandroid.util.PreferenceKeys.PREF_DB_MARKER, 0L);
-                                        editor.apply();
-                                        try {
-                                            ListFragment.lameStatic.dbHelper.getNetworkCountFromDB();
-                                        } catch (Exception dbe) {
-                                            Logging.warn("Failed to update network count on DB clear: ", dbe);
-                                        }
-                                    } else {
-                                        Logging.warn("Unable to clear DB after upload: ListFragment.lameStatic or dbHelper null");
-                                    }
-                                }
-                            } catch (Exception ex) {
-                                Logging.error("Error while clearing DB after upload: ", ex);
-                            }
+                            clearDatabaseIfConfigured();
                             } catch (JsonSyntaxException e) {
                                 //ALIBI: sometimes java.net.SocketTimeoutException manifests as a JSE here?
                                 //TODO: deserialize failed response to get error and send to onTaskFailed?
@@ -766,33 +751,28 @@ public class WiGLEApiManager {
     }
 
 
-    //TODO: should this be implemented as an interceptor? we'd have to parametereize based on queries...
-    private static void cacheResult(final String result, final String outputFileName, final Context context) {
-        if (outputFileName == null || result == null || result.isEmpty()) return;
-
-        try (FileOutputStream fos = FileUtility.createFile(context, outputFileName, true)) {
-            //DEBUG: Logging.info("writing cache file "+outputFileName);
-            FileAccess.writeFos(fos, result);
-        } catch (final IOException ex) {
-            Logging.error("exception caching result: " + ex, ex);
+    private static synchronized FileCacheInterceptor getCacheInterceptor(final Context context) {
+        if (null == cacheInterceptor) {
+            // fresh enough to skip the network / then served while refreshed in the background
+            cacheInterceptor = new FileCacheInterceptor(new File(context.getCacheDir(), API_CACHE_DIR))
+                    .policy(UrlConfig.NEWS_URL, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(7))
+                    .policy(UrlConfig.SITE_STATS_URL, TimeUnit.MINUTES.toMillis(15), TimeUnit.DAYS.toMillis(1))
+                    .policy(UrlConfig.USER_STATS_URL, TimeUnit.MINUTES.toMillis(5), TimeUnit.DAYS.toMillis(1))
+                    .policy(UrlConfig.RANK_STATS_URL, TimeUnit.MINUTES.toMillis(15), TimeUnit.DAYS.toMillis(1))
+                    // processing status moves along quickly after an upload: always ask, disk only when offline
+                    .policy(UrlConfig.UPLOADS_STATS_URL, 0L, 0L)
+                    .policy(UrlConfig.SEARCH_WIFI_URL, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1))
+                    .policy(UrlConfig.SEARCH_CELL_URL, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1))
+                    .policy(UrlConfig.SEARCH_BT_URL, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1));
         }
+        return cacheInterceptor;
     }
 
-    private static <T> T readCached(final String cacheFile, Context context, Class<T> classOfT) {
-        File file;
-        //DEBUG: Logging.info("reading cache for "+cacheFile);
-        file = new File(context.getCacheDir(), cacheFile);
-        if (!file.exists() || !file.canRead()) {
-            Logging.warn("App-internal cache file doesn't exist or can't be read: " + file);
-            return null;
-        }
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            //DEBUG: Logging.info("read cache for "+cacheFile);
-            return new Gson().fromJson(br, classOfT);
-        } catch (final Exception ex) {
-            Logging.error("Exception reading cache file: " + ex, ex);
-        }
-        return null;
+    /**
+     * @return API response cache counts, or null if nothing has used it yet
+     */
+    public static synchronized String getCacheStats() {
+        return null == cacheInterceptor ? null : cacheInterceptor.getStats();
     }
 
     //As seen in AbstractBackgroundTask - but accessing the MainLooper directly.
@@ -1,6 +1,7 @@
 package net.wigle.wigleandroid.ui;
 
 import net.wigle.wigleandroid.ListFragment;
+import net.wigle.wigleandroid.util.MacAddress;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -46,7 +47,9 @@ public class MacFinderListView {
         for (String address: addresses) {
             String mfgrInfo;
             if (ListFragment.lameStatic.oui != null && address.length() >= 6) {
-                mfgrInfo = ListFragment.lameStatic.oui.getOui(address.replace(":", "").substring(0, 6));
+                mfgrInfo = address.length() == MacAddress.STRING_LENGTH
+                        ? ListFragment.lameStatic.oui.resolve(address)
+                        : ListFragment.lameStatic.oui.getOui(address.replaceAll("[:-]", "").substring(0, 6));
             } else {
                 mfgrInfo = "";
             }
@@ -425,6 +425,41 @@ public class SetBackedNetworkList extends AbstractList<Network> implements List<
         leNets.add(n);
     }
 
+    /**
+     * Swap in one WiFi scan's worth of networks for the current WiFi and cell entries, without a full sort:
+     * the scan's list comes in already sorted by comparator, and is merged into the rest of the list, which
+     * is assumed to be sorted by it too. If the rest has drifted (levels change under it), the merge still
+     * keeps every network, and the next full sort tidies up.
+     * @param sortedWifi this scan's WiFi networks, ordered by comparator
+     * @param comparator the list's current sort
+     */
+    public void mergeCurrentWifi(final List<Network> sortedWifi, final Comparator<Network> comparator) {
+        synchronized (networks) {
+            final List<Network> rest = new ArrayList<>(unsafeNetworks.size());
+            for (Network net : unsafeNetworks) {
+                if (!wifiNets.contains(net) && !cellNets.contains(net)) {
+                    rest.add(net);
+                }
+            }
+            wifiNets.clear();
+            cellNets.clear();
+            unsafeNetworks.clear();
+            int i = 0;
+            int j = 0;
+            while (i < rest.size() || j < sortedWifi.size()) {
+                if (j == sortedWifi.size()
+                        || (i < rest.size() && comparator.compare(sortedWifi.get(j), rest.get(i)) >= 0)) {
+                    unsafeNetworks.add(rest.get(i++));
+                } else {
+                    final Network net = sortedWifi.get(j++);
+                    if (null != net && wifiNets.add(net)) {
+                        unsafeNetworks.add(net);
+                    }
+                }
+            }
+        }
+    }
+
     public void addWiFi(Network n) {
         if (null != n) {
             networks.add(n);
@@ -9,6 +9,8 @@ import static net.wigle.wigleandroid.model.NetworkType.BLE;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -29,6 +31,7 @@ import net.wigle.wigleandroid.util.Logging;
 import net.wigle.wigleandroid.util.PreferenceKeys;
 
 import java.util.Comparator;
+import java.util.List;
 import java.util.regex.Matcher;
 
 /**
@@ -48,6 +51,9 @@ public final class SetNetworkListAdapter extends AbstractListAdapter<Network> {
         if (ListFragment.lameStatic.oui == null) {
             ListFragment.lameStatic.oui = new OUI(context.getAssets());
         }
+        // rows drawn before the table was mapped have no manufacturer yet
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        ListFragment.lameStatic.oui.whenLoaded(() -> mainHandler.post(this::notifyDataSetChanged));
         mainActivity = MainActivity.getMainActivity();
     }
 
@@ -118,6 +124,15 @@ public final class SetNetworkListAdapter extends AbstractListAdapter<Network> {
         notifyDataSetChanged();
     }
 
+    /**
+     * replace the WiFi and cell entries with a WiFi scan's pre-sorted networks, see
+     * {@link SetBackedNetworkList#mergeCurrentWifi}
+     */
+    public void mergeCurrentWifi(final List<Network> sortedWifi, final Comparator<Network> comparator) {
+        networks.mergeCurrentWifi(sortedWifi, comparator);
+        notifyDataSetChanged();
+    }
+
     public void addCell(Network n) {
         networks.addCell(n);
         notifyDataSetChanged();
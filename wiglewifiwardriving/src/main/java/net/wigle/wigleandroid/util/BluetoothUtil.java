@@ -190,35 +190,6 @@ public class BluetoothUtil {
         return new BleAdvertisedData(uuids, name);
     }
 
-    /**
-     * Model class for GATT Characteristic Appearance Category
-     */
-    public static class AppearanceCategory {
-        String name;
-        Map<Integer, String> subcategories;
-
-        public AppearanceCategory(String name, Map<Integer, String> subcategories) {
-            this.name = name;
-            this.subcategories = subcategories;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public void setName(String name) {
-            this.name = name;
-        }
-
-        public Map<Integer, String> getSubcategories() {
-            return subcategories;
-        }
-
-        public void setSubcategory(Map<Integer, String> subcategories) {
-            this.subcategories = subcategories;
-        }
-    }
-
     /**
      * Utility method to get an int for a GATT 16 bit Uint
      * @param bytes the two byte value
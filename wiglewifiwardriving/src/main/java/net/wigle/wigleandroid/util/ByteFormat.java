@@ -0,0 +1,408 @@
+package net.wigle.wigleandroid.util;
+
+import java.math.BigInteger;
+
+/**
+ * Allocation-free ASCII formatting of numbers and timestamps straight into byte arrays.
+ * Output matches a Locale.US NumberFormat (no grouping) and a UTC "yyyy-MM-dd HH:mm:ss" SimpleDateFormat,
+ * or a zoned "yyyy-MM-dd'T'HH:mm:ssZ" one.
+ * Every write method takes the target array and a position, and returns the position after the
+ * written bytes; callers are responsible for making sure there's room (see the MAX_*_BYTES constants).
+ */
+public final class ByteFormat {
+    /** worst case for a long, including sign */
+    public static final int MAX_LONG_BYTES = 20;
+    /** worst case for a double with up to 16 fraction digits (Double.MAX_VALUE has 309 integer digits) */
+    public static final int MAX_DOUBLE_BYTES = 330;
+    /** "yyyy-MM-dd HH:mm:ss" for 4-digit years; a few spare for very far-future times */
+    public static final int MAX_TIMESTAMP_BYTES = 32;
+    /** the same, with a "+hhmm" offset */
+    public static final int MAX_ZONED_TIMESTAMP_BYTES = MAX_TIMESTAMP_BYTES + 5;
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    // U+221E, as formatted by DecimalFormatSymbols
+    private static final byte[] INFINITY = {(byte) 0xE2, (byte) 0x88, (byte) 0x9E};
+
+    private static final long[] POW10 = new long[19];
+
+    // shortest round-trip double digits, after Ulf Adams' Ryu (https://github.com/ulfjack/ryu)
+    // tables are 4 x 31-bit limbs so the multiplications fit in longs without 128-bit math.
+    private static final int DOUBLE_MANTISSA_BITS = 52;
+    private static final long DOUBLE_MANTISSA_MASK = (1L << DOUBLE_MANTISSA_BITS) - 1;
+    private static final int DOUBLE_EXPONENT_MASK = (1 << 11) - 1;
+    private static final int DOUBLE_EXPONENT_BIAS = (1 << 10) - 1;
+    private static final int POS_TABLE_SIZE = 326;
+    private static final int NEG_TABLE_SIZE = 291;
+    private static final int POW5_BITCOUNT = 121;
+    private static final int POW5_INV_BITCOUNT = 122;
+    private static final int QUARTER_BITCOUNT = 31;
+    private static final int[][] POW5_SPLIT = new int[POS_TABLE_SIZE][4];
+    private static final int[][] POW5_INV_SPLIT = new int[NEG_TABLE_SIZE][4];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+
+        final BigInteger mask = BigInteger.ONE.shiftLeft(QUARTER_BITCOUNT).subtract(BigInteger.ONE);
+        for (int i = 0; i < POS_TABLE_SIZE; i++) {
+            final BigInteger pow = BigInteger.valueOf(5).pow(i);
+            final int pow5len = pow.bitLength();
+            for (int j = 0; j < 4; j++) {
+                POW5_SPLIT[i][j] = pow.shiftRight(pow5len - POW5_BITCOUNT + (3 - j) * QUARTER_BITCOUNT)
+                        .and(mask).intValue();
+            }
+            if (i < NEG_TABLE_SIZE) {
+                // floor(log_2 5^i) is pow5len - 1
+                final BigInteger inv = BigInteger.ONE.shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT)
+                        .divide(pow).add(BigInteger.ONE);
+                for (int k = 0; k < 4; k++) {
+                    final BigInteger limb = inv.shiftRight((3 - k) * QUARTER_BITCOUNT);
+                    POW5_INV_SPLIT[i][k] = (k == 0 ? limb : limb.and(mask)).intValue();
+                }
+            }
+        }
+    }
+
+    private ByteFormat() {
+    }
+
+    /**
+     * write a decimal integer
+     */
+    public static int writeLong(final byte[] out, int pos, final long value) {
+        if (value == Long.MIN_VALUE) {
+            // can't be negated; "-9223372036854775808"
+            out[pos++] = '-';
+            out[pos++] = '9';
+            return writeUnsigned(out, pos, 223372036854775808L);
+        }
+        long v = value;
+        if (v < 0) {
+            out[pos++] = '-';
+            v = -v;
+        }
+        return writeUnsigned(out, pos, v);
+    }
+
+    /**
+     * write a double the way NumberFormat.getNumberInstance(Locale.US) does with grouping off
+     * and maximumFractionDigits set: plain notation, shortest round-trip digits, HALF_EVEN rounding
+     * to maxFractionDigits, no trailing fraction zeros, and "-0" for negative values that round to zero.
+     * @param maxFractionDigits at most 17
+     */
+    public static int writeDouble(final byte[] out, int pos, final double value, final int maxFractionDigits) {
+        if (Double.isNaN(value)) {
+            System.arraycopy(NAN, 0, out, pos, NAN.length);
+            return pos + NAN.length;
+        }
+        final long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0) {
+            out[pos++] = '-';
+        }
+        if (Double.isInfinite(value)) {
+            System.arraycopy(INFINITY, 0, out, pos, INFINITY.length);
+            return pos + INFINITY.length;
+        }
+        if ((bits & Long.MAX_VALUE) == 0L) {
+            out[pos++] = '0';
+            return pos;
+        }
+
+        return writeShortest(out, pos, bits, maxFractionDigits);
+    }
+
+    /**
+     * write a UTC "yyyy-MM-dd HH:mm:ss" timestamp (proleptic Gregorian)
+     */
+    public static int writeUtcTimestamp(final byte[] out, int pos, final long epochMillis) {
+        return writeTimestamp(out, pos, epochMillis, (byte) ' ');
+    }
+
+    /**
+     * write a "yyyy-MM-dd'T'HH:mm:ssZ" timestamp, e.g. 2026-10-18T09:30:00-0400
+     * @param offsetMillis the zone's offset from UTC at epochMillis, as from TimeZone.getOffset(long);
+     *                     seconds past the minute are dropped from the "+hhmm", as SimpleDateFormat does
+     */
+    public static int writeZonedTimestamp(final byte[] out, int pos, final long epochMillis, final int offsetMillis) {
+        pos = writeTimestamp(out, pos, epochMillis + offsetMillis, (byte) 'T');
+        int offsetMinutes = offsetMillis / 60000;
+        if (offsetMinutes < 0) {
+            out[pos++] = '-';
+            offsetMinutes = -offsetMinutes;
+        } else {
+            out[pos++] = '+';
+        }
+        pos = writePadded(out, pos, offsetMinutes / 60, 2);
+        return writePadded(out, pos, offsetMinutes % 60, 2);
+    }
+
+    private static int writeTimestamp(final byte[] out, int pos, final long epochMillis, final byte dateTimeSeparator) {
+        final long epochSeconds = Math.floorDiv(epochMillis, 1000L);
+        final long epochDay = Math.floorDiv(epochSeconds, 86400L);
+        final int secondOfDay = (int) (epochSeconds - epochDay * 86400L);
+
+        // civil-from-days, per Howard Hinnant's date algorithms
+        final long z = epochDay + 719468L;
+        final long era = Math.floorDiv(z, 146097L);
+        final long dayOfEra = z - era * 146097L;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year >= 0 && year < 10000) {
+            pos = writePadded(out, pos, (int) year, 4);
+        } else {
+            pos = writeLong(out, pos, year);
+        }
+        out[pos++] = '-';
+        pos = writePadded(out, pos, month, 2);
+        out[pos++] = '-';
+        pos = writePadded(out, pos, day, 2);
+        out[pos++] = dateTimeSeparator;
+        pos = writePadded(out, pos, secondOfDay / 3600, 2);
+        out[pos++] = ':';
+        pos = writePadded(out, pos, (secondOfDay / 60) % 60, 2);
+        out[pos++] = ':';
+        return writePadded(out, pos, secondOfDay % 60, 2);
+    }
+
+    /**
+     * lay out digits * 10^exp in plain notation, rounded HALF_EVEN to maxFractionDigits
+     */
+    private static int writeDecimal(final byte[] out, int pos, long digits, int exp, final int maxFractionDigits) {
+        final int drop = -exp - maxFractionDigits;
+        if (drop > 0) {
+            if (drop > decimalLength(digits)) {
+                digits = 0;
+            } else {
+                final long divisor = POW10[drop];
+                long kept = digits / divisor;
+                final long remainder = digits - kept * divisor;
+                final long half = divisor / 2;
+                if (remainder > half || (remainder == half && (kept & 1L) == 1L)) {
+                    kept++;
+                }
+                digits = kept;
+            }
+            exp += drop;
+        }
+        if (digits == 0) {
+            out[pos++] = '0';
+            return pos;
+        }
+        // drop trailing fraction zeros
+        while (exp < 0 && digits % 10 == 0) {
+            digits /= 10;
+            exp++;
+        }
+
+        if (exp >= 0) {
+            pos = writeUnsigned(out, pos, digits);
+            for (int i = 0; i < exp; i++) {
+                out[pos++] = '0';
+            }
+            return pos;
+        }
+        final int integerDigits = decimalLength(digits) + exp;
+        if (integerDigits <= 0) {
+            out[pos++] = '0';
+            out[pos++] = '.';
+            for (int i = integerDigits; i < 0; i++) {
+                out[pos++] = '0';
+            }
+            return writeUnsigned(out, pos, digits);
+        }
+        // write all digits, then slide the fraction over to make room for the point
+        final int start = pos;
+        pos = writeUnsigned(out, pos, digits);
+        final int point = start + integerDigits;
+        System.arraycopy(out, point, out, point + 1, pos - point);
+        out[point] = '.';
+        return pos + 1;
+    }
+
+    private static int writePadded(final byte[] out, final int pos, int value, final int width) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return pos + width;
+    }
+
+    private static int writeUnsigned(final byte[] out, final int pos, long value) {
+        final int end = pos + decimalLength(value);
+        for (int i = end - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return end;
+    }
+
+    private static int decimalLength(final long v) {
+        int length = 1;
+        while (length < 19 && v >= POW10[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Ryu: find the shortest decimal digits that round-trip to the (finite, non-zero) double, choosing
+     * the closest candidate when there are several, then lay them out. The sign is ignored.
+     */
+    private static int writeShortest(final byte[] out, final int pos, final long bits, final int maxFractionDigits) {
+        final int ieeeExponent = (int) ((bits >>> DOUBLE_MANTISSA_BITS) & DOUBLE_EXPONENT_MASK);
+        final long ieeeMantissa = bits & DOUBLE_MANTISSA_MASK;
+        int e2;
+        final long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS - 2;
+            m2 = ieeeMantissa | (1L << DOUBLE_MANTISSA_BITS);
+        }
+        final boolean acceptBounds = (m2 & 1) == 0;
+
+        // the interval of legal decimal representations
+        final long mv = 4 * m2;
+        final long mp = 4 * m2 + 2;
+        final int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+        final long mm = 4 * m2 - 1 - mmShift;
+
+        // convert to a decimal power base
+        long vr;
+        long vp;
+        long vm;
+        final int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            final int q = Math.max(0, ((e2 * 78913) >>> 18) - 1);
+            final int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            final int i = -e2 + q + k;
+            vr = mulPow5InvDivPow2(mv, q, i);
+            vp = mulPow5InvDivPow2(mp, q, i);
+            vm = mulPow5InvDivPow2(mm, q, i);
+            e10 = q;
+            if (q <= 21) {
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+                } else if (multipleOfPowerOf5(mp, q)) {
+                    vp--;
+                }
+            }
+        } else {
+            final int q = Math.max(0, ((-e2 * 732923) >>> 20) - 1);
+            final int i = -e2 - q;
+            final int k = pow5bits(i) - POW5_BITCOUNT;
+            final int j = q - k;
+            vr = mulPow5DivPow2(mv, i, j);
+            vp = mulPow5DivPow2(mp, i, j);
+            vm = mulPow5DivPow2(mm, i, j);
+            e10 = q + e2;
+            if (q <= 1) {
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        // find the shortest representation in the interval
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        final long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros && acceptBounds) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // round even if the exact number is .....50..0
+                lastRemovedDigit = 4;
+            }
+            output = vr + (((vr == vm && !(vmIsTrailingZeros && acceptBounds)) || lastRemovedDigit >= 5) ? 1 : 0);
+        } else {
+            while (vp / 10 > vm / 10) {
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + ((vr == vm || lastRemovedDigit >= 5) ? 1 : 0);
+        }
+        return writeDecimal(out, pos, output, e10 + removed, maxFractionDigits);
+    }
+
+    private static int pow5bits(final int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    private static boolean multipleOfPowerOf5(long value, final int q) {
+        int count = 0;
+        while (value > 0 && value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count >= q;
+    }
+
+    /**
+     * high bits of m * 5^i / 2^j, with the table holding the top POW5_BITCOUNT bits of 5^i
+     */
+    private static long mulPow5DivPow2(final long m, final int i, final int j) {
+        return mulShift(m, POW5_SPLIT[i], j);
+    }
+
+    private static long mulPow5InvDivPow2(final long m, final int q, final int j) {
+        return mulShift(m, POW5_INV_SPLIT[q], j);
+    }
+
+    private static long mulShift(final long m, final int[] mul, final int j) {
+        // m has at most 55 bits
+        final long mHigh = m >>> 31;
+        final long mLow = m & 0x7fffffffL;
+        final long bits13 = mHigh * mul[0];
+        final long bits03 = mLow * mul[0];
+        final long bits12 = mHigh * mul[1];
+        final long bits02 = mLow * mul[1];
+        final long bits11 = mHigh * mul[2];
+        final long bits01 = mLow * mul[2];
+        final long bits10 = mHigh * mul[3];
+        final long bits00 = mLow * mul[3];
+        final int actualShift = j - 3 * 31 - 21;
+        return ((((((
+                ((bits00 >>> 31) + bits01 + bits10) >>> 31)
+                + bits02 + bits11) >>> 31)
+                + bits03 + bits12) >>> 21)
+                + (bits13 << 10)) >>> actualShift;
+    }
+}
@@ -24,12 +24,14 @@ import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * A collection of tools used in writing files from the application
  */
 public class FileAccess {
+    /**
+     * a new upload file, named .csv.gz but opened uncompressed: the writer gzips it, once
+     */
     public static OutputStream getOutputStream(final Context context, final Bundle bundle,
                                                final Object[] fileFilename, final Uri wifiDbUri)
             throws IOException {
@@ -44,7 +46,7 @@ public class FileAccess {
                 DocumentFile newFile = pickedDir.createFile("application/gzip", filename);
                 if (newFile != null) {
                     bundle.putParcelable(BackgroundGuiHandler.FILE_URI, newFile.getUri());
-                    return new GZIPOutputStream(context.getContentResolver().openOutputStream(newFile.getUri()));
+                    return context.getContentResolver().openOutputStream(newFile.getUri());
                 }
             }
         }
@@ -78,10 +80,9 @@ public class FileAccess {
             bundle.putString( BackgroundGuiHandler.FILEPATH, filePath );
         }
 
-        final FileOutputStream rawFos = (hasSD && null != file) ? new FileOutputStream( file )
+        final FileOutputStream fos = (hasSD && null != file) ? new FileOutputStream( file )
                 : context.openFileOutput( filename, Context.MODE_PRIVATE );
 
-        final GZIPOutputStream fos = new GZIPOutputStream( rawFos );
         fileFilename[0] = file;
         fileFilename[1] = filename;
         return fos;
@@ -30,6 +30,7 @@ public class FileUtility {
     public static final String GZ_EXT = ".gz";
     public final static String CSV_GZ_EXT = CSV_EXT+GZ_EXT;
     public final static String KML_EXT = ".kml";
+    public final static String KMZ_EXT = ".kmz";
     public static final String M8B_FILE_PREFIX = "export";
     public static final String M8B_EXT = ".m8b";
     public static final String SQL_EXT = ".sqlite";
@@ -145,7 +146,7 @@ public class FileUtility {
         }
 
         //TODO: dedupe w/ KmlDownloader.writeSharefile()
-        if (filename.endsWith(KML_EXT)) return createFileInSubdir(context, filename, KML_DIR);
+        if (filename.endsWith(KML_EXT) || filename.endsWith(KMZ_EXT)) return createFileInSubdir(context, filename, KML_DIR);
         if (filename.endsWith(SQL_EXT)) return createFileInSubdir(context, filename, SQLITE_BACKUPS_DIR);
         Logging.info("saving as: "+filename);
 
@@ -260,11 +261,19 @@ public class FileUtility {
     }
 
     public static File getKmlDownloadFile(final Context context, final String fileName, final String localFilePath) {
+        return getKmlDownloadFile(context, fileName, localFilePath, KML_EXT);
+    }
+
+    /**
+     * @param extension KML_EXT or KMZ_EXT
+     */
+    public static File getKmlDownloadFile(final Context context, final String fileName, final String localFilePath,
+                                          final String extension) {
         if (hasSD()) {
             return new File(localFilePath);
         } else {
             File dir = new File(context.getFilesDir(), KML_DIR);
-            File file = new File(dir, fileName + KML_EXT);
+            File file = new File(dir, fileName + extension);
             if (!file.exists()) {
                 Logging.error("file does not exist: " + file.getAbsolutePath());
                 return null;
@@ -0,0 +1,111 @@
+package net.wigle.wigleandroid.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Small lock-free histogram with power-of-two buckets: bucket 0 holds 0, bucket n holds
+ * [2^(n-1), 2^n). Cheap enough to record on every db commit, safe to record from several threads
+ * and to read from the UI meanwhile. Percentiles come back as the upper edge of their bucket.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(2); // count, sum
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(final String name, final String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketFor(value));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long count = totals.get(0);
+        return count == 0 ? 0D : totals.get(1) / (double) count;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return the upper bound of the bucket holding that percentile, or 0 if empty
+     */
+    public long getPercentile(final double percentile) {
+        long count = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(count * (percentile / 100D)));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return per-bucket counts, index n covering [2^(n-1), 2^n)
+     */
+    public long[] getBuckets() {
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totals.set(0, 0);
+        totals.set(1, 0);
+        max.set(0);
+    }
+
+    static int bucketFor(final long value) {
+        return value == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    static long upperBound(final int bucket) {
+        return bucket == 0 ? 0L : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": n=" + getCount() + " mean=" + String.format(Locale.US, "%.1f", getMean())
+                + unit + " p50<=" + getPercentile(50) + unit + " p90<=" + getPercentile(90) + unit
+                + " p99<=" + getPercentile(99) + unit + " max=" + getMax() + unit;
+    }
+}
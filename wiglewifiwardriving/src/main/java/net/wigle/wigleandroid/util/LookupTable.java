@@ -0,0 +1,141 @@
+package net.wigle.wigleandroid.util;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only sorted key to string table, compiled at build time (see compileLookupTables in
+ * build.gradle) and memory-mapped out of the APK, so reference data costs neither parsing at
+ * startup nor heap while it sits unused.
+ * Layout, big-endian:
+ * <pre>
+ *   int   MAGIC
+ *   int   key width in bytes (4 or 8)
+ *   int   entry count
+ *   keys  count x key width, signed, ascending
+ *   int   count x value offset, relative to the start of the pool
+ *   pool  (unsigned short length, UTF-8 bytes) per distinct value
+ * </pre>
+ * Lookups are a binary search over the keys plus one string decode; instances are thread-safe.
+ */
+public final class LookupTable {
+    /** "WLT1" */
+    public static final int MAGIC = 0x574c5431;
+    public static final int HEADER_BYTES = 12;
+
+    private final ByteBuffer buffer;
+    private final int keyBytes;
+    private final int count;
+    private final int offsetsAt;
+    private final int poolAt;
+
+    public LookupTable(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a lookup table");
+        }
+        keyBytes = buffer.getInt(4);
+        count = buffer.getInt(8);
+        if ((keyBytes != 4 && keyBytes != 8) || count < 0) {
+            throw new IOException("bad lookup table header: keyBytes " + keyBytes + " count " + count);
+        }
+        offsetsAt = HEADER_BYTES + count * keyBytes;
+        poolAt = offsetsAt + count * 4;
+        if (poolAt > buffer.capacity()) {
+            throw new IOException("truncated lookup table: " + buffer.capacity() + " < " + poolAt);
+        }
+    }
+
+    /**
+     * Map a table straight out of the APK. That needs the asset stored uncompressed (the "bin"
+     * noCompress entry in build.gradle); a compressed one is read onto the heap instead.
+     */
+    public static LookupTable fromAsset(final AssetManager assets, final String name) throws IOException {
+        try (AssetFileDescriptor afd = assets.openFd(name);
+             FileInputStream in = afd.createInputStream()) {
+            // the mapping stays valid once the channel is closed
+            return new LookupTable(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getDeclaredLength()));
+        } catch (FileNotFoundException ex) {
+            Logging.warn("lookup table " + name + " is compressed, reading it onto the heap: " + ex);
+            try (InputStream in = assets.open(name)) {
+                return new LookupTable(ByteBuffer.wrap(readFully(in)));
+            }
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        final byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String get(final long key) {
+        final int index = indexOf(key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * @return the index of key, or (-(insertion point) - 1) as for Arrays.binarySearch
+     */
+    public int indexOf(final long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midKey = keyAt(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return true if any key falls in [from, to]
+     */
+    public boolean containsRange(final long from, final long to) {
+        final int index = indexOf(from);
+        if (index >= 0) {
+            return true;
+        }
+        final int insertion = -index - 1;
+        return insertion < count && keyAt(insertion) <= to;
+    }
+
+    public long keyAt(final int index) {
+        final int at = HEADER_BYTES + index * keyBytes;
+        return keyBytes == 8 ? buffer.getLong(at) : buffer.getInt(at);
+    }
+
+    public String valueAt(final int index) {
+        final int at = poolAt + buffer.getInt(offsetsAt + index * 4);
+        final int length = buffer.getShort(at) & 0xffff;
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(at + 2);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
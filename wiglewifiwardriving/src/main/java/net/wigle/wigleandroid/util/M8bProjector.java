@@ -0,0 +1,222 @@
+package net.wigle.wigleandroid.util;
+
+import net.wigle.m8b.geodesy.mgrs;
+import net.wigle.m8b.siphash.SipKey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns located-network rows into m8b records: SipHash-2-4 of the MAC sliced to the low bits, and the
+ * MGRS-1000 cell of the location. The reading thread fills primitive batches, a small worker pool
+ * hashes and projects them, and records are handed to the sink on the reading thread in row order,
+ * so the result is the same whatever the thread count. With one thread everything runs inline.
+ * Not thread-safe; one reader.
+ */
+public class M8bProjector implements Closeable {
+    public static final int DEFAULT_BATCH_ROWS = 4096;
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NON_UTM = 1;
+    static final byte STATUS_BAD = 2;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    public interface RecordSink {
+        /**
+         * @param coords holds the MGRS bytes at offset, valid only for the call
+         */
+        void accept(long key, byte[] coords, int offset) throws IOException;
+    }
+
+    private final SipKey sipKey;
+    private final int sliceBits;
+    private final int batchRows;
+    private final int threads;
+    private final RecordSink sink;
+    private final ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+
+    private ExecutorService pool;
+    private Batch batch;
+    private long records;
+    private long nonUtm;
+    private long bad;
+
+    public M8bProjector(final SipKey sipKey, final int sliceBits, final RecordSink sink) {
+        this(sipKey, sliceBits, sink, DEFAULT_BATCH_ROWS, DEFAULT_THREADS);
+    }
+
+    public M8bProjector(final SipKey sipKey, final int sliceBits, final RecordSink sink,
+                        final int batchRows, final int threads) {
+        if (batchRows < 1) {
+            throw new IllegalArgumentException("batchRows must be positive: " + batchRows);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.sipKey = sipKey;
+        this.sliceBits = sliceBits;
+        this.sink = sink;
+        this.batchRows = batchRows;
+        this.threads = threads;
+        this.batch = new Batch(batchRows);
+    }
+
+    public void add(final String bssid, final float lat, final float lon) throws IOException {
+        final Batch current = batch;
+        current.bssids[current.size] = bssid;
+        current.lats[current.size] = lat;
+        current.lons[current.size] = lon;
+        current.size++;
+        if (current.size == batchRows) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * project and deliver everything added so far
+     */
+    public void finish() throws IOException {
+        if (batch.size > 0) {
+            submitBatch();
+        }
+        while (!pending.isEmpty()) {
+            deliverNextBatch();
+        }
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return rows outside the UTM latitudes, -80 to 84
+     */
+    public long getNonUtmCount() {
+        return nonUtm;
+    }
+
+    /**
+     * @return rows skipped for a malformed BSSID or a failed projection
+     */
+    public long getBadCount() {
+        return bad;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        pending.clear();
+    }
+
+    private void submitBatch() throws IOException {
+        final Batch full = batch;
+        batch = new Batch(batchRows);
+        if (threads == 1) {
+            deliver(project(full, sipKey, sliceBits));
+            return;
+        }
+        if (pool == null) {
+            final int poolId = POOL_COUNT.incrementAndGet();
+            final AtomicInteger threadCount = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                final Thread t = new Thread(r, "m8b-" + poolId + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        // two batches queued per worker keeps them busy without buffering the whole table
+        while (pending.size() >= threads * 2) {
+            deliverNextBatch();
+        }
+        pending.add(pool.submit(() -> project(full, sipKey, sliceBits)));
+    }
+
+    private void deliverNextBatch() throws IOException {
+        final Future<Batch> next = pending.poll();
+        if (next == null) {
+            return;
+        }
+        try {
+            deliver(next.get());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting on m8b projection: " + ex);
+        } catch (final ExecutionException ex) {
+            throw new IOException("m8b projection failed", ex.getCause());
+        }
+    }
+
+    private void deliver(final Batch done) throws IOException {
+        for (int i = 0; i < done.size; i++) {
+            switch (done.status[i]) {
+                case STATUS_OK:
+                    sink.accept(done.keys[i], done.coords, i * M8bRecordSorter.MGRS_BYTES);
+                    records++;
+                    break;
+                case STATUS_NON_UTM:
+                    nonUtm++;
+                    break;
+                default:
+                    bad++;
+            }
+        }
+    }
+
+    /**
+     * the per-row kernel, shared by the inline and pooled paths
+     */
+    static Batch project(final Batch batch, final SipKey sipKey, final int sliceBits) {
+        final long k0 = sipKey.getLeftHalf();
+        final long k1 = sipKey.getRightHalf();
+        for (int i = 0; i < batch.size; i++) {
+            final float lat = batch.lats[i];
+            if (!(-80 <= lat && lat <= 84)) {
+                batch.status[i] = STATUS_NON_UTM;
+                continue;
+            }
+            final long mac = MacAddress.parse(batch.bssids[i]);
+            // primitive kernels: no utm/mgrs objects, no SipHash state per row
+            final long cell = !MacAddress.isMac(mac) ? mgrs.NOT_MGRS : mgrs.pack1000(lat, batch.lons[i]);
+            if (cell == mgrs.NOT_MGRS) {
+                //ALIBI: where the object path threw, e.g. ArrayIndexOutOfBoundsException: length=3; index=-2 from geodesy.mgrs.fromUtm(mgrs.java:64)
+                batch.status[i] = STATUS_BAD;
+                continue;
+            }
+            batch.keys[i] = MagicEightUtil.extractLongKeyFrom(mac, k0, k1, sliceBits);
+            mgrs.populateBytes(cell, batch.coords, i * M8bRecordSorter.MGRS_BYTES);
+            batch.status[i] = STATUS_OK;
+        }
+        return batch;
+    }
+
+    static final class Batch {
+        final String[] bssids;
+        final float[] lats;
+        final float[] lons;
+        final long[] keys;
+        final byte[] coords;
+        final byte[] status;
+        int size;
+
+        Batch(final int rows) {
+            bssids = new String[rows];
+            lats = new float[rows];
+            lons = new float[rows];
+            keys = new long[rows];
+            coords = new byte[rows * M8bRecordSorter.MGRS_BYTES];
+            status = new byte[rows];
+        }
+    }
+}
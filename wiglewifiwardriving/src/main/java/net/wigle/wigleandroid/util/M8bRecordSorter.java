@@ -0,0 +1,370 @@
+package net.wigle.wigleandroid.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded-memory builder for MJG v2 (m8b) files: takes (sliced key, MGRS-1000 bytes) records in any
+ * order, sorts and dedupes them a run at a time, spills each run to a file of fixed 13-byte records,
+ * then merges the runs into the final file. Heap use is fixed by the run size, whatever the db size.
+ * Records come out ordered by unsigned key, then by MGRS bytes.
+ */
+public final class M8bRecordSorter implements Closeable {
+    public static final int KEY_BYTES = 4;
+    public static final int MGRS_BYTES = 9;
+    public static final int RECORD_BYTES = KEY_BYTES + MGRS_BYTES;
+    /** 128k records: 2MiB of sort arrays */
+    public static final int DEFAULT_RUN_RECORDS = 1 << 17;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int INSERTION_SORT_MAX = 16;
+
+    public interface ProgressListener {
+        /**
+         * @param percent 0-100, through the merge
+         */
+        void onProgress(int percent);
+    }
+
+    private final File spillDirectory;
+    // a record is two longs: hi = key << 32 | mgrs[0..3], lo = mgrs[4..8]
+    private final long[] hi;
+    private final long[] lo;
+    private int buffered;
+    private long added;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param spillDirectory where run files go; they're deleted on close
+     */
+    public M8bRecordSorter(final File spillDirectory) {
+        this(spillDirectory, DEFAULT_RUN_RECORDS);
+    }
+
+    public M8bRecordSorter(final File spillDirectory, final int runRecords) {
+        if (runRecords < 1) {
+            throw new IllegalArgumentException("runRecords must be positive: " + runRecords);
+        }
+        this.spillDirectory = spillDirectory;
+        hi = new long[runRecords];
+        lo = new long[runRecords];
+    }
+
+    /**
+     * @param key the sliced SipHash key; the low 32 bits are kept
+     * @param mgrs as filled by mgrs.populateBytes
+     */
+    public void add(final long key, final byte[] mgrs) throws IOException {
+        add(key, mgrs, 0);
+    }
+
+    /**
+     * @param offset where the MGRS bytes start in mgrs
+     */
+    public void add(final long key, final byte[] mgrs, final int offset) throws IOException {
+        if (buffered == hi.length) {
+            spill();
+        }
+        final int o = offset;
+        hi[buffered] = (key & 0xFFFFFFFFL) << 32 | (mgrs[o] & 0xFFL) << 24 | (mgrs[o + 1] & 0xFFL) << 16
+                | (mgrs[o + 2] & 0xFFL) << 8 | (mgrs[o + 3] & 0xFFL);
+        lo[buffered] = (mgrs[o + 4] & 0xFFL) << 32 | (mgrs[o + 5] & 0xFFL) << 24 | (mgrs[o + 6] & 0xFFL) << 16
+                | (mgrs[o + 7] & 0xFFL) << 8 | (mgrs[o + 8] & 0xFFL);
+        buffered++;
+        added++;
+    }
+
+    /**
+     * @return records added so far, duplicates included
+     */
+    public long getAddedCount() {
+        return added;
+    }
+
+    /**
+     * @return how many runs have gone to disk
+     */
+    public int getSpillCount() {
+        return runs.size();
+    }
+
+    /**
+     * write the header and every distinct record. Call once, after the last add.
+     * @return the number of records written
+     */
+    public long writeTo(final FileChannel out, final int sliceBits, final ProgressListener listener)
+            throws IOException {
+        if (runs.isEmpty()) {
+            // it all fit: no spill files at all
+            sortRun();
+            writeHeader(out, sliceBits, buffered);
+            final ByteBuffer bb = newRecordBuffer();
+            for (int i = 0; i < buffered; i++) {
+                putRecord(out, bb, hi[i], lo[i]);
+            }
+            drain(out, bb);
+            return buffered;
+        }
+
+        spill();
+        // the header needs the count up front, so merge to a data file first, then copy it in
+        final File merged = File.createTempFile("m8b-merged", ".bin", spillDirectory);
+        try {
+            final long count;
+            try (FileOutputStream mergedOut = new FileOutputStream(merged)) {
+                count = merge(mergedOut.getChannel(), listener);
+            }
+            writeHeader(out, sliceBits, count);
+            try (FileInputStream mergedIn = new FileInputStream(merged)) {
+                final FileChannel in = mergedIn.getChannel();
+                long position = 0;
+                final long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+            return count;
+        } finally {
+            deleteQuietly(merged);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (final File run : runs) {
+            deleteQuietly(run);
+        }
+        runs.clear();
+    }
+
+    static void writeHeader(final FileChannel out, final int sliceBits, final long records) throws IOException {
+        final String header = "MJG\n" // magic number
+                + "2\n" // version
+                + "SIP-2-4\n" // hash
+                + String.format(Locale.US, "%x\n", sliceBits) // slice bits (hex)
+                + "MGRS-1000\n" // coords
+                + Integer.toHexString(KEY_BYTES) + "\n" // id size in bytes (hex)
+                + Integer.toHexString(MGRS_BYTES) + "\n" // coords size in bytes (hex)
+                + String.format(Locale.US, "%x\n", records); // record count (hex)
+        final ByteBuffer bb = ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8));
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+    }
+
+    private long merge(final FileChannel out, final ProgressListener listener) throws IOException {
+        final PriorityQueue<RunReader> heads = new PriorityQueue<>(runs.size(),
+                (a, b) -> compare(a.hi, a.lo, b.hi, b.lo));
+        try {
+            for (final File run : runs) {
+                final RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    heads.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            final ByteBuffer bb = newRecordBuffer();
+            long count = 0;
+            long read = 0;
+            boolean first = true;
+            long lastHi = 0;
+            long lastLo = 0;
+            while (!heads.isEmpty()) {
+                final RunReader reader = heads.poll();
+                if (first || reader.hi != lastHi || reader.lo != lastLo) {
+                    putRecord(out, bb, reader.hi, reader.lo);
+                    lastHi = reader.hi;
+                    lastLo = reader.lo;
+                    first = false;
+                    count++;
+                }
+                read++;
+                if (listener != null && read % IO_BUFFER_SIZE == 0) {
+                    listener.onProgress((int) (read * 100 / added));
+                }
+                if (reader.next()) {
+                    heads.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            drain(out, bb);
+            return count;
+        } finally {
+            for (final RunReader reader : heads) {
+                reader.close();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        sortRun();
+        final File run = File.createTempFile("m8b-run", ".bin", spillDirectory);
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+            for (int i = 0; i < buffered; i++) {
+                out.writeLong(hi[i]);
+                out.writeByte((int) (lo[i] >>> 32));
+                out.writeInt((int) lo[i]);
+            }
+        }
+        buffered = 0;
+    }
+
+    /**
+     * sort the buffered records and squeeze out duplicates
+     */
+    private void sortRun() {
+        sort(0, buffered - 1);
+        if (buffered < 2) {
+            return;
+        }
+        int unique = 1;
+        for (int i = 1; i < buffered; i++) {
+            if (hi[i] != hi[unique - 1] || lo[i] != lo[unique - 1]) {
+                hi[unique] = hi[i];
+                lo[unique] = lo[i];
+                unique++;
+            }
+        }
+        buffered = unique;
+    }
+
+    // quicksort on the parallel arrays, recursing into the smaller side to keep the stack shallow
+    private void sort(int left, int right) {
+        while (right - left > INSERTION_SORT_MAX) {
+            final int middle = (left + right) >>> 1;
+            if (less(middle, left)) {
+                swap(middle, left);
+            }
+            if (less(right, left)) {
+                swap(right, left);
+            }
+            if (less(right, middle)) {
+                swap(right, middle);
+            }
+            final long pivotHi = hi[middle];
+            final long pivotLo = lo[middle];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (compare(hi[i], lo[i], pivotHi, pivotLo) < 0) {
+                    i++;
+                }
+                while (compare(hi[j], lo[j], pivotHi, pivotLo) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (j - left < right - i) {
+                sort(left, j);
+                left = i;
+            } else {
+                sort(i, right);
+                right = j;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            for (int j = i; j > left && less(j, j - 1); j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private boolean less(final int a, final int b) {
+        return compare(hi[a], lo[a], hi[b], lo[b]) < 0;
+    }
+
+    private void swap(final int a, final int b) {
+        final long h = hi[a];
+        hi[a] = hi[b];
+        hi[b] = h;
+        final long l = lo[a];
+        lo[a] = lo[b];
+        lo[b] = l;
+    }
+
+    private static int compare(final long hiA, final long loA, final long hiB, final long loB) {
+        final int byHi = Long.compareUnsigned(hiA, hiB);
+        return byHi != 0 ? byHi : Long.compare(loA, loB);
+    }
+
+    private static ByteBuffer newRecordBuffer() {
+        return ByteBuffer.allocate(IO_BUFFER_SIZE - IO_BUFFER_SIZE % RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putRecord(final FileChannel out, final ByteBuffer bb, final long recordHi,
+                                  final long recordLo) throws IOException {
+        if (bb.remaining() < RECORD_BYTES) {
+            drain(out, bb);
+        }
+        // key is little-endian, the MGRS bytes go as-is
+        bb.putInt((int) (recordHi >>> 32));
+        bb.order(ByteOrder.BIG_ENDIAN);
+        bb.putInt((int) recordHi);
+        bb.put((byte) (recordLo >>> 32));
+        bb.putInt((int) recordLo);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void drain(final FileChannel out, final ByteBuffer bb) throws IOException {
+        bb.flip();
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+        bb.clear();
+    }
+
+    private static void deleteQuietly(final File file) {
+        if (file.exists() && !file.delete()) {
+            Logging.warn("unable to delete m8b temp file: " + file);
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+        private final DataInputStream in;
+        long hi;
+        long lo;
+
+        RunReader(final File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                hi = in.readLong();
+                lo = ((long) in.readUnsignedByte() << 32) | (in.readInt() & 0xFFFFFFFFL);
+                return true;
+            } catch (final EOFException eof) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.wigle.wigleandroid.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * 48-bit MAC addresses (WiFi BSSIDs, BT/BLE addresses) packed into the low bits of a long, so hot-path
+ * caches can key on a primitive instead of the 17-char string. Parse when a BSSID comes in, format
+ * only when it goes back out to the db, a file or the UI.
+ */
+public final class MacAddress {
+    /** returned by pack for anything that isn't a MAC, e.g. cell ids */
+    public static final long NOT_A_MAC = -1L;
+    /** "aa:bb:cc:dd:ee:ff" */
+    public static final int STRING_LENGTH = 17;
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private MacAddress() {
+    }
+
+    /**
+     * Strict on purpose: only the spelling format writes is accepted, so a packed key always stands for
+     * exactly the string it came from. Callers key anything else on the raw string.
+     * @param mac lower-case, colon-separated hex octets: the form Network keeps its bssid in
+     * @return the address in the low 48 bits, or NOT_A_MAC
+     */
+    public static long pack(final CharSequence mac) {
+        if (mac == null || mac.length() != STRING_LENGTH) {
+            return NOT_A_MAC;
+        }
+        long packed = 0L;
+        for (int i = 0; i < STRING_LENGTH; i += 3) {
+            final int high = hexValue(mac.charAt(i));
+            final int low = hexValue(mac.charAt(i + 1));
+            if (high < 0 || low < 0) {
+                return NOT_A_MAC;
+            }
+            if (i + 2 < STRING_LENGTH) {
+                final char separator = mac.charAt(i + 2);
+                if (separator != ':') {
+                    return NOT_A_MAC;
+                }
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    /**
+     * pack for addresses from outside the app's own bssids, e.g. upper-case BT stack addresses, typed-in
+     * filters or rows written before bssids were normalised
+     * @param mac colon- or dash-separated hex octets, either case
+     * @return the address in the low 48 bits, or NOT_A_MAC
+     */
+    public static long parse(final CharSequence mac) {
+        final long packed = pack(mac);
+        if (packed != NOT_A_MAC || mac == null || mac.length() != STRING_LENGTH) {
+            return packed;
+        }
+        return pack(mac.toString().toLowerCase(Locale.US).replace('-', ':'));
+    }
+
+    public static boolean isMac(final long packed) {
+        return (packed & 0xFFFF000000000000L) == 0L;
+    }
+
+    /**
+     * @return lower-case, colon-separated: the form Network keeps its bssid in
+     */
+    public static String format(final long packed) {
+        final byte[] buffer = new byte[STRING_LENGTH];
+        write(buffer, 0, packed);
+        return new String(buffer, 0, STRING_LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * write the lower-case, colon-separated form as ASCII
+     * @return the position after the written bytes
+     */
+    public static int write(final byte[] buffer, int pos, final long packed) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            final int octet = (int) (packed >>> shift) & 0xFF;
+            buffer[pos++] = HEX[octet >>> 4];
+            buffer[pos++] = HEX[octet & 0xF];
+            if (shift > 0) {
+                buffer[pos++] = ':';
+            }
+        }
+        return pos;
+    }
+
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -41,6 +41,14 @@ public class MagicEightUtil {
         return (siph & mask);
     }
 
+    /**
+     * extractLongKeyFrom for a MAC already packed by MacAddress.parse: no byte array, no SipHash state object
+     */
+    public static long extractLongKeyFrom(long mac48, long k0, long k1, int n) {
+        long mask = (1L << n ) - 1;
+        return SipHash.siphash24(k0, k1, mac48) & mask;
+    }
+
     /**
      * return the nybble value of hex char c
      */
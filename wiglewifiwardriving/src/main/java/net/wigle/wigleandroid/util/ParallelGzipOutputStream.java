@@ -0,0 +1,268 @@
+package net.wigle.wigleandroid.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz-style gzip stream: input is cut into fixed-size blocks which are raw-deflated on a small worker
+ * pool and written out in order behind a single gzip header/trailer, so the result is one ordinary
+ * gzip member any GZIPInputStream/zcat can read.
+ * Each block is primed with the last 32KiB of the block before it and ends on a sync flush, so the
+ * ratio stays close to a single-threaded GZIPOutputStream. The CRC is computed on the writing thread.
+ * No worker threads are started until the first block fills; short files deflate inline.
+ * Not thread-safe; one writer.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    // same header GZIPOutputStream writes: magic, deflate, no flags, no mtime, no extra flags, OS 0
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int threads;
+    private final int level;
+    private final CRC32 crc = new CRC32();
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private ExecutorService pool;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private long totalLength;
+    private boolean headerWritten;
+    private boolean finished;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(final OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE, DEFAULT_THREADS);
+    }
+
+    public ParallelGzipOutputStream(final OutputStream out, final int blockSize, final int threads) {
+        this(out, blockSize, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out the destination; closed when this stream is closed
+     * @param blockSize bytes of input per independently-deflated block, at least 32KiB
+     * @param threads worker threads to deflate with
+     * @param level the Deflater compression level
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int blockSize, final int threads,
+                                    final int level) {
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE + ": " + blockSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.threads = threads;
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock(false);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            final int copy = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, copy);
+            blockLength += copy;
+            off += copy;
+            len -= copy;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * write the last block and the gzip trailer without closing the underlying stream
+     * @throws IOException on write or deflate failure
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        ensureOpen();
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        final long crcValue = crc.getValue();
+        final byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, (int) crcValue);
+        writeIntLE(trailer, 4, (int) totalLength);
+        out.write(trailer);
+        finished = true;
+        shutdownPool();
+    }
+
+    /**
+     * flushes what the destination has buffered; input still in the current block is held until the
+     * block fills or the stream is finished, since a partial block would cost ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            closed = true;
+            shutdownPool();
+            out.close();
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        crc.update(block, 0, blockLength);
+        totalLength += blockLength;
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        final byte[] dictionary = previousBlock;
+
+        if (last && pool == null) {
+            // everything fit in one block: no reason to start threads
+            writeHeader();
+            out.write(deflateBlock(input, inputLength, dictionary, true, level));
+            return;
+        }
+        if (pool == null) {
+            final int poolId = POOL_COUNT.incrementAndGet();
+            final AtomicInteger threadCount = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                final Thread t = new Thread(r, "gzip-" + poolId + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        // bound the blocks in memory: two queued per worker keeps them busy without buffering the file
+        while (pending.size() >= threads * 2) {
+            writeNextBlock();
+        }
+        final int taskLevel = level;
+        pending.add(pool.submit(() -> deflateBlock(input, inputLength, dictionary, last, taskLevel)));
+
+        // the submitted block is now read-only: the next block's task uses its tail as a dictionary
+        previousBlock = input;
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeNextBlock() throws IOException {
+        final Future<byte[]> next = pending.poll();
+        if (next == null) {
+            return;
+        }
+        writeHeader();
+        try {
+            out.write(next.get());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting on deflate: " + ex);
+        } catch (final ExecutionException ex) {
+            throw new IOException("deflate failed: " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            out.write(GZIP_HEADER);
+            headerWritten = true;
+        }
+    }
+
+    private void shutdownPool() {
+        if (pool != null) {
+            for (final Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed || finished) {
+            throw new IOException("stream finished");
+        }
+    }
+
+    /**
+     * raw-deflate one block. Non-final blocks end on a sync flush so the next block's output starts on a
+     * byte boundary and the pieces concatenate into one deflate stream.
+     */
+    static byte[] deflateBlock(final byte[] input, final int length, final byte[] dictionary,
+                               final boolean last, final int level) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(input, 0, length);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(final byte[] b, final int off, final int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+        b[off + 2] = (byte) (value >> 16);
+        b[off + 3] = (byte) (value >> 24);
+    }
+}
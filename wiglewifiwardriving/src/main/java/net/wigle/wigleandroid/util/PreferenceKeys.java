@@ -16,6 +16,11 @@ public class PreferenceKeys {
     public static final String PREF_MAX_DB = "maxDbMarker";
     public static final String PREF_ROUTE_DB_RUN = "routeDbRun";
     public static final String PREF_NETS_UPLOADED = "netsUploaded";
+    public static final String PREF_CHUNKED_UPLOAD = "chunkedUpload";
+    public static final String PREF_DB_WAL = "dbWriteAheadLog"; // read when the db is opened
+    public static final String PREF_DB_SYNCHRONOUS = "dbSynchronous"; // OFF, NORMAL or FULL; WAL mode only
+    public static final String PREF_DB_COMMIT_ROWS = "dbCommitRows";
+    public static final String PREF_DB_COMMIT_MILLIS = "dbCommitMillis";
     public static final String PREF_SCAN_PERIOD_STILL = "scanPeriodStill";
     public static final String PREF_SCAN_PERIOD = "scanPeriod";
     public static final String PREF_SCAN_PERIOD_FAST = "scanPeriodFast";
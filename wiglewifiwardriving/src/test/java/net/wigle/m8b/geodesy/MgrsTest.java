@@ -0,0 +1,105 @@
+package net.wigle.m8b.geodesy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class MgrsTest {
+
+    @Test
+    public void testKnownCell() {
+        // Empire State Building
+        final long packed = mgrs.pack1000(40.748440, -73.985664);
+        final byte[] bytes = new byte[9];
+        mgrs.populateBytes(packed, bytes, 0);
+        assertEquals("18TWL8511", new String(bytes, StandardCharsets.US_ASCII));
+        assertEquals(mgrs.NOT_MGRS, mgrs.pack1000(85.0, 10.0));
+        assertEquals(mgrs.NOT_MGRS, mgrs.pack1000(Double.NaN, 10.0));
+        assertEquals(mgrs.NOT_MGRS, mgrs.pack1000(10.0, Double.NaN));
+    }
+
+    @Test
+    public void testPackedMatchesObjects() {
+        final Random random = new Random(1000);
+        final byte[] expected = new byte[9];
+        final byte[] actual = new byte[11];
+        int compared = 0;
+        for (int i = 0; i < 200000; i++) {
+            final double lat;
+            final double lon;
+            switch (i % 4) {
+                case 0:
+                    // float-rounded like the cursor reads them
+                    lat = (float) (random.nextDouble() * 164 - 80);
+                    lon = (float) (random.nextDouble() * 360 - 180);
+                    break;
+                case 1:
+                    // Norway/Svalbard zone exceptions
+                    lat = 56 + random.nextDouble() * 28;
+                    lon = random.nextDouble() * 42;
+                    break;
+                case 2:
+                    // out-of-range longitudes from bad rows
+                    lat = random.nextDouble() * 164 - 80;
+                    lon = random.nextDouble() * 800 - 400;
+                    break;
+                default:
+                    // zone and band edges
+                    lat = Math.round(random.nextDouble() * 20.5) * 8 - 80 + (random.nextDouble() - 0.5) * 1e-9;
+                    lon = Math.round(random.nextDouble() * 60) * 6 - 180 + (random.nextDouble() - 0.5) * 1e-9;
+            }
+            if (!(-80 <= lat && lat <= 84)) {
+                continue;
+            }
+            final long packed = mgrs.pack1000(lat, lon);
+            boolean threw = false;
+            try {
+                mgrs.fromUtm(utm.fromLatLon(lat, lon)).populateBytes(expected);
+            } catch (final IndexOutOfBoundsException ex) {
+                threw = true;
+            }
+            if (threw) {
+                assertEquals(lat + "," + lon, mgrs.NOT_MGRS, packed);
+            } else {
+                assertTrue(lat + "," + lon, packed != mgrs.NOT_MGRS);
+                mgrs.populateBytes(packed, actual, 2);
+                for (int b = 0; b < 9; b++) {
+                    assertEquals(lat + "," + lon, expected[b], actual[b + 2]);
+                }
+                compared++;
+            }
+        }
+        assertTrue(compared > 100000);
+    }
+
+    @Test
+    public void testPackedOrderMatchesBytes() {
+        final Random random = new Random(3);
+        final byte[] a = new byte[9];
+        final byte[] b = new byte[9];
+        for (int i = 0; i < 20000; i++) {
+            final long pa = mgrs.pack1000(random.nextDouble() * 164 - 80, random.nextDouble() * 360 - 180);
+            final long pb = mgrs.pack1000(random.nextDouble() * 164 - 80, random.nextDouble() * 360 - 180);
+            if (pa == mgrs.NOT_MGRS || pb == mgrs.NOT_MGRS) {
+                continue;
+            }
+            mgrs.populateBytes(pa, a, 0);
+            mgrs.populateBytes(pb, b, 0);
+            assertEquals(Integer.signum(compareBytes(a, b)), Integer.signum(Long.compare(pa, pb)));
+        }
+    }
+
+    private static int compareBytes(final byte[] a, final byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            final int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,47 @@
+package net.wigle.m8b.siphash;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SipHashTest {
+
+    @Test
+    public void testReferenceVector() {
+        // SipHash-2-4 paper, appendix A: key 00..0f, message 00..0e
+        final byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        final byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        assertEquals(0xa129ca6149be45e5L, SipHash.digest(new SipKey(key), message));
+    }
+
+    @Test
+    public void testPrimitiveMatchesDigest() {
+        final Random random = new Random(24);
+        final byte[] mac = new byte[6];
+        for (int k = 0; k < 20; k++) {
+            final byte[] keyBytes = new byte[16];
+            if (k > 0) {
+                // key 0 is the all-zero key the m8b format uses
+                random.nextBytes(keyBytes);
+            }
+            final SipKey key = new SipKey(keyBytes);
+            for (int i = 0; i < 5000; i++) {
+                random.nextBytes(mac);
+                long packed = 0L;
+                for (final byte b : mac) {
+                    packed = (packed << 8) | (b & 0xFF);
+                }
+                assertEquals(SipHash.digest(key, mac),
+                        SipHash.siphash24(key.getLeftHalf(), key.getRightHalf(), packed));
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package net.wigle.wigleandroid;
+
+import android.content.SharedPreferences;
+
+import net.wigle.wigleandroid.model.Network;
+import net.wigle.wigleandroid.model.NetworkType;
+import net.wigle.wigleandroid.util.PreferenceKeys;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class FilterMatcherTest {
+    private static final String PREFIX = PreferenceKeys.FILTER_PREF_PREFIX;
+    private static final String[] CAPABILITIES = {"[ESS]", "[WEP][ESS]", "[WPA-PSK-TKIP][ESS]",
+            "[WPA2-PSK-CCMP][ESS]", "[RSN-SAE-CCMP][ESS]"};
+    private static final NetworkType[] TYPES = {NetworkType.WIFI, NetworkType.WIFI, NetworkType.WIFI,
+            NetworkType.BT, NetworkType.BLE, NetworkType.LTE, NetworkType.GSM};
+
+    /**
+     * the compiled filter agrees with reading the preferences per network, across preference combinations
+     */
+    @Test
+    public void testMatchesPerNetworkPrefs() {
+        final Random random = new Random(42L);
+        final List<Network> networks = randomNetworks(random, 2000);
+        final Matcher bssidMatcher = Pattern.compile("^(00:11)", Pattern.CASE_INSENSITIVE).matcher("");
+        final MapPreferences prefs = new MapPreferences();
+        for (int round = 0; round < 200; round++) {
+            randomFilter(random, prefs);
+            final FilterMatcher.NetworkFilter filter = FilterMatcher.getNetworkFilter(prefs, PREFIX);
+            for (Network network : networks) {
+                Assert.assertEquals(round + " " + prefs.values + " " + network.getSsid() + " " + network.getType(),
+                        legacyIsOk(legacySsidMatcher(prefs, PREFIX), bssidMatcher, prefs, PREFIX, network),
+                        filter.isOk(network, bssidMatcher));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidation() {
+        final MapPreferences prefs = new MapPreferences();
+        final Network open = new Network("00:11:22:33:44:55", "cafe", 2412, "[ESS]", -60, NetworkType.WIFI);
+        final FilterMatcher.NetworkFilter filter = FilterMatcher.getNetworkFilter(prefs, PREFIX);
+        Assert.assertTrue(filter.isOk(open, null));
+        Assert.assertSame(filter, FilterMatcher.getNetworkFilter(prefs, PREFIX));
+
+        // unrelated keys keep it
+        prefs.put(PreferenceKeys.PREF_DISTANCE_RUN, 12f);
+        Assert.assertSame(filter, FilterMatcher.getNetworkFilter(prefs, PREFIX));
+
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_OPEN, false);
+        Assert.assertFalse(FilterMatcher.getNetworkFilter(prefs, PREFIX).isOk(open, null));
+        // the map's filter is its own
+        Assert.assertTrue(FilterMatcher.getNetworkFilter(prefs, MappingFragment.MAP_DIALOG_PREFIX).isOk(open, null));
+
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_ENABLED, false);
+        Assert.assertTrue(FilterMatcher.getNetworkFilter(prefs, PREFIX).isOk(open, null));
+    }
+
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkFilter() {
+        final Random random = new Random(42L);
+        final List<Network> networks = randomNetworks(random, 10000);
+        final MapPreferences prefs = new MapPreferences();
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_REGEX, "^(home|guest)");
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_INVERT, true);
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_WEP, false);
+        prefs.put(PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS, "[\"00:11:22\"]");
+        final Matcher bssidMatcher = Pattern.compile("^(00:11:22)", Pattern.CASE_INSENSITIVE).matcher("");
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            int legacyOk = 0;
+            final Matcher ssidMatcher = legacySsidMatcher(prefs, PREFIX);
+            for (Network network : networks) {
+                if (legacyIsOk(ssidMatcher, bssidMatcher, prefs, PREFIX, network)) legacyOk++;
+            }
+            final long legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int compiledOk = 0;
+            final FilterMatcher.NetworkFilter filter = FilterMatcher.getNetworkFilter(prefs, PREFIX);
+            for (Network network : networks) {
+                if (filter.isOk(network, bssidMatcher)) compiledOk++;
+            }
+            final long compiledNanos = System.nanoTime() - start;
+            Assert.assertEquals(legacyOk, compiledOk);
+            System.out.println("round " + round + ": " + networks.size() + " networks, prefs per network "
+                    + legacyNanos / 1000 + "us, compiled " + compiledNanos / 1000 + "us (" + compiledOk + " ok)");
+        }
+    }
+
+    private static List<Network> randomNetworks(final Random random, final int count) {
+        final String[] words = {"home", "Guest", "cafe", "linksys", "HOME-5G", ""};
+        final List<Network> networks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String bssid = String.format("%02x:%02x:%02x:%02x:%02x:%02x", random.nextInt(2) == 0 ? 0 : 0x10,
+                    random.nextInt(2) == 0 ? 0x11 : 0x12, random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256));
+            final NetworkType type = TYPES[random.nextInt(TYPES.length)];
+            final String capabilities = NetworkType.WIFI.equals(type)
+                    ? CAPABILITIES[random.nextInt(CAPABILITIES.length)] : "test capabilities";
+            networks.add(new Network(bssid, words[random.nextInt(words.length)] + i, 2412, capabilities,
+                    -40 - random.nextInt(60), type));
+        }
+        return networks;
+    }
+
+    private static void randomFilter(final Random random, final MapPreferences prefs) {
+        final String[] regexes = {"", "^home", "guest", "^(cafe|linksys)\\d+$"};
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_REGEX, regexes[random.nextInt(regexes.length)]);
+        prefs.put(PREFIX + PreferenceKeys.PREF_MAPF_ENABLED, random.nextInt(4) > 0);
+        for (String key : new String[]{PreferenceKeys.PREF_MAPF_INVERT, PreferenceKeys.PREF_MAPF_OPEN,
+                PreferenceKeys.PREF_MAPF_WEP, PreferenceKeys.PREF_MAPF_WPA, PreferenceKeys.PREF_MAPF_CELL,
+                PreferenceKeys.PREF_MAPF_BT, PreferenceKeys.PREF_MAPF_BTLE}) {
+            prefs.put(PREFIX + key, random.nextBoolean());
+        }
+        prefs.put(PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS, random.nextBoolean() ? "[\"00:11\"]" : "[]");
+    }
+
+    /**
+     * the matcher as isOk callers built it, once per scan
+     */
+    private static Matcher legacySsidMatcher(final SharedPreferences prefs, final String prefix) {
+        final String regex = prefs.getString(prefix + PreferenceKeys.PREF_MAPF_REGEX, "");
+        if (prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_ENABLED, true) && regex != null && !"".equals(regex)) {
+            return Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher("");
+        }
+        return null;
+    }
+
+    /**
+     * FilterMatcher.isOk as it was, reading the preferences for every network
+     */
+    private static boolean legacyIsOk(final Matcher ssidMatcher, final Matcher bssidMatcher,
+                                      final SharedPreferences prefs, final String prefix, final Network network) {
+        if (prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_ENABLED, true)) {
+            if (ssidMatcher != null) {
+                ssidMatcher.reset(network.getSsid());
+                final boolean invert = prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_INVERT, false);
+                final boolean matches = ssidMatcher.find();
+                if (!matches && !invert) {
+                    return false;
+                } else if (matches && invert) {
+                    return false;
+                }
+            }
+            if (NetworkType.WIFI.equals(network.getType())) {
+                switch (network.getCrypto()) {
+                    case Network.CRYPTO_NONE:
+                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_OPEN, true)) return false;
+                        break;
+                    case Network.CRYPTO_WEP:
+                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_WEP, true)) return false;
+                        break;
+                    case Network.CRYPTO_WPA:
+                    case Network.CRYPTO_WPA2:
+                    case Network.CRYPTO_WPA3:
+                        if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_WPA, true)) return false;
+                        break;
+                    default:
+                }
+            } else if (NetworkType.BT.equals(network.getType())) {
+                if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_BT, true)) return false;
+            } else if (NetworkType.BLE.equals(network.getType())) {
+                if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_BTLE, true)) return false;
+            } else if (!prefs.getBoolean(prefix + PreferenceKeys.PREF_MAPF_CELL, true)) {
+                return false;
+            }
+        }
+        final String f = prefs.getString(PreferenceKeys.PREF_EXCLUDE_DISPLAY_ADDRS, "");
+        if (!"".equals(f) && f.length() > 4 && bssidMatcher != null) {
+            bssidMatcher.reset(network.getBssid());
+            return !bssidMatcher.find();
+        }
+        return true;
+    }
+
+    /**
+     * in-memory preferences: a synchronized map, like the platform's, and change listeners
+     */
+    private static final class MapPreferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<>();
+        private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
+
+        void put(final String key, final Object value) {
+            synchronized (this) {
+                values.put(key, value);
+            }
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+
+        private synchronized Object get(final String key, final Object defValue) {
+            final Object value = values.get(key);
+            return value == null ? defValue : value;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(final String key, final String defValue) {
+            return (String) get(key, defValue);
+        }
+
+        @Override
+        public Set<String> getStringSet(final String key, final Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public int getInt(final String key, final int defValue) {
+            return (Integer) get(key, defValue);
+        }
+
+        @Override
+        public long getLong(final String key, final long defValue) {
+            return (Long) get(key, defValue);
+        }
+
+        @Override
+        public float getFloat(final String key, final float defValue) {
+            return (Float) get(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(final String key, final boolean defValue) {
+            return (Boolean) get(key, defValue);
+        }
+
+        @Override
+        public synchronized boolean contains(final String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+            listeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.wigle.wigleandroid.background;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+import android.util.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.wigle.wigleandroid.model.api.UploadReseponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+public class ChunkedUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockedStatic<Log> mockedLog;
+    private MockUploadServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        mockedLog = Mockito.mockStatic(Log.class);
+        mockedLog.when(() -> Log.i(anyString(), anyString())).thenReturn(0);
+        mockedLog.when(() -> Log.e(anyString(), anyString())).thenReturn(0);
+        mockedLog.when(() -> Log.e(anyString(), anyString(), any(Throwable.class))).thenReturn(0);
+
+        server = new MockUploadServer();
+        client = new OkHttpClient.Builder()
+                .readTimeout(5, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        mockedLog.close();
+    }
+
+    @Test
+    public void testUploadsEveryChunkAndAdvancesMarker() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(0L, new RowSource(25), listener);
+
+        assertTrue(result.isComplete());
+        assertEquals(3, result.chunks);
+        assertEquals(25L, result.marker);
+        assertEquals(listOf(10L, 20L, 25L), listener.markers);
+        assertEquals(listOf("t1", "t2", "t3"), result.transIds);
+        // each request carries one complete chunk file
+        assertEquals(3, server.bodies.size());
+        assertTrue(server.bodies.get(0).contains("ids 1-10\n"));
+        assertTrue(server.bodies.get(1).contains("ids 11-20\n"));
+        assertTrue(server.bodies.get(2).contains("ids 21-25\n"));
+        assertTrue(server.bodies.get(0).contains("name=\"donate\""));
+        // acknowledged chunks don't stay on disk
+        assertArrayEquals(new Object[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void testNothingToSend() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(25L, new RowSource(25), listener);
+        assertTrue(result.isComplete());
+        assertEquals(0, result.chunks);
+        assertEquals(25L, result.marker);
+        assertEquals(0, server.bodies.size());
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        server.responses.add(MockUploadServer.DROP);
+        server.responses.add(MockUploadServer.OK);
+        server.responses.add(503);
+        final RecordingListener listener = new RecordingListener();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(0L, new RowSource(25), listener);
+
+        assertTrue(result.isComplete());
+        assertEquals(listOf(10L, 20L, 25L), listener.markers);
+        // the dropped and 503'd attempts were sent again
+        assertEquals(5, server.bodies.size());
+    }
+
+    @Test
+    public void testResumesFromLastAcknowledgedChunk() throws Exception {
+        // chunk 1 goes through, chunk 2 fails on every attempt
+        server.responses.add(MockUploadServer.OK);
+        for (int i = 0; i < 3; i++) {
+            server.responses.add(MockUploadServer.DROP);
+        }
+        final RecordingListener listener = new RecordingListener();
+        try {
+            uploader(10, 3).upload(0L, new RowSource(25), listener);
+            fail("expected the chunk to give up");
+        } catch (final IOException expected) {
+            // expected
+        }
+        assertEquals(listOf(10L), listener.markers);
+        // only the unacknowledged chunk is left
+        assertArrayEquals(new Object[]{"chunk-10.csv"}, folder.getRoot().list());
+
+        // the next attempt starts at the persisted marker and doesn't resend chunk 1
+        server.bodies.clear();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(
+                listener.markers.get(listener.markers.size() - 1), new RowSource(25), listener);
+        assertTrue(result.isComplete());
+        assertEquals(2, result.chunks);
+        assertEquals(listOf(10L, 20L, 25L), listener.markers);
+        assertEquals(2, server.bodies.size());
+        assertTrue(server.bodies.get(0).contains("ids 11-20\n"));
+    }
+
+    @Test
+    public void testStopsWithoutRetryOnTooManyRequests() throws Exception {
+        server.responses.add(MockUploadServer.OK);
+        server.responses.add(429);
+        final RecordingListener listener = new RecordingListener();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(0L, new RowSource(25), listener);
+
+        assertFalse(result.isComplete());
+        assertEquals(429, result.failedHttpStatus);
+        assertEquals(10L, result.marker);
+        assertEquals(listOf(10L), listener.markers);
+        assertEquals(2, server.bodies.size());
+    }
+
+    @Test
+    public void testStopsOnRejectedChunk() throws Exception {
+        server.responses.add(MockUploadServer.REJECT);
+        final RecordingListener listener = new RecordingListener();
+        final ChunkedUploader.Result result = uploader(10, 3).upload(0L, new RowSource(25), listener);
+
+        assertFalse(result.isComplete());
+        assertTrue(result.rejected);
+        assertEquals(0L, result.marker);
+        assertTrue(listener.markers.isEmpty());
+        assertArrayEquals(new Object[0], result.transIds.toArray());
+    }
+
+    private ChunkedUploader uploader(final int chunkRows, final int maxAttempts) {
+        return new ChunkedUploader(client, server.url(), "file", Collections.singletonMap("donate", "on"),
+                chunkRows, maxAttempts, 1L);
+    }
+
+    @SafeVarargs
+    private static <T> List<T> listOf(final T... values) {
+        final List<T> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    /**
+     * stand-in for the location table: ids 1..rows, all local
+     */
+    private class RowSource implements ChunkedUploader.ChunkSource {
+        private final long rows;
+
+        RowSource(final long rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public long chunkEnd(final long fromId, final int maxRows) {
+            return Math.min(rows, Math.max(fromId, fromId + maxRows));
+        }
+
+        @Override
+        public File writeChunk(final long fromId, final long toId) throws IOException {
+            // overwritten on a retry, like the timestamped upload files
+            final File file = new File(folder.getRoot(), "chunk-" + fromId + ".csv");
+            Files.write(file.toPath(), ("ids " + (fromId + 1) + "-" + toId + "\n").getBytes(StandardCharsets.UTF_8));
+            return file;
+        }
+    }
+
+    private static class RecordingListener implements ChunkedUploader.ChunkListener {
+        final List<Long> markers = new ArrayList<>();
+
+        @Override
+        public void onChunkUploaded(final int chunk, final long toId, final UploadReseponse response) {
+            markers.add(toId);
+        }
+
+        @Override
+        public void onRequestProgress(final int chunk, final long bytesWritten, final long contentLength) {
+        }
+    }
+
+    /**
+     * Minimal stand-in for the file upload endpoint: records each request body and answers from a
+     * script of responses, defaulting to success with a fresh transid.
+     */
+    private static class MockUploadServer {
+        static final int OK = 200;
+        static final int DROP = -1;
+        static final int REJECT = -2;
+
+        final Deque<Integer> responses = new ArrayDeque<>();
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        private final HttpServer http;
+        private int transIds;
+
+        MockUploadServer() throws IOException {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            http.createContext("/api/v2/file/upload", this::handle);
+            http.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + http.getAddress().getPort() + "/api/v2/file/upload";
+        }
+
+        void stop() {
+            http.stop(0);
+        }
+
+        private void handle(final HttpExchange exchange) throws IOException {
+            bodies.add(readBody(exchange.getRequestBody()));
+            final Integer scripted;
+            synchronized (responses) {
+                scripted = responses.poll();
+            }
+            final int code = scripted == null ? OK : scripted;
+            if (code == DROP) {
+                // hang up without a response, like a connection lost mid-upload
+                exchange.close();
+                return;
+            }
+            final String body;
+            final int status;
+            if (code == OK) {
+                status = 200;
+                body = "{\"success\":true,\"results\":{\"transids\":[{\"transId\":\"t" + (++transIds) + "\"}]}}";
+            } else if (code == REJECT) {
+                status = 200;
+                body = "{\"success\":false,\"warning\":\"bad file\"}";
+            } else {
+                status = code;
+                body = "{\"success\":false}";
+            }
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private static String readBody(final InputStream in) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
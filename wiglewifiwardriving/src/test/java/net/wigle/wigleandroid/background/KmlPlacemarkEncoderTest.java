@@ -0,0 +1,300 @@
+package net.wigle.wigleandroid.background;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.wigle.wigleandroid.model.NetworkType;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Equivalence tests for the KML placemark encoder, against the string-building KmlWriter used before it
+ */
+public class KmlPlacemarkEncoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Object[][] ROWS = {
+            // bssid, ssid, frequency, capabilities, lasttime, lat, lon, bestlevel, type, rcois, mfgrid, service
+            {"0a:1b:2c:3d:4e:5f", "home", 2437, "[WPA2-PSK-CCMP][RSN-PSK-CCMP][ESS]", 1700000000123L,
+                    37.774929, -122.419415, -67, NetworkType.WIFI, "", 0, null},
+            {"00:11:22:33:44:55", "", 5180, "[ESS]", 0L, -33.86785, 151.20732, -90, NetworkType.WIFI, "", 0, null},
+            {"de:ad:be:ef:00:01", "<script>", 2462, "[WEP][ESS]", 1234567890000L,
+                    51.5007, -0.1246, -45, NetworkType.WIFI, "5a03ba 004096", 0, null},
+            {"de:ad:be:ef:00:02", "tab\there\u0001", 6135, "[WPA3-SAE-CCMP][ESS]", 1650000000000L,
+                    59.3293235, 18.0685808, -77, NetworkType.WIFI, "", 0, null},
+            {"de:ad:be:ef:00:03", "Caf\u00e9 \u65e5\u672c \ud83d\udce1", 5745, "[WPA-PSK-TKIP][ESS]", 951782400000L,
+                    35.6585805, 139.7454329, -71, NetworkType.WIFI, "", 0, null},
+            {"c0:ff:ee:00:00:01", "Tile", 0, "Misc [LE]", 1700000000000L,
+                    47.6062095, -122.3320708, -92, NetworkType.BLE, "", 76, "0000feed"},
+            {"c0:ff:ee:00:00:02", "", 0, "Headphones;10", 1700000000500L,
+                    47.6062095, -122.3320708, -70, NetworkType.BT, "", 0, null},
+            {"310260_12345_9876543", "T-Mobile", 66486, "LTE;us", 1700000001000L,
+                    41.878113, -87.629799, -101, NetworkType.LTE, "", 0, null},
+            {"310410_1234_567", "AT&T", 0, "GSM;us", 1700000002000L,
+                    29.7604267, -95.3698028, -113, NetworkType.GSM, "", 0, null},
+            {"a1:b2:c3:d4:e5:f6", "edge", 5785, "[WPA2-EAP-CCMP][ESS]", 1700000003000L,
+                    -90.0, 180.0, -58, NetworkType.WIFI, "506f9a,001bc504bd", 0, null},
+    };
+
+    @Test
+    public void testMatchesLegacyWriter() throws IOException {
+        for (final String zone : new String[]{"UTC", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe"}) {
+            final TimeZone timeZone = TimeZone.getTimeZone(zone);
+            final KmlPlacemarkEncoder encoder = new KmlPlacemarkEncoder(64, timeZone);
+            final LegacyWriter legacy = new LegacyWriter(timeZone);
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+
+            encoder.appendHeader();
+            expected.write(KmlPlacemarkEncoder.HEADER);
+            for (final Object[] row : ROWS) {
+                legacy.write(expected, row);
+                append(encoder, row);
+            }
+            // typical fixes, over the last few decades
+            final Random random = new Random(1234L);
+            for (int i = 0; i < 5000; i++) {
+                final Object[] row = ROWS[i % ROWS.length].clone();
+                row[4] = random.nextLong() & 0xffffffffffL;
+                row[5] = Math.round((1 + random.nextDouble() * 88.0) * 1e6) / 1e6;
+                row[6] = Math.round((-180.0 + random.nextDouble() * 179.0) * 1e7) / 1e7;
+                row[7] = -30 - random.nextInt(70);
+                legacy.write(expected, row);
+                append(encoder, row);
+            }
+            encoder.appendCellFolder();
+            encoder.appendBtFolder();
+            encoder.appendFooter();
+            expected.write(("</Folder>\n<Folder><name>Cellular Networks</name>\n"
+                    + "</Folder>\n<Folder><name>Bluetooth Networks</name>\n"
+                    + "</Folder>\n</Document></kml>").getBytes(StandardCharsets.ISO_8859_1));
+            encoder.writeTo(actual);
+            assertEquals(0, encoder.length());
+
+            assertEquals(zone, new String(expected.toByteArray(), StandardCharsets.ISO_8859_1),
+                    new String(actual.toByteArray(), StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testSanitizesControlCharacters() throws IOException {
+        final KmlPlacemarkEncoder encoder = new KmlPlacemarkEncoder(64, TimeZone.getTimeZone("UTC"));
+        final Object[] row = ROWS[0].clone();
+        row[1] = "a\u0085b\u0086c\u009fd\u0084e";
+        append(encoder, row);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        final String kml = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        // NEL (0x85) is left alone
+        assertTrue(kml.startsWith("<Placemark>\n<name><![CDATA[a\u0085b c d e]]></name>"));
+    }
+
+    @Test
+    public void testSkipsTypesWithoutAPlacemark() {
+        final KmlPlacemarkEncoder encoder = new KmlPlacemarkEncoder(64);
+        final Object[] nfc = ROWS[0].clone();
+        nfc[8] = NetworkType.NFC;
+        assertFalse(append(encoder, nfc));
+        nfc[8] = null;
+        assertFalse(append(encoder, nfc));
+        assertEquals(0, encoder.length());
+    }
+
+    /**
+     * 1M networks out to a file: the old fragment-per-write path against the encoder, as KML and KMZ
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkMillionNetworks() throws IOException {
+        final int networks = 1_000_000;
+        final Object[][] rows = new Object[4096][];
+        final Random random = new Random(42L);
+        for (int i = 0; i < rows.length; i++) {
+            final Object[] row = ROWS[i % ROWS.length].clone();
+            row[0] = String.format("%02x:%02x:%02x:%02x:%02x:%02x", random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            row[4] = 1500000000000L + (random.nextLong() & 0xffffffffffL);
+            row[5] = 1 + random.nextDouble() * 88.0;
+            row[6] = -180.0 + random.nextDouble() * 179.0;
+            rows[i] = row;
+        }
+        for (int round = 0; round < 3; round++) {
+            final File legacyFile = folder.newFile();
+            long start = System.nanoTime();
+            try (FileOutputStream fos = new FileOutputStream(legacyFile)) {
+                final LegacyWriter legacy = new LegacyWriter(TimeZone.getDefault());
+                fos.write(KmlPlacemarkEncoder.HEADER);
+                for (int i = 0; i < networks; i++) {
+                    legacy.write(fos, rows[i % rows.length]);
+                }
+            }
+            final long legacyNanos = System.nanoTime() - start;
+
+            final File kmlFile = folder.newFile();
+            start = System.nanoTime();
+            try (FileOutputStream fos = new FileOutputStream(kmlFile)) {
+                encode(fos, rows, networks);
+            }
+            final long kmlNanos = System.nanoTime() - start;
+
+            final File kmzFile = folder.newFile();
+            start = System.nanoTime();
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(kmzFile), 64 * 1024))) {
+                zip.setLevel(Deflater.BEST_SPEED);
+                zip.putNextEntry(new ZipEntry("doc.kml"));
+                encode(zip, rows, networks);
+                zip.closeEntry();
+            }
+            final long kmzNanos = System.nanoTime() - start;
+
+            System.out.println(networks + " networks; legacy: " + legacyNanos / 1_000_000 + "ms, "
+                    + legacyFile.length() / (1024 * 1024) + "MB; encoder kml: " + kmlNanos / 1_000_000 + "ms, "
+                    + kmlFile.length() / (1024 * 1024) + "MB; encoder kmz: " + kmzNanos / 1_000_000 + "ms, "
+                    + kmzFile.length() / (1024 * 1024) + "MB");
+        }
+    }
+
+    private static void encode(final OutputStream out, final Object[][] rows, final int networks) throws IOException {
+        final KmlPlacemarkEncoder encoder = new KmlPlacemarkEncoder(256 * 1024);
+        encoder.appendHeader();
+        for (int i = 0; i < networks; i++) {
+            append(encoder, rows[i % rows.length]);
+            if (encoder.length() >= 248 * 1024) {
+                encoder.writeTo(out);
+            }
+        }
+        encoder.appendFooter();
+        encoder.writeTo(out);
+    }
+
+    private static boolean append(final KmlPlacemarkEncoder encoder, final Object[] row) {
+        return encoder.appendPlacemark((String) row[0], (String) row[1], (Integer) row[2], (String) row[3],
+                (Long) row[4], (Double) row[5], (Double) row[6], (Integer) row[7], (NetworkType) row[8],
+                (String) row[9], (Integer) row[10], (String) row[11]);
+    }
+
+    /**
+     * KmlWriter.writeKmlFromCursor's per-network output before the encoder, a write per fragment
+     */
+    private static final class LegacyWriter {
+        private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.UK);
+
+        LegacyWriter(final TimeZone timeZone) {
+            sdf.setTimeZone(timeZone);
+        }
+
+        void write(final OutputStream fos, final Object[] row) throws IOException {
+            final String bssid = (String) row[0];
+            final String ssid = (String) row[1];
+            final int frequency = (Integer) row[2];
+            final String capabilities = (String) row[3];
+            final long lasttime = (Long) row[4];
+            final double lastlat = (Double) row[5];
+            final double lastlon = (Double) row[6];
+            final int bestlevel = (Integer) row[7];
+            final NetworkType type = (NetworkType) row[8];
+            final String rcois = (String) row[9];
+            final int mfgrid = (Integer) row[10];
+            final String service = (String) row[11];
+
+            final String date = sdf.format(new Date(lasttime));
+            String style = "green";
+            if (NetworkType.WIFI.equals(type)) {
+                if (capabilities.contains("WEP")) {
+                    style = "yellow";
+                }
+                if (capabilities.contains("WPA")) {
+                    style = "red";
+                }
+            } else if (NetworkType.BLE.equals(type)) {
+                style = "ltblue";
+            } else if (NetworkType.BT.equals(type)) {
+                style = "blue";
+            } else if (NetworkType.isCellType(type)) {
+                style = "pink";
+            }
+            if (lasttime == 0L) {
+                style = "zeroConfidence";
+            }
+            byte[] sanitizedSsid = sanitize(ssid);
+            if (sanitizedSsid.length == 0) {
+                sanitizedSsid = KmlPlacemarkEncoder.NO_SSID.getBytes(StandardCharsets.ISO_8859_1);
+            }
+
+            String description = "<description><![CDATA[Network ID: " + bssid + "\n"
+                    + "Capabilities: " + capabilities + "\n"
+                    + "Frequency: " + frequency + "\n"
+                    + "Timestamp: " + lasttime + "\n"
+                    + "Time: " + date + "\n"
+                    + "Signal: " + bestlevel + "\n";
+            if (NetworkType.WIFI.equals(type)) {
+                description += "RoamingCOIs: " + rcois + "\n"
+                        + "Type: " + type.name() + "\n"
+                        + "Encryption: " + encryption(capabilities) + "\n";
+            } else if (NetworkType.isCellType(type)) {
+                description += "Type: " + type.name();
+            } else {
+                description += "ManufacturerId: " + mfgrid + "\n"
+                        + "Service: " + service + "\n"
+                        + "Type: " + type.name();
+            }
+            writeFos(fos, "<Placemark>\n<name><![CDATA[");
+            fos.write(sanitizedSsid);
+            writeFos(fos, "]]></name>\n");
+            writeFos(fos, description + "]]>" + "</description><styleUrl>#" + style + "</styleUrl>\n");
+            writeFos(fos, "<Point>\n");
+            writeFos(fos, "<coordinates>" + lastlon + "," + lastlat + "</coordinates>");
+            writeFos(fos, "</Point>\n</Placemark>\n");
+        }
+
+        private static void writeFos(final OutputStream fos, final String data) throws IOException {
+            fos.write(data.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private static String encryption(final String capabilities) {
+            if (capabilities.contains("WPA3")) {
+                return "WPA3";
+            } else if (capabilities.contains("WPA2")) {
+                return "WPA2";
+            } else if (capabilities.contains("WPA")) {
+                return "WPA";
+            } else if (capabilities.contains("WEP")) {
+                return "WEP";
+            }
+            return "Unknown";
+        }
+
+        private static byte[] sanitize(final String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            for (int i = 0; i < bytes.length; i++) {
+                final byte b = bytes[i];
+                if ((b >= 0x00 && b <= 0x08) || (b >= 0x0B && b <= 0x1F) || b == 0x7F || b == 0x3C || b == 0x3E) {
+                    bytes[i] = ' ';
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package net.wigle.wigleandroid.background;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import net.wigle.wigleandroid.model.Network;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.DuplicateHeaderMode;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Golden-file and equivalence tests for the WigleWifi-1.6 line encoder
+ */
+public class ObservationCsvEncoderTest {
+
+    private static final String GOLDEN_FILE = "observation-encoder-golden.csv";
+
+    private static final Object[][] ROWS = {
+            // bssid, ssid, capabilities, time, channel, frequency, level, lat, lon, alt, acc, rcois, mfgrid, type
+            {"0a:1b:2c:3d:4e:5f", "home", "[WPA2-PSK-CCMP][RSN-PSK-CCMP][ESS]", 1700000000123L, 6, 2437, -67,
+                    37.774929512345674, -122.41941567891235, 16.100000381469727, 3.9000000953674316, "", 0, "WIFI"},
+            {"00:11:22:33:44:55", "", "[ESS]", 0L, 36, 5180, -90,
+                    -33.86785, 151.20732, -12.5, 100.0, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:01", "with,comma", "[WEP][ESS]", 1234567890000L, 11, 2462, -45,
+                    51.5007, -0.1246, 0.0, 5.0, "5a03ba 004096", 0, "WIFI"},
+            {"de:ad:be:ef:00:02", "say \"hi\"", "[ESS]", 946684799999L, 1, 2412, -80,
+                    48.858093, 2.294694, 330.25, 12.0, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:03", "#hashtag", "[ESS]", 951782400000L, 149, 5745, -71,
+                    35.6585805, 139.7454329, 42.0, 8.0, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:04", "trailing space ", "[ESS]", 1583020800000L, 165, 5825, -60,
+                    -22.951916, -43.2104872, 709.5, 16.0, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:05", " leading", "[ESS]", 1600000000000L, 5, 2432, -55,
+                    40.68925, -74.0445, 93.0, 4.0, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:06", "Caf\u00e9 \u65e5\u672c \ud83d\udce1", "[WPA3-SAE-CCMP][ESS]", 1650000000000L, 37, 6135, -77,
+                    59.3293235, 18.0685808, 28.799999237060547, 3.7899999618530273, "", 0, "WIFI"},
+            {"de:ad:be:ef:00:07", "multi\nline", "[ESS]", 1660000000000L, 44, 5220, -88,
+                    -1.2920659, 36.8219462, 1795.0, 30.0, "", 0, "WIFI"},
+            {"c0:ff:ee:00:00:01", "Tile", "Misc [LE]", 1700000000000L, Network.NO_CHANNEL, 0, -92,
+                    47.6062095, -122.3320708, 56.0, 4.800000190734863, "", 76, "BLE"},
+            {"c0:ff:ee:00:00:02", "", "Headphones;10", 1700000000500L, Network.NO_CHANNEL, 0, -70,
+                    47.6062095, -122.3320708, 56.0, 4.800000190734863, "", 0, "BT"},
+            {"310260_12345_9876543", "T-Mobile", "LTE;us", 1700000001000L, 66486, 66486, -101,
+                    41.878113, -87.629799, 181.0, 9.0, "", 0, "LTE"},
+            {"310410_1234_567", "AT&T", "GSM;us", 1700000002000L, Network.NO_CHANNEL, 0, -113,
+                    29.7604267, -95.3698028, 15.0, 11.0, "", 0, "GSM"},
+            {"a1:b2:c3:d4:e5:f6", "hotspot 2.0", "[WPA2-EAP-CCMP][ESS]", 1700000003000L, 157, 5785, -58,
+                    -90.0, 180.0, 8848.86, 1.0, "506f9a,001bc504bd", 0, "WIFI"},
+    };
+
+    @Test
+    public void testMatchesGoldenFile() throws IOException {
+        final ObservationCsvEncoder encoder = new ObservationCsvEncoder(64);
+        for (final Object[] row : ROWS) {
+            append(encoder, row);
+        }
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        encoder.writeTo(actual);
+        assertEquals(0, encoder.length());
+
+        assertArrayEquals(readGolden(), actual.toByteArray());
+    }
+
+    @Test
+    public void testMatchesLegacyPrinter() throws IOException {
+        final ObservationCsvEncoder encoder = new ObservationCsvEncoder(64);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        for (final Object[] row : ROWS) {
+            expected.write(legacyLine(row));
+            append(encoder, row);
+        }
+
+        // typical GPS fixes; the desktop JDK rounds 17-digit ties below 1 from the binary value where
+        // Android's ICU DecimalFormat (and the encoder) round the shortest digits, so keep accuracy >= 1
+        final Random random = new Random(1234L);
+        for (int i = 0; i < 10000; i++) {
+            final Object[] row = ROWS[i % ROWS.length].clone();
+            row[3] = random.nextLong() & 0xffffffffffL;
+            row[6] = -30 - random.nextInt(70);
+            row[7] = 1 + random.nextDouble() * 88.0;
+            row[8] = -180.0 + random.nextDouble() * 179.0;
+            row[9] = (random.nextDouble() * 3000.0) - 100.0;
+            row[10] = (double) (1f + random.nextFloat() * 49f);
+            expected.write(legacyLine(row));
+            append(encoder, row);
+        }
+        encoder.writeTo(actual);
+
+        assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+                new String(actual.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static void append(final ObservationCsvEncoder encoder, final Object[] row) {
+        encoder.appendObservation((String) row[0], (String) row[1], (String) row[2], (Long) row[3],
+                (Integer) row[4], (Integer) row[5], (Integer) row[6], (Double) row[7], (Double) row[8],
+                (Double) row[9], (Double) row[10], (String) row[11], (Integer) row[12], (String) row[13]);
+    }
+
+    private byte[] readGolden() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(GOLDEN_FILE)) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * the CSVPrinter/NumberFormat/SimpleDateFormat formatting ObservationUploader used before the encoder
+     */
+    private static byte[] legacyLine(final Object[] row) throws IOException {
+        final CSVFormat.Builder builder = CSVFormat.Builder.create();
+        builder.setDelimiter(',');
+        builder.setQuote('"');
+        builder.setRecordSeparator("\n");
+        builder.setIgnoreEmptyLines(true);
+        builder.setDuplicateHeaderMode(DuplicateHeaderMode.ALLOW_ALL);
+        final StringBuilder line = new StringBuilder();
+        final CSVPrinter printer = new CSVPrinter(line, builder.build());
+
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final NumberFormat numberFormat = NumberFormat.getNumberInstance(Locale.US);
+        numberFormat.setGroupingUsed(false);
+        ((DecimalFormat) numberFormat).setMaximumFractionDigits(16);
+
+        printer.print(row[0]);
+        printer.print(row[1]);
+        printer.print(row[2]);
+        line.append(',').append(dateFormat.format(new Date((Long) row[3])));
+        line.append(',');
+        if ((Integer) row[4] != Network.NO_CHANNEL) {
+            line.append(numberFormat.format(row[4]));
+        }
+        line.append(',');
+        if ((Integer) row[5] != 0) {
+            line.append(numberFormat.format(row[5]));
+        }
+        line.append(',').append(numberFormat.format(row[6]));
+        line.append(',').append(numberFormat.format(row[7]));
+        line.append(',').append(numberFormat.format(row[8]));
+        line.append(',').append(numberFormat.format(row[9]));
+        line.append(',').append(numberFormat.format(row[10]));
+        printer.print(row[11]);
+        line.append(',');
+        if ((Integer) row[12] != 0) {
+            line.append(numberFormat.format(row[12]));
+        }
+        printer.print(row[13]);
+        printer.println();
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,143 @@
+package net.wigle.wigleandroid.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class LikeQueryTest {
+
+    @Test
+    public void testFtsMatch() {
+        assertEquals("\"linksys\"", LikeQuery.ftsMatch("Linksys"));
+        assertEquals("\"linksys*\"", LikeQuery.ftsMatch("Linksys%"));
+        assertEquals("\"my\" \"wifi*\"", LikeQuery.ftsMatch("My WiFi%"));
+        assertEquals("\"guest\"", LikeQuery.ftsMatch("%Home-Guest"));
+        assertEquals("\"5g\"", LikeQuery.ftsMatch("%_net 5G"));
+        // like LIKE, the tokenizer only folds ASCII
+        assertEquals("\"caf\u00c9*\"", LikeQuery.ftsMatch("CAF\u00c9%"));
+        // word ends and starts a wildcard could extend
+        assertNull(LikeQuery.ftsMatch("%link%"));
+        assertNull(LikeQuery.ftsMatch("_inksys"));
+        assertNull(LikeQuery.ftsMatch("%"));
+        assertNull(LikeQuery.ftsMatch("- -"));
+        assertNull(LikeQuery.ftsMatch(null));
+    }
+
+    @Test
+    public void testPrefixRange() {
+        assertArrayEquals(new String[]{"0a:2c:ef:3d:25:1b", "0a:2c:ef:3d:25:1c"},
+                LikeQuery.prefixRange("0A:2C:EF:3D:25:1B"));
+        assertArrayEquals(new String[]{"0a:2c:", "0a:2c;"}, LikeQuery.prefixRange("0a:2c:%"));
+        assertArrayEquals(new String[]{"310260", "310261"}, LikeQuery.prefixRange("310260_%_%"));
+        assertNull(LikeQuery.prefixRange("%:25:1b"));
+        assertNull(LikeQuery.prefixRange(""));
+        assertNull(LikeQuery.prefixRange(null));
+    }
+
+    /**
+     * every value the LIKE accepts has the terms the MATCH asks for, under the simple tokenizer's rules
+     */
+    @Test
+    public void testMatchIsSupersetOfLike() {
+        final Random random = new Random(42L);
+        final String alphabet = "aAbB1 -_.\u00e9\u00c9";
+        int checked = 0;
+        for (int p = 0; p < 3000; p++) {
+            final String pattern = randomString(random, alphabet + "%%__", 1 + random.nextInt(8));
+            final String match = LikeQuery.ftsMatch(pattern);
+            if (match == null) {
+                continue;
+            }
+            final Pattern like = likeRegex(pattern);
+            for (int v = 0; v < 300; v++) {
+                final String value = randomFill(random, pattern, alphabet);
+                if (like.matcher(value).matches()) {
+                    checked++;
+                    assertTrue(pattern + " / " + match + " / " + value, satisfies(match, tokens(value)));
+                }
+            }
+        }
+        assertTrue(checked > 10000);
+    }
+
+    private static String randomString(final Random random, final String alphabet, final int length) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * a value the pattern is likely to match: wildcards filled in at random, literals in random case
+     */
+    private static String randomFill(final Random random, final String pattern, final String alphabet) {
+        final StringBuilder sb = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '%') {
+                sb.append(randomString(random, alphabet, random.nextInt(3)));
+            } else if (c == '_') {
+                sb.append(randomString(random, alphabet, 1));
+            } else {
+                sb.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Pattern likeRegex(final String pattern) {
+        final StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        // LIKE folds ASCII case only
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    private static List<String> tokens(final String value) {
+        final List<String> tokens = new ArrayList<>();
+        final StringBuilder token = new StringBuilder();
+        for (char c : (value + " ").toCharArray()) {
+            if (c >= 128) {
+                token.append(c);
+            } else if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean satisfies(final String match, final List<String> tokens) {
+        for (String term : match.split(" ")) {
+            final String word = term.substring(1, term.length() - 1);
+            boolean found = false;
+            for (String token : tokens) {
+                if (word.endsWith("*") ? token.startsWith(word.substring(0, word.length() - 1)) : token.equals(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
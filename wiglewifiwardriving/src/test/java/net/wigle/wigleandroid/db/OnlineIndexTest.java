@@ -0,0 +1,67 @@
+package net.wigle.wigleandroid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OnlineIndexTest {
+
+    @Test
+    public void testLocationIndexSql() {
+        final OnlineIndex index = OnlineIndex.LOCATION_BY_BSSID;
+        assertEquals("CREATE TABLE IF NOT EXISTS location_bssid_index (bssid text not null,_id integer not null,"
+                + "primary key (bssid,_id)) WITHOUT ROWID", index.createSql());
+        assertEquals("CREATE TRIGGER IF NOT EXISTS location_bssid_index_insert AFTER INSERT ON location BEGIN "
+                + "INSERT OR IGNORE INTO location_bssid_index (bssid,_id) VALUES (NEW.bssid,NEW._id); END",
+                index.insertTriggerSql());
+        assertEquals("CREATE TRIGGER IF NOT EXISTS location_bssid_index_delete AFTER DELETE ON location BEGIN "
+                + "DELETE FROM location_bssid_index WHERE bssid = OLD.bssid AND _id = OLD._id; END",
+                index.deleteTriggerSql());
+        assertEquals("INSERT OR IGNORE INTO location_bssid_index (bssid,_id) SELECT bssid,_id FROM location"
+                + " WHERE _id > ? AND _id <= ?", index.backfillSql());
+    }
+
+    @Test
+    public void testRouteIndexCoversRouteQueries() {
+        final OnlineIndex index = OnlineIndex.ROUTE_BY_RUN;
+        assertTrue(index.createSql(), index.createSql().endsWith("primary key (run_id,time,_id)) WITHOUT ROWID"));
+        for (String column : new String[]{"lat double", "lon double", "altitude double"}) {
+            assertTrue(column, index.createSql().contains(column));
+        }
+        assertTrue(index.deleteTriggerSql().contains("run_id = OLD.run_id AND time = OLD.time AND _id = OLD._id;"));
+        final String[] drop = index.dropSql();
+        assertEquals("DELETE FROM index_progress WHERE name = 'route_run_index'", drop[drop.length - 1]);
+    }
+
+    @Test
+    public void testNetworkGeoIndexSql() {
+        final OnlineIndex index = OnlineIndex.NETWORK_GEO;
+        assertEquals("rowid", index.idColumn);
+        final String[] setup = index.setupSql();
+        assertEquals(4, setup.length);
+        assertEquals("CREATE VIRTUAL TABLE IF NOT EXISTS network_geo USING rtree(id,minlat,maxlat,minlon,maxlon)",
+                setup[0]);
+        assertTrue(setup[2], setup[2].contains("AFTER UPDATE OF bestlat,bestlon ON network"
+                + " WHEN NEW.bestlat != OLD.bestlat OR NEW.bestlon != OLD.bestlon"));
+        assertEquals("INSERT OR REPLACE INTO network_geo (id,minlat,maxlat,minlon,maxlon) SELECT rowid,bestlat,bestlat,"
+                + "bestlon,bestlon FROM network WHERE rowid > ? AND rowid <= ? AND bestlat != 0.0 AND bestlon != 0.0",
+                index.backfillSql());
+        assertEquals("INSERT OR IGNORE INTO index_progress (name,built_to,target) SELECT ?,0,IFNULL(MAX(rowid),0)"
+                + " FROM network", index.startProgressSql());
+    }
+
+    @Test
+    public void testNetworkSsidIndexSql() {
+        final OnlineIndex index = OnlineIndex.NETWORK_SSID;
+        final String[] setup = index.setupSql();
+        assertEquals(5, setup.length);
+        assertEquals("CREATE VIRTUAL TABLE IF NOT EXISTS network_ssid USING fts4(content=\"network\",ssid)", setup[0]);
+        // external content: terms come out before the row changes, and only for rows already indexed
+        assertTrue(setup[2], setup[2].contains("_update BEFORE UPDATE OF ssid ON network WHEN NEW.ssid != OLD.ssid AND "
+                + "(SELECT OLD.rowid <= built_to OR OLD.rowid > target FROM index_progress WHERE name = 'network_ssid')"));
+        assertTrue(setup[4], setup[4].contains("_delete BEFORE DELETE ON network"));
+        assertEquals("INSERT INTO network_ssid (docid,ssid) SELECT rowid,ssid FROM network WHERE rowid > ? AND rowid <= ?",
+                index.backfillSql());
+    }
+}
@@ -0,0 +1,205 @@
+package net.wigle.wigleandroid.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrentLinkedHashMapTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final ConcurrentLinkedHashMap<String, Integer> map = new ConcurrentLinkedHashMap<>(4);
+        for (int i = 0; i < 4; i++) {
+            map.put("k" + i, i);
+        }
+        assertTrue(map.isFull());
+        // touching k0 saves it; k1 is now the oldest
+        assertEquals(Integer.valueOf(0), map.get("k0"));
+        map.put("k4", 4);
+        assertEquals(4, map.size());
+        assertTrue(map.containsKey("k0"));
+        assertFalse(map.containsKey("k1"));
+        assertEquals(1L, map.getEvictionCount());
+    }
+
+    @Test
+    public void testHotKeySurvivesChurn() {
+        final ConcurrentLinkedHashMap<String, Integer> map = new ConcurrentLinkedHashMap<>(256);
+        map.put("hot", -1);
+        for (int i = 0; i < 10000; i++) {
+            map.put("cold" + i, i);
+            assertNotNull(map.get("hot"));
+        }
+        assertEquals(256, map.size());
+        assertEquals(256, map.keySet().size());
+        assertEquals(10000L - 255L, map.getEvictionCount());
+    }
+
+    @Test
+    public void testSizeAccounting() {
+        final ConcurrentLinkedHashMap<Integer, Integer> map = new ConcurrentLinkedHashMap<>(100);
+        for (int i = 0; i < 50; i++) {
+            map.put(i, i);
+        }
+        // replacing doesn't grow
+        map.put(7, 70);
+        assertEquals(50, map.size());
+        assertEquals(Integer.valueOf(70), map.remove(7));
+        assertNull(map.remove(7));
+        assertEquals(49, map.size());
+        assertFalse(map.containsKey(7));
+
+        final Map<Integer, Integer> more = new HashMap<>();
+        for (int i = 100; i < 110; i++) {
+            more.put(i, i);
+        }
+        map.putAll(more);
+        assertEquals(59, map.size());
+        assertEquals(59, map.values().size());
+        assertEquals(59, map.entrySet().size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.size());
+        assertTrue(map.keySet().isEmpty());
+    }
+
+    @Test
+    public void testBoundIsExact() {
+        // odd sizes spread over several segments still add up to maxSize
+        for (final int maxSize : new int[] {1, 63, 64, 128, 1000, 4000}) {
+            final ConcurrentLinkedHashMap<Integer, Integer> map = new ConcurrentLinkedHashMap<>(maxSize);
+            for (int i = 0; i < maxSize * 20; i++) {
+                map.put(i, i);
+            }
+            assertTrue(map.size() <= maxSize);
+            assertEquals(map.size(), map.keySet().size());
+            // a near-full cache with keys spread evenly
+            assertTrue(map.size() + " of " + maxSize, map.size() >= maxSize * 9 / 10);
+        }
+    }
+
+    @Test
+    public void testStats() {
+        final ConcurrentLinkedHashMap<String, String> map = new ConcurrentLinkedHashMap<>(10);
+        map.put("a", "1");
+        map.get("a");
+        map.get("a");
+        map.get("b");
+        assertEquals(2L, map.getHitCount());
+        assertEquals(1L, map.getMissCount());
+        assertEquals(2D / 3D, map.getHitRate(), 0.0001D);
+        // containsKey isn't a lookup for the stats
+        map.containsKey("b");
+        assertEquals(1L, map.getMissCount());
+        assertTrue(map.getStats().contains("hits: 2"));
+    }
+
+    @Test
+    public void testConcurrentSizeStaysConsistent() throws Exception {
+        final int maxSize = 500;
+        final ConcurrentLinkedHashMap<Integer, Integer> map = new ConcurrentLinkedHashMap<>(maxSize);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean overflow = new AtomicBoolean();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < 50000; i++) {
+                    final int key = random.nextInt(2000);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            map.remove(key);
+                            break;
+                        case 1:
+                            map.get(key);
+                            break;
+                        default:
+                            map.put(key, i);
+                    }
+                    if (map.size() > maxSize) {
+                        overflow.set(true);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertFalse(overflow.get());
+        assertEquals(map.keySet().size(), map.size());
+        assertEquals(map.values().size(), map.size());
+    }
+
+    /**
+     * mixed read/write throughput and hit rate against a single-lock LinkedHashMap, on a skewed key
+     * set like a drive past the same APs. Run by hand: not a pass/fail test.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkMixedLoad() throws Exception {
+        final int maxSize = 4000;
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final int ops = 2000000;
+        final Map<Integer, Integer> locked = Collections.synchronizedMap(
+                new LinkedHashMap<Integer, Integer>(maxSize, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<Integer, Integer> eldest) {
+                        return size() > maxSize;
+                    }
+                });
+        for (int round = 0; round < 3; round++) {
+            run("synchronized lru", locked, threads, ops);
+            run("striped lru", new ConcurrentLinkedHashMap<>(maxSize), threads, ops);
+        }
+    }
+
+    private static void run(final String name, final Map<Integer, Integer> map, final int threads,
+                            final int ops) throws InterruptedException {
+        final AtomicLong hits = new AtomicLong();
+        final List<Thread> workers = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            final Thread worker = new Thread(() -> {
+                final Random random = new Random(seed);
+                long hit = 0;
+                for (int i = 0; i < ops / threads; i++) {
+                    // squaring a uniform draw skews toward low keys: a hot head and a long tail
+                    final double u = random.nextDouble();
+                    final int key = (int) (u * u * 20000);
+                    if (map.get(key) != null) {
+                        hit++;
+                    } else {
+                        map.put(key, i);
+                    }
+                }
+                hits.addAndGet(hit);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        final long micros = (System.nanoTime() - start) / 1000L;
+        System.out.println(name + ": " + threads + " threads, " + (ops * 1000L / Math.max(1, micros))
+                + " ops/ms, hit rate " + (hits.get() * 100 / ops) + "%");
+    }
+}
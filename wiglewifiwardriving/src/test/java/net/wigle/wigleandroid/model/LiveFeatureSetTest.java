@@ -0,0 +1,253 @@
+package net.wigle.wigleandroid.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class LiveFeatureSetTest {
+
+    private static final class TestFeature {
+        final String id;
+        final double lat;
+        final double lon;
+        final int signal;
+        final String security;
+
+        TestFeature(String id, double lat, double lon, int signal, String security) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.signal = signal;
+            this.security = security;
+        }
+    }
+
+    private static LiveFeatureSet<TestFeature> newSet() {
+        return new LiveFeatureSet<>(TestFeature::new);
+    }
+
+    @Test
+    public void testKeepsStrongestSignal() {
+        final LiveFeatureSet<TestFeature> set = newSet();
+        set.offer("a", 1, 2, -80, "open");
+        set.offer("a", 3, 4, -90, "open");
+        set.offer("a", 5, 6, -60, "wep");
+        set.offer("b", 7, 8, -70, null);
+        final List<TestFeature> features = set.takeAll();
+        assertEquals(2, features.size());
+        final TestFeature a = features.get(0);
+        assertEquals("a", a.id);
+        assertEquals(5, a.lat, 0);
+        assertEquals(6, a.lon, 0);
+        assertEquals(-60, a.signal);
+        assertEquals("wep", a.security);
+        assertEquals("b", features.get(1).id);
+        assertEquals(3, set.getUpdateCount());
+    }
+
+    @Test
+    public void testCoalescesUntilTaken() {
+        final LiveFeatureSet<TestFeature> set = newSet();
+        assertNull(set.takeIfDirty());
+        assertTrue(set.offer("a", 1, 2, -80, null));
+        assertFalse(set.offer("b", 1, 2, -80, null));
+        assertFalse(set.offer("a", 1, 2, -50, null));
+        assertEquals(2, set.takeIfDirty().size());
+        assertNull(set.takeIfDirty());
+        // a weaker detection isn't a change
+        assertFalse(set.offer("a", 1, 2, -90, null));
+        assertFalse(set.isDirty());
+        assertTrue(set.offer("c", 1, 2, -90, null));
+        assertEquals(3, set.takeIfDirty().size());
+        assertEquals(2, set.getTakeCount());
+    }
+
+    @Test
+    public void testUnchangedFeaturesAreReused() {
+        final LiveFeatureSet<TestFeature> set = newSet();
+        set.offer("a", 1, 2, -80, null);
+        set.offer("b", 1, 2, -80, null);
+        final List<TestFeature> first = set.takeAll();
+        set.offer("b", 1, 2, -40, null);
+        final List<TestFeature> second = set.takeIfDirty();
+        assertSame(first.get(0), second.get(0));
+        assertEquals(-80, first.get(1).signal);
+        assertEquals(-40, second.get(1).signal);
+    }
+
+    @Test
+    public void testClear() {
+        final LiveFeatureSet<TestFeature> set = newSet();
+        set.offer("a", 1, 2, -80, null);
+        set.takeAll();
+        set.clear();
+        assertEquals(0, set.takeIfDirty().size());
+        assertTrue(set.offer("a", 1, 2, -90, null));
+        assertEquals(-90, set.takeAll().get(0).signal);
+    }
+
+    @Test
+    public void testViewportLimitsTakes() {
+        final LiveFeatureSet<TestFeature> set = newSet();
+        set.offer("near", 37.5, -122.5, -60, null);
+        set.offer("margin", 38.2, -122.5, -60, null);
+        set.offer("far", 40.0, -100.0, -60, null);
+        assertEquals(3, set.takeAll().size());
+        // a one-degree view grows by half a degree each side
+        assertTrue(set.setViewport(37, -123, 38, -122));
+        final List<TestFeature> visible = set.takeIfDirty();
+        assertEquals(2, visible.size());
+        // a change out of view doesn't need a flush
+        assertFalse(set.offer("far", 40.0, -100.0, -30, null));
+        assertFalse(set.offer("far2", 41.0, -101.0, -30, null));
+        assertNull(set.takeIfDirty());
+        assertTrue(set.offer("near2", 37.6, -122.6, -60, null));
+        assertEquals(3, set.takeIfDirty().size());
+        // zoomed out past the grid: scanned instead
+        set.setViewport(-80, -170, 80, 170);
+        assertEquals(5, set.takeIfDirty().size());
+        set.clearViewport();
+        assertEquals(5, set.takeIfDirty().size());
+    }
+
+    @Test
+    public void testEvictsOutOfViewThenStalest() {
+        final LiveFeatureSet<TestFeature> set = new LiveFeatureSet<>(TestFeature::new, 16);
+        set.setViewport(0, 0, 1, 1);
+        for (int i = 0; i < 8; i++) {
+            set.offer("in" + i, 0.5, 0.5, -60, null);
+            set.offer("out" + i, 50, 50, -60, null);
+        }
+        assertEquals(16, set.size());
+        // out0 and out1 are the stalest out of view; in0 is seen again but not stronger
+        set.offer("in0", 0.5, 0.5, -90, null);
+        set.offer("new0", 0.5, 0.5, -60, null);
+        assertEquals(2, set.getEvictionCount());
+        assertEquals(15, set.size());
+        set.clearViewport();
+        final Set<String> ids = new HashSet<>();
+        for (final TestFeature feature : set.takeAll()) {
+            ids.add(feature.id);
+        }
+        assertFalse(ids.contains("out0"));
+        assertFalse(ids.contains("out1"));
+        assertTrue(ids.contains("out2"));
+        assertTrue(ids.contains("new0"));
+
+        // nothing out of view: the stalest in view go
+        set.setViewport(-90, -180, 90, 180);
+        set.offer("new1", 0.5, 0.5, -60, null);
+        set.offer("new2", 0.5, 0.5, -60, null);
+        assertEquals(4, set.getEvictionCount());
+        ids.clear();
+        for (final TestFeature feature : set.takeAll()) {
+            ids.add(feature.id);
+        }
+        assertEquals(15, ids.size());
+        assertTrue(ids.contains("in0"));
+        assertFalse(ids.contains("in1"));
+        assertFalse(ids.contains("in2"));
+        assertTrue(ids.contains("out2"));
+    }
+
+    @Test
+    public void testChurnKeepsIndexConsistent() {
+        final LiveFeatureSet<TestFeature> set = new LiveFeatureSet<>(TestFeature::new, 100);
+        final Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            final String id = "dev" + random.nextInt(300);
+            final int signal = -100 + random.nextInt(70);
+            final double lat = random.nextDouble() * 0.1;
+            set.offer(id, lat, lat, signal, null);
+        }
+        // a last pass over every id, so whatever is kept was seen in it
+        for (int i = 0; i < 300; i++) {
+            set.offer("dev" + i, 0.05, 0.05, 100, null);
+        }
+        final int size = set.size();
+        assertTrue(size > 100 - 100 / 8 && size <= 100);
+        final Set<String> ids = new HashSet<>();
+        for (final TestFeature feature : set.takeAll()) {
+            assertTrue(ids.add(feature.id));
+            assertEquals(100, feature.signal);
+        }
+        assertEquals(size, ids.size());
+        // the newest survive a sweep
+        assertTrue(ids.contains("dev299"));
+        set.setViewport(0.04, 0.04, 0.06, 0.06);
+        assertEquals(size, set.takeIfDirty().size());
+    }
+
+    /**
+     * 50k devices seen over a drive, 4 sightings each, flushed every 200 detections (a 250ms frame at
+     * a busy 800 detections/sec) with a few km in view, against a full GeoJSON rebuild per detection
+     * for the first slice.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkFiftyThousandDevices() {
+        final int devices = 50_000;
+        final int detections = devices * 4;
+        final int perFrame = 200;
+        final Random random = new Random(42);
+        final String[] ids = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            ids[i] = String.format("%012x", random.nextLong() & 0xFFFFFFFFFFFFL);
+        }
+        for (int round = 0; round < 3; round++) {
+            final LiveFeatureSet<TestFeature> set = newSet();
+            // a few km of road in view, following the drive
+            set.setViewport(37 + round * 0.01, -122.05, 37.05, -122 + round * 0.01);
+            long copied = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < detections; i++) {
+                // devices come into range in order, and are seen again while still near
+                final int device = Math.min(devices - 1, i / 4 + random.nextInt(64));
+                set.offer(ids[device], 37 + device * 1e-5, -122 - device * 1e-5, -100 + random.nextInt(70), "secure");
+                if (i % perFrame == perFrame - 1) {
+                    final List<TestFeature> frame = set.takeIfDirty();
+                    if (frame != null) {
+                        copied += frame.size();
+                    }
+                }
+            }
+            final long coalescedNanos = System.nanoTime() - start;
+
+            // the old path: rebuild the whole collection's JSON on every detection
+            final int legacyDetections = 5_000;
+            final StringBuilder sb = new StringBuilder();
+            long chars = 0;
+            final long legacyStart = System.nanoTime();
+            for (int i = 0; i < legacyDetections; i++) {
+                sb.setLength(0);
+                sb.append("{\"type\":\"FeatureCollection\",\"features\":[");
+                for (int d = 0; d <= i; d++) {
+                    if (d > 0) sb.append(',');
+                    sb.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+                    sb.append(-122 - d * 1e-5).append(',').append(37 + d * 1e-5)
+                            .append(" ]},\"properties\":{\"id\":\"").append(ids[d])
+                            .append("\",\"type\":\"wifi\",\"signal\":\"-60\",\"security\":\"secure\"}}");
+                }
+                sb.append("]}");
+                chars += sb.length();
+            }
+            final long legacyNanos = System.nanoTime() - legacyStart;
+
+            System.out.println("coalesced: " + detections + " detections, " + set.getTakeCount() + " flushes, "
+                    + copied + " features handed over, " + coalescedNanos / 1_000_000 + "ms; legacy: first "
+                    + legacyDetections + " detections " + legacyNanos / 1_000_000 + "ms for " + chars
+                    + " chars of JSON; kept " + set.size() + " of " + set.capacity() + ", evicted "
+                    + set.getEvictionCount());
+        }
+    }
+}
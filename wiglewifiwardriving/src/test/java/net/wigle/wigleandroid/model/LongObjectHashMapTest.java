@@ -0,0 +1,143 @@
+package net.wigle.wigleandroid.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.wigle.wigleandroid.util.MacAddress;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testBasics() {
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "one"));
+        assertNull(map.put(0L, "zero"));
+        assertNull(map.put(-1L, "minus one"));
+        assertEquals("one", map.put(1L, "uno"));
+        assertEquals(3, map.size());
+        assertEquals("uno", map.get(1L));
+        assertEquals("zero", map.get(0L));
+        assertEquals("minus one", map.remove(-1L));
+        assertNull(map.remove(-1L));
+        assertFalse(map.containsKey(-1L));
+        assertEquals(2, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0L));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final LongObjectHashMap<Integer> map = new LongObjectHashMap<>(3);
+        map.put(1L, 1);
+        map.put(2L, 2);
+        map.put(3L, 3);
+        map.get(1L);
+        map.put(4L, 4);
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey(1L));
+        assertFalse(map.containsKey(2L));
+        // containsKey doesn't refresh: 3 goes next
+        map.containsKey(3L);
+        map.put(5L, 5);
+        assertFalse(map.containsKey(3L));
+        assertTrue(map.containsKey(4L));
+    }
+
+    @Test
+    public void testMatchesLinkedHashMap() {
+        // same vendor prefix, like a street of one ISP's routers, to exercise long probe runs
+        for (final int maxSize : new int[] {1, 7, 64, 1000, Integer.MAX_VALUE}) {
+            final Random random = new Random(maxSize);
+            final LongObjectHashMap<Long> map = new LongObjectHashMap<>(maxSize);
+            final Map<Long, Long> expected = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+                    return size() > maxSize;
+                }
+            };
+            for (int i = 0; i < 200000; i++) {
+                final long key = 0x001A2B000000L | random.nextInt(3000);
+                final int op = random.nextInt(10);
+                if (op < 2) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else if (op < 5) {
+                    assertEquals(expected.get(key), map.get(key));
+                } else {
+                    assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            for (final Iterator<Long> it = expected.keySet().iterator(); it.hasNext(); ) {
+                assertTrue(map.containsKey(it.next()));
+            }
+        }
+    }
+
+    /**
+     * retained heap for n cached networks: String-keyed maps as they were vs packed keys.
+     * Values are one shared object, so only the map and key overhead is counted. Run by hand with a
+     * big enough -Xmx: not a pass/fail test.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkFootprint() {
+        final Object value = new Object();
+        for (final int n : new int[] {100000, 1000000}) {
+            final Random random = new Random(n);
+            final long[] macs = new long[n];
+            for (int i = 0; i < n; i++) {
+                macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            }
+
+            long base = usedHeap();
+            final Map<String, Object> hashMap = new HashMap<>();
+            for (final long mac : macs) {
+                hashMap.put(MacAddress.format(mac), value);
+            }
+            report("HashMap<String>", n, usedHeap() - base, hashMap.size());
+            hashMap.clear();
+
+            base = usedHeap();
+            final ConcurrentLinkedHashMap<String, Object> linked = new ConcurrentLinkedHashMap<>(n);
+            for (final long mac : macs) {
+                linked.put(MacAddress.format(mac), value);
+            }
+            report("ConcurrentLinkedHashMap<String>", n, usedHeap() - base, linked.size());
+            linked.clear();
+
+            base = usedHeap();
+            final LongObjectHashMap<Object> packed = new LongObjectHashMap<>(n);
+            for (final long mac : macs) {
+                packed.put(mac, value);
+            }
+            report("LongObjectHashMap", n, usedHeap() - base, packed.size());
+            packed.clear();
+        }
+    }
+
+    private static void report(final String name, final int n, final long bytes, final int size) {
+        System.out.println(name + " @" + n + ": " + (bytes / 1024 / 1024) + " MiB, "
+                + (bytes / Math.max(1, size)) + " bytes/entry");
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,238 @@
+package net.wigle.wigleandroid.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.wigle.wigleandroid.util.LookupTable;
+import net.wigle.wigleandroid.util.LookupTableTest;
+import net.wigle.wigleandroid.util.MacAddress;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OUITest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LookupTable table(final String... prefixAndNames) throws IOException {
+        final Map<Long, String> entries = new HashMap<>();
+        for (int i = 0; i < prefixAndNames.length; i += 2) {
+            entries.put(OUI.prefixKey(prefixAndNames[i]), prefixAndNames[i + 1]);
+        }
+        return new LookupTable(LookupTableTest.compile(8, entries));
+    }
+
+    /**
+     * the lookup Network.getOui did before the resolver
+     */
+    private static String legacyLookup(final Properties properties, final String bssid) {
+        final String lookup = bssid.replace(":", "").toUpperCase(Locale.ROOT);
+        String retval = properties.getProperty(lookup.substring(0, 9));
+        if (retval == null) retval = properties.getProperty(lookup.substring(0, 7));
+        if (retval == null) retval = properties.getProperty(lookup.substring(0, 6));
+        return retval;
+    }
+
+    @Test
+    public void testLongestPrefixWins() throws IOException {
+        final LookupTable table = table("001122", "Large", "0011223", "Medium", "001122334", "Small",
+                "70B3D5", "IEEE Registration Authority");
+        final OUI oui = new OUI(() -> table, Runnable::run);
+        assertEquals("Small", oui.resolve("00:11:22:33:4f:ff"));
+        assertEquals("Medium", oui.resolve("00:11:22:33:5f:ff"));
+        assertEquals("Medium", oui.resolve("00-11-22-3F-FF-FF"));
+        assertEquals("Large", oui.resolve("00:11:22:ff:ff:ff"));
+        assertEquals("IEEE Registration Authority", oui.resolve(MacAddress.pack("70:b3:d5:12:34:56")));
+        assertNull(oui.resolve("00:11:23:33:4f:ff"));
+        // cells and other non-MACs
+        assertNull(oui.resolve("310260_12345_678"));
+        assertNull(oui.resolve(MacAddress.NOT_A_MAC));
+        assertNull(oui.resolve((String) null));
+
+        // exact single-block lookups are unchanged
+        assertEquals("Large", oui.getOui("001122"));
+        assertEquals("Medium", oui.getOui("0011223"));
+        assertNull(oui.getOui("00112233"));
+        assertNull(oui.getOui("not hex"));
+
+        assertEquals(OUI.prefixKey("0011223"), OUI.prefixKey(MacAddress.pack("00:11:22:3f:ff:ff"), 7));
+        assertEquals(OUI.prefixKey("001122334"), OUI.prefixKey(MacAddress.pack("00:11:22:33:4f:ff"), 9));
+    }
+
+    @Test
+    public void testLoadsLazilyOnce() throws IOException {
+        final LookupTable table = table("001122", "Large");
+        final AtomicInteger loads = new AtomicInteger();
+        final OUI oui = new OUI(() -> {
+            loads.incrementAndGet();
+            return table;
+        }, Runnable::run);
+        assertFalse(oui.isLoaded());
+        assertEquals(0, loads.get());
+        assertEquals("Large", oui.resolve("00:11:22:33:44:55"));
+        assertTrue(oui.isLoaded());
+        oui.prefetch();
+        assertEquals("Large", oui.getOui("001122"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testLookupsDontWaitOnASlowLoad() throws IOException {
+        final LookupTable table = table("001122", "Large");
+        final List<Runnable> pending = new ArrayList<>();
+        final OUI oui = new OUI(() -> table, pending::add);
+        final AtomicInteger refreshes = new AtomicInteger();
+        oui.whenLoaded(refreshes::incrementAndGet);
+        assertNull(oui.resolve("00:11:22:33:44:55"));
+        assertEquals(1, pending.size());
+        assertNull(oui.getOui("001122"));
+        assertEquals(1, pending.size());
+        assertEquals(0, refreshes.get());
+        pending.get(0).run();
+        assertEquals(1, refreshes.get());
+        assertEquals("Large", oui.resolve("00:11:22:33:44:55"));
+        // nothing left to wait for
+        oui.whenLoaded(refreshes::incrementAndGet);
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    public void testRecentAnswersAreCached() throws IOException {
+        final OUI oui = new OUI(() -> table("001122", "Large", "001122334", "Small"), Runnable::run);
+        assertEquals("Small", oui.resolve("00:11:22:33:40:00"));
+        assertEquals("Small", oui.resolve("00:11:22:33:4f:ff"));
+        assertNull(oui.resolve("00:11:23:00:00:00"));
+        assertNull(oui.resolve("00:11:23:00:0f:ff"));
+        // same 36-bit prefix, so both repeats are hits
+        assertEquals(2, oui.getCacheHitCount());
+        assertEquals(2, oui.getCacheMissCount());
+        assertEquals("Large", oui.resolve("00:11:22:33:50:00"));
+        assertEquals(3, oui.getCacheMissCount());
+    }
+
+    @Test
+    public void testMatchesLegacyLookupOnRegistry() throws IOException {
+        final Properties properties = LookupTableTest.loadOuiSource();
+        final LookupTable table = new LookupTable(LookupTableTest.compile(8, LookupTableTest.ouiEntries(properties)));
+        final OUI oui = new OUI(() -> table, Runnable::run);
+        final Random random = new Random(42L);
+        final String[] prefixes = properties.stringPropertyNames().toArray(new String[0]);
+        for (int i = 0; i < 50000; i++) {
+            // mostly under an assigned block, so the longer blocks get exercised
+            final long mac = i % 4 == 0 ? random.nextLong() & 0xFFFFFFFFFFFFL
+                    : (Long.parseLong(prefixes[random.nextInt(prefixes.length)], 16)
+                        << (4 * (12 - prefixes[0].length()))) ^ (random.nextLong() & 0xFFFFFFL);
+            final String bssid = MacAddress.format(mac & 0xFFFFFFFFFFFFL);
+            assertEquals(bssid, legacyLookup(properties, bssid), oui.resolve(bssid));
+        }
+    }
+
+    private File writeRegistryTable() throws IOException {
+        final ByteBuffer compiled = LookupTableTest.compile(8, LookupTableTest.ouiEntries(LookupTableTest.loadOuiSource()));
+        final File file = folder.newFile("oui.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(compiled.array());
+        }
+        return file;
+    }
+
+    private static LookupTable map(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new LookupTable(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkStartup() throws IOException {
+        final File tableFile = writeRegistryTable();
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            final Properties properties = LookupTableTest.loadOuiSource();
+            final String legacy = legacyLookup(properties, "00:11:22:33:44:55");
+            final long propertiesNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final OUI oui = new OUI(() -> map(tableFile), Runnable::run);
+            final long constructNanos = System.nanoTime() - start;
+            final String resolved = oui.resolve("00:11:22:33:44:55");
+            final long firstLookupNanos = System.nanoTime() - start;
+
+            System.out.println("round " + round + ": properties load + lookup " + propertiesNanos / 1000
+                    + "us; resolver construct " + constructNanos / 1000 + "us, map + first lookup "
+                    + firstLookupNanos / 1000 + "us (" + legacy + " / " + resolved + ")");
+        }
+    }
+
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkLookupLatency() throws IOException {
+        final Properties properties = LookupTableTest.loadOuiSource();
+        final LookupTable table = map(writeRegistryTable());
+        final Random random = new Random(42L);
+        // a scan's worth of distinct radios, redrawn every refresh
+        final String[] visible = new String[200];
+        final long[] visiblePacked = new long[visible.length];
+        final String[] prefixes = properties.stringPropertyNames().toArray(new String[0]);
+        for (int i = 0; i < visible.length; i++) {
+            final String prefix = prefixes[random.nextInt(prefixes.length)];
+            visiblePacked[i] = ((Long.parseLong(prefix, 16) << (4 * (12 - prefix.length())))
+                    ^ (random.nextLong() & 0xFFFFFFL)) & 0xFFFFFFFFFFFFL;
+            visible[i] = MacAddress.format(visiblePacked[i]);
+        }
+        final int lookups = 2000000;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < lookups; i++) {
+                if (legacyLookup(properties, visible[i % visible.length]) != null) found++;
+            }
+            final long legacyNanos = System.nanoTime() - start;
+
+            final OUI cached = new OUI(() -> table, Runnable::run);
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (cached.resolve(visible[i % visible.length]) != null) found++;
+            }
+            final long cachedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (cached.resolve(visiblePacked[i % visible.length]) != null) found++;
+            }
+            final long packedNanos = System.nanoTime() - start;
+
+            // every lookup a different 36-bit prefix: no cache help
+            final OUI uncached = new OUI(() -> table, Runnable::run);
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (uncached.resolve(random.nextLong() & 0xFFFFFFFFFFFFL) != null) found++;
+            }
+            final long missNanos = System.nanoTime() - start;
+
+            System.out.println("round " + round + ": legacy " + legacyNanos / lookups + "ns, resolver (string) "
+                    + cachedNanos / lookups + "ns, (packed) " + packedNanos / lookups + "ns, cache misses "
+                    + missNanos / lookups + "ns per lookup (" + found + ")");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package net.wigle.wigleandroid.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class FileCacheInterceptorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        cacheDir = folder.newFolder();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private OkHttpClient client(FileCacheInterceptor cache) {
+        return new OkHttpClient.Builder().addInterceptor(cache).build();
+    }
+
+    private static String[] get(OkHttpClient client, String url) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            return new String[]{response.body().string(), response.header(FileCacheInterceptor.CACHE_STATUS_HEADER)};
+        }
+    }
+
+    @Test
+    public void testFreshResponsesComeFromDisk() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/api/v2/stats/").toString(), TimeUnit.HOURS.toMillis(1), 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("{\"rank\":1}").setHeader("Content-Type", "application/json"));
+        final String url = server.url("/api/v2/stats/user").toString();
+
+        final String[] first = get(client, url);
+        assertEquals("{\"rank\":1}", first[0]);
+        assertNull(first[1]);
+        final String[] second = get(client, url);
+        assertEquals("{\"rank\":1}", second[0]);
+        assertEquals(FileCacheInterceptor.HIT, second[1]);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // and it outlives the process
+        final String[] restarted = get(client(new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), TimeUnit.HOURS.toMillis(1), 0)), url);
+        assertEquals(FileCacheInterceptor.HIT, restarted[1]);
+    }
+
+    @Test
+    public void testUncoveredAndNonGetPassThrough() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/api/v2/stats/").toString(), TimeUnit.HOURS.toMillis(1), 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("a"));
+        server.enqueue(new MockResponse().setBody("b"));
+        server.enqueue(new MockResponse().setBody("c"));
+        get(client, server.url("/api/v2/news/latest").toString());
+        get(client, server.url("/api/v2/news/latest").toString());
+        try (Response ignored = client.newCall(new Request.Builder().url(server.url("/api/v2/stats/user"))
+                .post(okhttp3.RequestBody.create(new byte[0], null)).build()).execute()) {
+            assertEquals(3, server.getRequestCount());
+        }
+        assertEquals(0, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void testEntriesAreKeyedByCredentials() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), TimeUnit.HOURS.toMillis(1), 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("alice"));
+        server.enqueue(new MockResponse().setBody("bob"));
+        final String url = server.url("/api/v2/stats/user").toString();
+        for (String user : new String[]{"alice", "bob", "alice", "bob"}) {
+            try (Response response = client.newCall(new Request.Builder().url(url)
+                    .header("Authorization", "Basic " + user).build()).execute()) {
+                assertEquals(user, response.body().string());
+            }
+        }
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testExpiredResponsesRevalidate() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), 0, 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("v1").setHeader("ETag", "\"abc\"")
+                .setHeader("Last-Modified", "Tue, 01 Sep 2026 00:00:00 GMT"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.enqueue(new MockResponse().setBody("v2").setHeader("ETag", "\"def\""));
+        final String url = server.url("/api/v2/news/latest").toString();
+
+        assertEquals("v1", get(client, url)[0]);
+        final String[] revalidated = get(client, url);
+        assertEquals("v1", revalidated[0]);
+        assertEquals(FileCacheInterceptor.REVALIDATED, revalidated[1]);
+        assertEquals("v2", get(client, url)[0]);
+
+        server.takeRequest();
+        final RecordedRequest conditional = server.takeRequest();
+        assertEquals("\"abc\"", conditional.getHeader("If-None-Match"));
+        assertEquals("Tue, 01 Sep 2026 00:00:00 GMT", conditional.getHeader("If-Modified-Since"));
+        assertEquals("\"abc\"", server.takeRequest().getHeader("If-None-Match"));
+        assertEquals(1, cache.getRevalidatedCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), 0, TimeUnit.HOURS.toMillis(1));
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("v1").setHeader("ETag", "\"abc\""));
+        server.enqueue(new MockResponse().setBody("v2").setHeader("ETag", "\"def\""));
+        final String url = server.url("/api/v2/stats/site").toString();
+
+        assertEquals("v1", get(client, url)[0]);
+        final String[] stale = get(client, url);
+        assertEquals("v1", stale[0]);
+        assertEquals(FileCacheInterceptor.STALE, stale[1]);
+        assertEquals(1, cache.getStaleHitCount());
+
+        // the background refresh lands in the cache
+        server.takeRequest();
+        final RecordedRequest refresh = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("\"abc\"", refresh.getHeader("If-None-Match"));
+        // counted once written
+        for (int i = 0; i < 250 && cache.getMissCount() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("v2", get(client, url)[0]);
+    }
+
+    @Test
+    public void testOfflineServesAnyCachedCopy() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), 0, 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setBody("{\"news\":[]}"));
+        final String url = server.url("/api/v2/news/latest").toString();
+        get(client, url);
+        final String uncached = server.url("/api/v2/stats/site").toString();
+        server.shutdown();
+
+        final String[] offline = get(client, url);
+        assertEquals("{\"news\":[]}", offline[0]);
+        assertEquals(FileCacheInterceptor.OFFLINE, offline[1]);
+        assertEquals(1, cache.getOfflineCount());
+        try {
+            get(client, uncached);
+            fail("expected a failure with nothing cached");
+        } catch (IOException expected) {
+            // nothing to fall back on
+        }
+    }
+
+    @Test
+    public void testHitsKeepEntriesFromPruning() throws Exception {
+        final String prefix = server.url("/").toString();
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(prefix, TimeUnit.DAYS.toMillis(365), 0);
+        server.enqueue(new MockResponse().setBody("{\"rank\":1}"));
+        final String url = server.url("/api/v2/stats/user").toString();
+        get(client(cache), url);
+        final File[] files = cacheDir.listFiles();
+        assertEquals(1, files.length);
+        // written long ago, but read since
+        final long written = System.currentTimeMillis() - FileCacheInterceptor.MAX_ENTRY_AGE_MILLIS
+                - TimeUnit.DAYS.toMillis(1);
+        assertTrue(files[0].setLastModified(written));
+        assertEquals(FileCacheInterceptor.HIT, get(client(cache), url)[1]);
+
+        // a new process prunes on its first request
+        final String[] restarted = get(client(new FileCacheInterceptor(cacheDir)
+                .policy(prefix, TimeUnit.DAYS.toMillis(365), 0)), url);
+        assertEquals(FileCacheInterceptor.HIT, restarted[1]);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testErrorsAreNotCached() throws Exception {
+        final FileCacheInterceptor cache = new FileCacheInterceptor(cacheDir)
+                .policy(server.url("/").toString(), TimeUnit.HOURS.toMillis(1), 0);
+        final OkHttpClient client = client(cache);
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("oops"));
+        server.enqueue(new MockResponse().setBody("ok"));
+        final String url = server.url("/api/v2/file/transactions").toString();
+        assertEquals("oops", get(client, url)[0]);
+        assertEquals("ok", get(client, url)[0]);
+        assertEquals("ok", get(client, url)[0]);
+        assertEquals(2, server.getRequestCount());
+    }
+}
@@ -0,0 +1,293 @@
+package net.wigle.wigleandroid.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final TileCache.TileSource SOURCE = new TileCache.TileSource() {
+        @Override
+        public String variant() {
+            return "2001-2027";
+        }
+
+        @Override
+        public URL url(int zoom, int x, int y) throws IOException {
+            return new URL("http://tiles.test/" + zoom + "/" + x + "/" + y);
+        }
+
+        @Override
+        public void prepare(HttpURLConnection connection) {
+        }
+    };
+
+    /**
+     * serves "tile:z/x/y", with etag "v1"; answers 304 when asked with it
+     */
+    private static class FakeServer implements TileCache.Fetcher {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final List<String> conditional = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean offline;
+
+        @Override
+        public TileCache.Fetched fetch(TileCache.TileSource source, URL url, String etag, String lastModified)
+                throws IOException {
+            if (offline) {
+                throw new IOException("no network");
+            }
+            final String path = url.getPath().substring(1);
+            requests.add(path);
+            if ("v1".equals(etag)) {
+                conditional.add(path);
+                return new TileCache.Fetched(HttpURLConnection.HTTP_NOT_MODIFIED, new byte[0], null, null);
+            }
+            return new TileCache.Fetched(HttpURLConnection.HTTP_OK,
+                    ("tile:" + path).getBytes(StandardCharsets.UTF_8), "v1", "Tue, 01 Sep 2026 00:00:00 GMT");
+        }
+    }
+
+    private static byte[] tile(String path) {
+        return ("tile:" + path).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFreshTilesComeFromDisk() throws Exception {
+        final FakeServer server = new FakeServer();
+        final File dir = folder.newFolder();
+        final TileCache cache = new TileCache(dir, 1 << 20, TimeUnit.HOURS.toMillis(1), server);
+        assertArrayEquals(tile("20/5/6"), cache.getTile(SOURCE, 20, 5, 6));
+        assertArrayEquals(tile("20/5/6"), cache.getTile(SOURCE, 20, 5, 6));
+        waitForPrefetch(cache);
+        assertEquals(1, Collections.frequency(server.requests, "20/5/6"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(9, cache.getDownloadCount());
+
+        // another variant is another tile
+        final TileCache.TileSource mine = new TileCache.TileSource() {
+            @Override
+            public String variant() {
+                return "2001-2027&onlymine=1/someone";
+            }
+
+            @Override
+            public URL url(int zoom, int x, int y) throws IOException {
+                return SOURCE.url(zoom, x, y);
+            }
+
+            @Override
+            public void prepare(HttpURLConnection connection) {
+            }
+        };
+        cache.getTile(mine, 20, 5, 6);
+        assertEquals(2, Collections.frequency(server.requests, "20/5/6"));
+        cache.shutdown();
+    }
+
+    @Test
+    public void testStaleTilesRevalidate() throws Exception {
+        final FakeServer server = new FakeServer();
+        final TileCache cache = new TileCache(folder.newFolder(), 1 << 20, 0, server);
+        cache.getTile(SOURCE, 3, 1, 1);
+        waitForPrefetch(cache);
+        assertArrayEquals(tile("3/1/1"), cache.getTile(SOURCE, 3, 1, 1));
+        assertEquals(Collections.singletonList("3/1/1"), server.conditional);
+        assertEquals(1, cache.getRevalidatedCount());
+        cache.shutdown();
+    }
+
+    @Test
+    public void testOfflineServesWhatIsCached() throws Exception {
+        final FakeServer server = new FakeServer();
+        final File dir = folder.newFolder();
+        final TileCache cache = new TileCache(dir, 1 << 20, 0, server);
+        cache.getTile(SOURCE, 3, 1, 1);
+        waitForPrefetch(cache);
+        cache.shutdown();
+
+        server.offline = true;
+        // a new process, no network, everything long stale
+        final TileCache restarted = new TileCache(dir, 1 << 20, 0, server);
+        assertArrayEquals(tile("3/1/1"), restarted.getTile(SOURCE, 3, 1, 1));
+        assertArrayEquals(tile("3/2/2"), restarted.getTile(SOURCE, 3, 2, 2));
+        assertEquals(0, restarted.getTile(SOURCE, 3, 6, 6).length);
+        assertEquals(2, restarted.getOfflineCount());
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testCorruptLengthsAreMisses() throws Exception {
+        final FakeServer server = new FakeServer();
+        final File dir = folder.newFolder();
+        final TileCache cache = new TileCache(dir, 1 << 20, 0, server);
+        cache.getTile(SOURCE, 3, 1, 1);
+        waitForPrefetch(cache);
+        cache.shutdown();
+        final File[] tiles = dir.listFiles();
+        assertEquals(9, tiles.length);
+        // magic, fetch time, etag "v1", the 29 character Last-Modified, then the image length
+        final int lengthOffset = 4 + 8 + 2 + 2 + 2 + 29;
+        final int[] lengths = {Integer.MAX_VALUE, -1, 1000, TileCache.MAX_TILE_BYTES + 1};
+        for (int i = 0; i < tiles.length; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(tiles[i], "rw")) {
+                file.seek(lengthOffset);
+                file.writeInt(lengths[i % lengths.length]);
+            }
+        }
+
+        server.offline = true;
+        final TileCache restarted = new TileCache(dir, 1 << 20, 0, server);
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 3; y++) {
+                assertEquals(0, restarted.getTile(SOURCE, 3, x, y).length);
+            }
+        }
+        assertEquals(0, restarted.getOfflineCount());
+        assertEquals(0, dir.listFiles().length);
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testByteBudgetEvictsLeastRecentlyUsed() throws Exception {
+        final FakeServer server = new FakeServer();
+        final File dir = folder.newFolder();
+        final TileCache cache = new TileCache(dir, 1 << 20, TimeUnit.HOURS.toMillis(1), server);
+        cache.getTile(SOURCE, 0, 0, 0);
+        // header, validators and the tile
+        final long perTile = cache.getTotalBytes();
+        assertTrue(perTile > 40);
+        cache.shutdown();
+        // zoom 0 has no neighbours; fill past the budget there with variants
+        final List<TileCache.TileSource> sources = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final String variant = "v" + i;
+            sources.add(new TileCache.TileSource() {
+                @Override
+                public String variant() {
+                    return variant;
+                }
+
+                @Override
+                public URL url(int zoom, int x, int y) throws IOException {
+                    return SOURCE.url(zoom, x, y);
+                }
+
+                @Override
+                public void prepare(HttpURLConnection connection) {
+                }
+            });
+        }
+        final TileCache small = new TileCache(folder.newFolder(), perTile * 3, TimeUnit.HOURS.toMillis(1), server);
+        small.getTile(sources.get(0), 0, 0, 0);
+        small.getTile(sources.get(1), 0, 0, 0);
+        small.getTile(sources.get(2), 0, 0, 0);
+        // a hit makes the first the most recent
+        small.getTile(sources.get(0), 0, 0, 0);
+        small.getTile(sources.get(3), 0, 0, 0);
+        assertTrue(small.getTotalBytes() <= perTile * 3);
+        server.requests.clear();
+        small.getTile(sources.get(0), 0, 0, 0);
+        small.getTile(sources.get(2), 0, 0, 0);
+        assertEquals(0, server.requests.size());
+        // 1 went
+        small.getTile(sources.get(1), 0, 0, 0);
+        assertEquals(1, server.requests.size());
+        small.shutdown();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneDownload() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final FakeServer server = new FakeServer() {
+            @Override
+            public TileCache.Fetched fetch(TileCache.TileSource source, URL url, String etag,
+                                           String lastModified) throws IOException {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                return super.fetch(source, url, etag, lastModified);
+            }
+        };
+        final TileCache cache = new TileCache(folder.newFolder(), 1 << 20, TimeUnit.HOURS.toMillis(1), server);
+        final byte[][] results = new byte[4][];
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            final int n = i;
+            final Thread t = new Thread(() -> results[n] = cache.getTile(SOURCE, 0, 0, 0));
+            threads.add(t);
+            t.start();
+            if (i == 0) {
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (final Thread t : threads) {
+            t.join(5000);
+        }
+        assertEquals(1, server.requests.size());
+        for (final byte[] result : results) {
+            assertArrayEquals(tile("0/0/0"), result);
+        }
+        cache.shutdown();
+    }
+
+    @Test
+    public void testPrefetchesNeighborsAcrossTheAntimeridian() throws Exception {
+        final FakeServer server = new FakeServer();
+        final TileCache cache = new TileCache(folder.newFolder(), 1 << 20, TimeUnit.HOURS.toMillis(1), server);
+        cache.getTile(SOURCE, 2, 0, 0);
+        waitForPrefetch(cache);
+        final Set<String> fetched = new HashSet<>(server.requests);
+        // top row: no row above; x wraps to 3
+        assertEquals(new HashSet<>(Arrays.asList("2/0/0", "2/1/0", "2/3/0", "2/0/1", "2/1/1", "2/3/1")),
+                fetched);
+        server.requests.clear();
+        cache.getTile(SOURCE, 2, 1, 0);
+        waitForPrefetch(cache);
+        // only the unseen 2/2/x neighbours
+        assertEquals(new HashSet<>(Arrays.asList("2/2/0", "2/2/1")), new HashSet<>(server.requests));
+        cache.shutdown();
+    }
+
+    /**
+     * wait until downloads stop changing
+     */
+    private static void waitForPrefetch(TileCache cache) throws InterruptedException {
+        long last = -1;
+        for (int i = 0; i < 100; i++) {
+            Thread.sleep(50);
+            final long now = cache.getDownloadCount() + cache.getRevalidatedCount();
+            if (now == last) {
+                return;
+            }
+            last = now;
+        }
+    }
+}
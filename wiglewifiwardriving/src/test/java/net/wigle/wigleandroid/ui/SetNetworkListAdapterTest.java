@@ -403,6 +403,56 @@ public class SetNetworkListAdapterTest {
         Assert.assertEquals(destructiveLeSize, netlist.size());
     }
 
+    /**
+     * a WiFi scan merged into a sorted list replaces the WiFi and cells, and leaves it sorted
+     */
+    @Test
+    public void testMergeCurrentWifi() {
+        final Random random = new Random(7L);
+        final List<Network> bt = randomNets(random, 500, NetworkType.BT);
+        final List<Network> cell = randomNets(random, 20, NetworkType.LTE);
+        final List<Network> lastScan = randomNets(random, 300, NetworkType.WIFI);
+        SetBackedNetworkList netlist = new SetBackedNetworkList();
+        netlist.addAll(bt);
+        netlist.addAll(cell);
+        netlist.addAll(lastScan);
+        netlist.sort(NetworkListSorter.signalCompare);
+
+        // half the last scan seen again, plus some new, and one twice
+        final List<Network> scan = new ArrayList<>(lastScan.subList(0, 150));
+        scan.addAll(randomNets(random, 200, NetworkType.WIFI));
+        scan.add(scan.get(3));
+        scan.sort(NetworkListSorter.signalCompare);
+
+        System.out.print("Merging WiFi scan into SetBackedNetworkList...");
+        long start = System.currentTimeMillis();
+        netlist.mergeCurrentWifi(scan, NetworkListSorter.signalCompare);
+        long end = System.currentTimeMillis();
+        System.out.println(" Merged in ("+(end-start)+"ms)");
+
+        Assert.assertEquals(bt.size() + 350, netlist.size());
+        Assert.assertEquals(bt.size() + 350, new ArrayList<>(netlist).size());
+        Assert.assertFalse(netlist.contains(cell.get(0)));
+        Assert.assertFalse(netlist.contains(lastScan.get(200)));
+        Assert.assertTrue(netlist.contains(scan.get(0)));
+        for (int i = 1; i < netlist.size(); i++) {
+            Assert.assertTrue(netlist.get(i - 1).getLevel() >= netlist.get(i).getLevel());
+        }
+
+        netlist.clearWifi();
+        Assert.assertEquals(bt.size(), netlist.size());
+    }
+
+    private static List<Network> randomNets(final Random random, final int count, final NetworkType type) {
+        final List<Network> nets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String nextMac = randomMACAddress();
+            nets.add(new Network(nextMac, "SSID"+nextMac, 1, "test capabilities",
+                    -100 + random.nextInt(70), type));
+        }
+        return nets;
+    }
+
     // from https://stackoverflow.com/questions/24261027/make-a-random-mac-address-generator-generate-just-unicast-macs
     private static String randomMACAddress(){
         Random rand = new Random();
@@ -0,0 +1,72 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, Histogram.bucketFor(0));
+        assertEquals(1, Histogram.bucketFor(1));
+        assertEquals(2, Histogram.bucketFor(2));
+        assertEquals(2, Histogram.bucketFor(3));
+        assertEquals(3, Histogram.bucketFor(4));
+        assertEquals(10, Histogram.bucketFor(1023));
+        assertEquals(11, Histogram.bucketFor(1024));
+        assertEquals(63, Histogram.bucketFor(Long.MAX_VALUE));
+        assertEquals(1023L, Histogram.upperBound(10));
+    }
+
+    @Test
+    public void testPercentiles() {
+        final Histogram histogram = new Histogram("test", "ms");
+        assertEquals(0L, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100L, histogram.getMax());
+        assertEquals(50.5D, histogram.getMean(), 0.0001D);
+        // 50th value is 50, in [32, 64)
+        assertEquals(63L, histogram.getPercentile(50));
+        // 99th is in [64, 128), capped at the max seen
+        assertEquals(100L, histogram.getPercentile(99));
+        assertEquals(1L, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testConcurrentRecorders() throws Exception {
+        final Histogram histogram = new Histogram("test", "ms");
+        final int perThread = 100000;
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    // every thread sees rising values; thread 3 holds the largest
+                    histogram.record(i * threads.length + offset);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals((long) perThread * threads.length, histogram.getCount());
+        assertEquals((long) perThread * threads.length - 1, histogram.getMax());
+    }
+
+    @Test
+    public void testNegativeAndReset() {
+        final Histogram histogram = new Histogram("test", "");
+        histogram.record(-5);
+        assertEquals(1L, histogram.getBuckets()[0]);
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getMax());
+    }
+}
@@ -0,0 +1,185 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.wigle.wigleandroid.model.OUI;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+public class LookupTableTest {
+
+    // relative to the module, where gradle runs unit tests
+    private static final File OUI_SOURCE = new File("etc/oui/oui.properties");
+
+    /**
+     * The same layout writeLookupTable in build.gradle produces.
+     */
+    public static ByteBuffer compile(final int keyBytes, final Map<Long, String> entries) throws IOException {
+        final TreeMap<Long, String> sorted = new TreeMap<>(entries);
+        final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        final DataOutputStream poolData = new DataOutputStream(pool);
+        final Map<String, Integer> poolOffsets = new HashMap<>();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(LookupTable.MAGIC);
+        out.writeInt(keyBytes);
+        out.writeInt(sorted.size());
+        for (long key : sorted.keySet()) {
+            if (keyBytes == 8) {
+                out.writeLong(key);
+            } else {
+                out.writeInt((int) key);
+            }
+        }
+        for (String value : sorted.values()) {
+            Integer offset = poolOffsets.get(value);
+            if (offset == null) {
+                offset = poolData.size();
+                poolOffsets.put(value, offset);
+                final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                poolData.writeShort(utf8.length);
+                poolData.write(utf8);
+            }
+            out.writeInt(offset);
+        }
+        pool.writeTo(out);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    public static Properties loadOuiSource() throws IOException {
+        final Properties properties = new Properties();
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(OUI_SOURCE), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    public static Map<Long, String> ouiEntries(final Properties properties) {
+        final Map<Long, String> entries = new HashMap<>();
+        for (String prefix : properties.stringPropertyNames()) {
+            entries.put(OUI.prefixKey(prefix), properties.getProperty(prefix));
+        }
+        return entries;
+    }
+
+    @Test
+    public void testLookups() throws IOException {
+        final Map<Long, String> entries = new HashMap<>();
+        entries.put(0x004CL, "Apple, Inc.");
+        entries.put(0x0006L, "Microsoft");
+        entries.put(0xFCE0L, "\u00c9sta Caf\u00e9 Ltd.");
+        entries.put(0xFCE1L, "Microsoft");
+        final LookupTable table = new LookupTable(compile(4, entries));
+        assertEquals(4, table.size());
+        for (Map.Entry<Long, String> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey()));
+        }
+        assertNull(table.get(0L));
+        assertNull(table.get(0x004DL));
+        assertNull(table.get(0xFFFFL));
+        assertEquals(-1, table.indexOf(0L));
+        assertEquals(-5, table.indexOf(0x10000L));
+        assertTrue(table.containsRange(0x0040L, 0x004FL));
+        assertTrue(table.containsRange(0x004CL, 0x004CL));
+        assertFalse(table.containsRange(0x0050L, 0xFCDFL));
+        assertFalse(table.containsRange(0xFCE2L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testEmptyAndBadTables() throws IOException {
+        final LookupTable empty = new LookupTable(compile(8, new HashMap<>()));
+        assertEquals(0, empty.size());
+        assertNull(empty.get(42L));
+        assertFalse(empty.containsRange(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        for (byte[] bad : new byte[][]{new byte[0], "not a table at all".getBytes(StandardCharsets.US_ASCII),
+                {0x57, 0x4c, 0x54, 0x31, 0, 0, 0, 2, 0, 0, 0, 1}, {0x57, 0x4c, 0x54, 0x31, 0, 0, 0, 8, 0, 0, 0, 9}}) {
+            try {
+                new LookupTable(ByteBuffer.wrap(bad));
+                fail("accepted a bad table");
+            } catch (IOException expected) {
+                // refused up front, rather than failing on lookup
+            }
+        }
+    }
+
+    @Test
+    public void testOuiPrefixKeys() {
+        assertEquals(-1L, OUI.prefixKey(null));
+        assertEquals(-1L, OUI.prefixKey(""));
+        assertEquals(-1L, OUI.prefixKey("00000G"));
+        assertEquals(-1L, OUI.prefixKey("0123456789ABC"));
+        assertEquals(OUI.prefixKey("70b3d5"), OUI.prefixKey("70B3D5"));
+        // the same bits at different lengths are different blocks
+        assertTrue(OUI.prefixKey("000000") != OUI.prefixKey("0000000"));
+        assertTrue(OUI.prefixKey("70B3D5") < OUI.prefixKey("70B3D5000"));
+        assertEquals((0xFFFFFFFFFFFFL << 4) | 12, OUI.prefixKey("FFFFFFFFFFFF"));
+    }
+
+    @Test
+    public void testOuiTableMatchesProperties() throws IOException {
+        final Properties properties = loadOuiSource();
+        final LookupTable table = new LookupTable(compile(8, ouiEntries(properties)));
+        assertEquals(properties.size(), table.size());
+        for (String prefix : properties.stringPropertyNames()) {
+            assertEquals(prefix, properties.getProperty(prefix), table.get(OUI.prefixKey(prefix)));
+        }
+        assertNull(table.get(OUI.prefixKey("000000000")));
+    }
+
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkPropertiesVersusTable() throws IOException {
+        final ByteBuffer compiled = compile(8, ouiEntries(loadOuiSource()));
+        final String[] probes = loadOuiSource().stringPropertyNames().toArray(new String[0]);
+        final Runtime runtime = Runtime.getRuntime();
+        for (int round = 0; round < 5; round++) {
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            final Properties properties = loadOuiSource();
+            final long propertiesLoadNanos = System.nanoTime() - start;
+            System.gc();
+            final long propertiesHeap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+            start = System.nanoTime();
+            final LookupTable table = new LookupTable(compiled);
+            final long tableLoadNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int hits = 0;
+            for (String probe : probes) {
+                if (properties.getProperty(probe) != null) hits++;
+            }
+            final long propertiesLookupNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String probe : probes) {
+                if (table.get(OUI.prefixKey(probe)) != null) hits++;
+            }
+            final long tableLookupNanos = System.nanoTime() - start;
+
+            System.out.println("round " + round + ": properties load " + propertiesLoadNanos / 1000000
+                    + "ms, ~" + propertiesHeap / 1024 + "KB heap, " + propertiesLookupNanos / probes.length
+                    + "ns/lookup; table open " + tableLoadNanos / 1000 + "us, " + compiled.capacity() / 1024
+                    + "KB mapped, " + tableLookupNanos / probes.length + "ns/lookup (" + hits + " hits)");
+        }
+    }
+}
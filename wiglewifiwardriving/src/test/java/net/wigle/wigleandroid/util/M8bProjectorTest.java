@@ -0,0 +1,137 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.wigle.m8b.geodesy.mgrs;
+import net.wigle.m8b.geodesy.utm;
+import net.wigle.m8b.siphash.SipKey;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class M8bProjectorTest {
+    private static final int SLICE_BITS = 30;
+    private static final SipKey SIP_KEY = new SipKey(new byte[16]);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMatchesSerialKernel() throws IOException {
+        final Rows rows = new Rows(10000, 11);
+
+        // the row handler as it was: one row at a time on the query thread
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final byte[] macBytes = new byte[6];
+        final byte[] mstr = new byte[M8bRecordSorter.MGRS_BYTES];
+        int expectedNonUtm = 0;
+        for (int i = 0; i < rows.size; i++) {
+            if (!(-80 <= rows.lats[i] && rows.lats[i] <= 84)) {
+                expectedNonUtm++;
+            } else if (rows.bssids[i].length() == 17) {
+                mgrs.fromUtm(utm.fromLatLon(rows.lats[i], rows.lons[i])).populateBytes(mstr);
+                writeRecord(expected, MagicEightUtil.extractLongKeyFrom(rows.bssids[i], macBytes, SIP_KEY, SLICE_BITS),
+                        mstr, 0);
+            }
+        }
+
+        for (final int threads : new int[] {1, 3}) {
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            final M8bProjector projector = new M8bProjector(SIP_KEY, SLICE_BITS,
+                    (key, coords, offset) -> writeRecord(actual, key, coords, offset), 97, threads);
+            try {
+                rows.feed(projector);
+                projector.finish();
+            } finally {
+                projector.close();
+            }
+            assertArrayEquals("threads: " + threads, expected.toByteArray(), actual.toByteArray());
+            assertEquals(expectedNonUtm, projector.getNonUtmCount());
+            assertEquals(rows.badMacs, projector.getBadCount());
+            assertEquals(rows.size - expectedNonUtm - rows.badMacs, projector.getRecordCount());
+        }
+    }
+
+    @Test
+    public void testM8bFileIdenticalAcrossThreadCounts() throws IOException {
+        final Rows rows = new Rows(30000, 5);
+        final byte[] serial = m8b(rows, 1);
+        assertTrue(serial.length > 1000);
+        assertArrayEquals(serial, m8b(rows, 4));
+    }
+
+    private byte[] m8b(final Rows rows, final int threads) throws IOException {
+        final M8bRecordSorter sorter = new M8bRecordSorter(folder.getRoot(), 1000);
+        final M8bProjector projector = new M8bProjector(SIP_KEY, SLICE_BITS, sorter::add, 512, threads);
+        final File out = folder.newFile();
+        try (FileOutputStream stream = new FileOutputStream(out)) {
+            rows.feed(projector);
+            projector.finish();
+            sorter.writeTo(stream.getChannel(), SLICE_BITS, null);
+        } finally {
+            projector.close();
+            sorter.close();
+        }
+        return Files.readAllBytes(out.toPath());
+    }
+
+    private static void writeRecord(final ByteArrayOutputStream out, final long key, final byte[] coords,
+                                    final int offset) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            out.write((int) (key >>> shift));
+        }
+        out.write(coords, offset, M8bRecordSorter.MGRS_BYTES);
+    }
+
+    /**
+     * networks clustered around a few towns, plus polar rows and junk BSSIDs
+     */
+    private static class Rows {
+        final int size;
+        final String[] bssids;
+        final float[] lats;
+        final float[] lons;
+        int badMacs;
+
+        Rows(final int size, final long seed) {
+            this.size = size;
+            bssids = new String[size];
+            lats = new float[size];
+            lons = new float[size];
+            final Random random = new Random(seed);
+            final float[][] towns = {{40.7f, -74.0f}, {51.5f, -0.1f}, {-33.9f, 151.2f}, {35.7f, 139.7f}};
+            for (int i = 0; i < size; i++) {
+                final float[] town = towns[random.nextInt(towns.length)];
+                lats[i] = town[0] + (float) random.nextGaussian() * 0.05f;
+                lons[i] = town[1] + (float) random.nextGaussian() * 0.05f;
+                if (random.nextInt(100) == 0) {
+                    lats[i] = 85f + random.nextFloat();
+                }
+                if (random.nextInt(200) == 0) {
+                    bssids[i] = "310410_" + random.nextInt(100000);
+                    if (-80 <= lats[i] && lats[i] <= 84) {
+                        badMacs++;
+                    }
+                } else {
+                    bssids[i] = MacAddress.format(random.nextLong() & 0xFFFFFFFFFFFFL);
+                }
+            }
+        }
+
+        void feed(final M8bProjector projector) throws IOException {
+            for (int i = 0; i < size; i++) {
+                projector.add(bssids[i], lats[i], lons[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class M8bRecordSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockedStatic<Log> mockedLog;
+
+    @Before
+    public void setUp() {
+        mockedLog = Mockito.mockStatic(Log.class);
+        mockedLog.when(() -> Log.w(anyString(), anyString())).thenReturn(0);
+    }
+
+    @After
+    public void tearDown() {
+        mockedLog.close();
+    }
+
+    @Test
+    public void testHeaderAndRecordLayout() throws IOException {
+        final M8bRecordSorter sorter = new M8bRecordSorter(folder.getRoot());
+        sorter.add(0x2L, mgrs("18TWL8040"));
+        sorter.add(0x1L, mgrs("18TWL8141"));
+        sorter.add(0x2L, mgrs("18TWL8040"));
+        final byte[] file = write(sorter, 30);
+
+        final String header = "MJG\n2\nSIP-2-4\n1e\nMGRS-1000\n4\n9\n2\n";
+        assertEquals(header, new String(file, 0, header.length(), StandardCharsets.UTF_8));
+        final ByteBuffer records = ByteBuffer.wrap(file, header.length(), file.length - header.length())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(2 * M8bRecordSorter.RECORD_BYTES, records.remaining());
+        assertEquals(1, records.getInt());
+        final byte[] coords = new byte[M8bRecordSorter.MGRS_BYTES];
+        records.get(coords);
+        assertEquals("18TWL8141", new String(coords, StandardCharsets.US_ASCII));
+        assertEquals(2, records.getInt());
+        records.get(coords);
+        assertEquals("18TWL8040", new String(coords, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testSpilledMatchesInMemoryAndReference() throws IOException {
+        final Random random = new Random(42);
+        final int n = 20000;
+        final long[] keys = new long[n];
+        final byte[][] coords = new byte[n][];
+        // few enough keys and cells that there are plenty of duplicates, across runs too
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt(1 << 12) | (random.nextBoolean() ? 0x80000000L : 0L);
+            coords[i] = mgrs(String.format("%02dTWL%02d%02d", 1 + random.nextInt(60),
+                    random.nextInt(5), random.nextInt(5)));
+        }
+
+        final M8bRecordSorter inMemory = new M8bRecordSorter(folder.getRoot());
+        final M8bRecordSorter spilling = new M8bRecordSorter(folder.getRoot(), 777);
+        final Map<Long, TreeSet<String>> reference = new TreeMap<>(Long::compareUnsigned);
+        for (int i = 0; i < n; i++) {
+            inMemory.add(keys[i], coords[i]);
+            spilling.add(keys[i], coords[i]);
+            reference.computeIfAbsent(keys[i], k -> new TreeSet<>())
+                    .add(new String(coords[i], StandardCharsets.US_ASCII));
+        }
+        assertEquals(0, inMemory.getSpillCount());
+        assertTrue(spilling.getSpillCount() > 10);
+
+        final byte[] expected = write(inMemory, 30);
+        final byte[] actual = write(spilling, 30);
+        assertArrayEquals(expected, actual);
+
+        final ByteArrayOutputStream referenceBytes = new ByteArrayOutputStream();
+        int count = 0;
+        final ByteBuffer record = ByteBuffer.allocate(M8bRecordSorter.RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (final Map.Entry<Long, TreeSet<String>> entry : reference.entrySet()) {
+            for (final String cell : entry.getValue()) {
+                record.clear();
+                record.putInt((int) (long) entry.getKey()).put(cell.getBytes(StandardCharsets.US_ASCII));
+                referenceBytes.write(record.array(), 0, record.position());
+                count++;
+            }
+        }
+        final byte[] referenceRecords = referenceBytes.toByteArray();
+        assertArrayEquals(referenceRecords,
+                Arrays.copyOfRange(actual, actual.length - referenceRecords.length, actual.length));
+        assertTrue(new String(actual, StandardCharsets.UTF_8).startsWith(
+                "MJG\n2\nSIP-2-4\n1e\nMGRS-1000\n4\n9\n" + Integer.toHexString(count) + "\n"));
+
+        // run files are cleaned up; only the test's output files remain
+        spilling.close();
+        final File[] left = folder.getRoot().listFiles((dir, name) -> name.startsWith("m8b-"));
+        assertEquals(0, left == null ? 0 : left.length);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final byte[] file = write(new M8bRecordSorter(folder.getRoot(), 4), 30);
+        assertEquals("MJG\n2\nSIP-2-4\n1e\nMGRS-1000\n4\n9\n0\n", new String(file, StandardCharsets.UTF_8));
+    }
+
+    private byte[] write(final M8bRecordSorter sorter, final int sliceBits) throws IOException {
+        final File out = folder.newFile();
+        try (FileOutputStream stream = new FileOutputStream(out)) {
+            sorter.writeTo(stream.getChannel(), sliceBits, null);
+        } finally {
+            sorter.close();
+        }
+        return Files.readAllBytes(out.toPath());
+    }
+
+    private static byte[] mgrs(final String cell) {
+        final byte[] bytes = cell.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(M8bRecordSorter.MGRS_BYTES, bytes.length);
+        return bytes;
+    }
+}
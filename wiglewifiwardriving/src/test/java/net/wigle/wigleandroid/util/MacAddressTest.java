@@ -0,0 +1,62 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class MacAddressTest {
+
+    @Test
+    public void testPackAndFormat() {
+        final long packed = MacAddress.pack("00:1a:2b:3c:4d:ff");
+        assertEquals(0x001A2B3C4DFFL, packed);
+        assertTrue(MacAddress.isMac(packed));
+        assertEquals("00:1a:2b:3c:4d:ff", MacAddress.format(packed));
+        assertEquals(0L, MacAddress.pack("00:00:00:00:00:00"));
+        assertEquals(0xFFFFFFFFFFFFL, MacAddress.pack("ff:ff:ff:ff:ff:ff"));
+    }
+
+    @Test
+    public void testRejectsNonMacs() {
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack(null));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack(""));
+        // cell ids
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("310410_12345_67890"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("310260_5555_12345"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("00:1a:2b:3c:4d:fg"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("00:1a:2b:3c:4d.ff"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("00:1a:2b:3c:4d:ff:"));
+        // only the form Network keeps: other spellings would pack to the same key
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("00:1A:2b:3C:4d:FF"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.pack("00-1a-2b-3c-4d-ff"));
+        assertFalse(MacAddress.isMac(MacAddress.NOT_A_MAC));
+    }
+
+    @Test
+    public void testParseNormalises() {
+        assertEquals(0x001A2B3C4DFFL, MacAddress.parse("00:1A:2b:3C:4d:FF"));
+        assertEquals(0x001A2B3C4DFFL, MacAddress.parse("00-1a-2b-3c-4d-ff"));
+        assertEquals(0x001A2B3C4DFFL, MacAddress.parse("00:1a:2b:3c:4d:ff"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.parse(null));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.parse("310410_12345_67890"));
+        assertEquals(MacAddress.NOT_A_MAC, MacAddress.parse("00:1a:2b:3c:4d.ff"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final Random random = new Random(7);
+        final byte[] buffer = new byte[MacAddress.STRING_LENGTH + 2];
+        for (int i = 0; i < 10000; i++) {
+            final long mac = random.nextLong() & 0xFFFFFFFFFFFFL;
+            final String formatted = MacAddress.format(mac);
+            assertEquals(mac, MacAddress.pack(formatted));
+            assertEquals(MacAddress.STRING_LENGTH + 1, MacAddress.write(buffer, 1, mac));
+            assertEquals(formatted, new String(buffer, 1, MacAddress.STRING_LENGTH, StandardCharsets.US_ASCII));
+        }
+    }
+}
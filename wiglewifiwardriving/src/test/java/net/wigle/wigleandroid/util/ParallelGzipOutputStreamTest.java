@@ -0,0 +1,222 @@
+package net.wigle.wigleandroid.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void testEmpty() throws IOException {
+        final byte[] input = new byte[0];
+        assertArrayEquals(input, gunzip(parallelGzip(input, 32 * 1024, 2, 1024)));
+    }
+
+    @Test
+    public void testSingleBlockStaysInline() throws IOException {
+        final byte[] input = observationLines(1000);
+        assertTrue(input.length < ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+        assertArrayEquals(input, gunzip(parallelGzip(input, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, 4, 4096)));
+    }
+
+    @Test
+    public void testRoundTripAcrossBlockBoundaries() throws IOException {
+        final byte[] input = observationLines(40000);
+        for (int threads = 1; threads <= 4; threads++) {
+            // odd write sizes so writes straddle block edges
+            final byte[] gz = parallelGzip(input, 32 * 1024, threads, 7919);
+            assertArrayEquals(input, gunzip(gz));
+            assertSingleMember(input, gz);
+        }
+        // exactly one block's worth, and single-byte writes
+        final byte[] exact = new byte[64 * 1024];
+        System.arraycopy(input, 0, exact, 0, exact.length);
+        assertArrayEquals(exact, gunzip(parallelGzip(exact, 64 * 1024, 2, 1)));
+    }
+
+    @Test
+    public void testRandomData() throws IOException {
+        final byte[] input = new byte[1024 * 1024 + 17];
+        new Random(42L).nextBytes(input);
+        final byte[] gz = parallelGzip(input, 64 * 1024, 3, 65536);
+        assertArrayEquals(input, gunzip(gz));
+        assertSingleMember(input, gz);
+    }
+
+    @Test
+    public void testRatioCloseToSingleStream() throws IOException {
+        final byte[] input = observationLines(100000);
+        final ByteArrayOutputStream single = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzos = new GZIPOutputStream(single)) {
+            gzos.write(input);
+        }
+        final byte[] parallel = parallelGzip(input, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, 4, 65536);
+        // dictionary priming means blocks only lose a few sync-flush markers
+        assertTrue("parallel " + parallel.length + " single " + single.size(),
+                parallel.length < single.size() * 1.02);
+    }
+
+    /**
+     * Rough comparison with the single-threaded GZIPOutputStream path, on synthetic WigleWifi lines.
+     * Run by hand; timings on a shared CI box don't mean much.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkAgainstGzipOutputStream() throws IOException {
+        final byte[] input = observationLines(400000);
+        final int rounds = 5;
+        for (int warm = 0; warm < 2; warm++) {
+            gzipOutputStream(input);
+            parallelGzip(input, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, 4, 64 * 1024);
+        }
+
+        long best = Long.MAX_VALUE;
+        int size = 0;
+        for (int i = 0; i < rounds; i++) {
+            final long start = System.nanoTime();
+            size = gzipOutputStream(input).length;
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        report("GZIPOutputStream", input.length, size, best);
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(cores + " cores");
+        // the upload path before it stopped gzipping the already-gzipped stream a second time
+        best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            final long start = System.nanoTime();
+            size = nestedGzip(input, cores).length;
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        report("parallel in GZIPOutputStream", input.length, size, best);
+
+        for (final int blockSize : new int[]{64 * 1024, 128 * 1024, 512 * 1024}) {
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                best = Long.MAX_VALUE;
+                for (int i = 0; i < rounds; i++) {
+                    final long start = System.nanoTime();
+                    size = parallelGzip(input, blockSize, threads, 64 * 1024).length;
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                report("parallel block=" + (blockSize / 1024) + "k threads=" + threads, input.length, size, best);
+            }
+        }
+    }
+
+    private static void report(final String name, final int inputLength, final int outputLength, final long nanos) {
+        System.out.printf("%-36s %8.1f MB/s  ratio %.3f%n", name,
+                (inputLength / (1024.0 * 1024.0)) / (nanos / 1e9), outputLength / (double) inputLength);
+    }
+
+    private static byte[] gzipOutputStream(final byte[] input) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzos = new GZIPOutputStream(bytes)) {
+            for (int off = 0; off < input.length; off += 64 * 1024) {
+                gzos.write(input, off, Math.min(64 * 1024, input.length - off));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] nestedGzip(final byte[] input, final int threads) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream gzos = new ParallelGzipOutputStream(new GZIPOutputStream(bytes),
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, threads)) {
+            for (int off = 0; off < input.length; off += 64 * 1024) {
+                gzos.write(input, off, Math.min(64 * 1024, input.length - off));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] parallelGzip(final byte[] input, final int blockSize, final int threads,
+                                       final int writeSize) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream gzos = new ParallelGzipOutputStream(bytes, blockSize, threads)) {
+            for (int off = 0; off < input.length; off += writeSize) {
+                final int len = Math.min(writeSize, input.length - off);
+                if (len == 1) {
+                    gzos.write(input[off]);
+                } else {
+                    gzos.write(input, off, len);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(final byte[] gz) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * GZIPInputStream would also accept concatenated members; check there's exactly one deflate stream
+     * ending right before a trailer that covers all the input.
+     */
+    private static void assertSingleMember(final byte[] input, final byte[] gz) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(gz, 10, gz.length - 10);
+            final byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            while (!inflater.finished()) {
+                total += inflater.inflate(buffer);
+            }
+            assertEquals(input.length, total);
+            assertEquals(8, inflater.getRemaining());
+        } catch (final DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(input);
+        final int end = gz.length;
+        final long trailerCrc = (gz[end - 8] & 0xffL) | ((gz[end - 7] & 0xffL) << 8)
+                | ((gz[end - 6] & 0xffL) << 16) | ((gz[end - 5] & 0xffL) << 24);
+        final long trailerSize = (gz[end - 4] & 0xffL) | ((gz[end - 3] & 0xffL) << 8)
+                | ((gz[end - 2] & 0xffL) << 16) | ((gz[end - 1] & 0xffL) << 24);
+        assertEquals(crc.getValue(), trailerCrc);
+        assertEquals(input.length & 0xffffffffL, trailerSize);
+    }
+
+    private static byte[] observationLines(final int count) {
+        final Random random = new Random(7L);
+        final StringBuilder lines = new StringBuilder(count * 120);
+        for (int i = 0; i < count; i++) {
+            lines.append(String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x,net%d,[WPA2-PSK-CCMP][ESS],2024-05-0%d 12:%02d:%02d,"
+                            + "%d,%d,%d,%.7f,%.7f,%.1f,%.1f,,,WIFI\n",
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(500), 1 + random.nextInt(9),
+                    random.nextInt(60), random.nextInt(60), 1 + random.nextInt(11), 2412 + 5 * random.nextInt(11),
+                    -30 - random.nextInt(60), 47.6 + random.nextDouble() / 10, -122.3 - random.nextDouble() / 10,
+                    random.nextDouble() * 100, 3 + random.nextDouble() * 10));
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}